@@ -146,6 +146,44 @@ public class ChannelInfo {
     public String getPassphrasePrompt() { return _passphrasePrompt; }
     public void setPassphrasePrompt(String prompt) { _passphrasePrompt = prompt; }
     
+    /**
+     *  A copy with its own sets, headers and reference list, so it can be
+     *  changed without changing this one. The keys, archives and
+     *  reference nodes in them are shared.
+     *
+     *  @since 1.107b-1
+     */
+    public ChannelInfo copy() {
+        ChannelInfo rv = new ChannelInfo();
+        rv._channelId = _channelId;
+        rv._channelHash = _channelHash;
+        rv._identKey = _identKey;
+        rv._encryptKey = _encryptKey;
+        rv._edition = _edition;
+        rv._name = _name;
+        rv._description = _description;
+        rv._allowPublicPosts = _allowPublicPosts;
+        rv._allowPublicReplies = _allowPublicReplies;
+        rv._expiration = _expiration;
+        rv._receiveDate = _receiveDate;
+        rv._publicTags = new HashSet<String>(_publicTags);
+        rv._privateTags = new HashSet<String>(_privateTags);
+        rv._authorizedPosters = new HashSet<SigningPublicKey>(_authorizedPosters);
+        rv._authorizedPosterHashes = new HashSet<Hash>(_authorizedPosterHashes);
+        rv._authorizedManagers = new HashSet<SigningPublicKey>(_authorizedManagers);
+        rv._authorizedManagerHashes = new HashSet<Hash>(_authorizedManagerHashes);
+        rv._publicArchives = new HashSet<ArchiveInfo>(_publicArchives);
+        rv._privateArchives = new HashSet<ArchiveInfo>(_privateArchives);
+        rv._readKeys = new HashSet<SessionKey>(_readKeys);
+        rv._readKeysArePublic = _readKeysArePublic;
+        rv._publicHeaders = (Properties) _publicHeaders.clone();
+        rv._privateHeaders = (Properties) _privateHeaders.clone();
+        rv._references = new ArrayList<ReferenceNode>(_references);
+        rv._readKeyUnknown = _readKeyUnknown;
+        rv._passphrasePrompt = _passphrasePrompt;
+        return rv;
+    }
+    
     private Set<Hash> hash(Set<SigningPublicKey> keys) {
         if (keys.size() == 0)
             return Collections.EMPTY_SET;
@@ -0,0 +1,255 @@
+package syndie.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.i2p.data.Hash;
+import net.i2p.util.FileUtil;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+import syndie.Constants;
+import syndie.data.Enclosure;
+
+/**
+ *  The headers SharedArchiveBuilder needs from each archive file it parses,
+ *  kept between rebuilds, so a rebuild parses only the new or changed files
+ *  instead of reading an Enclosure for every message.
+ *
+ *  Keyed by the path under the archive dir, and good while the file has the
+ *  same size and last modified time. Loaded from and saved to a file in the
+ *  root dir, shared by the web and Freenet builds, which look up different files.
+ *  So the save merges in what is in the file at the time, and drops only
+ *  the entries for files that are gone from the archive.
+ *  A missing or corrupt cache file means parsing everything once.
+ *
+ *  One per build, not thread safe.
+ *
+ *  @since 1.107b-1
+ */
+class ArchiveHeaderCache {
+    private final File _file;
+    private final File _archiveDir;
+    private final Log _log;
+    /** from the cache file */
+    private final Map<String, Entry> _loaded;
+    /** looked up since the load, to be saved */
+    private final Map<String, Entry> _used;
+    private int _hits;
+    private int _misses;
+
+    static final String CACHE_FILE = "archiveHeaders.dat";
+    /** "SyHC" */
+    private static final int MAGIC = 0x53794843;
+    private static final int FORMAT_VERSION = 1;
+    /** the load and save of the cache file, by the web and Freenet builds */
+    private static final Object _fileLock = new Object();
+
+    public static final int TYPE_UNKNOWN = 0;
+    public static final int TYPE_POST = 1;
+    public static final int TYPE_REPLY = 2;
+
+    private static final int FLAG_PBE = 1;
+    private static final int FLAG_PUBLIC = 2;
+    private static final int FLAG_TARGET = 4;
+    private static final int FLAG_EDITION = 8;
+
+    /**
+     *  What the index needs from a message or meta file
+     */
+    public static final class Entry {
+        final long size;
+        final long lastModified;
+        /** TYPE_*, from the message type header */
+        public final int type;
+        /** has a PBE prompt */
+        public final boolean isPBE;
+        /** has a body key */
+        public final boolean isPublic;
+        /** the target channel, null if none or not a hash */
+        public final byte[] target;
+        /** the meta edition, null if none */
+        public final Long edition;
+
+        Entry(long size, long lastModified, int type, boolean isPBE, boolean isPublic, byte target[], Long edition) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.type = type;
+            this.isPBE = isPBE;
+            this.isPublic = isPublic;
+            this.target = target;
+            this.edition = edition;
+        }
+    }
+
+    public ArchiveHeaderCache(DBClient client) {
+        this(client, new File(client.getRootDir(), CACHE_FILE));
+    }
+
+    /**
+     *  @param file the cache file to use instead of the one in the root dir
+     *  @since 1.107b-1
+     */
+    ArchiveHeaderCache(DBClient client, File file) {
+        _file = file;
+        _archiveDir = client.getArchiveDir();
+        _log = client.ctx().logManager().getLog(ArchiveHeaderCache.class);
+        _loaded = new HashMap<String, Entry>();
+        _used = new HashMap<String, Entry>();
+        load();
+    }
+
+    /**
+     *  The headers of the file, from the cache if it hasn't changed, else parsed
+     *
+     *  @param path the key, relative to the archive dir
+     *  @param size of the file, as already checked by the caller
+     *  @param lastModified of the file, as already checked by the caller
+     *  @throws IOException if it can't be parsed, which is not cached
+     */
+    public Entry get(String path, File file, long size, long lastModified) throws IOException {
+        Entry e = _loaded.get(path);
+        if (e != null && e.size == size && e.lastModified == lastModified) {
+            _hits++;
+        } else {
+            _misses++;
+            e = parse(file, size, lastModified);
+        }
+        _used.put(path, e);
+        return e;
+    }
+
+    private static Entry parse(File file, long size, long lastModified) throws IOException {
+        FileInputStream fin = null;
+        try {
+            fin = new FileInputStream(file);
+            Enclosure enc = new Enclosure(fin);
+            String type = enc.getHeaderString(Constants.MSG_HEADER_TYPE);
+            int t = TYPE_UNKNOWN;
+            if (Constants.MSG_TYPE_POST.equals(type))
+                t = TYPE_POST;
+            else if (Constants.MSG_TYPE_REPLY.equals(type))
+                t = TYPE_REPLY;
+            byte target[] = enc.getHeaderBytes(Constants.MSG_HEADER_TARGET_CHANNEL);
+            if (target != null && target.length != Hash.HASH_LENGTH)
+                target = null;
+            return new Entry(size, lastModified, t,
+                             null != enc.getHeaderString(Constants.MSG_HEADER_PBE_PROMPT),
+                             null != enc.getHeaderString(Constants.MSG_HEADER_BODYKEY),
+                             target, enc.getHeaderLong(Constants.MSG_META_HEADER_EDITION));
+        } finally {
+            if (fin != null) try { fin.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    private void load() {
+        synchronized (_fileLock) {
+            read(_loaded);
+        }
+    }
+
+    /**
+     *  Read the cache file into the map, caller must hold _fileLock.
+     *  The map is empty on error.
+     */
+    private void read(Map<String, Entry> entries) {
+        if (!_file.exists())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != FORMAT_VERSION)
+                throw new IOException("Not a header cache");
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                byte target[] = null;
+                if ((flags & FLAG_TARGET) != 0) {
+                    target = new byte[Hash.HASH_LENGTH];
+                    in.readFully(target);
+                }
+                Long edition = null;
+                if ((flags & FLAG_EDITION) != 0)
+                    edition = Long.valueOf(in.readLong());
+                entries.put(path, new Entry(size, lastModified, type, (flags & FLAG_PBE) != 0,
+                                            (flags & FLAG_PUBLIC) != 0, target, edition));
+            }
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Error reading " + _file + ", parsing the archive again", ioe);
+            entries.clear();
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  Save the entries looked up since the load, with the others in the
+     *  cache file now (the other build's), less those for files that are gone
+     */
+    public void save() {
+        synchronized (_fileLock) {
+            // re-read, the other build may have saved since our load
+            Map<String, Entry> toSave = new HashMap<String, Entry>();
+            read(toSave);
+            for (Iterator<String> iter = toSave.keySet().iterator(); iter.hasNext(); ) {
+                String path = iter.next();
+                if (!_used.containsKey(path) && !new File(_archiveDir, path).exists())
+                    iter.remove();
+            }
+            toSave.putAll(_used);
+            File tmp = new File(_file.getPath() + ".tmp");
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new SecureFileOutputStream(tmp)));
+                out.writeInt(MAGIC);
+                out.writeByte(FORMAT_VERSION);
+                out.writeInt(toSave.size());
+                for (Map.Entry<String, Entry> me : toSave.entrySet()) {
+                    Entry e = me.getValue();
+                    out.writeUTF(me.getKey());
+                    out.writeLong(e.size);
+                    out.writeLong(e.lastModified);
+                    out.writeByte(e.type);
+                    int flags = (e.isPBE ? FLAG_PBE : 0) | (e.isPublic ? FLAG_PUBLIC : 0) |
+                                (e.target != null ? FLAG_TARGET : 0) | (e.edition != null ? FLAG_EDITION : 0);
+                    out.writeByte(flags);
+                    if (e.target != null)
+                        out.write(e.target);
+                    if (e.edition != null)
+                        out.writeLong(e.edition.longValue());
+                }
+                out.close();
+                out = null;
+                if (!FileUtil.rename(tmp, _file)) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Error renaming " + tmp);
+                }
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Error writing " + _file, ioe);
+            } finally {
+                if (out != null) try { out.close(); } catch (IOException ioe) {}
+                tmp.delete();
+            }
+        }
+    }
+
+    /** parsed and cached counts since the load */
+    @Override
+    public String toString() {
+        return "cached: " + _hits + " parsed: " + _misses + " used: " + _used.size();
+    }
+}
@@ -0,0 +1,258 @@
+package syndie.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.i2p.util.Log;
+import net.i2p.util.SecureDirectory;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  Attachments and pages too big to keep in the database well,
+ *  as files named by the SHA-256 of their content in the blobs/ directory
+ *  next to the archive. This is storageType 2 in messageAttachmentData
+ *  and messagePageData, with externalPath the path relative to the root dir,
+ *  blobs/xx/(64 hex chars), so the same attachment posted to several forums
+ *  is stored once.
+ *
+ *  Files are never deleted when a message is, as another message or an
+ *  uncommitted import may use the same one. sweep() deletes the ones
+ *  no row refers to any more, from DBMaintenance when idle.
+ *
+ *  Only for file databases, a memory database keeps everything inside.
+ *
+ *  @since 1.107b-1
+ */
+class BlobStore {
+    private final DBClient _client;
+    private final Log _log;
+    private final File _rootDir;
+    private final File _dir;
+    private long _stored;
+    private long _deduped;
+
+    /** the storageType */
+    public static final int STORAGE_TYPE = 2;
+    public static final String DIR_NAME = "blobs";
+    /** don't sweep anything this new, it may be from an import still running */
+    private static final long SWEEP_MIN_AGE = 60*60*1000l;
+
+    private static final String SQL_COUNT_ATTACHMENT_REFS = "SELECT COUNT(*) FROM messageAttachmentData WHERE externalPath = ?";
+    private static final String SQL_COUNT_PAGE_REFS = "SELECT COUNT(*) FROM messagePageData WHERE externalPath = ?";
+
+    public BlobStore(DBClient client, File rootDir) {
+        _client = client;
+        _log = client.ctx().logManager().getLog(BlobStore.class);
+        _rootDir = rootDir;
+        _dir = new File(rootDir, DIR_NAME);
+    }
+
+    /**
+     *  Store the data, unless it already is.
+     *
+     *  @return the externalPath for the row
+     */
+    public String put(byte data[]) throws IOException {
+        String hex = toHex(_client.ctx().sha().calculateHash(data).getData());
+        String path = DIR_NAME + '/' + hex.substring(0, 2) + '/' + hex;
+        File f = new File(_rootDir, path);
+        if (f.length() == data.length && f.isFile()) {
+            synchronized (this) {
+                _deduped++;
+            }
+            // keep it from being swept before the row referring to it is committed
+            f.setLastModified(System.currentTimeMillis());
+            return path;
+        }
+        File dir = f.getParentFile();
+        if (!dir.exists() && !new SecureDirectory(dir.getPath()).mkdirs() && !dir.isDirectory())
+            throw new IOException("Unable to create " + dir);
+        File tmp = new File(dir, hex + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new SecureFileOutputStream(tmp);
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+        }
+        if (!tmp.renameTo(f)) {
+            // some platforms won't rename over an existing file
+            if (f.length() == data.length) {
+                tmp.delete();
+            } else {
+                f.delete();
+                if (!tmp.renameTo(f)) {
+                    tmp.delete();
+                    throw new IOException("Unable to rename " + tmp + " to " + f);
+                }
+            }
+        }
+        synchronized (this) {
+            _stored++;
+        }
+        return path;
+    }
+
+    /**
+     *  @throws IOException if the path isn't in the store or can't be read
+     */
+    public byte[] read(String path) throws IOException {
+        File f = getFile(path);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "r");
+            FileChannel chan = raf.getChannel();
+            long size = chan.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Too big: " + f);
+            byte rv[] = new byte[(int) size];
+            ByteBuffer buf = ByteBuffer.wrap(rv);
+            while (buf.hasRemaining()) {
+                if (chan.read(buf) < 0)
+                    throw new IOException("Short read: " + f);
+            }
+            return rv;
+        } finally {
+            if (raf != null) try { raf.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  Caller must close.
+     *
+     *  @throws IOException if the path isn't in the store or can't be opened
+     */
+    public InputStream open(String path) throws IOException {
+        File f = getFile(path);
+        return Channels.newInputStream(new FileInputStream(f).getChannel());
+    }
+
+    /**
+     *  Only paths in the store, nothing else the database might name.
+     */
+    private File getFile(String path) throws IOException {
+        if (path == null || !path.startsWith(DIR_NAME + '/') || path.indexOf("..") >= 0)
+            throw new IOException("Not a blob: " + path);
+        File f = new File(_rootDir, path);
+        if (!f.isFile())
+            throw new IOException("Missing blob: " + f);
+        return f;
+    }
+
+    /**
+     *  Delete the files no attachment or page refers to.
+     *  Files are listed and checked in a read scope, and checked again
+     *  and deleted in a write scope, so an import can't start using one
+     *  in between.
+     *
+     *  @return the number of files deleted
+     */
+    public int sweep() {
+        File subdirs[] = _dir.listFiles();
+        if (subdirs == null)
+            return 0;
+        long cutoff = System.currentTimeMillis() - SWEEP_MIN_AGE;
+        List<String> unused = new ArrayList<String>();
+        int total = 0;
+        _client.beginRead();
+        try {
+            for (int i = 0; i < subdirs.length; i++) {
+                File files[] = subdirs[i].listFiles();
+                if (files == null)
+                    continue;
+                for (int j = 0; j < files.length; j++) {
+                    File f = files[j];
+                    if (f.lastModified() > cutoff)
+                        continue;
+                    String path = DIR_NAME + '/' + subdirs[i].getName() + '/' + f.getName();
+                    if (f.getName().endsWith(".tmp")) {
+                        unused.add(path);
+                        continue;
+                    }
+                    total++;
+                    if (countRefs(path) == 0)
+                        unused.add(path);
+                }
+            }
+        } catch (SQLException se) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Error checking the blob store", se);
+            return 0;
+        } finally {
+            _client.endRead();
+        }
+        if (unused.isEmpty())
+            return 0;
+
+        int deleted = 0;
+        long bytes = 0;
+        _client.beginWrite();
+        try {
+            for (String path : unused) {
+                if (!path.endsWith(".tmp") && countRefs(path) > 0)
+                    continue;
+                File f = new File(_rootDir, path);
+                long len = f.length();
+                if (f.delete()) {
+                    deleted++;
+                    bytes += len;
+                }
+            }
+        } catch (SQLException se) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Error sweeping the blob store", se);
+        } finally {
+            _client.endWrite();
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Deleted " + deleted + " unused of " + total + " blobs, " + bytes + " bytes");
+        return deleted;
+    }
+
+    private int countRefs(String path) throws SQLException {
+        return count(SQL_COUNT_ATTACHMENT_REFS, path) + count(SQL_COUNT_PAGE_REFS, path);
+    }
+
+    private int count(String sql, String path) throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.prepare(sql);
+            stmt.setString(1, path);
+            rs = stmt.executeQuery();
+            return rs.next() ? rs.getInt(1) : 0;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "blobs stored: " + _stored + " deduplicated: " + _deduped;
+    }
+
+    private static final char HEX[] = "0123456789abcdef".toCharArray();
+
+    private static String toHex(byte data[]) {
+        char rv[] = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            rv[i*2] = HEX[(data[i] >> 4) & 0x0f];
+            rv[i*2 + 1] = HEX[data[i] & 0x0f];
+        }
+        return new String(rv);
+    }
+}
@@ -0,0 +1,285 @@
+package syndie.db;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+
+import syndie.Constants;
+import syndie.data.SyndieURI;
+
+/**
+ *  Fetch many archive files from an HTTPServ in one request, instead of one
+ *  EepGet per file, so a pull over I2P pays the request round trip once
+ *  per bundle instead of once per message.
+ *
+ *  The request is a GET of bundle.dat in the archive dir, with the files
+ *  in the query, grouped by channel:
+ *  <pre>
+ *    bundle.dat?$channelBase64/meta,$messageId,$messageId;$channelBase64/$messageId
+ *  </pre>
+ *  followed by the archive URL's own query after a '&amp;'.
+ *  The response has one frame per file, in the order requested:
+ *  status (1 byte), size (4 bytes), and the file.
+ *  FRAME_NOT_FOUND is for a file the server doesn't publish, as a 404 would be,
+ *  and FRAME_DEFERRED for the files past the server's bundle size limit,
+ *  to be asked for again.
+ *
+ *  A server without bundle support answers with a 404, or a 200 that
+ *  isn't a bundle, and the caller goes back to fetching file by file.
+ *  Any other answer, like a 5xx from the I2P HTTP proxy while it looks up
+ *  the eepsite, is a failure of this fetch only.
+ *
+ *  http only, direct or through the archive's HTTP proxy.
+ *
+ *  @since 1.107b-1
+ */
+class BundleFetcher {
+    private final UI _ui;
+    private final String _archiveURL;
+    private final String _query;
+    private final String _proxyHost;
+    private final int _proxyPort;
+
+    static final String BUNDLE_FILE = "bundle.dat";
+    static final String CONTENT_TYPE = "application/x-syndie-bundle";
+    public static final int FRAME_OK = 0;
+    public static final int FRAME_NOT_FOUND = 1;
+    public static final int FRAME_DEFERRED = 2;
+    /** the server defers the files after this many bytes, but always sends the first one */
+    static final int MAX_BUNDLE_BYTES = 1024*1024;
+    /** the server rejects a bundle with more */
+    static final int MAX_ENTRIES = 500;
+    /** of the bundle part of the query, to keep the request line short enough for proxies */
+    static final int MAX_QUERY_LENGTH = 4000;
+    /** sanity check on a frame, a message with a few of the largest attachments */
+    private static final int MAX_FRAME_SIZE = 32*1024*1024;
+    private static final String META = "meta";
+    private static final int TIMEOUT = 60*1000;
+
+    /**
+     *  What to do with each frame, in the order of the request
+     */
+    public interface FrameHandler {
+        /**
+         *  @param data the file for FRAME_OK, empty otherwise
+         */
+        public void frame(SyndieURI uri, int status, byte data[]);
+    }
+
+    /**
+     *  @param archiveURL the archive dir, ending with '/'
+     *  @param query the archive URL's query starting with '?', or ""
+     *  @param proxyHost null or empty for none
+     */
+    public BundleFetcher(UI ui, String archiveURL, String query, String proxyHost, int proxyPort) {
+        _ui = ui;
+        _archiveURL = archiveURL;
+        _query = query;
+        _proxyHost = proxyHost;
+        _proxyPort = proxyPort;
+    }
+
+    /** only plain http */
+    public static boolean isSupported(String archiveURL) {
+        return archiveURL.startsWith("http://");
+    }
+
+    /**
+     *  How many of the uris, from the start, fit in one request
+     */
+    public static int countFitting(List<SyndieURI> uris) {
+        // as if each were in a group of its own, which is as long as it gets
+        int len = 0;
+        int count = 0;
+        for (SyndieURI uri : uris) {
+            Long id = uri.getMessageId();
+            len += 44 + 2 + (id != null ? id.toString().length() : META.length());
+            if (len > MAX_QUERY_LENGTH || count >= MAX_ENTRIES)
+                break;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     *  Fetch the uris, calling the handler with each frame as it comes in.
+     *  The frames come in grouped by channel, not necessarily in the order given.
+     *
+     *  @param uris no more than countFitting() of them
+     *  @return false if the server doesn't serve bundles (a 404, or a 200 that isn't a bundle),
+     *          before any frames
+     *  @throws IOException on any other failure before all the frames are in
+     */
+    public boolean fetch(List<SyndieURI> uris, FrameHandler handler) throws IOException {
+        Map<Hash, List<SyndieURI>> byScope = new LinkedHashMap<Hash, List<SyndieURI>>();
+        for (SyndieURI uri : uris) {
+            List<SyndieURI> l = byScope.get(uri.getScope());
+            if (l == null) {
+                l = new ArrayList<SyndieURI>();
+                byScope.put(uri.getScope(), l);
+            }
+            l.add(uri);
+        }
+        List<SyndieURI> ordered = new ArrayList<SyndieURI>(uris.size());
+        StringBuilder buf = new StringBuilder(_archiveURL.length() + 64 * uris.size());
+        buf.append(_archiveURL).append(BUNDLE_FILE).append('?');
+        for (Map.Entry<Hash, List<SyndieURI>> e : byScope.entrySet()) {
+            if (!ordered.isEmpty())
+                buf.append(';');
+            buf.append(e.getKey().toBase64()).append('/');
+            List<SyndieURI> l = e.getValue();
+            for (int i = 0; i < l.size(); i++) {
+                SyndieURI uri = l.get(i);
+                if (i > 0)
+                    buf.append(',');
+                if (uri.getMessageId() == null)
+                    buf.append(META);
+                else
+                    buf.append(uri.getMessageId().longValue());
+                ordered.add(uri);
+            }
+        }
+        if (_query.length() > 1)
+            buf.append('&').append(_query.substring(1));
+        String url = buf.toString();
+
+        URL u;
+        try {
+            u = new URL(url);
+        } catch (MalformedURLException mue) {
+            throw new IOException("Bad URL " + url);
+        }
+        String host = u.getHost();
+        int port = u.getPort() > 0 ? u.getPort() : 80;
+        boolean shouldProxy = _proxyHost != null && _proxyHost.length() > 0 && _proxyPort > 0;
+        _ui.debugMessage(Thread.currentThread().getName() + ": Fetching a bundle of " + ordered.size() +
+                         " from [" + _archiveURL + "]" + (shouldProxy ? " proxy " + _proxyHost + ":" + _proxyPort : ""));
+
+        Socket s = new Socket();
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            if (shouldProxy)
+                s.connect(new InetSocketAddress(_proxyHost, _proxyPort), TIMEOUT);
+            else
+                s.connect(new InetSocketAddress(host, port), TIMEOUT);
+            s.setSoTimeout(TIMEOUT);
+            StringBuilder req = new StringBuilder(url.length() + 128);
+            req.append("GET ").append(shouldProxy ? url : u.getFile()).append(" HTTP/1.0\r\n");
+            req.append("Host: ").append(host);
+            if (u.getPort() > 0)
+                req.append(':').append(port);
+            req.append("\r\nAccept: ").append(CONTENT_TYPE).append("\r\n");
+            req.append("Connection: close\r\n\r\n");
+            out = s.getOutputStream();
+            out.write(DataHelper.getUTF8(req.toString()));
+            out.flush();
+
+            in = new BufferedInputStream(s.getInputStream(), 16*1024);
+            String line = DataHelper.readLine(in);
+            if (line == null)
+                throw new IOException("No response");
+            String parts[] = line.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+                throw new IOException("Bad response: " + line);
+            if ("404".equals(parts[1])) {
+                _ui.debugMessage("Bundle fetch from [" + _archiveURL + "] returned: " + line);
+                return false;
+            }
+            if (!"200".equals(parts[1]))
+                throw new IOException("Bundle fetch returned: " + line);
+            String type = null;
+            for (int c = 0; c < 50; c++) {
+                line = DataHelper.readLine(in);
+                if (line == null)
+                    throw new IOException("Headers truncated");
+                if (line.trim().length() == 0)
+                    break;
+                String header[] = line.split(":", 2);
+                if (header.length == 2 && "content-type".equals(header[0].trim().toLowerCase(Locale.US)))
+                    type = header[1].trim();
+            }
+            if (!CONTENT_TYPE.equals(type)) {
+                _ui.debugMessage("Bundle fetch from [" + _archiveURL + "] returned type " + type);
+                return false;
+            }
+
+            DataInputStream din = new DataInputStream(in);
+            for (SyndieURI uri : ordered) {
+                int status = din.readUnsignedByte();
+                if (status != FRAME_OK && status != FRAME_NOT_FOUND && status != FRAME_DEFERRED)
+                    throw new IOException("Bad frame status " + status);
+                int size = din.readInt();
+                if (size < 0 || size > MAX_FRAME_SIZE || (status != FRAME_OK && size != 0))
+                    throw new IOException("Bad frame size " + size);
+                byte data[] = new byte[size];
+                din.readFully(data);
+                handler.frame(uri, status, data);
+            }
+            return true;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+            try { s.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  The files of a bundle request, as the channel and the file name in its dir,
+     *  as HTTPServ gets them from a path.
+     *
+     *  @param path the request path with the query
+     *  @return channel and file name pairs, or null if malformed or too many
+     */
+    public static List<String[]> parseQuery(String path) {
+        int q = path.indexOf('?');
+        if (q < 0)
+            return null;
+        int end = path.indexOf('&', q);
+        String spec = path.substring(q + 1, end > 0 ? end : path.length());
+        if (spec.length() <= 0 || spec.length() > MAX_QUERY_LENGTH)
+            return null;
+        List<String[]> rv = new ArrayList<String[]>();
+        String groups[] = spec.split(";");
+        for (int i = 0; i < groups.length; i++) {
+            int slash = groups[i].indexOf('/');
+            if (slash <= 0)
+                return null;
+            String chan = groups[i].substring(0, slash);
+            String ids[] = groups[i].substring(slash + 1).split(",");
+            for (int j = 0; j < ids.length; j++) {
+                String sub;
+                if (META.equals(ids[j])) {
+                    sub = META + Constants.FILENAME_SUFFIX;
+                } else {
+                    try {
+                        long id = Long.parseLong(ids[j]);
+                        if (id < 0)
+                            return null;
+                        sub = id + Constants.FILENAME_SUFFIX;
+                    } catch (NumberFormatException nfe) {
+                        return null;
+                    }
+                }
+                if (rv.size() >= MAX_ENTRIES)
+                    return null;
+                rv.add(new String[] { chan, sub });
+            }
+        }
+        return rv;
+    }
+}
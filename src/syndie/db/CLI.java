@@ -32,6 +32,12 @@ public class CLI {
         // must be lower case here
         _commands.put("changen", ChanGen.class);
         _commands.put("chanlist", ChanList.class);
+        _commands.put("channelstats", ChannelStatsCommand.class);
+        _commands.put("dbbench", DBBench.class);
+        _commands.put("dbstats", DBStatsCommand.class);
+        _commands.put("dbtune", DBTuneCommand.class);
+        _commands.put("expire", ExpireCommand.class);
+        _commands.put("explainplans", ExplainPlans.class);
         _commands.put("ctrlserv", ControlServer.class);
         _commands.put("httpserv", HTTPServ.class);
         _commands.put("import", Importer.class);
@@ -42,6 +48,7 @@ public class CLI {
         _commands.put("messagegen", MessageGen.class);
         _commands.put("messagelist", MessageList.class);
         _commands.put("register", LoginManager.class);
+        _commands.put("reindex", Reindex.class);
         _commands.put("viewmessage", ViewMessage.class);
         _commands.put("viewmetadata", ViewMetadata.class);
     }
@@ -0,0 +1,417 @@
+package syndie.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.i2p.data.Hash;
+import net.i2p.util.Log;
+
+/**
+ *  Every known channel's id, hash, name, and pet name, so
+ *  getChannelHash(), getChannelId() and getChannelName() need no query,
+ *  no matter how many channels there are.
+ *
+ *  Loaded at login from one scan of the channel table, and kept up to date
+ *  by each change to it (ImportMeta through invalidateChannelCache(),
+ *  setNymChannelPetName(), channel deletes). The changes made in a transaction
+ *  are logged, and undone if it, or the savepoint they came after, is rolled back.
+ *
+ *  Reads take no lock: the tables are swapped in whole when they grow,
+ *  and slots are set atomically. Writes are synchronized.
+ *  By id, it is an array indexed by channelId, which comes from a sequence
+ *  starting at 0. By hash, an open addressing table keyed by the first
+ *  8 bytes of the hash. If an id is ever out of range, the index is
+ *  dropped and DBClient queries instead.
+ *
+ *  @since 1.107b-1
+ */
+class ChannelIndex {
+    private final DBClient _client;
+    private final Log _log;
+    /** null if not loaded */
+    private volatile Tables _tables;
+    // protected by this
+    private int _size;
+    /** used hash slots, including removed ones */
+    private int _hashUsed;
+    /** the changes since the transaction began, null outside a transaction; protected by this */
+    private List<Change> _undo;
+
+    private static final int MIN_ID_CAPACITY = 1024;
+    private static final int MIN_HASH_CAPACITY = 2048;
+    private static final long MAX_ID = 16*1024*1024;
+    /** a removed slot in the hash table, so lookups keep probing past it */
+    private static final Entry REMOVED = new Entry(-1, null, null, null);
+
+    private static final String SQL_GET_CHANNELS = "SELECT c.channelId, c.channelHash, c.name, p.petname FROM channel c " +
+                                                   "LEFT OUTER JOIN nymChannelPetName p ON c.channelId = p.channelId";
+    private static final String SQL_GET_CHANNEL = SQL_GET_CHANNELS + " WHERE c.channelId = ?";
+
+    public static final class Entry {
+        public final long id;
+        public final Hash hash;
+        /** may be null */
+        public final String name;
+        /** may be null */
+        public final String petName;
+
+        Entry(long id, Hash hash, String name, String petName) {
+            this.id = id;
+            this.hash = hash;
+            this.name = name;
+            this.petName = petName;
+        }
+
+        /** the pet name if set, else the name */
+        public String getDisplayName() {
+            if ( (petName == null) || (petName.trim().length() == 0) )
+                return name;
+            return petName;
+        }
+    }
+
+    /** the entry for a channelId before a change, null if there was none */
+    private static final class Change {
+        final long id;
+        final Entry old;
+
+        Change(long id, Entry old) {
+            this.id = id;
+            this.old = old;
+        }
+    }
+
+    private static final class Tables {
+        final AtomicReferenceArray<Entry> byId;
+        final AtomicReferenceArray<Entry> byHash;
+        final int hashMask;
+
+        Tables(AtomicReferenceArray<Entry> byId, AtomicReferenceArray<Entry> byHash) {
+            this.byId = byId;
+            this.byHash = byHash;
+            hashMask = byHash.length() - 1;
+        }
+    }
+
+    public ChannelIndex(DBClient client) {
+        _client = client;
+        _log = client.ctx().logManager().getLog(ChannelIndex.class);
+    }
+
+    /**
+     *  Load all the channels, replacing what is here.
+     *  Call in a write scope, so that no change is made while loading.
+     */
+    public void load() {
+        long start = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<Entry>();
+        long maxId = -1;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.prepare(SQL_GET_CHANNELS);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                Entry e = toEntry(rs);
+                if (e == null)
+                    continue;
+                if (e.id > MAX_ID) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("channelId " + e.id + " out of range, not keeping the channels in memory");
+                    clear();
+                    return;
+                }
+                entries.add(e);
+                if (e.id > maxId)
+                    maxId = e.id;
+            }
+        } catch (SQLException se) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Error loading the channels", se);
+            clear();
+            return;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        AtomicReferenceArray<Entry> byId = new AtomicReferenceArray<Entry>(capacity((int) maxId + 1, MIN_ID_CAPACITY));
+        AtomicReferenceArray<Entry> byHash = new AtomicReferenceArray<Entry>(capacity(entries.size() * 4, MIN_HASH_CAPACITY));
+        for (Entry e : entries) {
+            byId.set((int) e.id, e);
+            putHash(byHash, e);
+        }
+        synchronized (this) {
+            _size = entries.size();
+            _hashUsed = entries.size();
+            _tables = new Tables(byId, byHash);
+            if (_undo != null)
+                _undo.clear();
+        }
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Loaded " + entries.size() + " channels in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     *  A transaction or savepoint begins, log the changes from here on
+     *
+     *  @return the mark for undo()
+     */
+    public synchronized int beginUndo() {
+        if (_undo == null)
+            _undo = new ArrayList<Change>();
+        return _undo.size();
+    }
+
+    /**
+     *  Undo the changes since the mark, which were rolled back
+     *
+     *  @param mark from beginUndo(), 0 for the whole transaction
+     */
+    public synchronized void undo(int mark) {
+        List<Change> undo = _undo;
+        if (undo == null)
+            return;
+        // don't log the undoing
+        _undo = null;
+        try {
+            for (int i = undo.size() - 1; i >= mark; i--) {
+                Change c = undo.remove(i);
+                if (c.old != null)
+                    put(c.old);
+                else
+                    remove(c.id);
+            }
+        } finally {
+            _undo = undo;
+        }
+    }
+
+    /** the transaction is over, stop logging the changes */
+    public synchronized void endUndo() {
+        _undo = null;
+    }
+
+    /** forget everything, until the next load() */
+    public synchronized void clear() {
+        _tables = null;
+        _size = 0;
+        _hashUsed = 0;
+        if (_undo != null)
+            _undo.clear();
+    }
+
+    public boolean isLoaded() {
+        return _tables != null;
+    }
+
+    /**
+     *  The channel was inserted, updated, or deleted, read its row again.
+     *  Call in the same scope as the change.
+     */
+    public void refresh(long channelId) {
+        if (_tables == null || channelId < 0)
+            return;
+        Entry e = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.prepare(SQL_GET_CHANNEL);
+            stmt.setLong(1, channelId);
+            rs = stmt.executeQuery();
+            if (rs.next())
+                e = toEntry(rs);
+        } catch (SQLException se) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Error loading the channel " + channelId + ", dropping the index", se);
+            clear();
+            return;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        if (e != null)
+            put(e);
+        else
+            remove(channelId);
+    }
+
+    /**
+     *  @return null if not found or not loaded
+     */
+    public Entry get(long channelId) {
+        Tables t = _tables;
+        if (t == null || channelId < 0 || channelId >= t.byId.length())
+            return null;
+        return t.byId.get((int) channelId);
+    }
+
+    /**
+     *  @return null if not found or not loaded
+     */
+    public Entry get(Hash channel) {
+        Tables t = _tables;
+        if (t == null || channel == null)
+            return null;
+        AtomicReferenceArray<Entry> byHash = t.byHash;
+        int mask = t.hashMask;
+        for (int i = slot(channel, mask), n = 0; n <= mask; i = (i + 1) & mask, n++) {
+            Entry e = byHash.get(i);
+            if (e == null)
+                return null;
+            if (e != REMOVED && e.hash.equals(channel))
+                return e;
+        }
+        return null;
+    }
+
+    /**
+     *  @return all the channels, or null if not loaded
+     */
+    public List<Entry> getAll() {
+        Tables t = _tables;
+        if (t == null)
+            return null;
+        List<Entry> rv = new ArrayList<Entry>();
+        for (int i = 0; i < t.byId.length(); i++) {
+            Entry e = t.byId.get(i);
+            if (e != null)
+                rv.add(e);
+        }
+        return rv;
+    }
+
+    private synchronized void put(Entry e) {
+        Tables t = _tables;
+        if (t == null)
+            return;
+        if (e.id > MAX_ID) {
+            clear();
+            return;
+        }
+        int id = (int) e.id;
+        if (_undo != null)
+            _undo.add(new Change(id, id < t.byId.length() ? t.byId.get(id) : null));
+        if (id >= t.byId.length()) {
+            AtomicReferenceArray<Entry> byId = new AtomicReferenceArray<Entry>(capacity(id + 1, t.byId.length() * 2));
+            for (int i = 0; i < t.byId.length(); i++)
+                byId.set(i, t.byId.get(i));
+            t = new Tables(byId, t.byHash);
+            _tables = t;
+        }
+        Entry old = t.byId.get(id);
+        if (old != null && !old.hash.equals(e.hash))
+            removeHash(t, old.hash);
+        t.byId.set(id, e);
+        if (old == null)
+            _size++;
+        if (putHash(t.byHash, e))
+            _hashUsed++;
+        if (_hashUsed > t.byHash.length() / 2) {
+            // rebuild without the removed slots
+            AtomicReferenceArray<Entry> byHash = new AtomicReferenceArray<Entry>(capacity(_size * 4, MIN_HASH_CAPACITY));
+            for (int i = 0; i < t.byHash.length(); i++) {
+                Entry cur = t.byHash.get(i);
+                if (cur != null && cur != REMOVED)
+                    putHash(byHash, cur);
+            }
+            _hashUsed = _size;
+            _tables = new Tables(t.byId, byHash);
+        }
+    }
+
+    private synchronized void remove(long channelId) {
+        Tables t = _tables;
+        if (t == null || channelId >= t.byId.length())
+            return;
+        Entry old = t.byId.get((int) channelId);
+        if (old == null)
+            return;
+        if (_undo != null)
+            _undo.add(new Change(channelId, old));
+        t.byId.set((int) channelId, null);
+        removeHash(t, old.hash);
+        _size--;
+    }
+
+    /**
+     *  Replace the entry with the same hash, else use the first free slot
+     *
+     *  @return true if a never used slot was taken
+     */
+    private static boolean putHash(AtomicReferenceArray<Entry> byHash, Entry e) {
+        int mask = byHash.length() - 1;
+        int free = -1;
+        for (int i = slot(e.hash, mask); ; i = (i + 1) & mask) {
+            Entry cur = byHash.get(i);
+            if (cur == null) {
+                if (free >= 0) {
+                    byHash.set(free, e);
+                    return false;
+                }
+                byHash.set(i, e);
+                return true;
+            }
+            if (cur == REMOVED) {
+                if (free < 0)
+                    free = i;
+            } else if (cur.hash.equals(e.hash)) {
+                byHash.set(i, e);
+                return false;
+            }
+        }
+    }
+
+    private static void removeHash(Tables t, Hash hash) {
+        AtomicReferenceArray<Entry> byHash = t.byHash;
+        int mask = t.hashMask;
+        for (int i = slot(hash, mask), n = 0; n <= mask; i = (i + 1) & mask, n++) {
+            Entry cur = byHash.get(i);
+            if (cur == null)
+                return;
+            if (cur != REMOVED && cur.hash.equals(hash)) {
+                byHash.set(i, REMOVED);
+                return;
+            }
+        }
+    }
+
+    /** the first 8 bytes of a hash are as random as any */
+    private static int slot(Hash hash, int mask) {
+        byte b[] = hash.getData();
+        long key = 0;
+        for (int i = 0; i < 8; i++)
+            key = (key << 8) | (b[i] & 0xff);
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    /** @return a power of 2 at least min and at least floor */
+    private static int capacity(int min, int floor) {
+        int rv = floor;
+        while (rv < min)
+            rv <<= 1;
+        return rv;
+    }
+
+    private static Entry toEntry(ResultSet rs) throws SQLException {
+        long id = rs.getLong(1);
+        if (rs.wasNull() || id < 0)
+            return null;
+        byte hash[] = rs.getBytes(2);
+        if (hash == null || hash.length != Hash.HASH_LENGTH)
+            return null;
+        return new Entry(id, new Hash(hash), rs.getString(3), rs.getString(4));
+    }
+
+    @Override
+    public synchronized String toString() {
+        Tables t = _tables;
+        if (t == null)
+            return "not loaded";
+        return "channels: " + _size + " id slots: " + t.byId.length() +
+               " hash slots: " + _hashUsed + '/' + t.byHash.length();
+    }
+}
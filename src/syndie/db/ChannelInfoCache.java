@@ -0,0 +1,94 @@
+package syndie.db;
+
+import java.util.Map;
+
+import net.i2p.util.LHMCache;
+
+import syndie.data.ChannelInfo;
+
+/**
+ *  Bounded cache of fully loaded ChannelInfo objects, keyed by channel ID,
+ *  each tagged with the edition it was loaded at.
+ *
+ *  Entries are removed explicitly when the channel's metadata changes
+ *  (ImportMeta, bans, deletes, petnames). Since a reader may load a channel
+ *  concurrently with an import, a load is only cached if no invalidation
+ *  of that channel happened while it was loading, and never replaces
+ *  a newer edition.
+ *
+ *  Callers may change what they get, e.g. ManageMenu edits the channel in
+ *  place, so the cache keeps its own copy and hands out copies of it.
+ *
+ *  @since 1.107b-1
+ */
+class ChannelInfoCache {
+    private final Map<Long, ChannelInfo> _cache;
+    /** incremented on every invalidation */
+    private long _generation;
+    private long _hits;
+    private long _misses;
+    private long _invalidations;
+
+    public ChannelInfoCache(int size) {
+        _cache = new LHMCache<Long, ChannelInfo>(size);
+    }
+
+    /**
+     *  @return a copy, null if not cached
+     */
+    public ChannelInfo get(long channelId) {
+        ChannelInfo rv;
+        synchronized (this) {
+            rv = _cache.get(Long.valueOf(channelId));
+            if (rv != null)
+                _hits++;
+            else
+                _misses++;
+        }
+        return rv != null ? rv.copy() : null;
+    }
+
+    /**
+     *  Call before loading, and pass the value to put()
+     */
+    public synchronized long getGeneration() {
+        return _generation;
+    }
+
+    /**
+     *  Cache the info unless something was invalidated since generation,
+     *  or a newer edition is already cached.
+     *
+     *  @param info not kept, a copy is
+     *  @param generation from getGeneration() before the info was loaded
+     */
+    public void put(ChannelInfo info, long generation) {
+        ChannelInfo copy = info.copy();
+        synchronized (this) {
+            if (generation != _generation)
+                return;
+            Long id = Long.valueOf(copy.getChannelId());
+            ChannelInfo old = _cache.get(id);
+            if (old != null && old.getEdition() > copy.getEdition())
+                return;
+            _cache.put(id, copy);
+        }
+    }
+
+    public synchronized void invalidate(long channelId) {
+        _generation++;
+        if (_cache.remove(Long.valueOf(channelId)) != null)
+            _invalidations++;
+    }
+
+    public synchronized void clear() {
+        _generation++;
+        _cache.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size: " + _cache.size() + " hits: " + _hits + " misses: " + _misses +
+               " invalidations: " + _invalidations;
+    }
+}
@@ -0,0 +1,485 @@
+package syndie.db;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ *  Running message counts per channel, in the channelStats and nymChannelStats tables.
+ *
+ *  Every change to a message row or its unread flags is applied as a delta:
+ *  load() the message's state before and after the change, and pass both to update().
+ *  A message contributes to its target channel's counts the same way the old
+ *  aggregate queries counted it (see ddl_update26.txt), so the counters
+ *  always equal what those queries would return.
+ *
+ *  Callers must make the change and the update in the same write scope
+ *  and transaction.
+ *
+ *  @since 1.107b-1
+ */
+class ChannelStats {
+    private final DBClient _client;
+
+    public ChannelStats(DBClient client) {
+        _client = client;
+    }
+
+    /**
+     *  What a message contributes to the counters
+     */
+    static class MessageState {
+        long channelId;
+        /** not deleted */
+        boolean present;
+        /** no missing keys or passphrase */
+        boolean readable;
+        boolean cancelled;
+        boolean wasPrivate;
+        long importDate;
+        /** nymIds that haven't read it */
+        final Set<Long> unreadBy = new HashSet<Long>();
+
+        boolean countsMessage() { return present && readable && !cancelled; }
+        boolean countsPrivate() { return present && readable && wasPrivate; }
+        boolean countsUnread() { return present && readable; }
+        boolean countsImport() { return present && importDate > 0; }
+    }
+
+    private static final String SQL_GET_STATE = "SELECT targetChannelId, deletionCause, readKeyMissing, replyKeyMissing, pbePrompt, isCancelled, wasPrivate, importDate FROM channelMessage WHERE msgId = ?";
+    private static final String SQL_GET_UNREAD_BY = "SELECT nymId FROM nymUnreadMessage WHERE msgId = ?";
+
+    /**
+     *  @return null if the message doesn't exist or has no target channel
+     */
+    public MessageState load(long msgId) throws SQLException {
+        MessageState rv = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.prepare(SQL_GET_STATE);
+            stmt.setLong(1, msgId);
+            rs = stmt.executeQuery();
+            if (rs.next()) {
+                long chanId = rs.getLong(1);
+                if (rs.wasNull())
+                    return null;
+                rv = new MessageState();
+                rv.channelId = chanId;
+                rs.getInt(2);
+                rv.present = rs.wasNull();
+                // as in SQL, a NULL flag matches neither TRUE nor FALSE
+                rv.readable = isFalse(rs, 3) && isFalse(rs, 4) && rs.getString(5) == null;
+                rv.cancelled = !isFalse(rs, 6);
+                rv.wasPrivate = rs.getBoolean(7);
+                Date when = rs.getDate(8);
+                rv.importDate = when != null ? when.getTime() : 0;
+            }
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        if (rv == null)
+            return null;
+        try {
+            stmt = _client.prepare(SQL_GET_UNREAD_BY);
+            stmt.setLong(1, msgId);
+            rs = stmt.executeQuery();
+            while (rs.next())
+                rv.unreadBy.add(Long.valueOf(rs.getLong(1)));
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return rv;
+    }
+
+    private static boolean isFalse(ResultSet rs, int col) throws SQLException {
+        boolean val = rs.getBoolean(col);
+        return !val && !rs.wasNull();
+    }
+
+    /**
+     *  Apply the difference between the two states of one message
+     *
+     *  @param before null if it didn't exist
+     *  @param after null if it doesn't exist any more
+     */
+    public void update(MessageState before, MessageState after) throws SQLException {
+        if (before != null && after != null && before.channelId != after.channelId) {
+            update(before, null);
+            update(null, after);
+            return;
+        }
+        if (before == null && after == null)
+            return;
+        long chanId = before != null ? before.channelId : after.channelId;
+
+        int dMessages = 0;
+        int dPrivate = 0;
+        if (before != null) {
+            if (before.countsMessage()) dMessages--;
+            if (before.countsPrivate()) dPrivate--;
+        }
+        if (after != null) {
+            if (after.countsMessage()) dMessages++;
+            if (after.countsPrivate()) dPrivate++;
+        }
+        Date lastPost = after != null && after.countsMessage() ? new Date(after.importDate) : null;
+        Date lastImport = after != null && after.countsImport() ? new Date(after.importDate) : null;
+        updateChannel(chanId, dMessages, dPrivate, lastPost, lastImport);
+
+        // dates only move back when the latest message goes away
+        if (before != null) {
+            boolean postGone = before.countsMessage() && (after == null || !after.countsMessage());
+            boolean importGone = before.countsImport() && (after == null || !after.countsImport());
+            if (postGone || importGone)
+                recalculateDates(chanId, new Date(before.importDate));
+        }
+
+        Set<Long> nyms = new HashSet<Long>();
+        if (before != null && before.countsUnread())
+            nyms.addAll(before.unreadBy);
+        if (after != null && after.countsUnread())
+            nyms.addAll(after.unreadBy);
+        for (Long nymId : nyms) {
+            int dUnread = 0;
+            int dUnreadPrivate = 0;
+            if (before != null && before.countsUnread() && before.unreadBy.contains(nymId)) {
+                dUnread--;
+                if (before.wasPrivate) dUnreadPrivate--;
+            }
+            if (after != null && after.countsUnread() && after.unreadBy.contains(nymId)) {
+                dUnread++;
+                if (after.wasPrivate) dUnreadPrivate++;
+            }
+            updateNym(nymId.longValue(), chanId, dUnread, dUnreadPrivate);
+        }
+    }
+
+    /**
+     *  Many messages went away at once, e.g. expired together.
+     *  Same as update(before, null) on each, but one update per channel
+     *  and per nym and channel.
+     *
+     *  @param before the states loaded before they were deleted
+     */
+    public void removed(Collection<MessageState> before) throws SQLException {
+        // channelId to messages, private, and the latest importDate that counted
+        Map<Long, long[]> channels = new HashMap<Long, long[]>();
+        // channelId to nymId to unread, unread private
+        Map<Long, Map<Long, int[]>> nyms = new HashMap<Long, Map<Long, int[]>>();
+        for (MessageState state : before) {
+            Long chanId = Long.valueOf(state.channelId);
+            long[] deltas = channels.get(chanId);
+            if (deltas == null) {
+                deltas = new long[3];
+                channels.put(chanId, deltas);
+            }
+            if (state.countsMessage()) deltas[0]--;
+            if (state.countsPrivate()) deltas[1]--;
+            if ((state.countsMessage() || state.countsImport()) && state.importDate > deltas[2])
+                deltas[2] = state.importDate;
+            if (!state.countsUnread())
+                continue;
+            for (Long nymId : state.unreadBy) {
+                Map<Long, int[]> chanNyms = nyms.get(chanId);
+                if (chanNyms == null) {
+                    chanNyms = new HashMap<Long, int[]>();
+                    nyms.put(chanId, chanNyms);
+                }
+                int[] unread = chanNyms.get(nymId);
+                if (unread == null) {
+                    unread = new int[2];
+                    chanNyms.put(nymId, unread);
+                }
+                unread[0]--;
+                if (state.wasPrivate) unread[1]--;
+            }
+        }
+        for (Map.Entry<Long, long[]> e : channels.entrySet()) {
+            long chanId = e.getKey().longValue();
+            long[] deltas = e.getValue();
+            updateChannel(chanId, (int) deltas[0], (int) deltas[1], null, null);
+            // dates only move back when the latest message goes away
+            if (deltas[2] > 0)
+                recalculateDates(chanId, new Date(deltas[2]));
+        }
+        for (Map.Entry<Long, Map<Long, int[]>> e : nyms.entrySet()) {
+            long chanId = e.getKey().longValue();
+            for (Map.Entry<Long, int[]> n : e.getValue().entrySet()) {
+                int[] unread = n.getValue();
+                updateNym(n.getKey().longValue(), chanId, unread[0], unread[1]);
+            }
+        }
+    }
+
+    /**
+     *  The nym read or unread the message, nothing else changed.
+     *  Call only if the nymUnreadMessage row was really deleted or inserted.
+     *
+     *  @param read true if it was marked read, false if marked unread
+     */
+    public void unreadChanged(long nymId, long msgId, boolean read) throws SQLException {
+        MessageState state = load(msgId);
+        if (state == null || !state.countsUnread())
+            return;
+        int delta = read ? -1 : 1;
+        updateNym(nymId, state.channelId, delta, state.wasPrivate ? delta : 0);
+    }
+
+    private static final String SQL_CLEAR_NYM_UNREAD = "UPDATE nymChannelStats SET unreadMessages = 0, unreadPrivateMessages = 0 WHERE nymId = ? AND channelId = ?";
+
+    /**
+     *  The nym read everything in the channel
+     */
+    public void channelRead(long nymId, long chanId) throws SQLException {
+        PreparedStatement stmt = null;
+        try {
+            stmt = _client.prepare(SQL_CLEAR_NYM_UNREAD);
+            stmt.setLong(1, nymId);
+            stmt.setLong(2, chanId);
+            stmt.executeUpdate();
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    private static final String SQL_UPDATE_CHANNEL = "UPDATE channelStats SET messages = messages + ?, privateMessages = privateMessages + ? WHERE channelId = ?";
+    private static final String SQL_INSERT_CHANNEL = "INSERT INTO channelStats (channelId, messages, privateMessages) VALUES (?, ?, ?)";
+    private static final String SQL_UPDATE_LAST_POST = "UPDATE channelStats SET lastPost = ? WHERE channelId = ? AND (lastPost IS NULL OR lastPost < ?)";
+    private static final String SQL_UPDATE_LAST_IMPORT = "UPDATE channelStats SET lastImport = ? WHERE channelId = ? AND (lastImport IS NULL OR lastImport < ?)";
+
+    private void updateChannel(long chanId, int dMessages, int dPrivate, Date lastPost, Date lastImport) throws SQLException {
+        if (dMessages == 0 && dPrivate == 0 && lastPost == null && lastImport == null)
+            return;
+        PreparedStatement stmt = null;
+        try {
+            stmt = _client.prepare(SQL_UPDATE_CHANNEL);
+            stmt.setInt(1, dMessages);
+            stmt.setInt(2, dPrivate);
+            stmt.setLong(3, chanId);
+            int rows = stmt.executeUpdate();
+            stmt.close();
+            if (rows <= 0) {
+                stmt = _client.prepare(SQL_INSERT_CHANNEL);
+                stmt.setLong(1, chanId);
+                stmt.setInt(2, Math.max(0, dMessages));
+                stmt.setInt(3, Math.max(0, dPrivate));
+                stmt.executeUpdate();
+                stmt.close();
+            }
+            if (lastPost != null) {
+                stmt = _client.prepare(SQL_UPDATE_LAST_POST);
+                stmt.setDate(1, lastPost);
+                stmt.setLong(2, chanId);
+                stmt.setDate(3, lastPost);
+                stmt.executeUpdate();
+                stmt.close();
+            }
+            if (lastImport != null) {
+                stmt = _client.prepare(SQL_UPDATE_LAST_IMPORT);
+                stmt.setDate(1, lastImport);
+                stmt.setLong(2, chanId);
+                stmt.setDate(3, lastImport);
+                stmt.executeUpdate();
+                stmt.close();
+            }
+            stmt = null;
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    private static final String SQL_RECALCULATE_DATES =
+        "UPDATE channelStats SET " +
+        "lastPost = (SELECT MAX(importDate) FROM channelMessage WHERE targetChannelId = ? AND deletionCause IS NULL" +
+        " AND readKeyMissing = FALSE AND replyKeyMissing = FALSE AND pbePrompt IS NULL AND isCancelled = FALSE), " +
+        "lastImport = (SELECT MAX(importDate) FROM channelMessage WHERE targetChannelId = ? AND deletionCause IS NULL) " +
+        "WHERE channelId = ? AND (lastPost <= ? OR lastImport <= ?)";
+
+    /**
+     *  Only if a message as new as the latest one went away
+     */
+    private void recalculateDates(long chanId, Date removed) throws SQLException {
+        PreparedStatement stmt = null;
+        try {
+            stmt = _client.prepare(SQL_RECALCULATE_DATES);
+            stmt.setLong(1, chanId);
+            stmt.setLong(2, chanId);
+            stmt.setLong(3, chanId);
+            stmt.setDate(4, removed);
+            stmt.setDate(5, removed);
+            stmt.executeUpdate();
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    private static final String SQL_UPDATE_NYM = "UPDATE nymChannelStats SET unreadMessages = unreadMessages + ?, unreadPrivateMessages = unreadPrivateMessages + ? WHERE nymId = ? AND channelId = ?";
+    private static final String SQL_INSERT_NYM = "INSERT INTO nymChannelStats (nymId, channelId, unreadMessages, unreadPrivateMessages) VALUES (?, ?, ?, ?)";
+
+    private void updateNym(long nymId, long chanId, int dUnread, int dUnreadPrivate) throws SQLException {
+        if (dUnread == 0 && dUnreadPrivate == 0)
+            return;
+        PreparedStatement stmt = null;
+        try {
+            stmt = _client.prepare(SQL_UPDATE_NYM);
+            stmt.setInt(1, dUnread);
+            stmt.setInt(2, dUnreadPrivate);
+            stmt.setLong(3, nymId);
+            stmt.setLong(4, chanId);
+            int rows = stmt.executeUpdate();
+            stmt.close();
+            stmt = null;
+            if (rows <= 0) {
+                stmt = _client.prepare(SQL_INSERT_NYM);
+                stmt.setLong(1, nymId);
+                stmt.setLong(2, chanId);
+                stmt.setInt(3, Math.max(0, dUnread));
+                stmt.setInt(4, Math.max(0, dUnreadPrivate));
+                stmt.executeUpdate();
+            }
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    ////// consistency check and rebuild
+
+    private static final String SQL_CALC_CHANNELS =
+        "SELECT targetChannelId" +
+        ", SUM(CASE WHEN readKeyMissing = FALSE AND replyKeyMissing = FALSE AND pbePrompt IS NULL AND isCancelled = FALSE THEN 1 ELSE 0 END)" +
+        ", SUM(CASE WHEN readKeyMissing = FALSE AND replyKeyMissing = FALSE AND pbePrompt IS NULL AND wasPrivate = TRUE THEN 1 ELSE 0 END)" +
+        ", MAX(CASE WHEN readKeyMissing = FALSE AND replyKeyMissing = FALSE AND pbePrompt IS NULL AND isCancelled = FALSE THEN importDate ELSE NULL END)" +
+        ", MAX(importDate)" +
+        " FROM channelMessage" +
+        " WHERE deletionCause IS NULL AND targetChannelId IS NOT NULL" +
+        " GROUP BY targetChannelId";
+    private static final String SQL_CALC_NYMS =
+        "SELECT num.nymId, cm.targetChannelId" +
+        ", COUNT(num.msgId)" +
+        ", SUM(CASE WHEN cm.wasPrivate = TRUE THEN 1 ELSE 0 END)" +
+        " FROM nymUnreadMessage num JOIN channelMessage cm ON num.msgId = cm.msgId" +
+        " WHERE cm.readKeyMissing = FALSE AND cm.replyKeyMissing = FALSE AND cm.pbePrompt IS NULL" +
+        " AND cm.deletionCause IS NULL AND cm.targetChannelId IS NOT NULL" +
+        " GROUP BY num.nymId, cm.targetChannelId";
+    private static final String SQL_GET_CHANNELS = "SELECT channelId, messages, privateMessages, lastPost, lastImport FROM channelStats";
+    private static final String SQL_GET_NYMS = "SELECT nymId, channelId, unreadMessages, unreadPrivateMessages FROM nymChannelStats";
+
+    /**
+     *  Compare the counters to the aggregate queries they replace.
+     *  Rows of all zeros are the same as missing rows.
+     *
+     *  @return a description of each difference, empty if consistent
+     */
+    public List<String> check() throws SQLException {
+        List<String> rv = new ArrayList<String>();
+        compare(rv, "channel ", query(SQL_CALC_CHANNELS, 1), query(SQL_GET_CHANNELS, 1));
+        compare(rv, "nym/channel ", query(SQL_CALC_NYMS, 2), query(SQL_GET_NYMS, 2));
+        return rv;
+    }
+
+    private static void compare(List<String> rv, String what, Map<String, String[]> expected, Map<String, String[]> actual) {
+        Set<String> keys = new TreeSet<String>(expected.keySet());
+        keys.addAll(actual.keySet());
+        for (String key : keys) {
+            String exp[] = expected.get(key);
+            String act[] = actual.get(key);
+            boolean ok = true;
+            int cols = exp != null ? exp.length : act.length;
+            for (int i = 0; i < cols && ok; i++)
+                ok = normalize(exp, i).equals(normalize(act, i));
+            if (!ok)
+                rv.add(what + key + ": expected " + format(exp) + " found " + format(act));
+        }
+    }
+
+    /** a missing row, a zero count, and a null date are all the same */
+    private static String normalize(String row[], int col) {
+        if (row == null || row[col] == null || row[col].equals("0"))
+            return "";
+        return row[col];
+    }
+
+    private static String format(String row[]) {
+        if (row == null)
+            return "no row";
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0)
+                buf.append(' ');
+            buf.append(row[i]);
+        }
+        return buf.toString();
+    }
+
+    /**
+     *  @param keyCols how many leading columns make up the key
+     *  @return key columns, space separated, to the other columns
+     */
+    private Map<String, String[]> query(String sql, int keyCols) throws SQLException {
+        Map<String, String[]> rv = new HashMap<String, String[]>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.con().prepareStatement(sql);
+            rs = stmt.executeQuery();
+            int cols = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                StringBuilder key = new StringBuilder();
+                for (int i = 1; i <= keyCols; i++) {
+                    if (i > 1)
+                        key.append(' ');
+                    key.append(rs.getString(i));
+                }
+                String val[] = new String[cols - keyCols];
+                for (int i = 0; i < val.length; i++)
+                    val[i] = rs.getString(keyCols + i + 1);
+                rv.put(key.toString(), val);
+            }
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return rv;
+    }
+
+    /**
+     *  Recalculate all the counters from scratch, in one transaction.
+     *  Caller must be in a write scope.
+     */
+    public void rebuild() throws SQLException {
+        Object tx = _client.beginImportTransaction();
+        try {
+            exec("DELETE FROM channelStats");
+            exec("DELETE FROM nymChannelStats");
+            exec("INSERT INTO channelStats (channelId, messages, privateMessages, lastPost, lastImport) " + SQL_CALC_CHANNELS);
+            exec("INSERT INTO nymChannelStats (nymId, channelId, unreadMessages, unreadPrivateMessages) " + SQL_CALC_NYMS);
+        } catch (SQLException se) {
+            _client.rollbackImportTransaction(tx);
+            throw se;
+        }
+        if (!_client.commitImportTransaction(tx))
+            throw new SQLException("Error committing the channel stats");
+    }
+
+    private void exec(String sql) throws SQLException {
+        PreparedStatement stmt = null;
+        try {
+            stmt = _client.con().prepareStatement(sql);
+            stmt.executeUpdate();
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package syndie.db;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.SecureFile;
+
+/**
+ *CLI channelstats
+ * --db $url
+ * [--rebuild $boolean]
+ *
+ * Check the per-channel message counters against the messages,
+ * and recalculate them if they differ or if --rebuild is true.
+ *
+ * @since 1.107b-1
+ */
+public class ChannelStatsCommand extends CommandImpl {
+
+    public static String getHelp(String cmd) {
+        return "[--rebuild $boolean] (check the channel message counters, recalculating if wrong)";
+    }
+
+    public DBClient runCommand(Opts args, UI ui, DBClient client) {
+        if ( (client == null) || (!client.isLoggedIn()) ) {
+            List missing = args.requireOpts(new String[] { "db" });
+            if (missing.size() > 0) {
+                ui.errorMessage("Invalid options, missing " + missing);
+                ui.commandComplete(-1, null);
+                return client;
+            }
+        }
+
+        try {
+            if (args.dbOptsSpecified()) {
+                if (client == null)
+                    client = new DBClient(I2PAppContext.getGlobalContext(), new SecureFile(TextEngine.getRootPath()));
+                else
+                    client.close();
+                client.connect(args.getOptValue("db"));
+            }
+            boolean rebuild = args.getOptBoolean("rebuild", false);
+            List<String> errors = client.checkChannelStats(ui);
+            if (errors == null) {
+                ui.commandComplete(-1, null);
+                return client;
+            }
+            for (String err : errors)
+                ui.statusMessage(err);
+            ui.statusMessage(errors.size() + " inconsistencies found");
+            if (rebuild || !errors.isEmpty()) {
+                if (!client.rebuildChannelStats(ui)) {
+                    ui.commandComplete(-1, null);
+                    return client;
+                }
+                ui.statusMessage("Channel stats recalculated");
+            }
+            ui.commandComplete(0, null);
+        } catch (SQLException se) {
+            ui.errorMessage("Invalid database URL", se);
+            ui.commandComplete(-1, null);
+        }
+        return client;
+    }
+}
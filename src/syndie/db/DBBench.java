@@ -0,0 +1,807 @@
+package syndie.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.EepGet;
+import net.i2p.util.SecureFile;
+
+import syndie.Constants;
+import syndie.data.MessageInfo;
+import syndie.data.SyndieURI;
+
+/**
+ *CLI dbbench
+ * --db $url
+ * --test getmessages|uris|sharedindex|syncplan|indexdelta|indexbuild|bundle
+ * [--count $num]
+ * [--rounds $num]
+ * [--url $archiveURL]
+ * [--latency $ms]
+ *
+ * Compares the timing of alternative database access paths
+ * against the current database.
+ * The first round of each is a warmup and is not counted.
+ *
+ * sharedindex needs no database, it times the SharedArchive lookups on
+ * generated archives of 10k, 100k and 1M messages, or --count messages.
+ * syncplan times SharedArchiveEngine.selectURIsToPull() against generated
+ * archives of 1k, 10k and 100k messages, or --count messages, half of
+ * them from the local database.
+ * indexdelta needs no database, it compares the size of a SharedArchiveDelta
+ * to the full index after 1% of the messages change, and times the diff,
+ * the serialization and the merge, at the same sizes as sharedindex.
+ * indexbuild times SharedArchiveBuilder on the local archive, the first
+ * round without the header cache and the others with it.
+ * bundle needs no database, it fetches the shared index from the HTTPServ
+ * at --url (http://127.0.0.1:8080/ by default), then times fetching
+ * --count of its messages one GET per file against fetching them in bundles,
+ * with --latency ms added to each request to stand in for the tunnel round trip.
+ *
+ * @since 1.107b-1
+ */
+public class DBBench extends CommandImpl {
+
+    private static final long DEFAULT_COUNT = 500;
+    private static final long DEFAULT_ROUNDS = 5;
+    private static final int[] DEFAULT_ARCHIVE_SIZES = { 10*1000, 100*1000, 1000*1000 };
+    private static final int[] DEFAULT_PLAN_SIZES = { 1000, 10*1000, 100*1000 };
+    private static final String DEFAULT_BUNDLE_URL = "http://127.0.0.1:8080/";
+    private static final int BUNDLE_FILE_THREADS = 5;
+    private static final int BUNDLE_THREADS = 2;
+    private static final int BUNDLE_SIZE = 64;
+
+    public static String getHelp(String cmd) {
+        return "--test getmessages|uris|sharedindex|syncplan|indexdelta|indexbuild|bundle [--count $num] [--rounds $num] [--url $archiveURL] [--latency $ms]";
+    }
+
+    public DBClient runCommand(Opts args, UI ui, DBClient client) {
+        if ("sharedindex".equalsIgnoreCase(args.getOptValue("test")) ||
+            "indexdelta".equalsIgnoreCase(args.getOptValue("test"))) {
+            int sizes[] = DEFAULT_ARCHIVE_SIZES;
+            if (args.getOptValue("count") != null)
+                sizes = new int[] { (int) args.getOptLong("count", DEFAULT_COUNT) };
+            int rounds = (int) Math.max(2, args.getOptLong("rounds", DEFAULT_ROUNDS));
+            if ("sharedindex".equalsIgnoreCase(args.getOptValue("test")))
+                benchSharedIndex(ui, sizes, rounds);
+            else
+                benchIndexDelta(ui, sizes, rounds);
+            ui.commandComplete(0, null);
+            return client;
+        }
+        if ("bundle".equalsIgnoreCase(args.getOptValue("test"))) {
+            String url = args.getOptValue("url");
+            if (url == null)
+                url = DEFAULT_BUNDLE_URL;
+            else if (!url.endsWith("/"))
+                url = url + '/';
+            int rounds = (int) Math.max(2, args.getOptLong("rounds", DEFAULT_ROUNDS));
+            benchBundle(ui, url, (int) args.getOptLong("count", DEFAULT_COUNT), rounds, args.getOptLong("latency", 0));
+            ui.commandComplete(0, null);
+            return client;
+        }
+        if ( (client == null) || (!client.isLoggedIn()) ) {
+            List missing = args.requireOpts(new String[] { "db", "test" });
+            if (missing.size() > 0) {
+                ui.errorMessage("Invalid options, missing " + missing);
+                ui.commandComplete(-1, null);
+                return client;
+            }
+        } else {
+            List missing = args.requireOpts(new String[] { "test" });
+            if (missing.size() > 0) {
+                ui.errorMessage("Invalid options, missing " + missing);
+                ui.commandComplete(-1, null);
+                return client;
+            }
+        }
+
+        try {
+            if (args.dbOptsSpecified()) {
+                if (client == null)
+                    client = new DBClient(I2PAppContext.getGlobalContext(), new SecureFile(TextEngine.getRootPath()));
+                else
+                    client.close();
+                client.connect(args.getOptValue("db"));
+            }
+            String test = args.getOptValue("test");
+            int count = (int) args.getOptLong("count", DEFAULT_COUNT);
+            int rounds = (int) Math.max(2, args.getOptLong("rounds", DEFAULT_ROUNDS));
+            if ("getmessages".equalsIgnoreCase(test)) {
+                benchGetMessages(client, ui, count, rounds);
+            } else if ("uris".equalsIgnoreCase(test)) {
+                benchURIs(client, ui, count, rounds);
+            } else if ("syncplan".equalsIgnoreCase(test)) {
+                int sizes[] = DEFAULT_PLAN_SIZES;
+                if (args.getOptValue("count") != null)
+                    sizes = new int[] { count };
+                // it counts the queries of each plan
+                QueryStats stats = client.getQueryStats();
+                boolean wasEnabled = stats.isEnabled();
+                stats.setEnabled(true);
+                try {
+                    benchSyncPlan(client, ui, sizes, rounds);
+                } finally {
+                    stats.setEnabled(wasEnabled);
+                }
+            } else if ("indexbuild".equalsIgnoreCase(test)) {
+                benchIndexBuild(client, ui, rounds);
+            } else {
+                ui.errorMessage("Unknown test: " + test);
+                ui.commandComplete(-1, null);
+                return client;
+            }
+            ui.commandComplete(0, null);
+        } catch (SQLException se) {
+            ui.errorMessage("Invalid database URL", se);
+            ui.commandComplete(-1, null);
+        }
+        return client;
+    }
+
+    private static final String SQL_GET_RECENT_MSG_IDS = "SELECT msgId FROM channelMessage WHERE deletionCause IS NULL ORDER BY msgId DESC";
+
+    /**
+     *  getMessage() for each of the most recent messages vs. one getMessages()
+     */
+    private static void benchGetMessages(DBClient client, UI ui, int count, int rounds) throws SQLException {
+        long ids[] = getRecentMsgIds(client, count);
+        ui.statusMessage("Loading " + ids.length + " messages, " + rounds + " rounds");
+        long single = 0;
+        long bulk = 0;
+        for (int r = 0; r < rounds; r++) {
+            long start = System.currentTimeMillis();
+            int found = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (client.getMessage(ids[i]) != null)
+                    found++;
+            }
+            long mid = System.currentTimeMillis();
+            Map<Long, MessageInfo> msgs = client.getMessages(ids);
+            long end = System.currentTimeMillis();
+            if (msgs.size() != found)
+                ui.errorMessage("Mismatch: getMessage() found " + found + ", getMessages() found " + msgs.size());
+            if (r > 0) {
+                single += mid - start;
+                bulk += end - mid;
+            }
+            ui.debugMessage("round " + r + ": getMessage: " + (mid - start) + "ms getMessages: " + (end - mid) + "ms");
+        }
+        report(ui, "getMessage() each", single, rounds - 1, ids.length);
+        report(ui, "getMessages()", bulk, rounds - 1, ids.length);
+    }
+
+    private static final String SQL_GET_RECENT_REF_MSG_IDS = "SELECT DISTINCT msgId FROM messageReference ORDER BY msgId DESC";
+    private static final String SQL_GET_REF_URI_IDS = "SELECT uriId FROM messageReference WHERE msgId >= ? AND uriId IS NOT NULL";
+
+    /**
+     *  Reference tree loading for the most recent messages with references,
+     *  and the URIs in them fetched from the attribute rows (the old way)
+     *  vs. from the encoded form through the cache
+     */
+    private static void benchURIs(DBClient client, UI ui, int count, int rounds) throws SQLException {
+        List<Long> msgIds = new ArrayList<Long>(count);
+        List<Long> uriIds = new ArrayList<Long>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_GET_RECENT_REF_MSG_IDS);
+            stmt.setMaxRows(count);
+            rs = stmt.executeQuery();
+            while (rs.next() && msgIds.size() < count)
+                msgIds.add(Long.valueOf(rs.getLong(1)));
+            rs.close();
+            rs = null;
+            stmt.close();
+            stmt = null;
+            if (msgIds.isEmpty()) {
+                ui.statusMessage("No message references");
+                return;
+            }
+            stmt = client.con().prepareStatement(SQL_GET_REF_URI_IDS);
+            stmt.setLong(1, msgIds.get(msgIds.size() - 1).longValue());
+            rs = stmt.executeQuery();
+            while (rs.next())
+                uriIds.add(Long.valueOf(rs.getLong(1)));
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        ui.statusMessage("Loading the references of " + msgIds.size() + " messages, " + uriIds.size() + " uris, " + rounds + " rounds");
+        long attribs = 0;
+        long encoded = 0;
+        long trees = 0;
+        for (int r = 0; r < rounds; r++) {
+            long start = System.currentTimeMillis();
+            for (Long id : uriIds) {
+                client.getURIFromAttributes(id.longValue());
+            }
+            long mid = System.currentTimeMillis();
+            for (Long id : uriIds) {
+                client.getURI(id.longValue());
+            }
+            long mid2 = System.currentTimeMillis();
+            for (Long id : msgIds) {
+                new MessageReferenceBuilder(client).loadReferences(id.longValue());
+            }
+            long end = System.currentTimeMillis();
+            if (r > 0) {
+                attribs += mid - start;
+                encoded += mid2 - mid;
+                trees += end - mid2;
+            }
+            ui.debugMessage("round " + r + ": attributes: " + (mid - start) + "ms encoded: " + (mid2 - mid) +
+                            "ms trees: " + (end - mid2) + "ms");
+        }
+        report(ui, "uri from attribute rows", attribs, rounds - 1, uriIds.size());
+        report(ui, "uri encoded and cached", encoded, rounds - 1, uriIds.size());
+        report(ui, "reference trees", trees, rounds - 1, msgIds.size());
+    }
+
+    /**
+     *  isKnown(), getChannel() and getTargetMessages() on a generated archive
+     *  of each size, through the index vs. the linear scans it replaced,
+     *  and the time to build the index.
+     *  Half of the isKnown() lookups are misses.
+     */
+    private static void benchSharedIndex(UI ui, int sizes[], int rounds) {
+        for (int s = 0; s < sizes.length; s++) {
+            int numMsgs = sizes[s];
+            int numChans = Math.max(16, numMsgs / 50);
+            Random rnd = new Random(numMsgs);
+            List<SharedArchive.Channel> chans = new ArrayList<SharedArchive.Channel>(numChans);
+            for (int i = 0; i < numChans; i++) {
+                byte scope[] = new byte[Hash.HASH_LENGTH];
+                rnd.nextBytes(scope);
+                SharedArchive.Channel chan = new SharedArchive.Channel();
+                chan.setScope(new Hash(scope));
+                chans.add(chan);
+            }
+            List<SharedArchive.Message> msgs = new ArrayList<SharedArchive.Message>(numMsgs);
+            for (int i = 0; i < numMsgs; i++) {
+                SharedArchive.Message msg = new SharedArchive.Message();
+                int scope = rnd.nextInt(numChans);
+                msg.setScope(scope);
+                msg.setTarget(rnd.nextInt(10) == 0 ? rnd.nextInt(numChans) : scope);
+                // message ids are dates, so collide across channels
+                msg.setMessageId(1300000000000l + rnd.nextInt(numMsgs * 10));
+                msgs.add(msg);
+            }
+            SharedArchive archive = new SharedArchive();
+            archive.setChannels(chans);
+
+            int lookups = Math.min(numMsgs, 100*1000);
+            int scans = Math.max(10, Math.min(lookups, 20*1000*1000 / numMsgs));
+            Hash keys[] = new Hash[lookups];
+            long ids[] = new long[lookups];
+            for (int i = 0; i < lookups; i++) {
+                SharedArchive.Message msg = msgs.get(rnd.nextInt(numMsgs));
+                keys[i] = new Hash(chans.get(msg.getScopeIndex()).getScope());
+                ids[i] = (i % 2 == 0) ? msg.getMessageId() : -1 - i;
+            }
+            ui.statusMessage("Shared index of " + numMsgs + " messages in " + numChans + " channels, " +
+                             lookups + " lookups, " + scans + " scans, " + rounds + " rounds");
+
+            long build = 0;
+            long known = 0;
+            long scanKnown = 0;
+            long channel = 0;
+            long scanChannel = 0;
+            long target = 0;
+            long scanTarget = 0;
+            for (int r = 0; r < rounds; r++) {
+                long start = System.currentTimeMillis();
+                // resets the index, the first lookup builds it
+                archive.setMessages(msgs);
+                archive.getChannel(keys[0]);
+                long t1 = System.currentTimeMillis();
+                int found = 0;
+                for (int i = 0; i < lookups; i++) {
+                    if (archive.isKnown(keys[i], ids[i]))
+                        found++;
+                }
+                long t2 = System.currentTimeMillis();
+                int scanFound = 0;
+                for (int i = 0; i < scans; i++) {
+                    if (scanKnown(archive, keys[i], ids[i]))
+                        scanFound++;
+                }
+                long t3 = System.currentTimeMillis();
+                for (int i = 0; i < lookups; i++)
+                    archive.getChannel(keys[i]);
+                long t4 = System.currentTimeMillis();
+                for (int i = 0; i < scans; i++)
+                    scanChannel(archive, keys[i]);
+                long t5 = System.currentTimeMillis();
+                int targetMsgs = 0;
+                for (int i = 0; i < numChans; i++)
+                    targetMsgs += archive.getTargetMessages(new Hash(chans.get(i).getScope())).size();
+                long t6 = System.currentTimeMillis();
+                int scanTargets = Math.min(numChans, scans);
+                int scanTargetMsgs = 0;
+                for (int i = 0; i < scanTargets; i++)
+                    scanTargetMsgs += scanTarget(archive, new Hash(chans.get(i).getScope())).size();
+                long t7 = System.currentTimeMillis();
+                if (targetMsgs != numMsgs)
+                    ui.errorMessage("Mismatch: " + targetMsgs + " target messages of " + numMsgs);
+                if (scanFound != countKnown(archive, keys, ids, scans))
+                    ui.errorMessage("Mismatch: scan found " + scanFound + " of the first " + scans);
+                if (r > 0) {
+                    build += t1 - start;
+                    known += t2 - t1;
+                    scanKnown += t3 - t2;
+                    channel += t4 - t3;
+                    scanChannel += t5 - t4;
+                    target += t6 - t5;
+                    scanTarget += t7 - t6;
+                }
+                ui.debugMessage("round " + r + ": build: " + (t1 - start) + "ms isKnown: " + (t2 - t1) +
+                                "ms found: " + found + " scan isKnown: " + (t3 - t2) + "ms target messages: " +
+                                (t6 - t5) + "ms scan target messages: " + (t7 - t6) + "ms (" + scanTargetMsgs + ")");
+            }
+            report(ui, "build index", build, rounds - 1, numMsgs);
+            report(ui, "isKnown() indexed", known, rounds - 1, lookups);
+            report(ui, "isKnown() scan", scanKnown, rounds - 1, scans);
+            report(ui, "getChannel() indexed", channel, rounds - 1, lookups);
+            report(ui, "getChannel() scan", scanChannel, rounds - 1, scans);
+            report(ui, "getTargetMessages() indexed", target, rounds - 1, numChans);
+            report(ui, "getTargetMessages() scan", scanTarget, rounds - 1, Math.min(numChans, scans));
+        }
+    }
+
+    /**
+     *  The delta between a generated index of each size and the same one
+     *  with 1% of its messages changed: a third removed, a third added,
+     *  and a third no longer new.
+     */
+    private static void benchIndexDelta(UI ui, int sizes[], int rounds) {
+        for (int s = 0; s < sizes.length; s++) {
+            int numMsgs = sizes[s];
+            int numChans = Math.max(16, numMsgs / 50);
+            Random rnd = new Random(numMsgs);
+            List<SharedArchive.Channel> chans = new ArrayList<SharedArchive.Channel>(numChans);
+            for (int i = 0; i < numChans; i++) {
+                byte scope[] = new byte[Hash.HASH_LENGTH];
+                rnd.nextBytes(scope);
+                SharedArchive.Channel chan = new SharedArchive.Channel();
+                chan.setScope(new Hash(scope));
+                chan.setVersion(rnd.nextInt(100));
+                chans.add(chan);
+            }
+            List<SharedArchive.Message> msgs = new ArrayList<SharedArchive.Message>(numMsgs);
+            for (int i = 0; i < numMsgs; i++)
+                msgs.add(randomMessage(rnd, numChans, i));
+            int changes = Math.max(3, numMsgs / 100);
+            List<SharedArchive.Message> changed = new ArrayList<SharedArchive.Message>(msgs.subList(changes / 3, numMsgs));
+            for (int i = 0; i < changes / 3; i++)
+                changed.add(randomMessage(rnd, numChans, numMsgs + i));
+            for (int i = 0; i < changes / 3; i++) {
+                SharedArchive.Message old = changed.get(i);
+                SharedArchive.Message msg = new SharedArchive.Message();
+                msg.setMessageId(old.getMessageId());
+                msg.setScope(old.getScopeIndex());
+                msg.setTarget(old.getTargetIndex());
+                msg.setIsNew(false);
+                changed.set(i, msg);
+            }
+            SharedArchive from = new SharedArchive();
+            from.setAbout(new SharedArchive.About());
+            from.setChannels(chans);
+            from.setMessages(msgs);
+            SharedArchive to = new SharedArchive();
+            to.setAbout(new SharedArchive.About());
+            to.setChannels(chans);
+            to.setMessages(changed);
+
+            int fullSize = 0;
+            int deltaSize = 0;
+            long diff = 0;
+            long serialize = 0;
+            long merge = 0;
+            for (int r = 0; r < rounds; r++) {
+                try {
+                    long start = System.currentTimeMillis();
+                    SharedArchiveDelta delta = SharedArchiveDelta.diff(from, 1000, to, 2000);
+                    long t1 = System.currentTimeMillis();
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    delta.write(baos);
+                    SharedArchiveDelta read = new SharedArchiveDelta();
+                    read.read(new ByteArrayInputStream(baos.toByteArray()));
+                    long t2 = System.currentTimeMillis();
+                    SharedArchive merged = read.apply(from);
+                    long t3 = System.currentTimeMillis();
+                    if (merged.countTotalMessages() != numMsgs || merged.countNewMessages() != to.countNewMessages())
+                        ui.errorMessage("Mismatch: merged " + merged.countTotalMessages() + " messages, " +
+                                        merged.countNewMessages() + " new, expected " + numMsgs + ", " + to.countNewMessages());
+                    deltaSize = baos.size();
+                    baos = new ByteArrayOutputStream();
+                    to.write(baos);
+                    fullSize = baos.size();
+                    if (r > 0) {
+                        diff += t1 - start;
+                        serialize += t2 - t1;
+                        merge += t3 - t2;
+                    }
+                    ui.debugMessage("round " + r + ": " + read + " diff: " + (t1 - start) + "ms write and read: " +
+                                    (t2 - t1) + "ms merge: " + (t3 - t2) + "ms");
+                } catch (IOException ioe) {
+                    ui.errorMessage("Delta failed", ioe);
+                    return;
+                }
+            }
+            ui.statusMessage("Index of " + numMsgs + " messages in " + numChans + " channels, " + changes +
+                             " changed: full index " + fullSize + " bytes, delta " + deltaSize + " bytes");
+            report(ui, "diff", diff, rounds - 1, numMsgs);
+            report(ui, "write and read delta", serialize, rounds - 1, changes);
+            report(ui, "merge", merge, rounds - 1, numMsgs);
+        }
+    }
+
+    /**
+     *  Build the shared index from the local archive, first with every
+     *  file parsed, then with the headers cached by the previous round.
+     *  The first round is reported, not skipped as a warmup.
+     *  The headers are cached in a temp file, not the live one in the root dir.
+     */
+    private static void benchIndexBuild(DBClient client, UI ui, int rounds) {
+        SharedArchive.About about = LocalArchiveManager.getLocalAbout(client, new PullStrategy());
+        File cacheFile = new File(client.ctx().getTempDir(), "bench-" + ArchiveHeaderCache.CACHE_FILE);
+        cacheFile.delete();
+        UI quiet = new NullUI();
+        long cold = 0;
+        long warm = 0;
+        int msgs = 0;
+        for (int r = 0; r < rounds; r++) {
+            long start = System.currentTimeMillis();
+            SharedArchiveBuilder builder = new SharedArchiveBuilder(client, quiet, about);
+            builder.setHeaderCacheFile(cacheFile);
+            SharedArchive archive = builder.buildSharedArchive();
+            long time = System.currentTimeMillis() - start;
+            msgs = archive.countTotalMessages();
+            if (r == 0)
+                cold = time;
+            else
+                warm += time;
+            ui.debugMessage("round " + r + ": " + time + "ms, " + msgs + " messages");
+        }
+        cacheFile.delete();
+        ui.statusMessage("Shared index of " + msgs + " messages from " + client.getArchiveDir());
+        report(ui, "build, nothing cached", cold, 1, msgs);
+        report(ui, "build, headers cached", warm, rounds - 1, msgs);
+    }
+
+    /**
+     *  Fetch messages from a running HTTPServ one GET per file, as
+     *  SyncInboundFetcher did, and in bundles, with as many threads as it uses.
+     */
+    private static void benchBundle(UI ui, String url, int count, int rounds, long latency) {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        SharedArchive archive = new SharedArchive();
+        File indexFile = new File(ctx.getTempDir(), "bench-" + LocalArchiveManager.SHARED_INDEX_FILE);
+        try {
+            EepGet get = new EepGet(ctx, false, null, 0, 0, indexFile.getAbsolutePath(), url + LocalArchiveManager.SHARED_INDEX_FILE);
+            if (!get.fetch(60*1000, 5*60*1000, 60*1000))
+                throw new IOException("Fetch of the shared index from " + url + " failed");
+            FileInputStream fin = null;
+            try {
+                fin = new FileInputStream(indexFile);
+                archive.read(fin);
+            } finally {
+                if (fin != null) try { fin.close(); } catch (IOException ioe) {}
+            }
+        } catch (IOException ioe) {
+            ui.errorMessage("Cannot load the shared index", ioe);
+            return;
+        } finally {
+            indexFile.delete();
+        }
+        SharedArchive.Channel chans[] = archive.getChannels();
+        SharedArchive.Message msgs[] = archive.getMessages();
+        List<SyndieURI> uris = new ArrayList<SyndieURI>(Math.min(count, msgs.length));
+        for (int i = 0; i < msgs.length && uris.size() < count; i++) {
+            Hash scope = new Hash(chans[msgs[i].getScopeIndex()].getScope());
+            uris.add(SyndieURI.createMessage(scope, msgs[i].getMessageId()));
+        }
+        if (uris.isEmpty()) {
+            ui.errorMessage("No messages in the shared index of " + url);
+            return;
+        }
+        ui.statusMessage("Fetching " + uris.size() + " messages from " + url + ", " + latency + "ms added per request, " +
+                         rounds + " rounds");
+        UI quiet = new NullUI();
+        long single = 0;
+        long bundled = 0;
+        long bytes[] = new long[2];
+        for (int r = 0; r < rounds; r++) {
+            long start = System.currentTimeMillis();
+            bytes[0] = runBundleBench(quiet, url, uris, latency, false);
+            long mid = System.currentTimeMillis();
+            bytes[1] = runBundleBench(quiet, url, uris, latency, true);
+            long end = System.currentTimeMillis();
+            if (bytes[0] != bytes[1])
+                ui.errorMessage("Mismatch: " + bytes[0] + " bytes one by one, " + bytes[1] + " bytes in bundles");
+            if (r > 0) {
+                single += mid - start;
+                bundled += end - mid;
+            }
+            ui.debugMessage("round " + r + ": one by one " + (mid - start) + "ms, bundles " + (end - mid) + "ms");
+        }
+        ui.statusMessage("Fetched " + bytes[1] + " bytes");
+        report(ui, "GET per file, " + BUNDLE_FILE_THREADS + " threads", single, rounds - 1, uris.size());
+        report(ui, "bundles, " + BUNDLE_THREADS + " threads", bundled, rounds - 1, uris.size());
+    }
+
+    /**
+     *  Fetch all the uris, on several threads
+     *  @return bytes fetched
+     */
+    private static long runBundleBench(final UI ui, final String url, List<SyndieURI> uris,
+                                       final long latency, final boolean bundles) {
+        final LinkedBlockingQueue<SyndieURI> queue = new LinkedBlockingQueue<SyndieURI>(uris);
+        final AtomicLong bytes = new AtomicLong();
+        final File tmpDir = I2PAppContext.getGlobalContext().getTempDir();
+        final BundleFetcher fetcher = new BundleFetcher(ui, url, "", null, 0);
+        int threads = bundles ? BUNDLE_THREADS : BUNDLE_FILE_THREADS;
+        List<Thread> running = new ArrayList<Thread>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        List<SyndieURI> batch = new ArrayList<SyndieURI>(BUNDLE_SIZE);
+                        queue.drainTo(batch, bundles ? BUNDLE_SIZE : 1);
+                        if (batch.isEmpty())
+                            return;
+                        if (latency > 0)
+                            try { Thread.sleep(latency); } catch (InterruptedException ie) {}
+                        if (bundles) {
+                            try {
+                                boolean ok = fetcher.fetch(batch, new BundleFetcher.FrameHandler() {
+                                    public void frame(SyndieURI uri, int status, byte data[]) {
+                                        if (status == BundleFetcher.FRAME_OK)
+                                            bytes.addAndGet(data.length);
+                                        else if (status == BundleFetcher.FRAME_DEFERRED)
+                                            queue.offer(uri);
+                                    }
+                                });
+                                if (!ok) {
+                                    ui.errorMessage("No bundles from " + url);
+                                    return;
+                                }
+                            } catch (IOException ioe) {
+                                ui.errorMessage("Bundle fetch failed", ioe);
+                            }
+                        } else {
+                            SyndieURI uri = batch.get(0);
+                            File f = new File(tmpDir, "bench-" + Thread.currentThread().getId() + ".dat");
+                            EepGet get = new EepGet(I2PAppContext.getGlobalContext(), false, null, 0, 0, f.getAbsolutePath(),
+                                                    url + uri.getScope().toBase64() + '/' + uri.getMessageId() + Constants.FILENAME_SUFFIX);
+                            if (get.fetch(60*1000, 5*60*1000, 60*1000))
+                                bytes.addAndGet(f.length());
+                            f.delete();
+                        }
+                    }
+                }
+            }, "BenchFetcher " + i + '/' + threads);
+            t.start();
+            running.add(t);
+        }
+        for (Thread t : running) {
+            try { t.join(); } catch (InterruptedException ie) {}
+        }
+        return bytes.get();
+    }
+
+    private static SharedArchive.Message randomMessage(Random rnd, int numChans, int i) {
+        SharedArchive.Message msg = new SharedArchive.Message();
+        int scope = rnd.nextInt(numChans);
+        msg.setScope(scope);
+        msg.setTarget(rnd.nextInt(10) == 0 ? rnd.nextInt(numChans) : scope);
+        // unique, so the counts can be checked
+        msg.setMessageId(1300000000000l + i);
+        msg.setIsNew(true);
+        return msg;
+    }
+
+    private static final String SQL_GET_LOCAL_MESSAGES = "SELECT c.channelHash, m.messageId FROM channelMessage m " +
+                                                         "JOIN channel c ON m.scopeChannelId = c.channelId ORDER BY m.msgId DESC";
+
+    /**
+     *  Plan a pull from a generated remote index of each size.
+     *  Half of the messages and channels are local ones, so they are
+     *  checked and skipped as known, the rest are new.
+     *  The planner's debug messages are not shown.
+     *  The query stats must be enabled, for the query counts.
+     */
+    private static void benchSyncPlan(DBClient client, UI ui, int sizes[], int rounds) throws SQLException {
+        int max = 0;
+        for (int i = 0; i < sizes.length; i++)
+            max = Math.max(max, sizes[i]);
+        List<Hash> localScopes = new ArrayList<Hash>();
+        List<Long> localIds = new ArrayList<Long>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_GET_LOCAL_MESSAGES);
+            stmt.setMaxRows(max / 2);
+            rs = stmt.executeQuery();
+            while (rs.next() && localIds.size() < max / 2) {
+                byte hash[] = rs.getBytes(1);
+                if (hash == null || hash.length != Hash.HASH_LENGTH)
+                    continue;
+                localScopes.add(new Hash(hash));
+                localIds.add(Long.valueOf(rs.getLong(2)));
+            }
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        UI quiet = new NullUI();
+        PullStrategy strategy = new PullStrategy();
+        strategy.includeRecentMessagesOnly = false;
+        strategy.requiredChannelsOnly = false;
+        for (int s = 0; s < sizes.length; s++) {
+            int numMsgs = sizes[s];
+            Random rnd = new Random(numMsgs);
+            Map<Hash, Integer> chanIndexes = new HashMap<Hash, Integer>();
+            List<SharedArchive.Channel> chans = new ArrayList<SharedArchive.Channel>();
+            List<SharedArchive.Message> msgs = new ArrayList<SharedArchive.Message>(numMsgs);
+            int numLocal = Math.min(numMsgs / 2, localIds.size());
+            Hash newScopes[] = new Hash[Math.max(16, numMsgs / 50)];
+            for (int i = 0; i < newScopes.length; i++) {
+                byte data[] = new byte[Hash.HASH_LENGTH];
+                rnd.nextBytes(data);
+                newScopes[i] = new Hash(data);
+            }
+            for (int i = 0; i < numMsgs; i++) {
+                Hash scope;
+                long messageId;
+                if (i < numLocal) {
+                    scope = localScopes.get(i);
+                    messageId = localIds.get(i).longValue();
+                } else {
+                    scope = newScopes[rnd.nextInt(newScopes.length)];
+                    messageId = System.currentTimeMillis() - rnd.nextInt(30*24*60*60) * 1000l;
+                }
+                Integer index = chanIndexes.get(scope);
+                if (index == null) {
+                    index = Integer.valueOf(chans.size());
+                    chanIndexes.put(scope, index);
+                    SharedArchive.Channel chan = new SharedArchive.Channel();
+                    chan.setScope(scope);
+                    chan.setVersion(1);
+                    chan.setWantNewMeta(true);
+                    chan.setWantNewMsgs(true);
+                    chans.add(chan);
+                }
+                SharedArchive.Message msg = new SharedArchive.Message();
+                msg.setMessageId(messageId);
+                msg.setScope(index.intValue());
+                msg.setTarget(index.intValue());
+                msg.setSize(4*1024);
+                msgs.add(msg);
+            }
+            SharedArchive archive = new SharedArchive();
+            archive.setAbout(new SharedArchive.About());
+            archive.setChannels(chans);
+            archive.setMessages(msgs);
+            ui.statusMessage("Pull plan from " + numMsgs + " messages in " + chans.size() + " channels, " +
+                             numLocal + " known locally, " + rounds + " rounds");
+
+            long total = 0;
+            long queries = 0;
+            int selected = 0;
+            for (int r = 0; r < rounds; r++) {
+                long before = countQueries(client);
+                long start = System.currentTimeMillis();
+                selected = new SharedArchiveEngine().selectURIsToPull(client, quiet, archive, strategy, -1).size();
+                long end = System.currentTimeMillis();
+                long q = countQueries(client) - before;
+                if (r > 0) {
+                    total += end - start;
+                    queries += q;
+                }
+                ui.debugMessage("round " + r + ": " + (end - start) + "ms, " + q + " queries, " + selected + " URIs selected");
+            }
+            report(ui, "selectURIsToPull()", total, rounds - 1, numMsgs);
+            ui.statusMessage("queries per plan: " + (queries / (rounds - 1)) + ", URIs selected: " + selected);
+        }
+    }
+
+    /** @return the total number of queries in the query stats */
+    private static long countQueries(DBClient client) {
+        long rv = 0;
+        for (QueryStats.Snapshot s : client.getQueryStats().getSnapshots())
+            rv += s.count;
+        return rv;
+    }
+
+    private static int countKnown(SharedArchive archive, Hash keys[], long ids[], int count) {
+        int rv = 0;
+        for (int i = 0; i < count; i++) {
+            if (archive.isKnown(keys[i], ids[i]))
+                rv++;
+        }
+        return rv;
+    }
+
+    /** the linear search SharedArchive.isKnown() used to do */
+    private static boolean scanKnown(SharedArchive archive, Hash chan, long messageId) {
+        SharedArchive.Channel channels[] = archive.getChannels();
+        SharedArchive.Message messages[] = archive.getMessages();
+        for (int i = 0; i < messages.length; i++) {
+            if (messageId == messages[i].getMessageId()) {
+                SharedArchive.Channel scope = channels[messages[i].getScopeIndex()];
+                if (DataHelper.eq(scope.getScope(), chan.getData()))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** the linear search SharedArchive.getChannel() used to do */
+    private static SharedArchive.Channel scanChannel(SharedArchive archive, Hash chan) {
+        SharedArchive.Channel channels[] = archive.getChannels();
+        for (int i = 0; i < channels.length; i++) {
+            if (DataHelper.eq(channels[i].getScope(), chan.getData()))
+                return channels[i];
+        }
+        return null;
+    }
+
+    /** the linear search SharedArchive.getTargetMessages() used to do */
+    private static List<SharedArchive.Message> scanTarget(SharedArchive archive, Hash chan) {
+        SharedArchive.Channel channels[] = archive.getChannels();
+        SharedArchive.Message messages[] = archive.getMessages();
+        int targetIndex = -1;
+        for (int i = 0; i < channels.length; i++) {
+            if (DataHelper.eq(channels[i].getScope(), chan.getData())) {
+                targetIndex = i;
+                break;
+            }
+        }
+        List<SharedArchive.Message> rv = new ArrayList<SharedArchive.Message>();
+        for (int i = 0; i < messages.length; i++) {
+            if (messages[i].getTargetIndex() == targetIndex)
+                rv.add(messages[i]);
+        }
+        return rv;
+    }
+
+    private static long[] getRecentMsgIds(DBClient client, int count) throws SQLException {
+        List<Long> rv = new ArrayList<Long>(count);
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_GET_RECENT_MSG_IDS);
+            stmt.setMaxRows(count);
+            rs = stmt.executeQuery();
+            while (rs.next() && rv.size() < count)
+                rv.add(Long.valueOf(rs.getLong(1)));
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        long ids[] = new long[rv.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = rv.get(i).longValue();
+        return ids;
+    }
+
+    private static void report(UI ui, String name, long totalTime, int rounds, int items) {
+        long avg = totalTime / rounds;
+        String per = items > 0 ? String.valueOf((totalTime * 1000 / rounds) / items) : "-";
+        ui.statusMessage(name + ": " + avg + "ms per round, " + per + "us per item");
+    }
+}
@@ -5,11 +5,13 @@ import java.net.URISyntaxException;
 import java.sql.*;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -32,7 +34,6 @@ import net.i2p.data.SigningPrivateKey;
 import net.i2p.data.SigningPublicKey;
 import net.i2p.data.Signature;
 import net.i2p.data.Hash;
-import net.i2p.util.LHMCache;
 import net.i2p.util.Log;
 import net.i2p.util.SecureFile;
 import net.i2p.util.SecureFileOutputStream;
@@ -125,14 +126,54 @@ public class DBClient {
     private int _numNymKeysWithoutPass;
     
     private ExpireEvent _expireEvent;
+    /** null if not a file database */
+    private DBMaintenance _maintenance;
+    /** null if not a file database */
+    private volatile BlobStore _blobStore;
+
+    /** null if not connected or the pool could not be started */
+    private volatile DBPool _pool;
+    /** read-only connections in the pool */
+    private static final int POOL_READERS = 3;
+    /** statements for _con, null if not connected */
+    private volatile StatementCache _stmtCache;
+    /** hits and misses for _stmtCache and the caches of the pooled connections */
+    private final StatementCache.Counters _stmtCounters;
+    /** per-SQL timing of everything through prepare(), prepareUncached() and createStatement() */
+    private final QueryStats _queryStats;
         
     private static final String DEFAULT_ADMIN = "SA";
 
-    private static final int CACHE_SIZE = 1024;
-    private final Map<Long, String> _idToNameCache;
-    private final Map<Hash, String> _hashToNameCache;
-    private final Map<Long, Hash> _idToHashCache;
-    private final Map<Hash, Long> _hashToIdCache;
+    /** all channel ids, hashes and names, loaded at login */
+    private final ChannelIndex _channelIndex;
+    private static final int CHANNEL_INFO_CACHE_SIZE = 256;
+    private final ChannelInfoCache _channelInfoCache;
+    private final PageCache _pageCache;
+    /** decrypted nym keys for _nymPass */
+    private final NymKeyring _nymKeyring;
+    /** read/unread changes not yet written */
+    private final MessageStatusBuffer _statusBuffer;
+    private final UnreadIndex _unreadIndex;
+    /** the thread for the database changes, running while the pool is */
+    private final DBWriter _writer;
+    /** phases of the last login, null before the first */
+    private volatile StartupTimer _startupTimer;
+    private boolean _fastStart;
+    /** fast start, and the deferred work hasn't run yet */
+    private volatile boolean _startupDeferred;
+    /** the database was upgraded from before the full text index, build it at login */
+    private volatile boolean _messageIndexPending;
+
+    /**
+     *  System property, also set by --faststart.
+     *  If true, check the passphrase against one nym key only, and load the
+     *  rest of the keyring, the channel index, the first expiration and the
+     *  syndication archives FAST_START_DELAY after the login completes.
+     *
+     *  @since 1.107b-1
+     */
+    public static final String PROP_FAST_START = "syndie.fastStart";
+    private static final long FAST_START_DELAY = 20*1000;
 
     /**
      *  @param rootDir should be a SecureFile
@@ -150,10 +191,15 @@ public class DBClient {
         _shutdownInProgress = false;
         _shouldDefrag = DEFRAG;
         _uriDAO = new SyndieURIDAO(this);
-        _idToNameCache = new LHMCache<Long, String>(CACHE_SIZE);
-        _hashToNameCache = new LHMCache<Hash, String>(CACHE_SIZE);
-        _idToHashCache = new LHMCache<Long, Hash>(CACHE_SIZE);
-        _hashToIdCache = new LHMCache<Hash, Long>(CACHE_SIZE);
+        _stmtCounters = new StatementCache.Counters();
+        _queryStats = new QueryStats();
+        _channelIndex = new ChannelIndex(this);
+        _channelInfoCache = new ChannelInfoCache(CHANNEL_INFO_CACHE_SIZE);
+        _pageCache = new PageCache(PageCache.DEFAULT_MAX_BYTES);
+        _nymKeyring = new NymKeyring();
+        _statusBuffer = new MessageStatusBuffer(this);
+        _writer = new DBWriter(this);
+        _unreadIndex = new UnreadIndex(this);
     }
     
     public void restart(String rootDir) {
@@ -176,6 +222,10 @@ public class DBClient {
         _login = TextEngine.DEFAULT_LOGIN;
         if (_pass == null) _pass = TextEngine.DEFAULT_PASS;
         long start = System.currentTimeMillis();
+        StartupTimer timer = new StartupTimer();
+        _startupTimer = timer;
+        _fastStart = Boolean.parseBoolean(_context.getProperty(PROP_FAST_START));
+        _startupDeferred = false;
         //System.out.println("Connecting to " + url);
         _url = url;
         try {
@@ -267,6 +317,7 @@ public class DBClient {
             throw new SQLException("Unable to connect to [" + _login + "]");
         
         long connected = System.currentTimeMillis();
+        timer.mark("connect and check user");
         if (_shutdownHook == null) {
             _shutdownHook = new Thread(new Runnable() {
                 public void run() {
@@ -314,10 +365,12 @@ public class DBClient {
             log("reconnection successful, version: " + version);
             _shouldDefrag = true;
         }
+        timer.mark("postConnect");
         
         // process all updates
         DBInit dbi = new DBInit(_context, _con);
-        dbi.initDB();
+        int oldVersion = dbi.initDB();
+        timer.mark("initDB");
 
         if (shouldDefrag) {
             log("migrating to lobs start");
@@ -326,6 +379,7 @@ public class DBClient {
             // not worth fixing getResumable() and reencryptPostponed()
             //migrateToLob("nymMsgPostpone", "postponeId", "postponeVersion", "encryptedData", 65536, false);
             log("migrating to lobs done");
+            timer.mark("migrate to lobs");
         }
 
         long init = System.currentTimeMillis();
@@ -341,7 +395,8 @@ public class DBClient {
         else
             _nymPass = _pass;
 
-        boolean ok = verifyNymKeyEncryption();
+        boolean ok = _fastStart ? verifyOneNymKey() : verifyNymKeyEncryption();
+        timer.mark(_fastStart ? "verify one nym key" : "verify nym keys");
         if (!ok) {
             log("db connection successfull, but we can't access the nym keys, so discon");
             disconnect();
@@ -352,14 +407,200 @@ public class DBClient {
                 _nymLogin = TextEngine.DEFAULT_NYMKEY_LOGIN;
             else
                 _nymLogin = _login;
-            if (_expireEvent == null) {
-                long delay = _context.random().nextLong(60*60*1000l) + 24*60*60*1000l;
-                _expireEvent = new ExpireEvent();
-                _expireEvent.schedule(delay);
+            _stmtCache = new StatementCache(_con, StatementCache.DEFAULT_MAX_STATEMENTS, _stmtCounters, _queryStats);
+            startPool(url);
+            timer.mark("start pool");
+            // needs the nym logged in for the message pages, done by getNymId()
+            _messageIndexPending = oldVersion >= 0 && oldVersion < MessageIndex.INDEX_VERSION;
+            if (oldVersion >= 0 && oldVersion < SyndieURIDAO.ENCODED_VERSION) {
+                log("encoding the uris start");
+                beginWrite();
+                try {
+                    _uriDAO.migrate();
+                } catch (SQLException se) {
+                    // the attribute rows are still there
+                    log("Error encoding the uris", se);
+                } finally {
+                    endWrite();
+                }
+                log("encoding the uris done");
+                timer.mark("encode uris");
+            }
+            if (_fastStart)
+                _startupDeferred = true;
+            else
+                scheduleExpiration();
+            if (_maintenance == null && getDBFileRoot(url) != null) {
+                _maintenance = new DBMaintenance(this);
+                _maintenance.schedule(DBMaintenance.CHECK_INTERVAL);
+            }
+            if (getDBFileRoot(url) != null)
+                _blobStore = new BlobStore(this, _rootDir);
+        }
+    }
+
+    /** @since 1.107b-1 */
+    private void scheduleExpiration() {
+        if (_expireEvent == null) {
+            long delay = _context.random().nextLong(60*60*1000l) + 24*60*60*1000l;
+            _expireEvent = new ExpireEvent();
+            _expireEvent.schedule(delay);
+        }
+    }
+
+    /**
+     *  The named startup phase just ended, see StartupTimer.
+     *  For TextEngine's phases after connect().
+     *
+     *  @since 1.107b-1
+     */
+    void startupPhase(String name) {
+        StartupTimer timer = _startupTimer;
+        if (timer != null)
+            timer.mark(name);
+    }
+
+    /**
+     *  The login is complete, including the login script.
+     *  Log the startup phases, and if fast starting, schedule the deferred work.
+     *
+     *  @since 1.107b-1
+     */
+    void startupComplete() {
+        StartupTimer timer = _startupTimer;
+        if (timer != null && !timer.isComplete()) {
+            timer.complete();
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Startup " + timer);
+        }
+        if (_startupDeferred)
+            new DeferredStartup().schedule(FAST_START_DELAY);
+    }
+
+    /**
+     *  @return the phases of the last login, or "none"
+     *  @since 1.107b-1
+     */
+    public String getStartupStats() {
+        StartupTimer timer = _startupTimer;
+        if (timer == null)
+            return "none";
+        return timer + (_fastStart ? (_startupDeferred ? " (fast start, deferred work pending)" : " (fast start)") : "");
+    }
+
+    /**
+     *  True from a fast start login until the deferred work runs,
+     *  SyncManager doesn't load the archives until then.
+     *
+     *  @since 1.107b-1
+     */
+    public boolean isStartupDeferred() {
+        return _startupDeferred;
+    }
+
+    /**
+     *  The work a fast start skipped: the rest of the keyring, the channel
+     *  index, the first expiration, and the syndication archives.
+     *
+     *  @since 1.107b-1
+     */
+    private class DeferredStartup extends SimpleTimer2.TimedEvent {
+        DeferredStartup() {
+            super(SimpleTimer2.getInstance());
+        }
+
+        public void timeReached() {
+            if (!_startupDeferred || !isLoggedIn())
+                return;
+            long start = System.currentTimeMillis();
+            StringBuilder buf = new StringBuilder(128);
+            try {
+                getNymKeys(0, _nymPass, null, null, true);
+                if (_numNymKeysWithoutPass > 0)
+                    _ui.errorMessage(_numNymKeysWithoutPass + " nym keys could not be decrypted with the passphrase");
+                long now = System.currentTimeMillis();
+                buf.append("keyring: ").append(now - start).append("ms");
+                start = now;
+
+                _writer.call(new DBWriter.Command<Void>("load channel index") {
+                    public Void call() {
+                        _channelIndex.load();
+                        return null;
+                    }
+                });
+                now = System.currentTimeMillis();
+                buf.append(", channel index: ").append(now - start).append("ms");
+                start = now;
+
+                scheduleExpiration();
+                _startupDeferred = false;
+                SyncManager.getInstance(DBClient.this, _ui).loadArchives();
+                now = System.currentTimeMillis();
+                buf.append(", archives: ").append(now - start).append("ms");
+            } catch (RuntimeException re) {
+                // not logged in any more
+                _startupDeferred = false;
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Error in the deferred startup", re);
+                return;
             }
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Deferred startup " + buf);
         }
     }
     
+    /**
+     *  Open the reader and writer connections.
+     *  Switches the database to MVCC first, so that the readers aren't blocked
+     *  behind an import holding table locks. This setting is persistent.
+     *  If anything fails, we keep going with the single connection.
+     *
+     *  @since 1.107b-1
+     */
+    private void startPool(String url) {
+        if (_pool != null || !DBUpgrade.isHsqldb20(_con))
+            return;
+        Statement stmt = null;
+        try {
+            stmt = _con.createStatement();
+            stmt.execute("SET DATABASE TRANSACTION CONTROL MVCC");
+            stmt.close();
+            stmt = null;
+            _pool = new DBPool(_context, url, _login, _pass, POOL_READERS, _stmtCounters, _queryStats);
+            log("connection pool started with " + POOL_READERS + " readers");
+            _writer.start();
+        } catch (SQLException se) {
+            log("Unable to start the connection pool", se);
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    /**
+     *  Close the reader and writer connections and log their stats,
+     *  and drop the cached statements of the shared connection.
+     *
+     *  @since 1.107b-1
+     */
+    private void stopPool() {
+        // let it finish the queued changes first
+        _writer.stop();
+        if (_log.shouldLog(Log.INFO))
+            _log.info("DB writer stats: " + _writer);
+        DBPool pool = _pool;
+        _pool = null;
+        if (pool != null) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Connection pool stats:\n" + pool.getStats() +
+                          "Statement cache " + _stmtCounters);
+            pool.close();
+        }
+        StatementCache cache = _stmtCache;
+        _stmtCache = null;
+        if (cache != null)
+            cache.clear();
+    }
+
     /**
      *  The current hsqldb library version
      *
@@ -433,7 +674,18 @@ public class DBClient {
     }
 
     public void disconnect() {
+        if (isLoggedIn())
+            _statusBuffer.flush();
+        // finish the queued imports while still logged in, before clearing their state
+        stopPool();
+        _statusBuffer.clear();
+        _unreadIndex.clear();
+        _channelIndex.clear();
         clearNymChannelCache();
+        _channelInfoCache.clear();
+        _pageCache.clear();
+        _nymKeyring.clear();
+        _startupDeferred = false;
         try {
             if ( (_con != null) && (!_con.isClosed()) ) {
                 log("Disconnecting from DB");
@@ -446,10 +698,642 @@ public class DBClient {
         }
         if (_expireEvent != null)
             _expireEvent.cancel();
+        if (_maintenance != null) {
+            _maintenance.cancel();
+            _maintenance = null;
+        }
+        _blobStore = null;
     }
 
     I2PAppContext ctx() { return _context; }
-    public Connection con() { return _con; }
+
+    /** for DBMaintenance's idle check */
+    private void touch() {
+        DBMaintenance maint = _maintenance;
+        if (maint != null)
+            maint.touch();
+    }
+
+    /**
+     *  Apply the database profile in the prefs, see DBTuning
+     *
+     *  @since 1.107b-1
+     */
+    DBTuning.Profile applyTuning(Properties prefs) {
+        DBTuning.Profile profile = DBTuning.getProfile(prefs);
+        DBTuning.apply(this, profile);
+        DBMaintenance maint = _maintenance;
+        if (maint != null)
+            maint.setDefragPercent(profile.defragPercent);
+        return profile;
+    }
+
+    /**
+     *  Measure the lost space in the data file, and CHECKPOINT DEFRAG
+     *  if over the profile's limit, or if forced
+     *
+     *  @return lost space in percent, or -1 if unknown or not a file database
+     *  @since 1.107b-1
+     */
+    int checkDatabase(boolean forceDefrag) {
+        DBMaintenance maint = _maintenance;
+        if (maint == null)
+            return -1;
+        return maint.check(forceDefrag);
+    }
+
+    /** @since 1.107b-1 */
+    UnreadIndex unreadIndex() { return _unreadIndex; }
+
+    /**
+     *  Where big attachments and pages go, see BlobStore
+     *
+     *  @return null if not a file database
+     *  @since 1.107b-1
+     */
+    BlobStore blobStore() { return _blobStore; }
+
+    /**
+     *  The content of a storageType 2 attachment or page
+     *
+     *  @return null on error
+     *  @since 1.107b-1
+     */
+    private byte[] readBlob(String path) {
+        BlobStore store = _blobStore;
+        if (store == null) {
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("No blob store for " + path);
+            return null;
+        }
+        try {
+            return store.read(path);
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("Error reading " + path, ioe);
+            return null;
+        }
+    }
+
+    /**
+     *  Inside a beginRead() or beginWrite() scope, the pooled connection
+     *  bound to this thread, otherwise the shared connection.
+     */
+    public Connection con() {
+        DBPool pool = _pool;
+        if (pool != null) {
+            Connection rv = pool.getBound();
+            if (rv != null)
+                return rv;
+        }
+        return _con;
+    }
+
+    /**
+     *  A PreparedStatement for con(), reused from the cache of that connection
+     *  if possible. Use for constant SQL only.
+     *  The caller must close it as usual, which returns it to the cache.
+     *
+     *  @since 1.107b-1
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        touch();
+        DBPool pool = _pool;
+        if (pool != null) {
+            StatementCache cache = pool.getBoundCache();
+            if (cache != null)
+                return cache.prepare(sql);
+        }
+        StatementCache cache = _stmtCache;
+        if (cache != null && cache.getConnection() == _con)
+            return cache.prepare(sql);
+        return _queryStats.wrap(_con.prepareStatement(sql), sql, PreparedStatement.class);
+    }
+
+    /**
+     *  A new PreparedStatement for con(), for dynamically built SQL
+     *  that shouldn't go in the statement cache. Timed in the query stats.
+     *
+     *  @since 1.107b-1
+     */
+    public PreparedStatement prepareUncached(String sql) throws SQLException {
+        touch();
+        return _queryStats.wrap(con().prepareStatement(sql), sql, PreparedStatement.class);
+    }
+
+    /**
+     *  A new Statement for con(), timed in the query stats.
+     *
+     *  @since 1.107b-1
+     */
+    public Statement createStatement() throws SQLException {
+        touch();
+        return _queryStats.wrap(con().createStatement(), null, Statement.class);
+    }
+
+    /**
+     *  Per-SQL counts, times and rows since startup or the last reset
+     *
+     *  @since 1.107b-1
+     */
+    QueryStats getQueryStats() {
+        return _queryStats;
+    }
+
+    /**
+     *  Statement cache hits and misses since startup, over all connections
+     *
+     *  @since 1.107b-1
+     */
+    public String getStatementCacheStats() {
+        return _stmtCounters.toString();
+    }
+
+    /**
+     *  DB writer queue depth, latency and counts since startup
+     *
+     *  @since 1.107b-1
+     */
+    public String getWriterStats() {
+        return _writer.toString();
+    }
+
+    /**
+     *  Route this thread's queries to a read-only pooled connection
+     *  until the matching endRead(). May be nested, and inside a write scope
+     *  it stays on the writer. Does nothing if there is no pool.
+     *  Always call endRead() in a finally block.
+     *
+     *  @since 1.107b-1
+     */
+    public void beginRead() {
+        touch();
+        DBPool pool = _pool;
+        if (pool != null)
+            pool.beginRead();
+    }
+
+    /** @since 1.107b-1 */
+    public void endRead() {
+        DBPool pool = _pool;
+        if (pool != null)
+            pool.endRead();
+    }
+
+    /**
+     *  Route this thread's queries to the dedicated writer connection
+     *  until the matching endWrite(). Only one thread at a time may be
+     *  in a write scope. May be nested. Does nothing if there is no pool.
+     *  Always call endWrite() in a finally block.
+     *
+     *  @since 1.107b-1
+     */
+    public void beginWrite() {
+        touch();
+        DBPool pool = _pool;
+        if (pool != null)
+            pool.beginWrite();
+    }
+
+    /** @since 1.107b-1 */
+    public void endWrite() {
+        DBPool pool = _pool;
+        if (pool != null)
+            pool.endWrite();
+    }
+
+    /**
+     *  Is this thread in a write scope?
+     *
+     *  @since 1.107b-1
+     */
+    boolean isWriteScope() {
+        DBPool pool = _pool;
+        return pool != null && pool.isWriterBound();
+    }
+
+    /**
+     *  The queue for database changes, see DBWriter
+     *
+     *  @since 1.107b-1
+     */
+    DBWriter writer() { return _writer; }
+
+    /** group commit defaults for bulk imports */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 50;
+    public static final long DEFAULT_GROUP_COMMIT_DELAY = 2*1000;
+
+    /**
+     *  The token from beginImportTransaction()
+     *
+     *  @since 1.107b-1
+     */
+    private static class ImportTransaction {
+        /** null if it owns the whole transaction */
+        final Savepoint savepoint;
+        /** where the unit's changes to the in-memory indexes start */
+        final int unreadMark;
+        final int channelMark;
+
+        ImportTransaction(Savepoint savepoint, int unreadMark, int channelMark) {
+            this.savepoint = savepoint;
+            this.unreadMark = unreadMark;
+            this.channelMark = channelMark;
+        }
+    }
+    private final Object _groupCommitLock = new Object();
+    /** non-null while a group commit is active, protected by _groupCommitLock */
+    private GroupCommit _groupCommit;
+    /** waiting for the next group commit, protected by _groupCommitLock */
+    private final List<CommitListener> _commitListeners = new ArrayList<CommitListener>();
+    /** count of group commits, and the last one that failed, protected by _groupCommitLock */
+    private long _groupCommitSeq;
+    private long _lastFailedGroupCommit;
+    /** msgIds to invalidate in the page cache again once the transaction ends, protected by _groupCommitLock */
+    private final Set<Long> _pendingPageInvalidations = new HashSet<Long>();
+    /** channelIds to invalidate in the channel info cache again once the transaction ends, protected by _groupCommitLock */
+    private final Set<Long> _pendingChannelInvalidations = new HashSet<Long>();
+
+    /** @since 1.107b-1 */
+    private static class GroupCommit {
+        final int maxImports;
+        final long maxDelay;
+        int users;
+        int pending;
+        long firstPending;
+        /** a commit of this group failed */
+        boolean failed;
+
+        GroupCommit(int max, long delay) {
+            maxImports = max;
+            maxDelay = delay;
+            users = 1;
+        }
+    }
+
+    /**
+     *  Start an atomic unit of import work on con().
+     *  Must be followed by commitImportTransaction() or rollbackImportTransaction().
+     *
+     *  If con() is in autocommit mode, this starts a transaction.
+     *  If it is already in a transaction (a group commit, or a nested import),
+     *  this sets a savepoint, so a failure only rolls back this unit.
+     *
+     *  @return an opaque token
+     *  @since 1.107b-1
+     */
+    Object beginImportTransaction() throws SQLException {
+        Connection con = con();
+        if (isGroupCommitting()) {
+            GroupCommit gc;
+            synchronized (_groupCommitLock) {
+                gc = _groupCommit;
+            }
+            if (gc != null && con.getAutoCommit()) {
+                con.setAutoCommit(false);
+                synchronized (_groupCommitLock) {
+                    gc.pending = 0;
+                    gc.firstPending = System.currentTimeMillis();
+                }
+            }
+        }
+        Savepoint savepoint = null;
+        if (con.getAutoCommit())
+            con.setAutoCommit(false);
+        else
+            savepoint = con.setSavepoint();
+        return new ImportTransaction(savepoint, _unreadIndex.beginUndo(), _channelIndex.beginUndo());
+    }
+
+    /**
+     *  Finish an atomic unit of import work.
+     *  In a group commit, the changes are committed with the group.
+     *
+     *  @param tx from beginImportTransaction()
+     *  @return success, if false the unit was rolled back
+     *  @since 1.107b-1
+     */
+    boolean commitImportTransaction(Object token) {
+        ImportTransaction tx = (ImportTransaction) token;
+        Connection con = con();
+        if (tx.savepoint == null) {
+            boolean ok = false;
+            try {
+                con.commit();
+                ok = true;
+                return true;
+            } catch (SQLException se) {
+                log("Error committing the import", se);
+                try { con.rollback(); } catch (SQLException sqle) {}
+                return false;
+            } finally {
+                endIndexUndo(ok);
+                try { con.setAutoCommit(true); } catch (SQLException se) {}
+                flushPageInvalidations();
+                flushChannelInvalidations();
+            }
+        }
+        try {
+            con.releaseSavepoint(tx.savepoint);
+        } catch (SQLException se) {
+            // already gone if something committed in between, that's fine
+        }
+        if (isGroupCommitting()) {
+            boolean flush = false;
+            synchronized (_groupCommitLock) {
+                GroupCommit gc = _groupCommit;
+                if (gc != null) {
+                    gc.pending++;
+                    flush = gc.pending >= gc.maxImports ||
+                            System.currentTimeMillis() - gc.firstPending >= gc.maxDelay;
+                }
+            }
+            if (flush)
+                return commitGroup(con);
+        }
+        return true;
+    }
+
+    /**
+     *  Undo an atomic unit of import work.
+     *  In a group commit, the rest of the group is not affected.
+     *
+     *  @param tx from beginImportTransaction()
+     *  @since 1.107b-1
+     */
+    void rollbackImportTransaction(Object token) {
+        ImportTransaction tx = (ImportTransaction) token;
+        Connection con = con();
+        try {
+            if (tx.savepoint == null)
+                con.rollback();
+            else
+                con.rollback(tx.savepoint);
+        } catch (SQLException se) {
+            log("Error rolling back the import", se);
+        } finally {
+            if (tx.savepoint == null) {
+                endIndexUndo(false);
+                try { con.setAutoCommit(true); } catch (SQLException se) {}
+                flushPageInvalidations();
+                flushChannelInvalidations();
+            } else {
+                _unreadIndex.undo(tx.unreadMark);
+                _channelIndex.undo(tx.channelMark);
+            }
+        }
+    }
+
+    /**
+     *  The transaction is over, undo its changes to the in-memory indexes
+     *  if it was rolled back
+     *
+     *  @since 1.107b-1
+     */
+    private void endIndexUndo(boolean committed) {
+        if (!committed) {
+            _unreadIndex.undo(0);
+            _channelIndex.undo(0);
+        }
+        _unreadIndex.endUndo();
+        _channelIndex.endUndo();
+    }
+
+    /**
+     *  Told whether an import's changes made it to disk, see afterImportCommit()
+     *
+     *  @since 1.107b-1
+     */
+    interface CommitListener {
+        /** the changes are committed */
+        public void committed();
+        /** the changes were rolled back with the group they were in */
+        public void rolledBack();
+    }
+
+    /**
+     *  For afterImportCommit(), get it before starting the import
+     *
+     *  @since 1.107b-1
+     */
+    long getGroupCommitToken() {
+        synchronized (_groupCommitLock) {
+            return _groupCommitSeq;
+        }
+    }
+
+    /**
+     *  Call after a successful commitImportTransaction(), in the same write scope.
+     *  In a group commit, the import is only on disk once the group commits,
+     *  so anything that depends on that, like reporting success or deleting
+     *  the imported file, goes in the listener, which is called on the writer
+     *  once the group is committed or rolled back.
+     *  Otherwise the listener is called now.
+     *
+     *  @param token from getGroupCommitToken() before the import, to tell if
+     *               the group was committed during the import
+     *  @since 1.107b-1
+     */
+    void afterImportCommit(long token, CommitListener lsnr) {
+        boolean inTransaction;
+        try {
+            inTransaction = !con().getAutoCommit();
+        } catch (SQLException se) {
+            inTransaction = false;
+        }
+        Boolean done = null;
+        synchronized (_groupCommitLock) {
+            if (_groupCommitSeq != token)
+                done = Boolean.valueOf(_lastFailedGroupCommit <= token);
+            else if (inTransaction && _groupCommit != null)
+                _commitListeners.add(lsnr);
+            else
+                done = Boolean.TRUE;
+        }
+        if (done != null) {
+            if (done.booleanValue())
+                lsnr.committed();
+            else
+                lsnr.rolledBack();
+        }
+    }
+
+    /**
+     *  Group the commits of the following imports on the writer connection,
+     *  committing every maxImports imports or maxDelay ms, whichever comes first.
+     *  Each import is still atomic, a failing one is rolled back alone.
+     *  Imports by other threads join the group.
+     *  Must be followed by endGroupCommit() in a finally block.
+     *  Calls may be nested, the first caller's limits are used.
+     *  Does nothing if there is no connection pool.
+     *
+     *  @since 1.107b-1
+     */
+    public void beginGroupCommit(int maxImports, long maxDelay) {
+        if (_pool == null)
+            return;
+        synchronized (_groupCommitLock) {
+            if (_groupCommit != null)
+                _groupCommit.users++;
+            else
+                _groupCommit = new GroupCommit(maxImports, maxDelay);
+        }
+    }
+
+    /**
+     *  Commit anything pending in the group now, for example when the import queue is empty.
+     *
+     *  @return false if the commit failed and the pending imports were rolled back
+     *  @since 1.107b-1
+     */
+    public boolean flushGroupCommit() {
+        synchronized (_groupCommitLock) {
+            if (_groupCommit == null || _groupCommit.pending <= 0)
+                return true;
+        }
+        beginWrite();
+        try {
+            Connection con = con();
+            if (!con.getAutoCommit())
+                return commitGroup(con);
+            return true;
+        } catch (SQLException se) {
+            log("Error flushing the group commit", se);
+            return false;
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     *  Commit anything pending, and go back to one commit per import
+     *  once the last nested caller is done.
+     *
+     *  @return false if any commit of the group failed, so some of its imports
+     *          were rolled back, as told to their CommitListeners
+     *  @since 1.107b-1
+     */
+    public boolean endGroupCommit() {
+        GroupCommit gc;
+        synchronized (_groupCommitLock) {
+            gc = _groupCommit;
+            if (gc == null)
+                return true;
+            if (--gc.users > 0)
+                return !gc.failed;
+        }
+        boolean ok = true;
+        beginWrite();
+        try {
+            Connection con = con();
+            if (!con.getAutoCommit()) {
+                ok = commitGroup(con);
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException se) {
+            log("Error ending the group commit", se);
+            ok = false;
+        } finally {
+            synchronized (_groupCommitLock) {
+                _groupCommit = null;
+            }
+            // anything still waiting had no transaction to commit
+            fireCommitListeners(ok);
+            endWrite();
+        }
+        return ok && !gc.failed;
+    }
+
+    /**
+     *  @return true if a group commit is active and this thread is on the writer
+     *  @since 1.107b-1
+     */
+    private boolean isGroupCommitting() {
+        DBPool pool = _pool;
+        if (pool == null || !pool.isWriterBound())
+            return false;
+        synchronized (_groupCommitLock) {
+            return _groupCommit != null;
+        }
+    }
+
+    /**
+     *  Call inside the write scope
+     *
+     *  @return success
+     *  @since 1.107b-1
+     */
+    private boolean commitGroup(Connection con) {
+        int pending = 0;
+        synchronized (_groupCommitLock) {
+            if (_groupCommit != null) {
+                pending = _groupCommit.pending;
+                _groupCommit.pending = 0;
+                _groupCommit.firstPending = System.currentTimeMillis();
+            }
+        }
+        boolean ok;
+        try {
+            con.commit();
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Group committed " + pending + " imports");
+            ok = true;
+        } catch (SQLException se) {
+            log("Error committing a group of " + pending + " imports", se);
+            try { con.rollback(); } catch (SQLException sqle) {}
+            ok = false;
+        }
+        endIndexUndo(ok);
+        synchronized (_groupCommitLock) {
+            _groupCommitSeq++;
+            if (!ok) {
+                _lastFailedGroupCommit = _groupCommitSeq;
+                if (_groupCommit != null)
+                    _groupCommit.failed = true;
+            }
+        }
+        fireCommitListeners(ok);
+        return ok;
+    }
+
+    /**
+     *  Tell the listeners waiting for the group commit, in the order added
+     *
+     *  @since 1.107b-1
+     */
+    private void fireCommitListeners(boolean committed) {
+        flushPageInvalidations();
+        flushChannelInvalidations();
+        List<CommitListener> lsnrs;
+        synchronized (_groupCommitLock) {
+            if (_commitListeners.isEmpty())
+                return;
+            lsnrs = new ArrayList<CommitListener>(_commitListeners);
+            _commitListeners.clear();
+        }
+        for (CommitListener lsnr : lsnrs) {
+            try {
+                if (committed)
+                    lsnr.committed();
+                else
+                    lsnr.rolledBack();
+            } catch (RuntimeException re) {
+                log("Error in a commit listener", re);
+            }
+        }
+    }
+
+    /**
+     *  Checkouts and wait times for each pooled connection
+     *
+     *  @return stats, one line per connection, or "" if no pool
+     *  @since 1.107b-1
+     */
+    public String getConnectionStats() {
+        DBPool pool = _pool;
+        return pool != null ? pool.getStats() : "";
+    }
+
     public Hash sha256(byte data[]) { return _context.sha().calculateHash(data); }
     public void setDefaultUI(UI ui) { _ui = ui; }
     
@@ -469,7 +1353,10 @@ public class DBClient {
      *  Sets the nym password, NOT the DB password.
      *  Used only by desktop.
      */
-    public void setPass(String encryptionPass) { _nymPass = encryptionPass; }
+    public void setPass(String encryptionPass) {
+        _nymKeyring.clear();
+        _nymPass = encryptionPass;
+    }
 
     /**
      *  TODO, ensureLoggedIn() may still throw an ISE even if isLoggedIn() returns true
@@ -504,10 +1391,19 @@ public class DBClient {
     public void setDefaultFreenetPublicKey(String publicSSK) { _freenetPublicKey = publicSSK; }
     
     public void close() {
+        if (isLoggedIn())
+            _statusBuffer.flush();
+        // finish the queued imports while still logged in, before clearing their state
+        stopPool();
+        _statusBuffer.clear();
+        _unreadIndex.clear();
+        _channelIndex.clear();
+        _pageCache.clear();
         _login = null;
         _pass = null;
         _nymLogin = null;
         _nymPass = null;
+        _nymKeyring.clear();
         _nymId = -1;
         _defaultArchive = null;
         _httpProxyHost = null;
@@ -550,7 +1446,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(query);
+            stmt = prepareUncached(query);
             stmt.setLong(1, keyVal);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -585,7 +1481,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_NYM_ID);
+            stmt = prepare(SQL_GET_NYM_ID);
             stmt.setString(1, login);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -601,9 +1497,22 @@ public class DBClient {
                         _nymPass = passphrase;
                         _nymId = nymId;
                         log("passphrase is correct in the nym table for \"" + login + '"');
+                        beginWrite();
+                        try {
+                            _unreadIndex.load(nymId);
+                            // until then, the lookups query the channel table
+                            if (!_startupDeferred)
+                                _channelIndex.load();
+                        } finally {
+                            endWrite();
+                        }
+                        startupPhase("indexes");
+                        buildMessageIndexIfMissing();
                         
                         Properties prefs = getNymPrefs(nymId);
                         loadProxyConfig(prefs);
+                        applyTuning(prefs);
+                        startupPhase("nym prefs");
                         return nymId;
                     } else {
                         log("Invalid passphrase for the nymId \"" + login + '"');
@@ -631,7 +1540,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_NYMIDS);
+            stmt = prepare(SQL_GET_NYMIDS);
             rs = stmt.executeQuery();
             while (rs.next()) {
                 long nymId = rs.getLong(1);
@@ -661,7 +1570,7 @@ public class DBClient {
         
         PreparedStatement stmt = null;
         try {
-            stmt = _con.prepareStatement(SQL_INSERT_NYM);
+            stmt = prepare(SQL_INSERT_NYM);
             stmt.setLong(1, nymId);
             stmt.setString(2, login);
             stmt.setString(3, publicName);
@@ -689,7 +1598,7 @@ public class DBClient {
         try {
             //String query = "SELECT NEXT VALUE FOR " + seq + " FROM information_schema.system_sequences WHERE sequence_name = '" + seq.toUpperCase() + "'";
             String query = "CALL NEXT VALUE FOR " + seq;
-            stmt = _con.prepareStatement(query);
+            stmt = prepareUncached(query);
             rs = stmt.executeQuery();
             if (rs.next()) {
                 long rv = rs.getLong(1);
@@ -718,6 +1627,16 @@ public class DBClient {
         return _uriDAO.fetch(uriId);
     }
 
+    /**
+     *  The stored URI rebuilt from its attribute rows, uncached, as before
+     *  the encoded form was stored. For DBBench.
+     *
+     *  @since 1.107b-1
+     */
+    SyndieURI getURIFromAttributes(long uriId) {
+        return _uriDAO.fetchAttributes(uriId);
+    }
+
     /**
      *  @return urlID
      */
@@ -811,7 +1730,7 @@ public class DBClient {
             _log.debug("Exec [" + cmd + "]");
         PreparedStatement stmt = null;
         try {
-            stmt = _con.prepareStatement(cmd);
+            stmt = prepareUncached(cmd);
             stmt.executeUpdate();
         } finally { 
             if (stmt != null) stmt.close();
@@ -826,7 +1745,7 @@ public class DBClient {
         //    _log.debug("Exec param [" + sql + "]");
         PreparedStatement stmt = null;
         try {
-            stmt = _con.prepareStatement(sql);
+            stmt = prepareUncached(sql);
             stmt.setLong(1, param1);
             return stmt.executeUpdate();
         } finally { 
@@ -842,7 +1761,7 @@ public class DBClient {
         //    _log.debug("Exec param [" + sql + "]");
         PreparedStatement stmt = null;
         try {
-            stmt = _con.prepareStatement(sql);
+            stmt = prepareUncached(sql);
             stmt.setLong(1, param1);
             stmt.setLong(2, param2);
             return stmt.executeUpdate();
@@ -859,7 +1778,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(query);
+            stmt = prepareUncached(query);
             String lc = StringUtil.lowercase(query);
             if (!lc.startsWith("select") && !lc.startsWith("call")) {
                 int rows = stmt.executeUpdate();
@@ -910,7 +1829,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_READ_KEY_PRIVACY);
+            stmt = prepare(SQL_GET_READ_KEY_PRIVACY);
             stmt.setLong(1, channelId);
             stmt.setBytes(2, key.getData());
             rs = stmt.executeQuery();
@@ -962,7 +1881,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_READKEYS);
+            stmt = prepare(SQL_GET_READKEYS);
             stmt.setBytes(1, identHash.getData());
             stmt.setLong(2, nymId);
             rs = stmt.executeQuery();
@@ -976,7 +1895,7 @@ public class DBClient {
                 
                 if (Constants.KEY_TYPE_AES256.equals(type)) {
                     if (salt != null) {
-                        byte decr[] = pbeDecrypt(data, salt);
+                        byte decr[] = decryptNymKey(data, salt);
                         rv.add(new SessionKey(decr));
                         //byte readKey[] = new byte[SessionKey.KEYSIZE_BYTES];
                         //SessionKey saltedKey = _context.keyGenerator().generateSessionKey(salt, pass);
@@ -1005,9 +1924,9 @@ public class DBClient {
         long channelId = getChannelId(identHash);
         try {
             if (onlyIncludeForWriting)
-                stmt = _con.prepareStatement(SQL_GET_CHANREADKEYS_RW);
+                stmt = prepare(SQL_GET_CHANREADKEYS_RW);
             else
-                stmt = _con.prepareStatement(SQL_GET_CHANREADKEYS_RO);
+                stmt = prepare(SQL_GET_CHANREADKEYS_RO);
             //stmt.setBytes(1, identHash.getData());
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
@@ -1033,7 +1952,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_KNOWN_EDITION);
+            stmt = prepare(SQL_GET_KNOWN_EDITION);
             stmt.setBytes(1, ident.getData());
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -1059,14 +1978,15 @@ public class DBClient {
 
     /**
      *  retrieve a mapping of channelId (Long) to channel hash (Hash)
-     *  Since 1.106b-3, saves to a local cache
+     *  Since 1.107b-1, from the channel index if loaded
      */
     public Map<Long, Hash> getChannelIds() {
-        Map<Long, Hash> rv = x_getChannelIds();
-        synchronized(_idToHashCache) {
-            _idToHashCache.clear();
-            _idToHashCache.putAll(rv);
-        }
+        List<ChannelIndex.Entry> all = _channelIndex.getAll();
+        if (all == null)
+            return x_getChannelIds();
+        Map<Long, Hash> rv = new HashMap<Long, Hash>(all.size());
+        for (ChannelIndex.Entry e : all)
+            rv.put(Long.valueOf(e.id), e.hash);
         return rv;
     }
 
@@ -1076,7 +1996,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_IDS);
+            stmt = prepare(SQL_GET_CHANNEL_IDS);
             rs = stmt.executeQuery();
             while (rs.next()) {
                 long id = rs.getLong(1);
@@ -1101,52 +2021,73 @@ public class DBClient {
     
     /**
      *  Invalidate the caches for the
-     *  channel with this ID and this Hash
+     *  channel with this ID and this Hash.
+     *  Since 1.107b-1, reads the channel into the channel index again,
+     *  call in the same scope as the change.
      *  @since 1.106b-3
      */
     void invalidateChannelCache(long channelId, Hash channelHash) {
-        Long id = Long.valueOf(channelId);
-        synchronized(_idToHashCache) {
-            _idToHashCache.remove(id);
-        }
-        synchronized(_hashToNameCache) {
-            _hashToNameCache.remove(channelHash);
+        _channelInfoCache.invalidate(channelId);
+        _channelIndex.refresh(channelId);
+        boolean inTransaction;
+        try {
+            inTransaction = !con().getAutoCommit();
+        } catch (SQLException se) {
+            inTransaction = false;
         }
-        synchronized(_idToNameCache) {
-            _idToNameCache.remove(id);
+        if (inTransaction) {
+            synchronized (_groupCommitLock) {
+                _pendingChannelInvalidations.add(Long.valueOf(channelId));
+            }
         }
-        synchronized(_hashToIdCache) {
-            _hashToIdCache.remove(channelHash);
+    }
+
+    /**
+     *  The transaction ended, invalidate the channels of invalidateChannelCache() again,
+     *  as a reader may have cached the old ChannelInfo before the commit.
+     *
+     *  @since 1.107b-1
+     */
+    private void flushChannelInvalidations() {
+        List<Long> channelIds;
+        synchronized (_groupCommitLock) {
+            if (_pendingChannelInvalidations.isEmpty())
+                return;
+            channelIds = new ArrayList<Long>(_pendingChannelInvalidations);
+            _pendingChannelInvalidations.clear();
         }
+        for (Long channelId : channelIds)
+            _channelInfoCache.invalidate(channelId.longValue());
+    }
+
+    /**
+     *  Channels in the channel index, or "not loaded"
+     *
+     *  @since 1.107b-1
+     */
+    public String getChannelIndexStats() {
+        return _channelIndex.toString();
     }
 
     private static final String SQL_GET_CHANNEL_HASH = "SELECT channelHash FROM channel WHERE channelId = ?";
 
     /**
-     *  Since 1.106b-3, uses a local cache
+     *  Since 1.107b-1, from the channel index if loaded
      */
     public Hash getChannelHash(long channelId) {
         if (channelId < 0) return null;
-        Long id = Long.valueOf(channelId);
-        synchronized(_idToHashCache) {
-            Hash rv = _idToHashCache.get(id);
-            if (rv != null)
-                return rv;
-        }
-        Hash rv = x_getChannelHash(channelId);
-        if (rv != null) {
-            synchronized(_idToHashCache) {
-                _idToHashCache.put(id, rv);
-            }
+        if (_channelIndex.isLoaded()) {
+            ChannelIndex.Entry e = _channelIndex.get(channelId);
+            return e != null ? e.hash : null;
         }
-        return rv;
+        return x_getChannelHash(channelId);
     }
 
     private Hash x_getChannelHash(long channelId) {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_HASH);
+            stmt = prepare(SQL_GET_CHANNEL_HASH);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -1170,23 +2111,16 @@ public class DBClient {
     private static final String SQL_GET_CHANNEL_ID = "SELECT channelId FROM channel WHERE channelHash = ?";
 
     /**
-     *  Since 1.106b-3, uses a local cache
+     *  Since 1.107b-1, from the channel index if loaded
      *  @return -1 if not found
      */
     public long getChannelId(Hash channel) {
         if (channel == null) return -1;
-        synchronized(_hashToIdCache) {
-            Long rv = _hashToIdCache.get(channel);
-            if (rv != null)
-                return rv.longValue();
+        if (_channelIndex.isLoaded()) {
+            ChannelIndex.Entry e = _channelIndex.get(channel);
+            return e != null ? e.id : -1;
         }
-        long rv = x_getChannelId(channel);
-        if (rv >= 0) {
-            synchronized(_hashToIdCache) {
-                _hashToIdCache.put(channel, Long.valueOf(rv));
-            }
-        }
-        return rv;
+        return x_getChannelId(channel);
     }
 
     /**
@@ -1196,7 +2130,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_ID);
+            stmt = prepare(SQL_GET_CHANNEL_ID);
             stmt.setBytes(1, channel.getData());
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -1223,30 +2157,23 @@ public class DBClient {
     private static final String SQL_GET_CHANNEL_NAME_FAST = "SELECT name FROM channel WHERE channelHash = ?";
 
     /**
-     *  Since 1.106b-3, uses a local cache
+     *  Since 1.107b-1, from the channel index if loaded
      */
     public String getChannelName(Hash channel) {
         if (channel == null) return null;
-        synchronized(_hashToNameCache) {
-            String rv = _hashToNameCache.get(channel);
-            if (rv != null)
-                return rv;
+        if (_channelIndex.isLoaded()) {
+            ChannelIndex.Entry e = _channelIndex.get(channel);
+            return e != null ? e.name : null;
         }
-        String rv = x_getChannelName(channel);
-        if (rv != null) {
-            synchronized(_hashToNameCache) {
-                _hashToNameCache.put(channel, rv);
-            }
-        }
-        return rv;
+        return x_getChannelName(channel);
     }
 
     private String x_getChannelName(Hash channel) {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            //stmt = _con.prepareStatement(SQL_GET_CHANNEL_NAME);
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_NAME_FAST);
+            //stmt = prepare(SQL_GET_CHANNEL_NAME);
+            stmt = prepare(SQL_GET_CHANNEL_NAME_FAST);
             stmt.setBytes(1, channel.getData());
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -1273,13 +2200,17 @@ public class DBClient {
 
     /**
      *  retrieve a mapping of channelId (Long) to channel name (String)
+     *  Since 1.107b-1, from the channel index if loaded
      *  @since 1.106b-3
      */
     public Map<Long, String> getChannelNames() {
-        Map<Long, String> rv = x_getChannelNames();
-        synchronized(_idToNameCache) {
-            _idToNameCache.clear();
-            _idToNameCache.putAll(rv);
+        List<ChannelIndex.Entry> all = _channelIndex.getAll();
+        if (all == null)
+            return x_getChannelNames();
+        Map<Long, String> rv = new HashMap<Long, String>(all.size());
+        for (ChannelIndex.Entry e : all) {
+            if (e.name != null)
+                rv.put(Long.valueOf(e.id), e.name);
         }
         return rv;
     }
@@ -1293,7 +2224,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_NAMES);
+            stmt = prepare(SQL_GET_CHANNEL_NAMES);
             rs = stmt.executeQuery();
             while (rs.next()) {
                 long id = rs.getLong(1);
@@ -1317,30 +2248,23 @@ public class DBClient {
     private static final String SQL_GET_CHANNEL_NAME_ID = "SELECT name, petName FROM channel c LEFT OUTER JOIN nymChannelPetName ncpn ON c.channelId = ncpn.channelId WHERE channelId = ?";
 
     /**
-     *  Since 1.106b-3, uses a local cache
+     *  Since 1.107b-1, from the channel index if loaded
+     *  @return the pet name if set, else the name
      */
     public String getChannelName(long chanId) {
         if (chanId < 0) return null;
-        Long id = Long.valueOf(chanId);
-        synchronized(_idToNameCache) {
-            String rv = _idToNameCache.get(id);
-            if (rv != null)
-                return rv;
-        }
-        String rv = x_getChannelName(chanId);
-        if (rv != null) {
-            synchronized(_idToNameCache) {
-                _idToNameCache.put(id, rv);
-            }
+        if (_channelIndex.isLoaded()) {
+            ChannelIndex.Entry e = _channelIndex.get(chanId);
+            return e != null ? e.getDisplayName() : null;
         }
-        return rv;
+        return x_getChannelName(chanId);
     }
 
     private String x_getChannelName(long chanId) {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_NAME_ID);
+            stmt = prepare(SQL_GET_CHANNEL_NAME_ID);
             stmt.setLong(1, chanId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -1369,7 +2293,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_DESCRIPTION);
+            stmt = prepare(SQL_GET_CHANNEL_DESCRIPTION);
             stmt.setLong(1, chanId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -1447,7 +2371,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_SIGNKEYS);
+            stmt = prepare(SQL_GET_SIGNKEYS);
             stmt.setBytes(1, identHash.getData());
             stmt.setLong(2, nymId);
             rs = stmt.executeQuery();
@@ -1461,7 +2385,7 @@ public class DBClient {
                 
                 if (Constants.KEY_TYPE_DSA.equals(type)) {
                     if (salt != null) {
-                        byte decr[] = pbeDecrypt(data, salt);
+                        byte decr[] = decryptNymKey(data, salt);
                         rv.add(new SigningPrivateKey(decr));
                         //byte readKey[] = new byte[data.length];
                         //SessionKey saltedKey = _context.keyGenerator().generateSessionKey(salt, pass);
@@ -1494,7 +2418,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_REPLY_KEY);
+            stmt = prepare(SQL_GET_REPLY_KEY);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -1567,7 +2491,7 @@ public class DBClient {
                 query = query + " AND keyChannel = ?";
             if (keyFunction != null)
                 query = query + " AND keyFunction = ?";
-            stmt = _con.prepareStatement(query);
+            stmt = prepareUncached(query);
             stmt.setLong(1, nymId);
             if (channel != null) {
                 stmt.setBytes(2, channel.getData());
@@ -1590,7 +2514,7 @@ public class DBClient {
                 byte chan[] = rs.getBytes(8);
                 
                 if (salt != null) {
-                    byte key[] = pbeDecrypt(data, salt);
+                    byte key[] = decryptNymKey(data, salt);
                     data = key;
                     if (key == null) {
                         log("Invalid passphrase to a nymKey: \"" + pass + '"');
@@ -1626,10 +2550,83 @@ public class DBClient {
         return rv;        
     }
     
+    /**
+     *  pbeDecrypt() with the current nym passphrase, using the keyring
+     *  to avoid running the KDF again for keys we have already decrypted.
+     *
+     *  @return null if the passphrase is wrong
+     *  @since 1.107b-1
+     */
+    private byte[] decryptNymKey(byte data[], byte salt[]) {
+        byte rv[] = _nymKeyring.get(data, salt);
+        if (rv == null) {
+            rv = pbeDecrypt(data, salt);
+            if (rv != null)
+                _nymKeyring.put(data, salt, rv);
+        }
+        return rv;
+    }
+
+    /**
+     *  Add a key encrypted with pbeEncrypt() under the current nym passphrase,
+     *  so it won't need to be decrypted later.
+     *
+     *  @since 1.107b-1
+     */
+    void addToKeyring(byte encrypted[], byte salt[], byte decrypted[]) {
+        _nymKeyring.put(encrypted, salt, decrypted);
+    }
+
+    /**
+     *  Size of the decrypted keyring and the KDF runs it saved
+     *
+     *  @since 1.107b-1
+     */
+    public String getKeyringStats() {
+        return _nymKeyring.toString();
+    }
+
+    /**
+     *  Since 1.107b-1, also loads the keyring
+     */
     public boolean verifyNymKeyEncryption() {
         getNymKeys(0, _nymPass, null, null, true);
         return _numNymKeysWithoutPass == 0;
     }
+
+    private static final String SQL_GET_ONE_NYMKEY = "SELECT keyData, keySalt FROM nymKey WHERE nymId = 0 AND keySalt IS NOT NULL";
+
+    /**
+     *  For a fast start, like verifyNymKeyEncryption() but only decrypts one key,
+     *  the rest are checked and loaded into the keyring later.
+     *
+     *  @return true if there are no encrypted keys or the passphrase decrypts one
+     *  @since 1.107b-1
+     */
+    private boolean verifyOneNymKey() {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = prepareUncached(SQL_GET_ONE_NYMKEY);
+            stmt.setMaxRows(1);
+            rs = stmt.executeQuery();
+            if (!rs.next())
+                return true;
+            byte data[] = rs.getBytes(1);
+            byte salt[] = rs.getBytes(2);
+            if (decryptNymKey(data, salt) != null)
+                return true;
+            log("Invalid passphrase to a nymKey");
+            return false;
+        } catch (SQLException se) {
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("Error retrieving a key", se);
+            return false;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
     
     /** 
      * @return non-null
@@ -1670,7 +2667,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(query);
+            stmt = prepareUncached(query);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -1700,7 +2697,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_IDENT_KEY);
+            stmt = prepare(SQL_GET_IDENT_KEY);
             stmt.setBytes(1, hash.getData());
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -1730,7 +2727,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_PRIVATE_CHANNEL_READ_KEYS);
+            stmt = prepare(SQL_PRIVATE_CHANNEL_READ_KEYS);
             rs = stmt.executeQuery();
             while (rs.next()) {
                 byte chan[] = rs.getBytes(1);
@@ -1758,7 +2755,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_ALLOW_PUB_REPLIES);
+            stmt = prepare(SQL_ALLOW_PUB_REPLIES);
             stmt.setLong(1, targetChannelId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -1785,7 +2782,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_ALLOW_PUB_REPLIES);
+            stmt = prepare(SQL_ALLOW_PUB_REPLIES);
             stmt.setLong(1, targetChannelId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -1816,16 +2813,16 @@ public class DBClient {
         ResultSet rs = null;
         try {
             if ( (author != null) && (messageId != null) ) {
-                stmt = _con.prepareStatement(SQL_GET_INTERNAL_MESSAGE_ID_FULL);
+                stmt = prepare(SQL_GET_INTERNAL_MESSAGE_ID_FULL);
                 stmt.setBytes(1, author.getData());
                 stmt.setLong(2, messageId.longValue());
                 stmt.setLong(3, targetChannelId);
             } else if ( (author == null) && (messageId != null) ) {
-                stmt = _con.prepareStatement(SQL_GET_INTERNAL_MESSAGE_ID_NOAUTH);
+                stmt = prepare(SQL_GET_INTERNAL_MESSAGE_ID_NOAUTH);
                 stmt.setLong(1, messageId.longValue());
                 stmt.setLong(2, targetChannelId);
             } else if ( (author != null) && (messageId == null) ) {
-                stmt = _con.prepareStatement(SQL_GET_INTERNAL_MESSAGE_ID_NOMSG);
+                stmt = prepare(SQL_GET_INTERNAL_MESSAGE_ID_NOMSG);
                 stmt.setBytes(1, author.getData());
                 stmt.setLong(2, targetChannelId);
             } else {
@@ -2317,7 +3314,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_SEARCH_CHANNEL_IDS);
+            stmt = prepare(SQL_SEARCH_CHANNEL_IDS);
             stmt.setString(1, "%" + term + "%");
             stmt.setString(2, "%" + term + "%");
             stmt.setString(3, "%" + term + "%");
@@ -2346,8 +3343,51 @@ public class DBClient {
     private static final String SQL_GET_CHANNEL_META_HEADERS = "SELECT headerName, headerValue, wasEncrypted FROM channelMetaHeader WHERE channelId = ?";
     private static final String SQL_GET_CHANNEL_REFERENCES = "SELECT groupId, parentGroupId, siblingOrder, name, description, uriId, referenceType, wasEncrypted FROM channelReferenceGroup WHERE channelId = ? ORDER BY parentGroupId ASC, siblingOrder ASC";
 
+    /**
+     *  Since 1.107b-1, uses a local cache.
+     *  The returned object is the caller's own, changing it doesn't change the cache.
+     */
     public ChannelInfo getChannel(long channelId) {
         ensureLoggedIn();
+        ChannelInfo rv = _channelInfoCache.get(channelId);
+        if (rv != null)
+            return rv;
+        long generation = _channelInfoCache.getGeneration();
+        beginRead();
+        try {
+            rv = x_getChannel(channelId);
+        } finally {
+            endRead();
+        }
+        if (rv != null)
+            _channelInfoCache.put(rv, generation);
+        return rv;
+    }
+
+    /**
+     *  Hits, misses, and invalidations of the getChannel() cache
+     *
+     *  @since 1.107b-1
+     */
+    public String getChannelCacheStats() {
+        return _channelInfoCache.toString();
+    }
+
+    /**
+     *  Hits, misses, and size of the page data and config cache
+     *
+     *  @since 1.107b-1
+     */
+    public String getPageCacheStats() {
+        return _pageCache.toString();
+    }
+
+    /**
+     *  Call inside a read scope
+     *
+     *  @since 1.107b-1 split out of getChannel()
+     */
+    private ChannelInfo x_getChannel(long channelId) {
         long start = System.currentTimeMillis();
         if (_trace) _getChanCount++;
         ChannelInfo info = new ChannelInfo();
@@ -2391,7 +3431,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_INFO);
+            stmt = prepare(SQL_GET_CHANNEL_INFO);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -2450,7 +3490,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_TAG);
+            stmt = prepare(SQL_GET_CHANNEL_TAG);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             Set encrypted = new HashSet();
@@ -2483,7 +3523,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_ARCHIVES);
+            stmt = prepare(SQL_GET_CHANNEL_ARCHIVES);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             Set<Long> pubIds = new HashSet<Long>();
@@ -2536,7 +3576,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_READ_KEYS);
+            stmt = prepare(SQL_GET_CHANNEL_READ_KEYS);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             Set keys = new HashSet();
@@ -2567,7 +3607,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_META_HEADERS);
+            stmt = prepare(SQL_GET_CHANNEL_META_HEADERS);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             Properties pub = new Properties();
@@ -2601,7 +3641,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_REFERENCES);
+            stmt = prepare(SQL_GET_CHANNEL_REFERENCES);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             HashMap<Long, DBReferenceNode> groupIdToNode = new HashMap();
@@ -2711,7 +3751,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_POST_KEYS);
+            stmt = prepare(SQL_GET_CHANNEL_POST_KEYS);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             Set<SigningPublicKey> keys = new HashSet();
@@ -2736,7 +3776,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_MANAGE_KEYS);
+            stmt = prepare(SQL_GET_CHANNEL_MANAGE_KEYS);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             Set<SigningPublicKey> keys = new HashSet();
@@ -2764,7 +3804,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_NYM_CHANNEL_PETNAME_DEFINED);
+            stmt = prepare(SQL_GET_NYM_CHANNEL_PETNAME_DEFINED);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -2790,7 +3830,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_NYM_CHANNEL_PETDESC_DEFINED);
+            stmt = prepare(SQL_GET_NYM_CHANNEL_PETDESC_DEFINED);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -2821,7 +3861,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         try {
             exec(SQL_UNSET_PETNAME, channelId);
-            stmt = _con.prepareStatement(SQL_SET_PETNAME);
+            stmt = prepare(SQL_SET_PETNAME);
             stmt.setLong(1, channelId);
             if ( (name != null) && (name.trim().length() > 0) )
                 stmt.setString(2, name);
@@ -2837,6 +3877,8 @@ public class DBClient {
                 _log.error("Error setting the petname", se);
         } finally {
             if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+            _channelInfoCache.invalidate(channelId);
+            _channelIndex.refresh(channelId);
         }
     }
     
@@ -2854,7 +3896,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         try {
             exec(SQL_UNSET_CUSTOM_AVATAR, channelId);
-            stmt = _con.prepareStatement(SQL_SET_CUSTOM_AVATAR);
+            stmt = prepare(SQL_SET_CUSTOM_AVATAR);
             stmt.setLong(1, channelId);
             stmt.setBytes(2, avatar);
             stmt.executeUpdate();
@@ -2876,7 +3918,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CUSTOM_AVATAR);
+            stmt = prepare(SQL_GET_CUSTOM_AVATAR);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -2904,7 +3946,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CUSTOM_AVATAR_DEFINED);
+            stmt = prepare(SQL_GET_CUSTOM_AVATAR_DEFINED);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -2933,7 +3975,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_AVATAR);
+            stmt = prepare(SQL_GET_CHANNEL_AVATAR);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -2959,7 +4001,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_ARCHIVE);
+            stmt = prepare(SQL_GET_ARCHIVE);
             stmt.setLong(1, archiveId);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -3000,7 +4042,7 @@ public class DBClient {
             PreparedStatement stmt = null;
             ResultSet rs = null;
             try {
-                stmt = _con.prepareStatement(SQL_GET_MESSAGES_PRIVATE);
+                stmt = prepare(SQL_GET_MESSAGES_PRIVATE);
                 stmt.setLong(1, chanId);
                 rs = stmt.executeQuery();
                 while (rs.next()) {
@@ -3034,7 +4076,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_PRIVATE_ALL);
+            stmt = prepare(SQL_GET_PRIVATE_ALL);
             rs = stmt.executeQuery();
             while (rs.next()) {
                 // msgId
@@ -3090,7 +4132,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_PBEREQUIRED_META);
+            stmt = prepare(SQL_GET_PBEREQUIRED_META);
             rs = stmt.executeQuery();
             while (rs.next()) {
                 byte hash[] = rs.getBytes(1);
@@ -3115,7 +4157,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_PBEREQUIRED_MSGS);
+            stmt = prepare(SQL_GET_PBEREQUIRED_MSGS);
             rs = stmt.executeQuery();
             while (rs.next()) {
                 byte hash[] = rs.getBytes(1);
@@ -3144,7 +4186,7 @@ public class DBClient {
             PreparedStatement stmt = null;
             ResultSet rs = null;
             try {
-                stmt = _con.prepareStatement(SQL_GET_MESSAGES_AUTHORIZED);
+                stmt = prepare(SQL_GET_MESSAGES_AUTHORIZED);
                 stmt.setLong(1, chanId);
                 rs = stmt.executeQuery();
                 while (rs.next()) {
@@ -3175,7 +4217,7 @@ public class DBClient {
             PreparedStatement stmt = null;
             ResultSet rs = null;
             try {
-                stmt = _con.prepareStatement(SQL_GET_MESSAGES_AUTHENTICATED);
+                stmt = prepare(SQL_GET_MESSAGES_AUTHENTICATED);
                 stmt.setLong(1, chanId);
                 rs = stmt.executeQuery();
                 while (rs.next()) {
@@ -3206,7 +4248,7 @@ public class DBClient {
             PreparedStatement stmt = null;
             ResultSet rs = null;
             try {
-                stmt = _con.prepareStatement(SQL_GET_MESSAGES_UNAUTHENTICATED);
+                stmt = prepare(SQL_GET_MESSAGES_UNAUTHENTICATED);
                 stmt.setLong(1, chanId);
                 rs = stmt.executeQuery();
                 while (rs.next()) {
@@ -3261,7 +4303,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_INTERNAL_MESSAGE_ID);
+            stmt = prepare(SQL_GET_INTERNAL_MESSAGE_ID);
             stmt.setLong(1, scopeId);
             stmt.setLong(2, messageId);
             rs = stmt.executeQuery();
@@ -3325,7 +4367,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_IMPORT_DATE);
+            stmt = prepare(SQL_GET_MESSAGE_IMPORT_DATE);
             stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -3353,7 +4395,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_SCOPE);
+            stmt = prepare(SQL_GET_MESSAGE_SCOPE);
             stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -3385,7 +4427,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_ID);
+            stmt = prepare(SQL_GET_MESSAGE_ID);
             stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -3421,7 +4463,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_VERSION);
+            stmt = prepare(SQL_GET_CHANNEL_VERSION);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -3449,7 +4491,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_IDENT_KEY);
+            stmt = prepare(SQL_GET_CHANNEL_IDENT_KEY);
             stmt.setBytes(1, scope.getData());
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -3478,7 +4520,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_REPLY_KEY);
+            stmt = prepare(SQL_GET_CHANNEL_REPLY_KEY);
             stmt.setBytes(1, scope.getData());
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -3514,7 +4556,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CHANNEL_IMPORT_DATE);
+            stmt = prepare(SQL_GET_CHANNEL_IMPORT_DATE);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -3536,6 +4578,115 @@ public class DBClient {
         }   
     }
     
+    /**
+     *  Fill in the info from the current row of a SQL_GET_MESSAGE_INFO query
+     *  (or any query with the same first 21 columns).
+     *  Does not set the URI or the target channel hash, see setMessageChannels().
+     *
+     *  @return false if the message was deleted
+     *  @since 1.107b-1 pulled out of getMessage()
+     */
+    private boolean readMessageInfo(ResultSet rs, MessageInfo info) throws SQLException {
+        // authorChannelId, messageId, targetChannelId, subject, overwriteScopeHash, overwriteMessageId,
+        // forceNewThread, refuseReplies, wasEncrypted, wasPrivate, wasAuthorized, 
+        // wasAuthenticated, isCancelled, expiration, scopeChannelId, wasPBE, importDate, deletionCause
+        long authorId = rs.getLong(1);
+        if (rs.wasNull()) authorId = -1;
+        //byte author[] = rs.getBytes(1);
+        long messageId = rs.getLong(2);
+        if (rs.wasNull()) messageId = -1;
+        long targetChannelId = rs.getLong(3);
+        String subject = rs.getString(4);
+        byte overwriteChannel[] = rs.getBytes(5);
+        long overwriteMessage = rs.getLong(6);
+        if (rs.wasNull()) overwriteMessage = -1;
+        boolean forceNewThread = rs.getBoolean(7);
+        if (rs.wasNull()) forceNewThread = false;
+        boolean refuseReplies = rs.getBoolean(8);
+        if (rs.wasNull()) refuseReplies = false;
+        boolean wasEncrypted = rs.getBoolean(9);
+        if (rs.wasNull()) wasEncrypted = true;
+        boolean wasPrivate = rs.getBoolean(10);
+        if (rs.wasNull()) wasPrivate = false;
+        boolean wasAuthorized = rs.getBoolean(11);
+        if (rs.wasNull()) wasAuthorized = false;
+        boolean wasAuthenticated = rs.getBoolean(12);
+        if (rs.wasNull()) wasAuthenticated = false;
+        boolean cancelled = rs.getBoolean(13);
+        if (rs.wasNull()) cancelled = false;
+        java.sql.Date exp = rs.getDate(14);
+        long scopeChannelId = rs.getLong(15);
+        boolean wasPBE = rs.getBoolean(16);
+        if (rs.wasNull())
+            wasPBE = false;
+        
+        boolean readKeyMissing = rs.getBoolean(17);
+        if (rs.wasNull()) readKeyMissing = false;
+        boolean replyKeyMissing = rs.getBoolean(18);
+        if (rs.wasNull()) replyKeyMissing = false;
+        String pbePrompt = rs.getString(19);
+        Date importDate = rs.getDate(20);
+        int deletionCause = rs.getInt(21);
+        if (rs.wasNull()) deletionCause = -1;
+        
+        if (deletionCause > 0 ) {
+            _ui.debugMessage("message " + info.getInternalId() + " was deleted: " + deletionCause);
+            return false;
+        }
+        
+        info.setReadKeyUnknown(readKeyMissing);
+        info.setReplyKeyUnknown(replyKeyMissing);
+        info.setPassphrasePrompt(pbePrompt);
+        
+        if (authorId >= 0) info.setAuthorChannelId(authorId);
+        //if (author != null) info.setAuthorChannel(new Hash(author));
+        info.setMessageId(messageId);
+        info.setScopeChannelId(scopeChannelId);
+        info.setTargetChannelId(targetChannelId);
+        info.setSubject(subject);
+        if ( (overwriteChannel != null) && (overwriteMessage >= 0) ) {
+            info.setOverwriteChannel(new Hash(overwriteChannel));
+            info.setOverwriteMessage(overwriteMessage);
+        }
+        info.setForceNewThread(forceNewThread);
+        info.setRefuseReplies(refuseReplies);
+        info.setWasEncrypted(wasEncrypted);
+        info.setWasPassphraseProtected(wasPBE);
+        info.setWasPrivate(wasPrivate);
+        info.setWasAuthorized(wasAuthorized);
+        info.setWasAuthenticated(wasAuthenticated);
+        info.setIsCancelled(cancelled);
+        if (exp != null)
+            info.setExpiration(exp.getTime());
+        else
+            info.setExpiration(-1);
+        if (importDate != null)
+            info.setReceiveDate(importDate.getTime());
+        return true;
+    }
+
+    /**
+     *  Set the URI and target channel hash from the scope and target channel IDs
+     *
+     *  @param hashes channel ID to hash, may be null to look them up one at a time
+     *  @since 1.107b-1 pulled out of getMessage()
+     */
+    private void setMessageChannels(MessageInfo info, Map<Long, Hash> hashes) {
+        Hash scope;
+        Hash chan;
+        if (hashes != null) {
+            scope = hashes.get(Long.valueOf(info.getScopeChannelId()));
+            chan = hashes.get(Long.valueOf(info.getTargetChannelId()));
+        } else {
+            scope = getChannelHash(info.getScopeChannelId());
+            chan = getChannelHash(info.getTargetChannelId());
+        }
+        if (scope != null)
+            info.setURI(SyndieURI.createMessage(scope, info.getMessageId()));
+        if (chan != null)
+            info.setTargetChannel(chan);
+    }
+
     private static final String SQL_GET_MESSAGE_INFO = "SELECT authorChannelId, messageId, targetChannelId, subject, overwriteScopeHash, overwriteMessageId, " +
                                                        "forceNewThread, refuseReplies, wasEncrypted, wasPrivate, wasAuthorized, wasAuthenticated, isCancelled, expiration, scopeChannelId, wasPBE, readKeyMissing, replyKeyMissing, pbePrompt, importDate, deletionCause " +
                                                        "FROM channelMessage WHERE msgId = ?";
@@ -3546,6 +4697,20 @@ public class DBClient {
 
     public MessageInfo getMessage(long internalMessageId) {
         ensureLoggedIn();
+        beginRead();
+        try {
+            return x_getMessage(internalMessageId);
+        } finally {
+            endRead();
+        }
+    }
+
+    /**
+     *  Call inside a read scope
+     *
+     *  @since 1.107b-1 split out of getMessage()
+     */
+    private MessageInfo x_getMessage(long internalMessageId) {
         long start = System.currentTimeMillis();
         if (_trace) _getMsgCount++;
         MessageInfo info = new MessageInfo();
@@ -3553,93 +4718,13 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_INFO);
+            stmt = prepare(SQL_GET_MESSAGE_INFO);
             stmt.setLong(1, internalMessageId);
             rs = stmt.executeQuery();
             if (rs.next()) {
-                // authorChannelId, messageId, targetChannelId, subject, overwriteScopeHash, overwriteMessageId,
-                // forceNewThread, refuseReplies, wasEncrypted, wasPrivate, wasAuthorized, 
-                // wasAuthenticated, isCancelled, expiration, scopeChannelId, wasPBE, importDate, deletionCause
-                long authorId = rs.getLong(1);
-                if (rs.wasNull()) authorId = -1;
-                //byte author[] = rs.getBytes(1);
-                long messageId = rs.getLong(2);
-                if (rs.wasNull()) messageId = -1;
-                long targetChannelId = rs.getLong(3);
-                String subject = rs.getString(4);
-                byte overwriteChannel[] = rs.getBytes(5);
-                long overwriteMessage = rs.getLong(6);
-                if (rs.wasNull()) overwriteMessage = -1;
-                boolean forceNewThread = rs.getBoolean(7);
-                if (rs.wasNull()) forceNewThread = false;
-                boolean refuseReplies = rs.getBoolean(8);
-                if (rs.wasNull()) refuseReplies = false;
-                boolean wasEncrypted = rs.getBoolean(9);
-                if (rs.wasNull()) wasEncrypted = true;
-                boolean wasPrivate = rs.getBoolean(10);
-                if (rs.wasNull()) wasPrivate = false;
-                boolean wasAuthorized = rs.getBoolean(11);
-                if (rs.wasNull()) wasAuthorized = false;
-                boolean wasAuthenticated = rs.getBoolean(12);
-                if (rs.wasNull()) wasAuthenticated = false;
-                boolean cancelled = rs.getBoolean(13);
-                if (rs.wasNull()) cancelled = false;
-                java.sql.Date exp = rs.getDate(14);
-                long scopeChannelId = rs.getLong(15);
-                boolean wasPBE = rs.getBoolean(16);
-                if (rs.wasNull())
-                    wasPBE = false;
-                
-                boolean readKeyMissing = rs.getBoolean(17);
-                if (rs.wasNull()) readKeyMissing = false;
-                boolean replyKeyMissing = rs.getBoolean(18);
-                if (rs.wasNull()) replyKeyMissing = false;
-                String pbePrompt = rs.getString(19);
-                Date importDate = rs.getDate(20);
-                int deletionCause = rs.getInt(21);
-                if (rs.wasNull()) deletionCause = -1;
-                
-                if (deletionCause > 0 ) {
-                    _ui.debugMessage("message " + internalMessageId + " was deleted: " + deletionCause);
+                if (!readMessageInfo(rs, info))
                     return null;
-                }
-                
-                info.setReadKeyUnknown(readKeyMissing);
-                info.setReplyKeyUnknown(replyKeyMissing);
-                info.setPassphrasePrompt(pbePrompt);
-                
-                if (authorId >= 0) info.setAuthorChannelId(authorId);
-                //if (author != null) info.setAuthorChannel(new Hash(author));
-                info.setMessageId(messageId);
-                info.setScopeChannelId(scopeChannelId);
-                Hash scope = getChannelHash(scopeChannelId);
-                //ChannelInfo scope = getChannel(scopeChannelId);
-                if (scope != null)
-                    info.setURI(SyndieURI.createMessage(scope, messageId));
-                info.setTargetChannelId(targetChannelId);
-                Hash chan = getChannelHash(targetChannelId);
-                //ChannelInfo chan = getChannel(targetChannelId);
-                if (chan != null)
-                    info.setTargetChannel(chan);//chan.getChannelHash());
-                info.setSubject(subject);
-                if ( (overwriteChannel != null) && (overwriteMessage >= 0) ) {
-                    info.setOverwriteChannel(new Hash(overwriteChannel));
-                    info.setOverwriteMessage(overwriteMessage);
-                }
-                info.setForceNewThread(forceNewThread);
-                info.setRefuseReplies(refuseReplies);
-                info.setWasEncrypted(wasEncrypted);
-                info.setWasPassphraseProtected(wasPBE);
-                info.setWasPrivate(wasPrivate);
-                info.setWasAuthorized(wasAuthorized);
-                info.setWasAuthenticated(wasAuthenticated);
-                info.setIsCancelled(cancelled);
-                if (exp != null)
-                    info.setExpiration(exp.getTime());
-                else
-                    info.setExpiration(-1);
-                if (importDate != null)
-                    info.setReceiveDate(importDate.getTime());
+                setMessageChannels(info, null);
             } else {
                 _ui.debugMessage("no matches for " + internalMessageId);
                 return null;
@@ -3656,7 +4741,7 @@ public class DBClient {
         stmt = null;
         rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_HIERARCHY);
+            stmt = prepare(SQL_GET_MESSAGE_HIERARCHY);
             stmt.setLong(1, internalMessageId);
             rs = stmt.executeQuery();
             List<SyndieURI> uris = new ArrayList();
@@ -3679,7 +4764,7 @@ public class DBClient {
         stmt = null;
         rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_TAG);
+            stmt = prepare(SQL_GET_MESSAGE_TAG);
             stmt.setLong(1, internalMessageId);
             rs = stmt.executeQuery();
             Set encrypted = new HashSet();
@@ -3709,7 +4794,7 @@ public class DBClient {
         stmt = null;
         rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_PAGE_COUNT);
+            stmt = prepare(SQL_GET_MESSAGE_PAGE_COUNT);
             stmt.setLong(1, internalMessageId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -3746,6 +4831,233 @@ public class DBClient {
         return info;
     }
 
+    /** max IDs in one IN (...) list for getMessages() */
+    private static final int MAX_IN_LIST = 256;
+
+    private static final String SQL_GET_MESSAGES_INFO = "SELECT authorChannelId, messageId, targetChannelId, subject, overwriteScopeHash, overwriteMessageId, " +
+                                                        "forceNewThread, refuseReplies, wasEncrypted, wasPrivate, wasAuthorized, wasAuthenticated, isCancelled, expiration, scopeChannelId, wasPBE, readKeyMissing, replyKeyMissing, pbePrompt, importDate, deletionCause, msgId " +
+                                                        "FROM channelMessage WHERE msgId IN ";
+    private static final String SQL_GET_MESSAGES_HIERARCHY = "SELECT msgId, referencedChannelHash, referencedMessageId FROM messageHierarchy WHERE msgId IN ";
+    private static final String SQL_GET_MESSAGES_HIERARCHY_ORDER = " ORDER BY msgId ASC, referencedCloseness ASC";
+    private static final String SQL_GET_MESSAGES_TAG = "SELECT msgId, tag, isPublic FROM messageTag WHERE msgId IN ";
+    private static final String SQL_GET_MESSAGES_PAGE_COUNT = "SELECT msgId, COUNT(*) FROM messagePage WHERE msgId IN ";
+    private static final String SQL_GET_MESSAGES_ATTACHMENT_COUNT = "SELECT msgId, COUNT(*) FROM messageAttachment WHERE msgId IN ";
+    private static final String SQL_GET_MESSAGES_GROUP = " GROUP BY msgId";
+
+    /**
+     *  Bulk version of getMessage(long).
+     *  Loads the messages with a fixed number of queries per MAX_IN_LIST IDs,
+     *  instead of six or more queries per message.
+     *
+     *  @param msgIds internal message IDs, duplicates are ignored
+     *  @return internal message ID to info, in the order given, non-null.
+     *          Deleted or unknown messages are not included.
+     *          On a database error, the messages in the failing chunk are not included.
+     *  @since 1.107b-1
+     */
+    public Map<Long, MessageInfo> getMessages(long msgIds[]) {
+        ensureLoggedIn();
+        Map<Long, MessageInfo> rv = new LinkedHashMap<Long, MessageInfo>(msgIds.length);
+        if (msgIds.length <= 0)
+            return rv;
+        beginRead();
+        try {
+            long start = System.currentTimeMillis();
+            for (int off = 0; off < msgIds.length; off += MAX_IN_LIST) {
+                int len = Math.min(MAX_IN_LIST, msgIds.length - off);
+                // put all of the chunk in the map first to keep the order
+                Map<Long, MessageInfo> chunk = new LinkedHashMap<Long, MessageInfo>(len);
+                for (int i = off; i < off + len; i++) {
+                    Long id = Long.valueOf(msgIds[i]);
+                    if (!rv.containsKey(id))
+                        chunk.put(id, null);
+                }
+                if (chunk.isEmpty())
+                    continue;
+                try {
+                    getMessagesChunk(chunk);
+                } catch (SQLException se) {
+                    if (_log.shouldLog(Log.ERROR))
+                        _log.error("Error retrieving the messages", se);
+                    continue;
+                }
+                for (Map.Entry<Long, MessageInfo> e : chunk.entrySet()) {
+                    if (e.getValue() != null)
+                        rv.put(e.getKey(), e.getValue());
+                }
+            }
+            if (_trace) {
+                _getMsgCount += rv.size();
+                _getMsgTime += System.currentTimeMillis() - start;
+            }
+        } finally {
+            endRead();
+        }
+        return rv;
+    }
+
+    /**
+     *  Fill in the values of the map, leaving null the ones not found or deleted.
+     *  Call inside a read scope.
+     *
+     *  @param msgs internal message ID to null, at most MAX_IN_LIST
+     *  @since 1.107b-1
+     */
+    private void getMessagesChunk(Map<Long, MessageInfo> msgs) throws SQLException {
+        StringBuilder buf = new StringBuilder(msgs.size() * 8);
+        buf.append('(');
+        for (Long id : msgs.keySet()) {
+            if (buf.length() > 1)
+                buf.append(',');
+            buf.append(id.longValue());
+        }
+        buf.append(')');
+        String in = buf.toString();
+
+        Statement stmt = null;
+        ResultSet rs = null;
+        Set<Long> channelIds = new HashSet<Long>();
+        try {
+            stmt = createStatement();
+            rs = stmt.executeQuery(SQL_GET_MESSAGES_INFO + in);
+            while (rs.next()) {
+                Long id = Long.valueOf(rs.getLong(22));
+                MessageInfo info = new MessageInfo();
+                info.setInternalId(id.longValue());
+                if (!readMessageInfo(rs, info))
+                    continue;
+                // no hierarchy, tags, or references is the same as empty
+                info.setHierarchy(new ArrayList<SyndieURI>());
+                info.setPublicTags(new HashSet<String>());
+                info.setPrivateTags(new HashSet<String>());
+                info.setPageCount(0);
+                info.setAttachmentCount(0);
+                info.setReferences(new ArrayList<ReferenceNode>());
+                msgs.put(id, info);
+                channelIds.add(Long.valueOf(info.getScopeChannelId()));
+                channelIds.add(Long.valueOf(info.getTargetChannelId()));
+            }
+            rs.close();
+            rs = null;
+            if (channelIds.isEmpty())
+                return;
+
+            rs = stmt.executeQuery(SQL_GET_MESSAGES_HIERARCHY + in + SQL_GET_MESSAGES_HIERARCHY_ORDER);
+            while (rs.next()) {
+                // msgId, referencedChannelHash, referencedMessageId
+                MessageInfo info = msgs.get(Long.valueOf(rs.getLong(1)));
+                if (info == null)
+                    continue;
+                byte chan[] = rs.getBytes(2);
+                long refId = rs.getLong(3);
+                if (!rs.wasNull() && (chan != null) )
+                    info.getHierarchy().add(SyndieURI.createMessage(new Hash(chan), refId));
+            }
+            rs.close();
+            rs = null;
+
+            rs = stmt.executeQuery(SQL_GET_MESSAGES_TAG + in);
+            while (rs.next()) {
+                // msgId, tag, isPublic
+                MessageInfo info = msgs.get(Long.valueOf(rs.getLong(1)));
+                if (info == null)
+                    continue;
+                String tag = rs.getString(2);
+                boolean isPublic = rs.getBoolean(3);
+                if (rs.wasNull())
+                    isPublic = false;
+                if (isPublic)
+                    info.getPublicTags().add(tag);
+                else
+                    info.getPrivateTags().add(tag);
+            }
+            rs.close();
+            rs = null;
+
+            rs = stmt.executeQuery(SQL_GET_MESSAGES_PAGE_COUNT + in + SQL_GET_MESSAGES_GROUP);
+            while (rs.next()) {
+                MessageInfo info = msgs.get(Long.valueOf(rs.getLong(1)));
+                if (info != null)
+                    info.setPageCount(rs.getInt(2));
+            }
+            rs.close();
+            rs = null;
+
+            rs = stmt.executeQuery(SQL_GET_MESSAGES_ATTACHMENT_COUNT + in + SQL_GET_MESSAGES_GROUP);
+            while (rs.next()) {
+                MessageInfo info = msgs.get(Long.valueOf(rs.getLong(1)));
+                if (info != null)
+                    info.setAttachmentCount(rs.getInt(2));
+            }
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+
+        MessageReferenceBuilder builder = new MessageReferenceBuilder(this);
+        Map<Long, List<ReferenceNode>> refs = builder.loadReferences(in);
+        Map<Long, Hash> hashes = getChannelHashes(channelIds);
+        for (Map.Entry<Long, MessageInfo> e : msgs.entrySet()) {
+            MessageInfo info = e.getValue();
+            if (info == null)
+                continue;
+            List<ReferenceNode> r = refs.get(e.getKey());
+            if (r != null)
+                info.setReferences(r);
+            setMessageChannels(info, hashes);
+        }
+    }
+
+    /**
+     *  Bulk version of getChannelHash(long), using the channel index
+     *  if loaded, else one query.
+     *
+     *  @return channel ID to hash, non-null, unknown channels not included
+     *  @since 1.107b-1
+     */
+    private Map<Long, Hash> getChannelHashes(Set<Long> channelIds) {
+        Map<Long, Hash> rv = new HashMap<Long, Hash>(channelIds.size());
+        StringBuilder buf = new StringBuilder("SELECT channelId, channelHash FROM channel WHERE channelId IN (");
+        if (_channelIndex.isLoaded()) {
+            for (Long id : channelIds) {
+                ChannelIndex.Entry e = _channelIndex.get(id.longValue());
+                if (e != null)
+                    rv.put(id, e.hash);
+            }
+            return rv;
+        }
+        int missing = 0;
+        for (Long id : channelIds) {
+            if (id.longValue() >= 0) {
+                if (missing++ > 0)
+                    buf.append(',');
+                buf.append(id.longValue());
+            }
+        }
+        if (missing <= 0)
+            return rv;
+        buf.append(')');
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = createStatement();
+            rs = stmt.executeQuery(buf.toString());
+            while (rs.next()) {
+                Long id = Long.valueOf(rs.getLong(1));
+                byte chanHash[] = rs.getBytes(2);
+                if ( (chanHash != null) && (chanHash.length == Hash.HASH_LENGTH) )
+                    rv.put(id, new Hash(chanHash));
+            }
+        } catch (SQLException se) {
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("Error retrieving the channel hashes", se);
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return rv;
+    }
+
     /**
      *  @return 0 on error
      *  @since 1.102b-11 pulled out of getMessage() above
@@ -3755,7 +5067,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_ATTACHMENT_COUNT);
+            stmt = prepare(SQL_GET_MESSAGE_ATTACHMENT_COUNT);
             stmt.setLong(1, internalMessageId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -3786,7 +5098,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_TAG);
+            stmt = prepare(SQL_GET_MESSAGE_TAG);
             stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -3831,7 +5143,7 @@ public class DBClient {
                 else
                     query.append(")");
             }
-            stmt = _con.createStatement();
+            stmt = createStatement();
             rs = stmt.executeQuery(query.toString());
             while (rs.next()) {
                 // tag, wasEncrypted
@@ -3875,7 +5187,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_AUTHOR);
+            stmt = prepare(SQL_GET_MESSAGE_AUTHOR);
             stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -3905,7 +5217,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_SUBJECT);
+            stmt = prepare(SQL_GET_MESSAGE_SUBJECT);
             stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -3923,31 +5235,86 @@ public class DBClient {
         }
     }
     
-    /** FIXME doesn't cover CLOBS */
-    private static final String SQL_MATCH_MESSAGE_KEYWORD = "SELECT msgId FROM channelMessage WHERE msgId = ? AND subject LIKE ?" +
-                                                            " UNION " +
-                                                            "SELECT msgId FROM messagePageData WHERE msgId = ? AND dataString LIKE ?";
-
+    /**
+     *  Does the message match the full text query?
+     *  To check many messages, use searchMessages() once instead.
+     *
+     *  @param keyword a MessageIndex query
+     */
     public boolean messageKeywordMatch(long msgId, String keyword) {
+        Set<Long> matches = searchMessages(keyword);
+        return matches == null || matches.contains(Long.valueOf(msgId));
+    }
+
+    /**
+     *  Full text search of the subjects, pages, and public tags.
+     *  All the words must match; "quoted phrases" and prefix* are supported.
+     *
+     *  @return the matching msgIds, or null if the query has no words to search for
+     *  @since 1.107b-1
+     */
+    public Set<Long> searchMessages(String query) {
         ensureLoggedIn();
-        PreparedStatement stmt = null;
-        ResultSet rs = null;
+        beginRead();
         try {
-            stmt = _con.prepareStatement(SQL_MATCH_MESSAGE_KEYWORD);
-            stmt.setLong(1, msgId);
-            stmt.setString(2, "%" + keyword + "%");
-            stmt.setLong(3, msgId);
-            stmt.setString(4, "%" + keyword + "%");
-            rs = stmt.executeQuery();
-            boolean match = rs.next();
-            return match;
+            return new MessageIndex(this).search(query);
         } catch (SQLException se) {
             if (_log.shouldLog(Log.ERROR))
                 _log.error("Error searching for the keyword", se);
-            return false;
+            return new HashSet<Long>();
         } finally {
-            if (rs != null) try { rs.close(); } catch (SQLException se) {}
-            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+            endRead();
+        }
+    }
+
+    /**
+     *  At login, build the full text index if the database was just upgraded to it,
+     *  or if it is still empty, as after an earlier failed build,
+     *  so search works without a manual reindex.
+     *
+     *  @since 1.107b-1
+     */
+    private void buildMessageIndexIfMissing() {
+        boolean missing = _messageIndexPending;
+        if (!missing) {
+            beginRead();
+            try {
+                missing = new MessageIndex(this).isMissing();
+            } catch (SQLException se) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Error checking the message index", se);
+            } finally {
+                endRead();
+            }
+        }
+        if (!missing)
+            return;
+        UI ui = _ui != null ? _ui : new NullUI();
+        ui.statusMessage("Building the full text message index, this may take a while");
+        int count = rebuildMessageIndex(ui);
+        if (count >= 0) {
+            _messageIndexPending = false;
+            ui.statusMessage("Indexed " + count + " messages");
+        }
+        startupPhase("message index");
+    }
+
+    /**
+     *  Build the full text index of all the readable messages from scratch.
+     *
+     *  @return the number of messages indexed, or -1 on error
+     *  @since 1.107b-1
+     */
+    public int rebuildMessageIndex(UI ui) {
+        ensureLoggedIn();
+        beginWrite();
+        try {
+            return new MessageIndex(this).rebuild(ui);
+        } catch (SQLException se) {
+            ui.errorMessage("Error rebuilding the message index", se);
+            return -1;
+        } finally {
+            endWrite();
         }
     }
     
@@ -3964,7 +5331,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_PRIVACY);
+            stmt = prepare(SQL_GET_MESSAGE_PRIVACY);
             stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -4009,7 +5376,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_PASSPHRASE_PROMPT);
+            stmt = prepare(SQL_GET_MESSAGE_PASSPHRASE_PROMPT);
             stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -4028,24 +5395,40 @@ public class DBClient {
     }
     
     /** page number starts at 0 */
-    private static final String SQL_GET_MESSAGE_PAGE_DATA_TYPE = "SELECT storageType FROM messagePageData WHERE msgId = ? AND pageNum = ?";
+    private static final String SQL_GET_MESSAGE_PAGE_DATA_TYPE = "SELECT storageType, externalPath FROM messagePageData WHERE msgId = ? AND pageNum = ?";
     private static final String SQL_GET_MESSAGE_PAGE_DATA = "SELECT dataString FROM messagePageData WHERE msgId = ? AND pageNum = ?";
     private static final String SQL_GET_MESSAGE_PAGE_DATA_CLOB = "SELECT lob FROM messagePageData WHERE msgId = ? AND pageNum = ?";
 
+    /**
+     *  Cached since 1.107b-1
+     */
     public String getMessagePageData(long internalMessageId, int pageNum) {
         ensureLoggedIn();
+        String rv = _pageCache.getData(internalMessageId, pageNum);
+        if (rv != null)
+            return rv;
+        long generation = _pageCache.getGeneration();
+        rv = x_getMessagePageData(internalMessageId, pageNum);
+        _pageCache.putData(internalMessageId, pageNum, rv, generation);
+        return rv;
+    }
+
+    /** @since 1.107b-1 split out of getMessagePageData() */
+    private String x_getMessagePageData(long internalMessageId, int pageNum) {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         // get the storage type
         int type = -1;
+        String path = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_PAGE_DATA_TYPE);
+            stmt = prepare(SQL_GET_MESSAGE_PAGE_DATA_TYPE);
             stmt.setLong(1, internalMessageId);
             stmt.setInt(2, pageNum);
             rs = stmt.executeQuery();
             if (!rs.next())
                 return null;
             type = rs.getInt(1);
+            path = rs.getString(2);
         } catch (SQLException se) {
             if (_log.shouldLog(Log.ERROR))
                 _log.error("Error retrieving the page data", se);
@@ -4054,12 +5437,16 @@ public class DBClient {
             if (rs != null) try { rs.close(); } catch (SQLException se) {}
             if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
         }
+        if (type == BlobStore.STORAGE_TYPE) {
+            byte data[] = readBlob(path);
+            return data != null ? DataHelper.getUTF8(data) : null;
+        }
         // now get the data
         try {
             if (type == 0)
-                stmt = _con.prepareStatement(SQL_GET_MESSAGE_PAGE_DATA);
+                stmt = prepare(SQL_GET_MESSAGE_PAGE_DATA);
             else if (type == 1)
-                stmt = _con.prepareStatement(SQL_GET_MESSAGE_PAGE_DATA_CLOB);
+                stmt = prepare(SQL_GET_MESSAGE_PAGE_DATA_CLOB);
             else
                 throw new SQLException("Unknown storage type " + type);
             stmt.setLong(1, internalMessageId);
@@ -4072,44 +5459,151 @@ public class DBClient {
                 _log.error("Error retrieving the page data", se);
             return null;
         } finally {
-            if (rs != null) try { rs.close(); } catch (SQLException se) {}
-            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return null;
+    }
+
+    /** page number starts at 0 */
+    private static final String SQL_GET_MESSAGE_PAGE_CONFIG = "SELECT dataString FROM messagePageConfig WHERE msgId = ? AND pageNum = ?";
+
+    /**
+     *  Cached since 1.107b-1
+     */
+    public String getMessagePageConfig(long internalMessageId, int pageNum) {
+        ensureLoggedIn();
+        String rv = _pageCache.getConfig(internalMessageId, pageNum);
+        if (rv != null)
+            return rv;
+        long generation = _pageCache.getGeneration();
+        rv = x_getMessagePageConfig(internalMessageId, pageNum);
+        _pageCache.putConfig(internalMessageId, pageNum, rv, generation);
+        return rv;
+    }
+
+    /** @since 1.107b-1 split out of getMessagePageConfig() */
+    private String x_getMessagePageConfig(long internalMessageId, int pageNum) {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = prepare(SQL_GET_MESSAGE_PAGE_CONFIG);
+            stmt.setLong(1, internalMessageId);
+            stmt.setInt(2, pageNum);
+            rs = stmt.executeQuery();
+            if (rs.next())
+                return rs.getString(1);
+        } catch (SQLException se) {
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("Error retrieving the page config", se);
+            return null;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return null;
+    }
+
+    /**
+     *  Load the pages of these messages into the page cache,
+     *  e.g. the next few in a thread after the selected one.
+     *  Call from a background thread.
+     *
+     *  @param uris messages, others are ignored
+     *  @since 1.107b-1
+     */
+    public void prefetchMessagePages(List<SyndieURI> uris) {
+        if (!isLoggedIn())
+            return;
+        beginRead();
+        try {
+            for (SyndieURI uri : uris) {
+                if (uri == null || uri.getScope() == null || uri.getMessageId() == null)
+                    continue;
+                long msgId = getMessageId(uri.getScope(), uri.getMessageId().longValue());
+                if (msgId < 0)
+                    continue;
+                int pages = getMessagePageCount(msgId);
+                for (int i = 0; i < pages; i++) {
+                    getMessagePageConfig(msgId, i);
+                    getMessagePageData(msgId, i);
+                }
+            }
+        } finally {
+            endRead();
         }
-        return null;
     }
 
-    /** page number starts at 0 */
-    private static final String SQL_GET_MESSAGE_PAGE_CONFIG = "SELECT dataString FROM messagePageConfig WHERE msgId = ? AND pageNum = ?";
-
-    public String getMessagePageConfig(long internalMessageId, int pageNum) {
-        ensureLoggedIn();
+    /**
+     *  @return 0 on error
+     *  @since 1.107b-1
+     */
+    private int getMessagePageCount(long msgId) {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_PAGE_CONFIG);
-            stmt.setLong(1, internalMessageId);
-            stmt.setInt(2, pageNum);
+            stmt = prepare(SQL_GET_MESSAGE_PAGE_COUNT);
+            stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             if (rs.next())
-                return rs.getString(1);
+                return rs.getInt(1);
         } catch (SQLException se) {
-            if (_log.shouldLog(Log.ERROR))
-                _log.error("Error retrieving the page config", se);
-            return null;
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Error counting the pages", se);
         } finally {
             if (rs != null) try { rs.close(); } catch (SQLException se) {}
             if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
         }
-        return null;
+        return 0;
+    }
+
+    /**
+     *  The message's pages were replaced or deleted.
+     *  Call on the writer, after the changes.
+     *  If they are not committed yet, a reader may still load and cache the old pages,
+     *  so they are invalidated again once the transaction commits or rolls back.
+     *
+     *  @since 1.107b-1
+     */
+    void invalidatePages(long msgId) {
+        _pageCache.invalidate(msgId);
+        boolean inTransaction;
+        try {
+            inTransaction = !con().getAutoCommit();
+        } catch (SQLException se) {
+            inTransaction = false;
+        }
+        if (inTransaction) {
+            synchronized (_groupCommitLock) {
+                _pendingPageInvalidations.add(Long.valueOf(msgId));
+            }
+        }
+    }
+
+    /**
+     *  The transaction ended, invalidate the pages of invalidatePages() again
+     *
+     *  @since 1.107b-1
+     */
+    private void flushPageInvalidations() {
+        List<Long> msgIds;
+        synchronized (_groupCommitLock) {
+            if (_pendingPageInvalidations.isEmpty())
+                return;
+            msgIds = new ArrayList<Long>(_pendingPageInvalidations);
+            _pendingPageInvalidations.clear();
+        }
+        for (Long msgId : msgIds)
+            _pageCache.invalidate(msgId.longValue());
     }
 
     /** attachment number starts at 0 */    
-    private static final String SQL_GET_MESSAGE_ATTACHMENT_DATA_TYPE = "SELECT storageType FROM messageAttachmentData WHERE msgId = ? AND attachmentNum = ?";
+    private static final String SQL_GET_MESSAGE_ATTACHMENT_DATA_TYPE = "SELECT storageType, externalPath FROM messageAttachmentData WHERE msgId = ? AND attachmentNum = ?";
     private static final String SQL_GET_MESSAGE_ATTACHMENT_DATA = "SELECT dataBinary FROM messageAttachmentData WHERE msgId = ? AND attachmentNum = ?";
     private static final String SQL_GET_MESSAGE_ATTACHMENT_DATA_BLOB = "SELECT lob FROM messageAttachmentData WHERE msgId = ? AND attachmentNum = ?";
 
     /**
-     *  TODO can we get this as a stream or otherwise not load it all into memory?
+     *  For big ones, getMessageAttachmentAsStream() doesn't load it all into memory.
      */
     public byte[] getMessageAttachmentData(long internalMessageId, int attachmentNum) {
         ensureLoggedIn();
@@ -4117,14 +5611,16 @@ public class DBClient {
         ResultSet rs = null;
         // get the storage type
         int type = -1;
+        String path = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_ATTACHMENT_DATA_TYPE);
+            stmt = prepare(SQL_GET_MESSAGE_ATTACHMENT_DATA_TYPE);
             stmt.setLong(1, internalMessageId);
             stmt.setInt(2, attachmentNum);
             rs = stmt.executeQuery();
             if (!rs.next())
                 return null;
             type = rs.getInt(1);
+            path = rs.getString(2);
         } catch (SQLException se) {
             if (_log.shouldLog(Log.ERROR))
                 _log.error("Error retrieving the attachment data", se);
@@ -4133,12 +5629,14 @@ public class DBClient {
             if (rs != null) try { rs.close(); } catch (SQLException se) {}
             if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
         }
+        if (type == BlobStore.STORAGE_TYPE)
+            return readBlob(path);
         // now get the data
         try {
             if (type == 0)
-                stmt = _con.prepareStatement(SQL_GET_MESSAGE_ATTACHMENT_DATA);
+                stmt = prepare(SQL_GET_MESSAGE_ATTACHMENT_DATA);
             else if (type == 1)
-                stmt = _con.prepareStatement(SQL_GET_MESSAGE_ATTACHMENT_DATA_BLOB);
+                stmt = prepare(SQL_GET_MESSAGE_ATTACHMENT_DATA_BLOB);
             else
                 throw new SQLException("Unknown storage type " + type);
             stmt.setLong(1, internalMessageId);
@@ -4168,14 +5666,16 @@ public class DBClient {
         ResultSet rs = null;
         // get the storage type
         int type = -1;
+        String path = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_ATTACHMENT_DATA_TYPE);
+            stmt = prepare(SQL_GET_MESSAGE_ATTACHMENT_DATA_TYPE);
             stmt.setLong(1, internalMessageId);
             stmt.setInt(2, attachmentNum);
             rs = stmt.executeQuery();
             if (!rs.next())
                 return null;
             type = rs.getInt(1);
+            path = rs.getString(2);
         } catch (SQLException se) {
             if (_log.shouldLog(Log.ERROR))
                 _log.error("Error retrieving the attachment data", se);
@@ -4184,12 +5684,27 @@ public class DBClient {
             if (rs != null) try { rs.close(); } catch (SQLException se) {}
             if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
         }
+        if (type == BlobStore.STORAGE_TYPE) {
+            BlobStore store = _blobStore;
+            if (store == null) {
+                if (_log.shouldLog(Log.ERROR))
+                    _log.error("No blob store for " + path);
+                return null;
+            }
+            try {
+                return store.open(path);
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.ERROR))
+                    _log.error("Error retrieving the attachment data", ioe);
+                return null;
+            }
+        }
         // now get the data
         try {
             if (type == 0)
-                stmt = _con.prepareStatement(SQL_GET_MESSAGE_ATTACHMENT_DATA);
+                stmt = prepare(SQL_GET_MESSAGE_ATTACHMENT_DATA);
             else if (type == 1)
-                stmt = _con.prepareStatement(SQL_GET_MESSAGE_ATTACHMENT_DATA_BLOB);
+                stmt = prepare(SQL_GET_MESSAGE_ATTACHMENT_DATA_BLOB);
             else
                 throw new SQLException("Unknown storage type " + type);
             stmt.setLong(1, internalMessageId);
@@ -4225,7 +5740,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_ATTACHMENT_SIZE);
+            stmt = prepare(SQL_GET_MESSAGE_ATTACHMENT_SIZE);
             stmt.setLong(1, internalMessageId);
             stmt.setInt(2, attachmentNum);
             rs = stmt.executeQuery();
@@ -4260,7 +5775,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_ATTACHMENT_CONFIG);
+            stmt = prepare(SQL_GET_MESSAGE_ATTACHMENT_CONFIG);
             stmt.setLong(1, internalMessageId);
             stmt.setInt(2, attachmentNum);
             rs = stmt.executeQuery();
@@ -4299,26 +5814,26 @@ public class DBClient {
         try {
             // statement to get all matching items
             if (isBinary)
-                stmt = _con.prepareStatement(
+                stmt = prepareUncached(
                        "SELECT " + col1 + ", " + col2 +
                        " FROM " + table +
                        " WHERE OCTET_LENGTH(" + bigColumn + ") > " + maxLen +
                        " AND storageType = 0");
             else
-                stmt = _con.prepareStatement(
+                stmt = prepareUncached(
                        "SELECT " + col1 + ", " + col2 +
                        " FROM " + table +
                        " WHERE LENGTH(" + bigColumn + ") > " + maxLen +
                        " AND storageType = 0");
             rs = stmt.executeQuery();
             // statement to get one large byte[] or string
-            stmt2 = _con.prepareStatement(
+            stmt2 = prepareUncached(
                        "SELECT " + bigColumn +
                        " FROM " + table +
                        " WHERE " + col1 + " = ? " +
                        " AND " + col2 + " = ? ");
             // statement to set one BLOB or CLOB and null out the large byte[] or string
-            stmt3 = _con.prepareStatement(
+            stmt3 = prepareUncached(
                        "UPDATE " + table +
                        " SET lob = ?, storageType = 1, " + bigColumn + " = NULL" +
                        " WHERE " + col1 + " = ? " +
@@ -4373,7 +5888,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_PUBLIC_POSTING_CHANNELS);
+            stmt = prepare(SQL_GET_PUBLIC_POSTING_CHANNELS);
             rs = stmt.executeQuery();
             List<Long> rv = new ArrayList();
             while (rs.next()) {
@@ -4402,7 +5917,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_BANNED);
+            stmt = prepare(SQL_GET_BANNED);
             rs = stmt.executeQuery();
             ArrayList<Hash> rv = new ArrayList();
             while (rs.next()) {
@@ -4433,11 +5948,22 @@ public class DBClient {
      */
     public void ban(Hash bannedChannel, UI ui, boolean deleteMessages) { ban(bannedChannel, ui, deleteMessages, deleteMessages); }
 
-    public void ban(Hash bannedChannel, UI ui, boolean deleteMessages, boolean deleteMeta) {
+    /**
+     *  Since 1.107b-1, runs on the DB writer.
+     */
+    public void ban(final Hash bannedChannel, final UI ui, final boolean deleteMessages, final boolean deleteMeta) {
         ensureLoggedIn();
-        addBan(bannedChannel, ui);
-        if (deleteMessages || deleteMeta)
-            executeDelete(bannedChannel, ui, deleteMessages || deleteMeta, deleteMeta, DELETION_CAUSE_BAN);
+        _writer.call(new DBWriter.Command<Object>("ban") {
+            public Object call() {
+                addBan(bannedChannel, ui);
+                long chanId = getChannelId(bannedChannel);
+                if (chanId >= 0)
+                    invalidateChannelCache(chanId, bannedChannel);
+                if (deleteMessages || deleteMeta)
+                    executeDelete(bannedChannel, ui, deleteMessages || deleteMeta, deleteMeta, DELETION_CAUSE_BAN);
+                return null;
+            }
+        });
     }
 
     private static final String SQL_BAN = "INSERT INTO banned (channelHash) VALUES (?)";
@@ -4450,7 +5976,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_BAN);
+            stmt = prepare(SQL_BAN);
             stmt.setBytes(1, bannedChannel.getData());
             int rows = stmt.executeUpdate();
             if (rows != 1) {
@@ -4471,7 +5997,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_UNBAN);
+            stmt = prepare(SQL_UNBAN);
             stmt.setBytes(1, bannedChannel.getData());
             int rows = stmt.executeUpdate();
         } catch (SQLException se) {
@@ -4700,6 +6226,31 @@ public class DBClient {
     private static final String SQL_DELETE_UNREAD_CHANNELS = "DELETE FROM nymUnreadChannel WHERE channelId = ?";
     private static final String SQL_DELETE_UNREAD_MESSAGE = "DELETE FROM nymUnreadMessage WHERE msgId = ?";
     private static final String SQL_UPDATE_MESSAGE_DELETION_CAUSE = "UPDATE channelMessage SET deletionCause = ? WHERE msgId = ?";
+    private static final String SQL_EXPIRE_MESSAGE = "UPDATE channelMessage SET deletionCause = " + DELETION_CAUSE_EXPIRE + " WHERE msgId = ?";
+
+    /**
+     *  Everything of a deleted message except its channelMessage row,
+     *  each statement ending in "msgId = ?" so it can take a list, see execIn()
+     *
+     *  @since 1.107b-1
+     */
+    private static final String[] SQL_DELETE_MESSAGE_CONTENT = {
+        ImportPost.SQL_DELETE_MESSAGE_HIERARCHY,
+        ImportPost.SQL_DELETE_MESSAGE_TAGS,
+        ImportPost.SQL_DELETE_MESSAGE_ATTACHMENT_DATA,
+        ImportPost.SQL_DELETE_MESSAGE_ATTACHMENT_CONFIG,
+        ImportPost.SQL_DELETE_MESSAGE_ATTACHMENTS,
+        ImportPost.SQL_DELETE_MESSAGE_PAGE_DATA,
+        ImportPost.SQL_DELETE_MESSAGE_PAGE_CONFIG,
+        ImportPost.SQL_DELETE_MESSAGE_PAGES,
+        ImportPost.SQL_DELETE_MESSAGE_REF_URIS,
+        ImportPost.SQL_DELETE_MESSAGE_REFS,
+        MessageIndex.SQL_DELETE_TERMS,
+        SQL_DELETE_UNREAD_MESSAGE
+    };
+
+    /** msgIds per statement in expireMessagesFromDB() */
+    private static final int DELETE_BATCH_SIZE = 100;
     
     public void deleteMessage(SyndieURI uri, UI ui, boolean deleteDB) {
         deleteMessage(uri, ui, deleteDB, true);
@@ -4756,24 +6307,108 @@ public class DBClient {
                 exec(SQL_DELETE_UNREAD_CHANNELS, scopeId);
             } catch (SQLException se) {
                 ui.errorMessage("Unable to delete the channel " + scopeId, se);
+            } finally {
+                _channelInfoCache.invalidate(scopeId);
+                _channelIndex.refresh(scopeId);
             }
     }
 
     public Exception expireMessageFromDB(long msgId) { return deleteMessageFromDB(msgId, DELETION_CAUSE_EXPIRE); }
 
+    /**
+     *  Same as expireMessageFromDB() on each, but in one transaction on the
+     *  DB writer, deleting from each table for DELETE_BATCH_SIZE messages
+     *  at a time, with one counter update per channel.
+     *
+     *  @return null on success, or the error, in which case none were expired
+     *  @since 1.107b-1
+     */
+    public Exception expireMessagesFromDB(final List<Long> msgIds) {
+        if (msgIds.isEmpty())
+            return null;
+        return _writer.call(new DBWriter.Command<Exception>("expire") {
+            public Exception call() {
+                return x_expireMessagesFromDB(msgIds);
+            }
+        });
+    }
+
+    /** @since 1.107b-1 */
+    private Exception x_expireMessagesFromDB(List<Long> msgIds) {
+        beginWrite();
+        Object tx = null;
+        try {
+            tx = beginImportTransaction();
+            ChannelStats stats = new ChannelStats(this);
+            List<ChannelStats.MessageState> before = new ArrayList<ChannelStats.MessageState>(msgIds.size());
+            for (Long msgId : msgIds) {
+                ChannelStats.MessageState state = stats.load(msgId.longValue());
+                if (state != null)
+                    before.add(state);
+            }
+            for (int i = 0; i < msgIds.size(); i += DELETE_BATCH_SIZE) {
+                List<Long> batch = msgIds.subList(i, Math.min(i + DELETE_BATCH_SIZE, msgIds.size()));
+                for (int j = 0; j < SQL_DELETE_MESSAGE_CONTENT.length; j++)
+                    execIn(SQL_DELETE_MESSAGE_CONTENT[j], batch);
+                execIn(SQL_EXPIRE_MESSAGE, batch);
+            }
+            stats.removed(before);
+            Object t = tx;
+            tx = null;
+            if (!commitImportTransaction(t))
+                return new SQLException("Unable to commit the expiration");
+            for (Long msgId : msgIds) {
+                _unreadIndex.remove(msgId.longValue());
+                invalidatePages(msgId.longValue());
+            }
+            return null;
+        } catch (SQLException se) {
+            if (tx != null)
+                rollbackImportTransaction(tx);
+            return se;
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     *  Run a statement ending in "msgId = ?" for all the msgIds at once,
+     *  as "msgId IN (?, ?, ...)"
+     *
+     *  @return rows updated
+     *  @since 1.107b-1
+     */
+    private int execIn(String sql, List<Long> msgIds) throws SQLException {
+        int idx = sql.lastIndexOf("msgId = ?");
+        if (idx < 0)
+            throw new IllegalArgumentException(sql);
+        StringBuilder buf = new StringBuilder(sql.length() + 3 * msgIds.size());
+        buf.append(sql, 0, idx).append("msgId IN (");
+        for (int i = 0; i < msgIds.size(); i++) {
+            if (i > 0)
+                buf.append(", ");
+            buf.append('?');
+        }
+        buf.append(')').append(sql, idx + "msgId = ?".length(), sql.length());
+        PreparedStatement stmt = null;
+        try {
+            stmt = prepareUncached(buf.toString());
+            for (int i = 0; i < msgIds.size(); i++)
+                stmt.setLong(i + 1, msgIds.get(i).longValue());
+            return stmt.executeUpdate();
+        } finally {
+            if (stmt != null) stmt.close();
+        }
+    }
+
     Exception deleteMessageFromDB(long msgId, int deletionCause) {
+        beginWrite();
         try {
-            exec(ImportPost.SQL_DELETE_MESSAGE_HIERARCHY, msgId);
-            exec(ImportPost.SQL_DELETE_MESSAGE_TAGS, msgId);
-            exec(ImportPost.SQL_DELETE_MESSAGE_ATTACHMENT_DATA, msgId);
-            exec(ImportPost.SQL_DELETE_MESSAGE_ATTACHMENT_CONFIG, msgId);
-            exec(ImportPost.SQL_DELETE_MESSAGE_ATTACHMENTS, msgId);
-            exec(ImportPost.SQL_DELETE_MESSAGE_PAGE_DATA, msgId);
-            exec(ImportPost.SQL_DELETE_MESSAGE_PAGE_CONFIG, msgId);
-            exec(ImportPost.SQL_DELETE_MESSAGE_PAGES, msgId);
-            exec(ImportPost.SQL_DELETE_MESSAGE_REF_URIS, msgId);
-            exec(ImportPost.SQL_DELETE_MESSAGE_REFS, msgId);
-            exec(SQL_DELETE_UNREAD_MESSAGE, msgId);
+            ChannelStats stats = new ChannelStats(this);
+            ChannelStats.MessageState before = stats.load(msgId);
+            for (int i = 0; i < SQL_DELETE_MESSAGE_CONTENT.length; i++)
+                exec(SQL_DELETE_MESSAGE_CONTENT[i], msgId);
+            _unreadIndex.remove(msgId);
             switch (deletionCause) {
                 case DELETION_CAUSE_BAN:
                     exec(SQL_DELETE_MESSAGE, msgId);
@@ -4786,9 +6421,14 @@ public class DBClient {
                     exec(SQL_UPDATE_MESSAGE_DELETION_CAUSE, deletionCause, msgId);
                     break;
             }
+            stats.update(before, stats.load(msgId));
             return null;
         } catch (SQLException se) {
             return se;
+        } finally {
+            // after the changes, and again when they commit
+            invalidatePages(msgId);
+            endWrite();
         }
     }
     
@@ -4804,7 +6444,7 @@ public class DBClient {
                 PreparedStatement stmt = null;
                 ResultSet rs = null;
                 try {
-                    stmt = _con.prepareStatement(SQL_GET_SCOPE_MESSAGES);
+                    stmt = prepare(SQL_GET_SCOPE_MESSAGES);
                     stmt.setLong(1, scopeId);
                     stmt.setLong(2, scopeId);
                     stmt.setLong(3, scopeId);
@@ -4864,7 +6504,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_NYMPREFS);
+            stmt = prepare(SQL_GET_NYMPREFS);
             stmt.setLong(1, nymId);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -4894,15 +6534,30 @@ public class DBClient {
 
     /**
      *  Cached if nymId == getNymId()
+     *  Since 1.107b-1, written on the DB writer.
      */
-    public void setNymPrefs(long nymId, Properties prefs) {
+    public void setNymPrefs(final long nymId, final Properties prefs) {
         if (_nymId == nymId) 
             _nymPrefsCached = (Properties)prefs.clone();
         ensureLoggedIn();
+        _writer.call(new DBWriter.Command<Object>("setNymPrefs") {
+            public Object call() {
+                x_setNymPrefs(nymId, prefs);
+                return null;
+            }
+        });
+    }
+
+    /**
+     *  The database part of setNymPrefs(), on the DB writer
+     *
+     *  @since 1.107b-1
+     */
+    private void x_setNymPrefs(long nymId, Properties prefs) {
         PreparedStatement stmt = null;
         try {
             exec(SQL_DELETE_NYMPREFS, nymId);
-            stmt = _con.prepareStatement(SQL_SET_NYMPREFS);
+            stmt = prepare(SQL_SET_NYMPREFS);
             for (Iterator iter = prefs.keySet().iterator(); iter.hasNext(); ) {
                 String name = (String)iter.next();
                 String val = prefs.getProperty(name);
@@ -4929,7 +6584,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_NYMARCHIVENAMES);
+            stmt = prepare(SQL_GET_NYMARCHIVENAMES);
             stmt.setLong(1, nymId);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -4957,7 +6612,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_NYM_REFERENCES);
+            stmt = prepare(SQL_GET_NYM_REFERENCES);
             stmt.setLong(1, nymId);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -5067,7 +6722,7 @@ public class DBClient {
     private void createNymReferenceOrderHole(long nymId, long parentGroupId, int siblingOrder) {
         PreparedStatement stmt = null;
         try {
-            stmt = _con.prepareStatement(SQL_EXPAND_NYM_REFERENCE_ORDER);
+            stmt = prepare(SQL_EXPAND_NYM_REFERENCE_ORDER);
             stmt.setLong(1, parentGroupId);
             stmt.setLong(2, nymId);
             stmt.setInt(3, siblingOrder);
@@ -5116,7 +6771,7 @@ public class DBClient {
         
         PreparedStatement stmt = null;
         try {
-            stmt = _con.prepareStatement(SQL_UPDATE_NYM_REFERENCE);
+            stmt = prepare(SQL_UPDATE_NYM_REFERENCE);
             //"parentGroupId = ?, siblingOrder = ?, name = ?, description = ?, uriId = ?
             //WHERE groupId = ?";
             stmt.setLong(1, newValue.getParentGroupId());
@@ -5187,7 +6842,7 @@ public class DBClient {
             PreparedStatement stmt = null;
             ResultSet rs = null;
             try {
-                stmt = _con.prepareStatement(SQL_GET_MAX_GROUPID);
+                stmt = prepare(SQL_GET_MAX_GROUPID);
                 stmt.setLong(1, nymId);
                 rs = stmt.executeQuery();
                 if (rs.next())
@@ -5210,7 +6865,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MAX_SIBLING);
+            stmt = prepare(SQL_GET_MAX_SIBLING);
             stmt.setLong(1, nymId);
             stmt.setLong(2, newValue.getParentGroupId());
             rs = stmt.executeQuery();
@@ -5238,7 +6893,7 @@ public class DBClient {
         log("add nym reference [" + groupId + "/" + newValue.getParentGroupId() + "/" + siblingOrder + "/" + newValue.getName() + "/" + newValue.getDescription() + "/" +  uriId + "]: " + newValue.getURI());
         
         try {
-            stmt = _con.prepareStatement(SQL_ADD_NYM_REFERENCE);
+            stmt = prepare(SQL_ADD_NYM_REFERENCE);
             // (groupId,parentGroupId,siblingOrder,name,description,uriId,nymId)
             stmt.setLong(1, groupId);
             stmt.setLong(2, newValue.getParentGroupId());
@@ -5355,7 +7010,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_NYM_REFERENCE_CHILD_IDS);
+            stmt = prepare(SQL_GET_NYM_REFERENCE_CHILD_IDS);
             stmt.setLong(1, parentGroupId);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -5413,7 +7068,7 @@ public class DBClient {
         try {
             exec(SQL_UNSET_REFERENCE_ICON, groupId);
             
-            stmt = _con.prepareStatement(SQL_SET_REFERENCE_ICON);
+            stmt = prepare(SQL_SET_REFERENCE_ICON);
             stmt.setLong(1, groupId);
             stmt.setBytes(2, avatar);
             stmt.executeUpdate();
@@ -5434,7 +7089,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_REFERENCE_ICON);
+            stmt = prepare(SQL_GET_REFERENCE_ICON);
             stmt.setLong(1, groupId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -5461,7 +7116,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_REFERENCE_ICON_DEFINED);
+            stmt = prepare(SQL_GET_REFERENCE_ICON_DEFINED);
             stmt.setLong(1, groupId);
             rs = stmt.executeQuery();
             if (rs.next()) {
@@ -5502,7 +7157,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_WATCHED_CHANNELS);
+            stmt = prepare(SQL_GET_WATCHED_CHANNELS);
             stmt.setLong(1, nymId);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -5538,7 +7193,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_IS_WATCHED);
+            stmt = prepare(SQL_IS_WATCHED);
             stmt.setLong(1, nymId);
             stmt.setLong(2, channelId);
             rs = stmt.executeQuery();
@@ -5594,7 +7249,7 @@ public class DBClient {
         
         PreparedStatement stmt = null;
         try {
-            stmt = _con.prepareStatement(SQL_WATCH_CHANNEL);
+            stmt = prepare(SQL_WATCH_CHANNEL);
             // nymId, channelId, importKeys, importBookmarks, importBans, importArchives, highlightUnread
             stmt.setLong(1, nymId);
             stmt.setLong(2, channelId);
@@ -5637,7 +7292,7 @@ public class DBClient {
     private void unwatchChannel(long nymId, long channelId, boolean notifyListeners) { 
         PreparedStatement stmt = null;
         try {
-            stmt = _con.prepareStatement(SQL_UNWATCH_CHANNEL);
+            stmt = prepare(SQL_UNWATCH_CHANNEL);
             stmt.setLong(1, nymId);
             stmt.setLong(2, channelId);
             int rows = stmt.executeUpdate();
@@ -5691,16 +7346,24 @@ public class DBClient {
         synchronized (_msgStatusListeners) { _msgStatusListeners.remove(lsnr); }
     }
 
-    private void notifyMessageStatusListeners(long msgId, int newStatus) {
+    /**
+     *  @param changes msgId to the new status
+     *  @since 1.107b-1 was one at a time
+     */
+    private void notifyMessageStatusListeners(Map<Long, Integer> changes) {
         List<MessageStatusListener> toNotify;
         synchronized (_msgStatusListeners) {
             if (_msgStatusListeners.isEmpty())
                 return;
             toNotify = new ArrayList<MessageStatusListener>(_msgStatusListeners);
         }
-        _ui.debugMessage("notifyMessageStatus(" + msgId + ", " + newStatus + "): listener count = " + toNotify.size());
-        for (int i = 0; i < toNotify.size(); i++)
-            toNotify.get(i).messageStatusUpdated(msgId, newStatus);
+        _ui.debugMessage("notifyMessageStatus(" + changes.size() + " changes): listener count = " + toNotify.size());
+        for (int i = 0; i < toNotify.size(); i++) {
+            MessageStatusListener lsnr = toNotify.get(i);
+            for (Map.Entry<Long, Integer> e : changes.entrySet()) {
+                lsnr.messageStatusUpdated(e.getKey().longValue(), e.getValue().intValue());
+            }
+        }
     }
     
     /**
@@ -5808,7 +7471,7 @@ public class DBClient {
     }
     
     /** @return /path/to/.syndie/db/syndie (i.e. without the .data suffix) */
-    private String getDBFileRoot() { return getDBFileRoot(_url); }
+    String getDBFileRoot() { return getDBFileRoot(_url); }
 
     /** @return /path/to/.syndie/db/syndie (i.e. without the .data suffix) */
     private static String getDBFileRoot(String url) {
@@ -5954,7 +7617,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_ALIASES);
+            stmt = prepare(SQL_GET_ALIASES);
             stmt.setLong(1, nymId);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -5983,14 +7646,14 @@ public class DBClient {
     public void addAlias(long nymId, String name, String value) {
         PreparedStatement stmt = null;
         try {
-            stmt = _con.prepareStatement(SQL_DELETE_ALIAS);
+            stmt = prepare(SQL_DELETE_ALIAS);
             stmt.setLong(1, nymId);
             stmt.setString(2, name);
             stmt.executeUpdate();
             stmt.close();
             
             if ( (value != null) && (value.length() > 0) ) {
-                stmt = _con.prepareStatement(SQL_ADD_ALIAS);
+                stmt = prepare(SQL_ADD_ALIAS);
                 stmt.setLong(1, nymId);
                 stmt.setString(2, name);
                 stmt.setString(3, value);
@@ -6058,10 +7721,16 @@ public class DBClient {
     public int getMessageStatus(long msgId, long targetChanId) { return getMessageStatus(_nymId, msgId, targetChanId); }
 
     public int getMessageStatus(long nymId, long msgId, long targetChanId) {
+        Boolean pending = _statusBuffer.get(nymId, msgId);
+        if (pending != null)
+            return pending.booleanValue() ? MSG_STATUS_UNREAD : MSG_STATUS_READ;
+        Boolean unread = _unreadIndex.isUnread(nymId, msgId);
+        if (unread != null)
+            return unread.booleanValue() ? MSG_STATUS_UNREAD : MSG_STATUS_READ;
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MSG_STATUS);
+            stmt = prepare(SQL_GET_MSG_STATUS);
             stmt.setLong(1, nymId);
             stmt.setLong(2, msgId);
             rs = stmt.executeQuery();
@@ -6083,25 +7752,32 @@ public class DBClient {
 
     private static final String SQL_GET_ALL_MSG_UNREAD = "SELECT msgId FROM nymUnreadMessage WHERE nymId = ?";
 
-    private static final String SQL_GET_MSG_READ = 
-            "SELECT msgId FROM nymUnreadMessage WHERE nymId = ? AND msgId IN (";
+    /** IN (UNNEST(?)) takes the msgIds as one array parameter, so the statement is prepared once */
+    private static final String SQL_GET_MSG_UNREAD_ARRAY = 
+            "SELECT msgId FROM nymUnreadMessage WHERE nymId = ? AND msgId IN (UNNEST(?))";
 
-    /** get a Set of msgIds (Long) from the given set who have already been read */
+    /** get a Set of msgIds (Long) from the given set who have not been read */
     public Set<Long> getUnread(long msgIds[]) { return getUnread(_nymId, msgIds); }
 
+    /**
+     *  For the logged in nym, a lookup in the unread bitmap, no query.
+     *  For other nyms, one cached query with the msgIds as an array parameter.
+     */
     public Set<Long> getUnread(long nymId, long msgIds[]) {
         long begin = System.currentTimeMillis();
-        Set<Long> rv = new HashSet<Long>();
-        StringBuilder buf = new StringBuilder(SQL_GET_MSG_READ);
-        for (int i = 0; i < msgIds.length; i++) {
-            buf.append(msgIds[i]);
-            if (i+1 < msgIds.length)
-                buf.append(", ");
+        Set<Long> rv = _unreadIndex.getUnread(nymId, msgIds);
+        if (rv != null) {
+            applyPendingStatus(nymId, msgIds, rv);
+            long afterMatch = System.currentTimeMillis();
+            log("getUnread in bulk took " + (afterMatch-begin) + "/" + (afterMatch-begin)
+                             + "/0/0 (in memory): found matches: " + rv.size() + "/" + msgIds.length);
+            return rv;
         }
-        
-        buf.append(")");
-        String query = buf.toString();
-        //_ui.debugMessage("getUnread query: [" + nymId + "]: " + query);
+
+        rv = new HashSet<Long>();
+        Long ids[] = new Long[msgIds.length];
+        for (int i = 0; i < msgIds.length; i++)
+            ids[i] = Long.valueOf(msgIds[i]);
         
         long beforePrep = System.currentTimeMillis();
         long afterPrep = -1;
@@ -6110,9 +7786,10 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(query);
-            afterPrep = System.currentTimeMillis();
+            stmt = prepare(SQL_GET_MSG_UNREAD_ARRAY);
             stmt.setLong(1, nymId);
+            stmt.setArray(2, con().createArrayOf("BIGINT", ids));
+            afterPrep = System.currentTimeMillis();
             rs = stmt.executeQuery();
             afterExec = System.currentTimeMillis();
             
@@ -6129,6 +7806,7 @@ public class DBClient {
             if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
         }
         
+        applyPendingStatus(nymId, msgIds, rv);
         long afterMatch = System.currentTimeMillis();
         log("getUnread in bulk took " + (afterMatch-begin) + "/" +(afterMatch-afterExec)
                          + "/" + (afterExec-afterPrep) + "/" + (afterPrep-beforePrep) 
@@ -6136,6 +7814,36 @@ public class DBClient {
         return rv;
     }
 
+    /**
+     *  Apply the read/unread changes not yet written
+     *
+     *  @param msgIds only these, or null for all
+     *  @param unread the unread msgIds from the database, modified in place
+     *  @since 1.107b-1
+     */
+    private void applyPendingStatus(long nymId, long msgIds[], Collection<Long> unread) {
+        Map<Long, Boolean> pending = _statusBuffer.get(nymId);
+        if (pending.isEmpty())
+            return;
+        Set<Long> wanted = null;
+        if (msgIds != null) {
+            wanted = new HashSet<Long>(msgIds.length);
+            for (int i = 0; i < msgIds.length; i++)
+                wanted.add(Long.valueOf(msgIds[i]));
+        }
+        for (Map.Entry<Long, Boolean> e : pending.entrySet()) {
+            Long msgId = e.getKey();
+            if (wanted != null && !wanted.contains(msgId))
+                continue;
+            if (e.getValue().booleanValue()) {
+                if (!unread.contains(msgId))
+                    unread.add(msgId);
+            } else {
+                unread.remove(msgId);
+            }
+        }
+    }
+
     /**
      *  Get all the msgIds (Long) that are unread
      *  @since 1.106b-3
@@ -6147,11 +7855,16 @@ public class DBClient {
      *  @since 1.106b-3
      */
     private List<Long> getAllUnread(long nymId) {
-        List<Long> rv = new ArrayList();
+        List<Long> rv = _unreadIndex.getAll(nymId);
+        if (rv != null) {
+            applyPendingStatus(nymId, null, rv);
+            return rv;
+        }
+        rv = new ArrayList();
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_ALL_MSG_UNREAD);
+            stmt = prepare(SQL_GET_ALL_MSG_UNREAD);
             stmt.setLong(1, nymId);
             rs = stmt.executeQuery();
             
@@ -6167,6 +7880,7 @@ public class DBClient {
             if (rs != null) try { rs.close(); } catch (SQLException se) {}
             if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
         }
+        applyPendingStatus(nymId, null, rv);
         return rv;
     }
     
@@ -6176,7 +7890,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_DECRYPTED);
+            stmt = prepare(SQL_GET_MESSAGE_DECRYPTED);
             stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             
@@ -6204,7 +7918,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_DELETED);
+            stmt = prepare(SQL_GET_MESSAGE_DELETED);
             stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             
@@ -6231,7 +7945,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_MESSAGE_TARGET);
+            stmt = prepare(SQL_GET_MESSAGE_TARGET);
             stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             
@@ -6255,55 +7969,172 @@ public class DBClient {
     }
 
     private static final String SQL_MARK_MESSAGE_READ = "DELETE FROM nymUnreadMessage WHERE nymId = ? AND msgId = ?";
+    private static final String SQL_MARK_MESSAGE_UNREAD = "INSERT INTO nymUnreadMessage (nymId, msgId) VALUES (?, ?)";
 
     public void markMessageRead(long msgId) { markMessageRead(_nymId, msgId); }
 
+    /**
+     *  Takes effect for getMessageStatus() and getUnread() right away,
+     *  written to the database and announced to the listeners shortly after.
+     */
     public void markMessageRead(long nymId, long msgId) {
-        PreparedStatement stmt = null;
-        try {
-            stmt = _con.prepareStatement(SQL_MARK_MESSAGE_READ);
-            stmt.setLong(1, nymId);
-            stmt.setLong(2, msgId);
-            stmt.executeUpdate();
-            stmt.close();
-            stmt = null;
-        } catch (SQLException se) {
-            if (_log.shouldLog(Log.WARN))
-                _log.warn("Error marking message read", se);
-        } finally {
-            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
-        }
-        
-        // when we read a message, consider that we've "seen" the new forum
-        long chanId = getMessageTarget(msgId);
-        if (chanId >= 0)
-            markChannelNotNew(chanId);
-        
-        notifyMessageStatusListeners(msgId, DBClient.MSG_STATUS_READ);
+        _statusBuffer.mark(nymId, msgId, false);
     }
 
-    private static final String SQL_MARK_MESSAGE_UNREAD = "INSERT INTO nymUnreadMessage (nymId, msgId) VALUES (?, ?)";
-
     public void markMessageUnread(long msgId) { markMessageUnread(_nymId, msgId); }
 
+    /**
+     *  Takes effect for getMessageStatus() and getUnread() right away,
+     *  written to the database and announced to the listeners shortly after.
+     */
     public void markMessageUnread(long nymId, long msgId) {
-        markMessageRead(nymId, msgId); // delete then we insert below
-        PreparedStatement stmt = null;
-        try {
-            stmt = _con.prepareStatement(SQL_MARK_MESSAGE_UNREAD);
-            stmt.setLong(1, nymId);
-            stmt.setLong(2, msgId);
-            stmt.executeUpdate();
-            stmt.close();
-            stmt = null;
+        _statusBuffer.mark(nymId, msgId, true);
+    }
+
+    /**
+     *  Write the buffered read/unread changes in one transaction on the DB writer,
+     *  then tell the listeners about all of them once they are committed.
+     *  If the write fails, the changes go back in the buffer to be tried again.
+     *  Called by MessageStatusBuffer.
+     *
+     *  @param changes (nymId, msgId) to true for unread, false for read
+     *  @since 1.107b-1
+     */
+    void writeMessageStatus(final Map<MessageStatusBuffer.Key, Boolean> changes) {
+        if (!isLoggedIn()) {
+            log("Not logged in, dropping " + changes.size() + " message status changes");
+            return;
+        }
+        final StatusCommit lsnr = new StatusCommit(changes);
+        _writer.call(new DBWriter.Command<Object>("messageStatus") {
+            public Object call() {
+                x_writeMessageStatus(changes, lsnr);
+                return null;
+            }
+        });
+        lsnr.returned();
+    }
+
+    /**
+     *  Notifies the listeners of the status changes once they are committed,
+     *  or puts them back in the buffer if they are rolled back.
+     *  Done in the flushing thread, unless the write joined a group commit
+     *  still open when writeMessageStatus() returned, then on the writer when the group is done.
+     *
+     *  @since 1.107b-1
+     */
+    private class StatusCommit implements CommitListener {
+        private final Map<MessageStatusBuffer.Key, Boolean> _changes;
+        /** null until committed or rolled back; protected by this */
+        private Boolean _committed;
+        private boolean _returned;
+
+        public StatusCommit(Map<MessageStatusBuffer.Key, Boolean> changes) {
+            _changes = changes;
+        }
+
+        public void committed() { done(Boolean.TRUE); }
+
+        public void rolledBack() { done(Boolean.FALSE); }
+
+        private void done(Boolean committed) {
+            synchronized (this) {
+                _committed = committed;
+                if (!_returned)
+                    return;
+            }
+            finish(committed.booleanValue());
+        }
+
+        /** writeMessageStatus() is back from the writer */
+        public void returned() {
+            Boolean committed;
+            synchronized (this) {
+                _returned = true;
+                committed = _committed;
+            }
+            if (committed != null)
+                finish(committed.booleanValue());
+        }
+
+        private void finish(boolean committed) {
+            if (!committed) {
+                _statusBuffer.requeue(_changes);
+                return;
+            }
+            Map<Long, Integer> notify = new LinkedHashMap<Long, Integer>(_changes.size());
+            for (Map.Entry<MessageStatusBuffer.Key, Boolean> e : _changes.entrySet()) {
+                notify.put(Long.valueOf(e.getKey().msgId),
+                           Integer.valueOf(e.getValue().booleanValue() ? MSG_STATUS_UNREAD : MSG_STATUS_READ));
+            }
+            notifyMessageStatusListeners(notify);
+        }
+    }
+
+    /**
+     *  The database part of writeMessageStatus(), on the DB writer
+     *
+     *  @param lsnr told when the changes are committed or rolled back
+     *  @since 1.107b-1
+     */
+    private void x_writeMessageStatus(Map<MessageStatusBuffer.Key, Boolean> changes, CommitListener lsnr) {
+        // nymId to the forums the nym has now "seen"
+        Map<Long, Set<Long>> seen = new HashMap<Long, Set<Long>>();
+        boolean ok = false;
+        beginWrite();
+        try {
+            long token = getGroupCommitToken();
+            ChannelStats stats = new ChannelStats(this);
+            Object tx = beginImportTransaction();
+            try {
+                for (Map.Entry<MessageStatusBuffer.Key, Boolean> e : changes.entrySet()) {
+                    long nymId = e.getKey().nymId;
+                    long msgId = e.getKey().msgId;
+                    boolean unread = e.getValue().booleanValue();
+                    int deleted = exec(SQL_MARK_MESSAGE_READ, nymId, msgId);
+                    _unreadIndex.set(nymId, msgId, unread);
+                    if (unread) {
+                        // delete then insert
+                        exec(SQL_MARK_MESSAGE_UNREAD, nymId, msgId);
+                        if (deleted <= 0)
+                            stats.unreadChanged(nymId, msgId, false);
+                    } else {
+                        if (deleted > 0)
+                            stats.unreadChanged(nymId, msgId, true);
+                        // when we read a message, consider that we've "seen" the new forum
+                        long chanId = getMessageTarget(msgId);
+                        if (chanId >= 0) {
+                            Set<Long> chans = seen.get(Long.valueOf(nymId));
+                            if (chans == null) {
+                                chans = new HashSet<Long>();
+                                seen.put(Long.valueOf(nymId), chans);
+                            }
+                            chans.add(Long.valueOf(chanId));
+                        }
+                    }
+                }
+                for (Map.Entry<Long, Set<Long>> e : seen.entrySet()) {
+                    for (Long chanId : e.getValue())
+                        markChannelNotNew(e.getKey().longValue(), chanId.longValue());
+                }
+            } catch (SQLException se) {
+                rollbackImportTransaction(tx);
+                throw se;
+            }
+            if (commitImportTransaction(tx)) {
+                ok = true;
+                afterImportCommit(token, lsnr);
+            } else if (_log.shouldLog(Log.WARN)) {
+                _log.warn("Error committing " + changes.size() + " message status changes");
+            }
         } catch (SQLException se) {
             if (_log.shouldLog(Log.WARN))
-                _log.warn("Error marking message unread", se);
+                _log.warn("Error writing " + changes.size() + " message status changes", se);
         } finally {
-            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+            endWrite();
         }
-        
-        notifyMessageStatusListeners(msgId, DBClient.MSG_STATUS_UNREAD);
+        if (!ok)
+            lsnr.rolledBack();
     }
 
     private static final String SQL_MARK_CHANNELMSG_READ = "DELETE FROM nymUnreadMessage WHERE nymId = ? AND msgId IN (SELECT msgId FROM channelMessage WHERE targetChannelId = ?)";
@@ -6311,19 +8142,25 @@ public class DBClient {
     public void markChannelRead(long chanId) { markChannelRead(_nymId, chanId); }
 
     public void markChannelRead(long nymId, long chanId) {
+        // so the buffered changes don't undo this later
+        _statusBuffer.flush();
         PreparedStatement stmt = null;
+        beginWrite();
         try {
-            stmt = _con.prepareStatement(SQL_MARK_CHANNELMSG_READ);
+            stmt = prepare(SQL_MARK_CHANNELMSG_READ);
             stmt.setLong(1, nymId);
             stmt.setLong(2, chanId);
             stmt.executeUpdate();
             stmt.close();
             stmt = null;
+            _unreadIndex.channelRead(nymId, chanId);
+            new ChannelStats(this).channelRead(nymId, chanId);
         } catch (SQLException se) {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Error marking message read", se);
         } finally {
             if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+            endWrite();
         }
         
         markChannelNotNew(nymId, chanId);
@@ -6336,7 +8173,7 @@ public class DBClient {
     public void markChannelNotNew(long nymId, long chanId) {
         PreparedStatement stmt = null;
         try {
-            stmt = _con.prepareStatement(SQL_MARK_CHANNEL_READ);
+            stmt = prepare(SQL_MARK_CHANNEL_READ);
             stmt.setLong(1, nymId);
             stmt.setLong(2, chanId);
             stmt.executeUpdate();
@@ -6350,7 +8187,8 @@ public class DBClient {
         }
     }
     
-    private static final String SQL_COUNT_MESSAGES = "SELECT COUNT(msgId) FROM channelMessage WHERE targetChannelId = ? AND isCancelled = FALSE AND readKeyMissing = FALSE AND replyKeyMissing = FALSE AND pbePrompt IS NULL AND deletionCause IS NULL";
+    /** maintained by ChannelStats */
+    private static final String SQL_COUNT_MESSAGES = "SELECT messages FROM channelStats WHERE channelId = ?";
 
     public int countMessages(long chanId) { return countMessages(_nymId, chanId); }
 
@@ -6358,7 +8196,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_COUNT_MESSAGES);
+            stmt = prepare(SQL_COUNT_MESSAGES);
             stmt.setLong(1, chanId);
             rs = stmt.executeQuery();
             
@@ -6381,13 +8219,13 @@ public class DBClient {
         }
     }
 
-    private static final String SQL_GET_LASTPOST_DATE = "SELECT MAX(importDate) FROM channelMessage WHERE targetChannelId = ? AND isCancelled = FALSE AND readKeyMissing = FALSE AND replyKeyMissing = FALSE AND pbePrompt IS NULL AND deletionCause IS NULL";
+    private static final String SQL_GET_LASTPOST_DATE = "SELECT lastPost FROM channelStats WHERE channelId = ?";
 
     public long getChannelLastPost(long chanId) {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_LASTPOST_DATE);
+            stmt = prepare(SQL_GET_LASTPOST_DATE);
             stmt.setLong(1, chanId);
             rs = stmt.executeQuery();
             
@@ -6410,28 +8248,94 @@ public class DBClient {
         }
     }
     
-    private static final String SQL_COUNT_UNREAD_MESSAGES = "SELECT COUNT(msgId) FROM nymUnreadMessage num JOIN channelMessage cm ON num.msgId = cm.msgId WHERE nymId = ? AND targetChannelId = ? AND cm.readKeyMissing = FALSE AND cm.replyKeyMissing = FALSE AND cm.pbePrompt IS NULL AND deletionCause IS NULL";
+    private static final String SQL_GET_LASTIMPORT_DATE = "SELECT lastImport FROM channelStats WHERE channelId = ?";
+
+    /**
+     *  The latest import date of any message in the channel, readable or not
+     *
+     *  @return 0 if none
+     *  @since 1.107b-1
+     */
+    public long getChannelLastImport(long chanId) {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = prepare(SQL_GET_LASTIMPORT_DATE);
+            stmt.setLong(1, chanId);
+            rs = stmt.executeQuery();
+            if (rs.next()) {
+                Date when = rs.getDate(1);
+                if (when != null)
+                    return when.getTime();
+            }
+            return 0;
+        } catch (SQLException se) {
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("Error getting last import date", se);
+            return 0;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    /**
+     *  Compare the channel message counters to the messages.
+     *
+     *  @return a description of each difference, empty if consistent, null on error
+     *  @since 1.107b-1
+     */
+    public List<String> checkChannelStats(UI ui) {
+        ensureLoggedIn();
+        beginWrite();
+        try {
+            return new ChannelStats(this).check();
+        } catch (SQLException se) {
+            ui.errorMessage("Error checking the channel stats", se);
+            return null;
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     *  Recalculate all the channel message counters.
+     *
+     *  @return success
+     *  @since 1.107b-1
+     */
+    public boolean rebuildChannelStats(UI ui) {
+        ensureLoggedIn();
+        beginWrite();
+        try {
+            new ChannelStats(this).rebuild();
+            return true;
+        } catch (SQLException se) {
+            ui.errorMessage("Error rebuilding the channel stats", se);
+            return false;
+        } finally {
+            endWrite();
+        }
+    }
+
+    private static final String SQL_COUNT_UNREAD_MESSAGES = "SELECT unreadMessages FROM nymChannelStats WHERE nymId = ? AND channelId = ?";
 
     /**
-     *  This is SLOW, 30ms, which is fine if you're only doing one...
-     *  @deprecated SLOW see getUnread()
+     *  A row lookup in nymChannelStats. For the unread message IDs, see getUnread()
      */
-    @Deprecated
     public int countUnreadMessages(Hash scope) { return countUnreadMessages(_nymId, scope); }
     private int countUnreadMessages(long nymId, Hash scope) { return countUnreadMessages(nymId, getChannelId(scope)); }
 
     /**
-     *  This is SLOW, 30ms, which is fine if you're only doing one...
-     *  @deprecated SLOW see getUnread()
+     *  A row lookup in nymChannelStats. For the unread message IDs, see getUnread()
      */
-    @Deprecated
     public int countUnreadMessages(long channelId) { return countUnreadMessages(_nymId, channelId); }
 
     private int countUnreadMessages(long nymId, long chan) {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_COUNT_UNREAD_MESSAGES);
+            stmt = prepare(SQL_COUNT_UNREAD_MESSAGES);
             stmt.setLong(1, nymId);
             stmt.setLong(2, chan);
             rs = stmt.executeQuery();
@@ -6456,8 +8360,8 @@ public class DBClient {
     }
 
     
-    private static final String SQL_COUNT_UNREAD_PRIVATE_MESSAGES = "SELECT COUNT(msgId) FROM nymUnreadMessage num JOIN channelMessage cm ON num.msgId = cm.msgId WHERE nymId = ? AND cm.wasPrivate = true AND targetChannelId = ? AND cm.readKeyMissing = FALSE AND cm.replyKeyMissing = FALSE AND cm.pbePrompt IS NULL AND deletionCause IS NULL";
-    private static final String SQL_COUNT_PRIVATE_MESSAGES = "SELECT COUNT(msgId) FROM channelMessage cm WHERE cm.wasPrivate = true AND targetChannelId = ? AND cm.readKeyMissing = FALSE AND cm.replyKeyMissing = FALSE AND cm.pbePrompt IS NULL AND deletionCause IS NULL";
+    private static final String SQL_COUNT_UNREAD_PRIVATE_MESSAGES = "SELECT unreadPrivateMessages FROM nymChannelStats WHERE nymId = ? AND channelId = ?";
+    private static final String SQL_COUNT_PRIVATE_MESSAGES = "SELECT privateMessages FROM channelStats WHERE channelId = ?";
 
     public int countPrivateMessages(long chan, boolean unreadOnly) { return countPrivateMessages(_nymId, chan, unreadOnly); }
 
@@ -6466,11 +8370,11 @@ public class DBClient {
         ResultSet rs = null;
         try {
             if (unreadOnly) {
-                stmt = _con.prepareStatement(SQL_COUNT_UNREAD_PRIVATE_MESSAGES);
+                stmt = prepare(SQL_COUNT_UNREAD_PRIVATE_MESSAGES);
                 stmt.setLong(1, nymId);
                 stmt.setLong(2, chan);
             } else {
-                stmt = _con.prepareStatement(SQL_COUNT_PRIVATE_MESSAGES);
+                stmt = prepare(SQL_COUNT_PRIVATE_MESSAGES);
                 stmt.setLong(1, chan);
             }
             rs = stmt.executeQuery();
@@ -6507,7 +8411,7 @@ public class DBClient {
         ResultSet rs = null;
         try {
             exec(SQL_DELETE_REMOVED_CHANNELS, nymId);
-            stmt = _con.prepareStatement(SQL_GET_NEW_CHANNEL_IDS);
+            stmt = prepare(SQL_GET_NEW_CHANNEL_IDS);
             stmt.setLong(1, nymId);
             rs = stmt.executeQuery();
             
@@ -6537,7 +8441,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = con().prepareStatement(SQL_LIST_RESUMEABLE);
+            stmt = prepare(SQL_LIST_RESUMEABLE);
             stmt.setLong(1, _nymId);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -6605,7 +8509,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_EXPIRATION_POLICIES);
+            stmt = prepare(SQL_GET_EXPIRATION_POLICIES);
             rs = stmt.executeQuery();
             
             while (rs.next()) {
@@ -6680,7 +8584,7 @@ public class DBClient {
             _ui.debugMessage("add new policy: " + isDataFile + "/" + policyScopeId + "/" + maxNumMessages + "/" + maxSizeKB + "/" + maxAgeDays);
             PreparedStatement stmt = null;
             try {
-                stmt = _con.prepareStatement(SQL_ADD_EXPIRATION_POLICY);
+                stmt = prepare(SQL_ADD_EXPIRATION_POLICY);
                 //isDataFilePolicy, policyScopeId, maxNumMessages, maxSizeKB, maxAgeDays
                 stmt.setBoolean(1, isDataFile);
                 stmt.setLong(2, policyScopeId);
@@ -6699,7 +8603,7 @@ public class DBClient {
             _ui.debugMessage("update policy: " + isDataFile + "/" + policyScopeId + "/" + maxNumMessages + "/" + maxSizeKB + "/" + maxAgeDays);
             PreparedStatement stmt = null;
             try {
-                stmt = _con.prepareStatement(SQL_UPDATE_EXPIRATION_POLICY);
+                stmt = prepare(SQL_UPDATE_EXPIRATION_POLICY);
                 //maxNumMessages = ?, maxSizeKB = ?, maxAgeDays = ? WHERE isDataFilePolicy = ? AND policyScopeId = ?
                 stmt.setLong(1, maxNumMessages);
                 stmt.setInt(2, maxSizeKB);
@@ -6732,7 +8636,7 @@ public class DBClient {
 
         PreparedStatement stmt = null;
         try {
-            stmt = _con.prepareStatement(SQL_DELETE_EXPIRATION_POLICY);
+            stmt = prepare(SQL_DELETE_EXPIRATION_POLICY);
             //isDataFilePolicy = ? AND policyScopeId = ?
             stmt.setBoolean(1, policy.isDataFilePolicy());
             stmt.setLong(2, policyScopeId);
@@ -6752,7 +8656,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CANCEL_POLICIES);
+            stmt = prepare(SQL_GET_CANCEL_POLICIES);
             rs = stmt.executeQuery();
             
             while (rs.next()) {
@@ -6810,7 +8714,7 @@ public class DBClient {
             _ui.debugMessage("add new policy: " + policy);
             PreparedStatement stmt = null;
             try {
-                stmt = _con.prepareStatement(SQL_ADD_CANCEL_POLICY);
+                stmt = prepare(SQL_ADD_CANCEL_POLICY);
                 //policyScopeId, honorFromAuthor, honorFromForumOwner, honorFromForumManager, honorFromAuthPoster
                 stmt.setLong(1, policyScopeId);
                 stmt.setBoolean(2, policy.getHonorFromAuthor());
@@ -6828,7 +8732,7 @@ public class DBClient {
             _ui.debugMessage("update policy: " + policy);
             PreparedStatement stmt = null;
             try {
-                stmt = _con.prepareStatement(SQL_UPDATE_CANCEL_POLICY);
+                stmt = prepare(SQL_UPDATE_CANCEL_POLICY);
                 //honorFromAuthor = ?, honorFromForumOwner = ?, honorFromForumManager = ?, honorFromAuthPoster = ? WHERE policyScopeId = ?
                 stmt.setBoolean(1, policy.getHonorFromAuthor());
                 stmt.setBoolean(2, policy.getHonorFromForumOwner());
@@ -6860,7 +8764,7 @@ public class DBClient {
 
         PreparedStatement stmt = null;
         try {
-            stmt = _con.prepareStatement(SQL_DELETE_CANCEL_POLICY);
+            stmt = prepare(SQL_DELETE_CANCEL_POLICY);
             stmt.setLong(1, policyScopeId);
             stmt.executeUpdate();
         } catch (SQLException se) {
@@ -6879,7 +8783,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CANCEL_URIS);
+            stmt = prepare(SQL_GET_CANCEL_URIS);
             stmt.setLong(1, channelId);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -6920,7 +8824,7 @@ public class DBClient {
         
         PreparedStatement stmt = null;
         try {
-            stmt = _con.prepareStatement(SQL_ADD_CANCEL_URI);
+            stmt = prepare(SQL_ADD_CANCEL_URI);
             for (int i = 0; (i < uris.size()) && (i < Constants.MAX_CANCELLED_PER_META); i++) {
                 String uri = uris.get(i);
                 stmt.setString(1, uri);
@@ -6946,7 +8850,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         try {
             long when = System.currentTimeMillis() - Constants.MAX_CANCELLED_HISTORY_DAYS*24*60*60*1000l;
-            stmt = _con.prepareStatement(SQL_DELETE_OLD_CANCEL_REQUESTS);
+            stmt = prepare(SQL_DELETE_OLD_CANCEL_REQUESTS);
             stmt.setDate(1, new Date(when));
             stmt.executeUpdate();
         } catch (SQLException se) {
@@ -6958,7 +8862,7 @@ public class DBClient {
         
         stmt = null;
         try {
-            stmt = _con.prepareStatement(SQL_ADD_CANCEL_REQUEST);
+            stmt = prepare(SQL_ADD_CANCEL_REQUEST);
             for (SyndieURI u : urisToCancel) {
                 if (getCancelledBy(u) < 0) {
                     // only if not cancelled already
@@ -6988,7 +8892,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_CANCELLED_BY);
+            stmt = prepare(SQL_GET_CANCELLED_BY);
             stmt.setString(1, uri.toString());
             rs = stmt.executeQuery();
             if (rs.next())
@@ -7050,6 +8954,8 @@ public class DBClient {
     private static final String SQL_UPDATE_NYM_PASS = "UPDATE nym SET passSalt = ?, passHash = ? WHERE nymId = ?";
 
     public void changePassphrase(String newPass) {
+        // the keys are reencrypted with new salts, and on failure we may have a partial state
+        _nymKeyring.clear();
         try {
             _con.setAutoCommit(false);
             log("changing passphrase from [" + _nymPass + "] to [" + newPass + "]");
@@ -7148,7 +9054,7 @@ public class DBClient {
         ResultSet rs = null;
         try {
             String query = SQL_GET_NYMKEYS;
-            stmt = _con.prepareStatement(query);
+            stmt = prepareUncached(query);
             stmt.setLong(1, _nymId);
             
             rs = stmt.executeQuery();
@@ -7184,14 +9090,14 @@ public class DBClient {
             stmt.close();
             stmt = null;
             
-            stmt = _con.prepareStatement(SQL_DELETE_NYMKEYS);
+            stmt = prepare(SQL_DELETE_NYMKEYS);
             stmt.setLong(1, _nymId);
             stmt.executeUpdate();
             
             stmt.close();
             stmt = null;
             
-            stmt = _con.prepareStatement(SQL_INSERT_NYMKEY);
+            stmt = prepare(SQL_INSERT_NYMKEY);
             for (int i = 0; i < rv.size(); i++) {
                 NymKeyData data = rv.get(i);
                 
@@ -7242,7 +9148,7 @@ public class DBClient {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _con.prepareStatement(SQL_GET_POSTPONED);
+            stmt = prepare(SQL_GET_POSTPONED);
             stmt.setLong(1, _nymId);
             
             rs = stmt.executeQuery();
@@ -7260,13 +9166,13 @@ public class DBClient {
             stmt.close();
             stmt = null;
             
-            stmt = _con.prepareStatement(SQL_DROP_POSTPONED);
+            stmt = prepare(SQL_DROP_POSTPONED);
             stmt.setLong(1, _nymId);
             stmt.executeUpdate();
             stmt.close();
             stmt = null;
             
-            stmt = _con.prepareStatement(SQL_INSERT_POSTPONED);
+            stmt = prepare(SQL_INSERT_POSTPONED);
             int count = 0;
             for (int i = 0; i < rv.size(); i++) {
                 PostponedData data = rv.get(i);
@@ -7437,9 +9343,15 @@ public class DBClient {
     private long _getMsgTime;
     private long _getChanTime;
     private long _traceStart;
+    private long _traceStmtHits;
+    private long _traceStmtMisses;
+    private long _traceQueries[];
     public void beginTrace() { 
         _trace = true;
         _traceStart = System.currentTimeMillis();
+        _traceStmtHits = _stmtCounters.getHits();
+        _traceStmtMisses = _stmtCounters.getMisses();
+        _traceQueries = _queryStats.getTotals();
         _getMsgCount = 0;
         _getChanCount = 0;
         _getMsgTime = 0;
@@ -7448,6 +9360,9 @@ public class DBClient {
     public String completeTrace() {
         long end = System.currentTimeMillis();
         _trace = false;
-        return "time: " + (end-_traceStart) + " getMsg: " + _getMsgCount + "/" + _getMsgTime + " getChan: " + _getChanCount + "/" + _getChanTime;
+        long queries[] = _queryStats.getTotals();
+        return "time: " + (end-_traceStart) + " getMsg: " + _getMsgCount + "/" + _getMsgTime + " getChan: " + _getChanCount + "/" + _getChanTime +
+               " stmtCache: " + (_stmtCounters.getHits() - _traceStmtHits) + "/" + (_stmtCounters.getMisses() - _traceStmtMisses) +
+               " queries: " + (queries[0] - _traceQueries[0]) + "/" + ((queries[1] - _traceQueries[1]) / 1000000);
     }
 }
@@ -0,0 +1,140 @@
+package syndie.db;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import net.i2p.util.Log;
+import net.i2p.util.SimpleTimer2;
+
+/**
+ *  Background maintenance of a file database.
+ *  The only other compaction is the SHUTDOWN COMPACT after an hsqldb upgrade,
+ *  so a long running node's .data file keeps the space of deleted
+ *  and expired messages.
+ *
+ *  Every CHECK_INTERVAL, if nothing has used the database for IDLE_TIME,
+ *  measure the lost space in the .data file, and if it is more than the
+ *  profile's defragPercent, CHECKPOINT DEFRAG, logging the file size
+ *  before and after.
+ *  Once a day, when idle, delete the unused files in the BlobStore.
+ *
+ *  @since 1.107b-1
+ */
+class DBMaintenance extends SimpleTimer2.TimedEvent {
+    private final DBClient _client;
+    private final Log _log;
+    private volatile long _lastActivity;
+    private volatile int _defragPercent;
+    private long _lastSweep;
+
+    public static final long CHECK_INTERVAL = 30*60*1000l;
+    private static final long IDLE_TIME = 10*60*1000l;
+    private static final long SWEEP_INTERVAL = 24*60*60*1000l;
+    /** not worth it for smaller files */
+    private static final long MIN_FILE_SIZE = 16*1024*1024l;
+
+    private static final String SQL_GET_CACHE_INFO = "SELECT FILE_LOST_BYTES, FILE_FREE_POS FROM INFORMATION_SCHEMA.SYSTEM_CACHEINFO";
+
+    public DBMaintenance(DBClient client) {
+        super(SimpleTimer2.getInstance());
+        _client = client;
+        _log = client.ctx().logManager().getLog(DBMaintenance.class);
+        _lastActivity = System.currentTimeMillis();
+        _lastSweep = _lastActivity;
+        _defragPercent = DBTuning.getProfile(new Properties()).defragPercent;
+    }
+
+    /** the database was used */
+    public void touch() {
+        _lastActivity = System.currentTimeMillis();
+    }
+
+    public void setDefragPercent(int percent) {
+        _defragPercent = percent;
+    }
+
+    public void timeReached() {
+        try {
+            long now = System.currentTimeMillis();
+            if (_client.isLoggedIn() && now - _lastActivity >= IDLE_TIME) {
+                check(false);
+                BlobStore store = _client.blobStore();
+                if (store != null && now - _lastSweep >= SWEEP_INTERVAL) {
+                    _lastSweep = now;
+                    store.sweep();
+                }
+            }
+        } catch (RuntimeException re) {
+            _log.error("Database maintenance failed", re);
+        }
+        reschedule(CHECK_INTERVAL);
+    }
+
+    /**
+     *  Measure and defrag if needed, or if forced.
+     *
+     *  @return lost space in percent of the file, or -1 if unknown
+     */
+    public int check(boolean force) {
+        String root = _client.getDBFileRoot();
+        if (root == null)
+            return -1;
+        File data = new File(root + ".data");
+        long size = data.length();
+        long lost = -1;
+        long used = -1;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.con().prepareStatement(SQL_GET_CACHE_INFO);
+            rs = stmt.executeQuery();
+            if (rs.next()) {
+                lost = rs.getLong(1);
+                used = rs.getLong(2);
+            }
+        } catch (SQLException se) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Unable to measure the database fragmentation", se);
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        if (lost < 0 || used <= 0)
+            return -1;
+        int percent = (int) (lost * 100 / used);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Database file " + size + " bytes, " + lost + " of " + used + " bytes lost (" + percent + "%)");
+        if (force || (percent >= _defragPercent && size >= MIN_FILE_SIZE))
+            defrag(data);
+        return percent;
+    }
+
+    private void defrag(File data) {
+        long before = data.length();
+        long start = System.currentTimeMillis();
+        // keep the writers out, and don't cut into an open group commit
+        _client.beginWrite();
+        PreparedStatement stmt = null;
+        try {
+            _client.flushGroupCommit();
+            if (!_client.con().getAutoCommit()) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Transaction open, not defragmenting now");
+                return;
+            }
+            stmt = _client.con().prepareStatement("CHECKPOINT DEFRAG");
+            stmt.execute();
+            _log.logAlways(Log.INFO, "Database defragmented in " + (System.currentTimeMillis() - start) +
+                           "ms, file size before: " + before + " after: " + data.length());
+        } catch (SQLException se) {
+            _log.error("Database defrag failed", se);
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+            _client.endWrite();
+            touch();
+        }
+    }
+}
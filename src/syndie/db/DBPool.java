@@ -0,0 +1,264 @@
+package syndie.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.Log;
+
+/**
+ *  A small pool of read-only connections for the query paths
+ *  (getMessage, getChannel, thread gathering), plus a single dedicated
+ *  writer connection for the importers.
+ *
+ *  A connection is bound to the calling thread between beginRead()/endRead()
+ *  or beginWrite()/endWrite(), and DBClient.con() hands out the bound
+ *  connection, so the existing accessors don't need to know about the pool.
+ *  Scopes nest; a read inside a write scope stays on the writer so that
+ *  it sees the uncommitted rows of the import in progress.
+ *
+ *  Outside of any scope, DBClient.con() is the original shared connection.
+ *
+ *  @since 1.107b-1
+ */
+class DBPool {
+    private final Log _log;
+    private final Conn _readers[];
+    private final Conn _writer;
+    private final ReentrantLock _writeLock;
+    private final ThreadLocal<Binding> _bound;
+    private volatile boolean _closed;
+
+    /** log any wait for a connection longer than this */
+    private static final long SLOW_WAIT = 1000;
+
+    /**
+     *  Opens all the connections right away.
+     *  The database must already be initialized by the caller.
+     *
+     *  @param readers how many read-only connections
+     *  @param counters for the statement caches
+     *  @param stats for the statement caches
+     */
+    public DBPool(I2PAppContext ctx, String url, String login, String pass, int readers,
+                  StatementCache.Counters counters, QueryStats stats) throws SQLException {
+        _log = ctx.logManager().getLog(DBPool.class);
+        _readers = new Conn[readers];
+        _writeLock = new ReentrantLock(true);
+        _bound = new ThreadLocal<Binding>();
+        try {
+            for (int i = 0; i < readers; i++) {
+                Connection con = DriverManager.getConnection(url, login, pass);
+                con.setReadOnly(true);
+                _readers[i] = new Conn("reader " + (i+1), con, counters, stats);
+            }
+            _writer = new Conn("writer", DriverManager.getConnection(url, login, pass), counters, stats);
+        } catch (SQLException se) {
+            close();
+            throw se;
+        }
+    }
+
+    /**
+     *  The connection bound to this thread, if any
+     *
+     *  @return null if not inside a read or write scope
+     */
+    public Connection getBound() {
+        Binding b = _bound.get();
+        return b != null ? b.conn.con : null;
+    }
+
+    /**
+     *  Is this thread in a write scope?
+     */
+    public boolean isWriterBound() {
+        Binding b = _bound.get();
+        return b != null && b.conn == _writer;
+    }
+
+    /**
+     *  The statement cache of the connection bound to this thread, if any
+     *
+     *  @return null if not inside a read or write scope
+     */
+    public StatementCache getBoundCache() {
+        Binding b = _bound.get();
+        return b != null ? b.conn.cache : null;
+    }
+
+    /**
+     *  Bind a reader to this thread, waiting for one to become free if necessary.
+     *  Must be followed by endRead() in a finally block.
+     */
+    public void beginRead() {
+        Binding b = _bound.get();
+        if (b != null) {
+            // nested, keep whatever we have, including the writer
+            b.depth++;
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Conn c = null;
+        synchronized (_readers) {
+            while (c == null) {
+                if (_closed)
+                    throw new IllegalStateException("Connection pool closed");
+                for (int i = 0; i < _readers.length; i++) {
+                    if (!_readers[i].busy) {
+                        c = _readers[i];
+                        break;
+                    }
+                }
+                if (c == null) {
+                    try {
+                        _readers.wait();
+                    } catch (InterruptedException ie) {
+                        throw new IllegalStateException("Interrupted waiting for a connection");
+                    }
+                }
+            }
+            c.busy = true;
+        }
+        c.checkedOut(System.currentTimeMillis() - start);
+        _bound.set(new Binding(c, null));
+    }
+
+    public void endRead() {
+        Binding b = _bound.get();
+        if (b == null)
+            return;
+        if (--b.depth > 0)
+            return;
+        _bound.set(b.previous);
+        synchronized (_readers) {
+            b.conn.busy = false;
+            _readers.notify();
+        }
+    }
+
+    /**
+     *  Bind the writer to this thread, waiting for any other writer to finish.
+     *  Must be followed by endWrite() in a finally block.
+     */
+    public void beginWrite() {
+        Binding b = _bound.get();
+        if (b != null && b.conn == _writer) {
+            b.depth++;
+            return;
+        }
+        if (b != null && _log.shouldLog(Log.WARN))
+            _log.warn("Write scope started inside a read scope", new Exception());
+        long start = System.currentTimeMillis();
+        try {
+            while (!_writeLock.tryLock(SLOW_WAIT, TimeUnit.MILLISECONDS)) {
+                if (_closed)
+                    throw new IllegalStateException("Connection pool closed");
+            }
+        } catch (InterruptedException ie) {
+            throw new IllegalStateException("Interrupted waiting for the writer");
+        }
+        _writer.checkedOut(System.currentTimeMillis() - start);
+        _bound.set(new Binding(_writer, b));
+    }
+
+    public void endWrite() {
+        Binding b = _bound.get();
+        if (b == null || b.conn != _writer)
+            return;
+        if (--b.depth > 0)
+            return;
+        _bound.set(b.previous);
+        _writeLock.unlock();
+    }
+
+    /**
+     *  Close all the connections. Connections currently checked out
+     *  are closed as well; their threads will get SQLExceptions.
+     */
+    public void close() {
+        _closed = true;
+        synchronized (_readers) {
+            for (int i = 0; i < _readers.length; i++) {
+                if (_readers[i] != null)
+                    _readers[i].close();
+            }
+            _readers.notifyAll();
+        }
+        if (_writer != null)
+            _writer.close();
+    }
+
+    /**
+     *  One line per connection with the number of checkouts and the
+     *  average and maximum time spent waiting for it
+     */
+    public String getStats() {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < _readers.length; i++) {
+            if (_readers[i] != null)
+                buf.append(_readers[i].getStats()).append('\n');
+        }
+        if (_writer != null)
+            buf.append(_writer.getStats()).append('\n');
+        return buf.toString();
+    }
+
+    /** the scope on a thread, linked to the outer one if nested */
+    private static class Binding {
+        final Conn conn;
+        final Binding previous;
+        int depth;
+
+        Binding(Conn conn, Binding previous) {
+            this.conn = conn;
+            this.previous = previous;
+            depth = 1;
+        }
+    }
+
+    private class Conn {
+        final String name;
+        final Connection con;
+        final StatementCache cache;
+        /** protected by _readers for readers, unused for the writer */
+        boolean busy;
+        private long _uses;
+        private long _totalWait;
+        private long _maxWait;
+
+        Conn(String name, Connection con, StatementCache.Counters counters, QueryStats stats) {
+            this.name = name;
+            this.con = con;
+            cache = new StatementCache(con, StatementCache.DEFAULT_MAX_STATEMENTS, counters, stats);
+        }
+
+        synchronized void checkedOut(long waited) {
+            _uses++;
+            _totalWait += waited;
+            if (waited > _maxWait)
+                _maxWait = waited;
+            if (waited > SLOW_WAIT && _log.shouldLog(Log.INFO))
+                _log.info("Waited " + waited + "ms for the " + name + " connection");
+        }
+
+        synchronized String getStats() {
+            long avg = _uses > 0 ? _totalWait / _uses : 0;
+            return name + ": uses: " + _uses + " wait avg: " + avg + "ms max: " + _maxWait + "ms total: " + _totalWait + "ms";
+        }
+
+        void close() {
+            cache.clear();
+            try {
+                if (!con.isClosed())
+                    con.close();
+            } catch (SQLException se) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Error closing the " + name + " connection", se);
+            }
+        }
+    }
+}
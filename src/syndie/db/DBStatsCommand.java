@@ -0,0 +1,84 @@
+package syndie.db;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ *CLI dbstats
+ * [--limit $num]
+ * [--reset $boolean]
+ * [--enable $boolean]
+ *
+ * Dump the per-SQL query stats of the running client, most total time first:
+ * count, total, p50, p99 and max time, and the rows updated.
+ * Also the statement cache, DB writer queue, page cache and channel index stats,
+ * and how long each phase of the login took.
+ * The query stats are only collected after --enable true, or with the
+ * syndie.dbstats system property set to true.
+ * --reset true clears them after the dump, --enable false stops collecting.
+ * Over a ctrlserv connection the output goes to the connected client
+ * like any other command's.
+ *
+ * @since 1.107b-1
+ */
+public class DBStatsCommand extends CommandImpl {
+
+    public static String getHelp(String cmd) {
+        return "[--limit $num] [--reset $boolean] [--enable $boolean]";
+    }
+
+    public DBClient runCommand(Opts args, UI ui, DBClient client) {
+        if ( (client == null) || (!client.isLoggedIn()) ) {
+            ui.errorMessage("Not logged in, no query stats");
+            ui.commandComplete(-1, null);
+            return client;
+        }
+        QueryStats stats = client.getQueryStats();
+        int limit = (int) args.getOptLong("limit", 50);
+        List<QueryStats.Snapshot> snapshots = stats.getSnapshots();
+        long count = 0;
+        long nanos = 0;
+        for (QueryStats.Snapshot s : snapshots) {
+            count += s.count;
+            nanos += s.totalNanos;
+        }
+        ui.statusMessage("Query stats since " + new Date(stats.getSince()) + ": " + snapshots.size() +
+                         " different queries, " + count + " executed in " + (nanos / 1000000) + "ms" +
+                         (stats.isEnabled() ? "" : " (disabled)"));
+        ui.statusMessage("Statement cache " + client.getStatementCacheStats());
+        ui.statusMessage("DB writer " + client.getWriterStats());
+        ui.statusMessage("Page cache " + client.getPageCacheStats());
+        ui.statusMessage("Channel index " + client.getChannelIndexStats());
+        ui.statusMessage("Startup " + client.getStartupStats());
+        ui.statusMessage("   count   total ms    p50 us    p99 us    max us       rows  sql");
+        for (int i = 0; i < snapshots.size() && i < limit; i++) {
+            QueryStats.Snapshot s = snapshots.get(i);
+            ui.statusMessage(pad(s.count, 8) + pad(s.totalNanos / 1000000, 11) + pad(s.p50Nanos / 1000, 10) +
+                             pad(s.p99Nanos / 1000, 10) + pad(s.maxNanos / 1000, 10) + pad(s.rows, 11) +
+                             "  " + s.sql);
+        }
+        if (snapshots.size() > limit)
+            ui.statusMessage("(" + (snapshots.size() - limit) + " more)");
+
+        if (args.getOptBoolean("reset", false)) {
+            stats.reset();
+            ui.statusMessage("Query stats reset");
+        }
+        String enable = args.getOptValue("enable");
+        if (enable != null) {
+            stats.setEnabled(Boolean.parseBoolean(enable));
+            ui.statusMessage("Query stats " + (stats.isEnabled() ? "enabled" : "disabled"));
+        }
+        ui.commandComplete(0, null);
+        return client;
+    }
+
+    private static String pad(long val, int width) {
+        StringBuilder buf = new StringBuilder(width);
+        String str = Long.toString(val);
+        for (int i = str.length(); i < width; i++)
+            buf.append(' ');
+        buf.append(str);
+        return buf.toString();
+    }
+}
@@ -0,0 +1,102 @@
+package syndie.db;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.SecureFile;
+
+/**
+ *CLI dbtune
+ * --db $url
+ * [--profile default|small|large]
+ * [--cacheRows $num]
+ * [--cacheSizeKB $num]
+ * [--nio $boolean]
+ * [--logSizeMB $num]
+ * [--writeDelayMs $num]
+ * [--lobScaleKB $num]
+ * [--defragPercent $num]
+ * [--reset $boolean]
+ * [--defrag $boolean]
+ *
+ * Show or change the database profile in the nym's prefs, and apply it.
+ * The individual settings override the profile's, --reset true
+ * drops them. --defrag true runs CHECKPOINT DEFRAG now.
+ *
+ * @since 1.107b-1
+ */
+public class DBTuneCommand extends CommandImpl {
+
+    private static final String OPTS[] = { "cacheRows", "cacheSizeKB", "nio", "logSizeMB", "writeDelayMs", "lobScaleKB", "defragPercent" };
+    private static final String PREFS[] = { DBTuning.PREF_CACHE_ROWS, DBTuning.PREF_CACHE_SIZE, DBTuning.PREF_NIO,
+                                            DBTuning.PREF_LOG_SIZE, DBTuning.PREF_WRITE_DELAY, DBTuning.PREF_LOB_SCALE,
+                                            DBTuning.PREF_DEFRAG_PERCENT };
+
+    public static String getHelp(String cmd) {
+        return "[--profile default|small|large] [--cacheRows $num] [--cacheSizeKB $num] [--nio $boolean] " +
+               "[--logSizeMB $num] [--writeDelayMs $num] [--lobScaleKB $num] [--defragPercent $num] " +
+               "[--reset $boolean] [--defrag $boolean]";
+    }
+
+    public DBClient runCommand(Opts args, UI ui, DBClient client) {
+        if ( (client == null) || (!client.isLoggedIn()) ) {
+            List missing = args.requireOpts(new String[] { "db" });
+            if (missing.size() > 0) {
+                ui.errorMessage("Invalid options, missing " + missing);
+                ui.commandComplete(-1, null);
+                return client;
+            }
+        }
+
+        try {
+            if (args.dbOptsSpecified()) {
+                if (client == null)
+                    client = new DBClient(I2PAppContext.getGlobalContext(), new SecureFile(TextEngine.getRootPath()));
+                else
+                    client.close();
+                client.connect(args.getOptValue("db"));
+            }
+            String name = args.getOptValue("profile");
+            if (name != null && !DBTuning.isProfile(name)) {
+                ui.errorMessage("Unknown profile: " + name);
+                ui.commandComplete(-1, null);
+                return client;
+            }
+
+            Properties prefs = new Properties();
+            prefs.putAll(client.getNymPrefs());
+            boolean changed = false;
+            if (name != null) {
+                prefs.setProperty(DBTuning.PREF_PROFILE, name);
+                changed = true;
+            }
+            if (args.getOptBoolean("reset", false)) {
+                for (int i = 0; i < PREFS.length; i++)
+                    prefs.remove(PREFS[i]);
+                changed = true;
+            }
+            for (int i = 0; i < OPTS.length; i++) {
+                String val = args.getOptValue(OPTS[i]);
+                if (val != null) {
+                    prefs.setProperty(PREFS[i], val);
+                    changed = true;
+                }
+            }
+            if (changed)
+                client.setNymPrefs(prefs);
+
+            DBTuning.Profile profile = client.applyTuning(prefs);
+            ui.statusMessage("Database profile " + profile);
+            int lost = client.checkDatabase(args.getOptBoolean("defrag", false));
+            if (lost >= 0)
+                ui.statusMessage("Lost space in the data file: " + lost + "%");
+            ui.commandComplete(0, null);
+        } catch (SQLException se) {
+            ui.errorMessage("Invalid database URL", se);
+            ui.commandComplete(-1, null);
+        }
+        return client;
+    }
+}
@@ -0,0 +1,185 @@
+package syndie.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import net.i2p.util.Log;
+
+/**
+ *  The hsqldb file settings, as a named profile in the nym prefs,
+ *  with any of the settings overridden by their own pref.
+ *  Applied at login with SET FILES, hsqldb stores them in the database,
+ *  and some (NIO, log size) only take effect the next time it is opened.
+ *
+ *  The hsqldb.nio_data_file=false in TextEngine's default URL is only
+ *  used when the database is created, after that the stored setting wins.
+ *
+ *  @since 1.107b-1
+ */
+class DBTuning {
+    public static final String PREF_PROFILE = "db.profile";
+    public static final String PREF_CACHE_ROWS = "db.cacheRows";
+    public static final String PREF_CACHE_SIZE = "db.cacheSizeKB";
+    public static final String PREF_NIO = "db.nio";
+    public static final String PREF_LOG_SIZE = "db.logSizeMB";
+    public static final String PREF_WRITE_DELAY = "db.writeDelayMs";
+    public static final String PREF_LOB_SCALE = "db.lobScaleKB";
+    /** CHECKPOINT DEFRAG when this much of the .data file is lost space */
+    public static final String PREF_DEFRAG_PERCENT = "db.defragPercent";
+
+    public static final String PROFILE_DEFAULT = "default";
+    public static final String PROFILE_SMALL = "small";
+    public static final String PROFILE_LARGE = "large";
+
+    private static final Map<String, Profile> _profiles = new HashMap<String, Profile>();
+
+    static {
+        // what a new syndie database gets from hsqldb and the default URL
+        _profiles.put(PROFILE_DEFAULT, new Profile(PROFILE_DEFAULT, 50000, 10000, false, 50, 500, 32, 30));
+        // low memory
+        _profiles.put(PROFILE_SMALL, new Profile(PROFILE_SMALL, 10000, 4000, false, 10, 500, 32, 20));
+        // large archives, lots of memory
+        _profiles.put(PROFILE_LARGE, new Profile(PROFILE_LARGE, 200000, 100000, true, 200, 1000, 32, 30));
+    }
+
+    public static class Profile {
+        public final String name;
+        public final int cacheRows;
+        public final int cacheSizeKB;
+        public final boolean nio;
+        public final int logSizeMB;
+        public final int writeDelayMs;
+        public final int lobScaleKB;
+        public final int defragPercent;
+
+        public Profile(String name, int cacheRows, int cacheSizeKB, boolean nio, int logSizeMB,
+                       int writeDelayMs, int lobScaleKB, int defragPercent) {
+            this.name = name;
+            this.cacheRows = cacheRows;
+            this.cacheSizeKB = cacheSizeKB;
+            this.nio = nio;
+            this.logSizeMB = logSizeMB;
+            this.writeDelayMs = writeDelayMs;
+            this.lobScaleKB = lobScaleKB;
+            this.defragPercent = defragPercent;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": cache rows " + cacheRows + ", cache size " + cacheSizeKB + "KB, NIO " + nio +
+                   ", log size " + logSizeMB + "MB, write delay " + writeDelayMs + "ms, LOB scale " + lobScaleKB +
+                   "KB, defrag at " + defragPercent + "% lost";
+        }
+    }
+
+    public static boolean isProfile(String name) {
+        return _profiles.containsKey(name);
+    }
+
+    /**
+     *  The named profile, unknown names are the default,
+     *  with the individual prefs applied on top
+     */
+    public static Profile getProfile(Properties prefs) {
+        String name = prefs.getProperty(PREF_PROFILE, PROFILE_DEFAULT);
+        Profile base = _profiles.get(name);
+        if (base == null) {
+            base = _profiles.get(PROFILE_DEFAULT);
+            name = PROFILE_DEFAULT;
+        }
+        int cacheRows = getInt(prefs, PREF_CACHE_ROWS, base.cacheRows);
+        int cacheSize = getInt(prefs, PREF_CACHE_SIZE, base.cacheSizeKB);
+        String nioStr = prefs.getProperty(PREF_NIO);
+        boolean nio = nioStr != null ? Boolean.parseBoolean(nioStr) : base.nio;
+        int logSize = getInt(prefs, PREF_LOG_SIZE, base.logSizeMB);
+        int writeDelay = getInt(prefs, PREF_WRITE_DELAY, base.writeDelayMs);
+        int lobScale = getInt(prefs, PREF_LOB_SCALE, base.lobScaleKB);
+        int defrag = getInt(prefs, PREF_DEFRAG_PERCENT, base.defragPercent);
+        return new Profile(name, cacheRows, cacheSize, nio, logSize, writeDelay, lobScale, defrag);
+    }
+
+    private static int getInt(Properties prefs, String name, int defaultValue) {
+        String val = prefs.getProperty(name);
+        if (val == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(val.trim());
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
+    private static final String SQL_GET_PROPERTIES = "SELECT PROPERTY_NAME, PROPERTY_VALUE FROM INFORMATION_SCHEMA.SYSTEM_PROPERTIES " +
+                                                     "WHERE PROPERTY_NAME LIKE 'hsqldb.%'";
+
+    /**
+     *  SET FILES for each setting that differs from the database's current one.
+     *  Does nothing if not a file database.
+     *
+     *  @return the number of settings changed
+     */
+    public static int apply(DBClient client, Profile profile) {
+        if (client.getDBFileRoot() == null)
+            return 0;
+        Log log = client.ctx().logManager().getLog(DBTuning.class);
+        Map<String, String> current = new HashMap<String, String>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_GET_PROPERTIES);
+            rs = stmt.executeQuery();
+            while (rs.next())
+                current.put(rs.getString(1), rs.getString(2));
+        } catch (SQLException se) {
+            if (log.shouldLog(Log.WARN))
+                log.warn("Unable to read the database properties", se);
+            return 0;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+
+        int changed = 0;
+        changed += set(client, log, current, "hsqldb.cache_rows", String.valueOf(profile.cacheRows),
+                       "SET FILES CACHE ROWS " + profile.cacheRows);
+        changed += set(client, log, current, "hsqldb.cache_size", String.valueOf(profile.cacheSizeKB),
+                       "SET FILES CACHE SIZE " + profile.cacheSizeKB);
+        changed += set(client, log, current, "hsqldb.nio_data_file", String.valueOf(profile.nio),
+                       "SET FILES NIO " + (profile.nio ? "TRUE" : "FALSE"));
+        changed += set(client, log, current, "hsqldb.log_size", String.valueOf(profile.logSizeMB),
+                       "SET FILES LOG SIZE " + profile.logSizeMB);
+        changed += set(client, log, current, "hsqldb.write_delay_millis", String.valueOf(profile.writeDelayMs),
+                       "SET FILES WRITE DELAY " + profile.writeDelayMs + " MILLIS");
+        // only allowed while there are no LOBs
+        changed += set(client, log, current, "hsqldb.lob_file_scale", String.valueOf(profile.lobScaleKB),
+                       "SET FILES LOB SCALE " + profile.lobScaleKB);
+        if (changed > 0 && log.shouldLog(Log.INFO))
+            log.info("Applied " + changed + " settings of the database profile " + profile);
+        return changed;
+    }
+
+    /**
+     *  @return 1 if changed, 0 if already set or failed
+     */
+    private static int set(DBClient client, Log log, Map<String, String> current, String property, String value, String sql) {
+        if (value.equalsIgnoreCase(current.get(property)))
+            return 0;
+        Statement stmt = null;
+        try {
+            stmt = client.con().createStatement();
+            stmt.execute(sql);
+            return 1;
+        } catch (SQLException se) {
+            if (log.shouldLog(Log.WARN))
+                log.warn("Unable to change " + property + " from " + current.get(property) + ": " + sql, se);
+            return 0;
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+}
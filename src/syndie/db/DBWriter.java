@@ -0,0 +1,412 @@
+package syndie.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+
+/**
+ *  The one thread that makes the database changes, so the importers,
+ *  the UI and the sync threads queue their writes here instead of
+ *  contending for the writer connection.
+ *
+ *  Each command runs in a write scope on the writer thread.
+ *  Consecutive batchable commands (imports) already in the queue run
+ *  together in one write scope and one group commit, and their Futures
+ *  complete once the group is committed, or fail if it is rolled back.
+ *
+ *  call() waits for the result, and runs the command in the caller's
+ *  thread if that is the writer thread, if the caller is already in a
+ *  write scope (it would deadlock otherwise), or if the writer isn't running.
+ *  submit() returns a Future.
+ *
+ *  Commands that are not batchable (the UI's and other interactive changes)
+ *  run ahead of the queued imports, so they wait for at most the batch
+ *  that is running, not for everything the fetchers have queued.
+ *
+ *  When more than HIGH_WATER commands are waiting, awaitCapacity()
+ *  blocks the sync fetchers until the queue is down to LOW_WATER.
+ *
+ *  Commands must not wait on anything the caller of call() may hold,
+ *  e.g. MessageStatusBuffer.flush() is not a command, only its write is.
+ *
+ *  @since 1.107b-1
+ */
+class DBWriter implements Runnable {
+    private final DBClient _client;
+    private final Log _log;
+    private final PriorityBlockingQueue<Entry> _queue;
+    /** queued plus running */
+    private final AtomicInteger _depth;
+    private final Object _capacityLock = new Object();
+    private volatile Thread _thread;
+    private volatile boolean _stopping;
+
+    // stats, protected by this
+    private long _completed;
+    private long _failed;
+    private long _batches;
+    private int _maxDepth;
+    private long _totalWait;
+    private long _maxWait;
+    private long _totalRun;
+    private long _maxRun;
+    private long _blocked;
+
+    public static final int HIGH_WATER = 50;
+    public static final int LOW_WATER = 25;
+    private static final int MAX_BATCH = DBClient.DEFAULT_GROUP_COMMIT_SIZE;
+    private static final long STOP_WAIT = 60*1000;
+    /** submission order, before STOP so it is set when STOP is made */
+    private static final AtomicLong _seq = new AtomicLong();
+    private static final Entry STOP = new Entry(null);
+
+    /**
+     *  A database change. Name it for the logs,
+     *  batchable if it may share a group commit with others.
+     */
+    public static abstract class Command<T> implements Callable<T> {
+        final String name;
+        final boolean batchable;
+
+        public Command(String name) { this(name, false); }
+
+        public Command(String name, boolean batchable) {
+            this.name = name;
+            this.batchable = batchable;
+        }
+    }
+
+    /**
+     *  In the queue, the interactive commands first, then the batchable ones,
+     *  then STOP, each in the order submitted
+     */
+    private static class Entry extends FutureTask<Object> implements Comparable<Entry> {
+        final Command<?> cmd;
+        final long queued;
+        private final int priority;
+        private final long seq;
+
+        @SuppressWarnings("unchecked")
+        Entry(Command<?> cmd) {
+            super(cmd != null ? (Callable<Object>) cmd : new Callable<Object>() { public Object call() { return null; } });
+            this.cmd = cmd;
+            queued = System.currentTimeMillis();
+            priority = cmd == null ? 2 : (cmd.batchable ? 1 : 0);
+            seq = _seq.incrementAndGet();
+        }
+
+        public int compareTo(Entry e) {
+            if (priority != e.priority)
+                return priority < e.priority ? -1 : 1;
+            return seq < e.seq ? -1 : (seq == e.seq ? 0 : 1);
+        }
+
+        /** for a command run outside run(), once its changes are committed */
+        void complete(Object result) { set(result); }
+
+        void fail(Throwable t) { setException(t); }
+    }
+
+    /**
+     *  Completes a grouped command's Future when its group commits
+     */
+    private class EntryCommit implements DBClient.CommitListener {
+        private final Entry _entry;
+        private final Object _result;
+
+        EntryCommit(Entry entry, Object result) {
+            _entry = entry;
+            _result = result;
+        }
+
+        public void committed() {
+            _entry.complete(_result);
+        }
+
+        public void rolledBack() {
+            _entry.fail(new SQLException("Rolled back with the group commit of " + _entry.cmd.name));
+            synchronized (DBWriter.this) {
+                _failed++;
+            }
+        }
+    }
+
+    public DBWriter(DBClient client) {
+        _client = client;
+        _log = client.ctx().logManager().getLog(DBWriter.class);
+        _queue = new PriorityBlockingQueue<Entry>();
+        _depth = new AtomicInteger();
+    }
+
+    public synchronized void start() {
+        if (_thread != null)
+            return;
+        _stopping = false;
+        Thread t = new I2PThread(this, "DB writer", true);
+        _thread = t;
+        t.start();
+    }
+
+    /**
+     *  Run what is queued, then stop. Commands submitted after this
+     *  run in the caller's thread.
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = _thread;
+            if (t == null)
+                return;
+            _stopping = true;
+        }
+        _queue.offer(STOP);
+        if (Thread.currentThread() != t) {
+            try {
+                t.join(STOP_WAIT);
+            } catch (InterruptedException ie) {}
+        }
+        synchronized (this) {
+            _thread = null;
+        }
+        synchronized (_capacityLock) {
+            _capacityLock.notifyAll();
+        }
+    }
+
+    private boolean isRunning() {
+        return _thread != null && !_stopping;
+    }
+
+    /**
+     *  Queue the command.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Future<T> submit(Command<T> cmd) {
+        Entry e = new Entry(cmd);
+        if (!isRunning()) {
+            runInline(e);
+            return (Future<T>) e;
+        }
+        int depth = _depth.incrementAndGet();
+        synchronized (this) {
+            if (depth > _maxDepth)
+                _maxDepth = depth;
+        }
+        _queue.offer(e);
+        return (Future<T>) e;
+    }
+
+    /**
+     *  Run the command on the writer and wait for it.
+     *
+     *  @throws RuntimeException wrapping a checked exception from the command
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T call(Command<T> cmd) {
+        Future<T> f;
+        if (Thread.currentThread() == _thread || _client.isWriteScope()) {
+            Entry e = new Entry(cmd);
+            runInline(e);
+            f = (Future<T>) e;
+        } else {
+            f = submit(cmd);
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return f.get();
+                } catch (InterruptedException ie) {
+                    // the change is queued, wait for it anyway
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException ee) {
+            Throwable t = ee.getCause();
+            if (t instanceof RuntimeException)
+                throw (RuntimeException) t;
+            if (t instanceof Error)
+                throw (Error) t;
+            throw new RuntimeException("Error in " + cmd.name, t);
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runInline(Entry e) {
+        _client.beginWrite();
+        try {
+            e.run();
+        } finally {
+            _client.endWrite();
+        }
+    }
+
+    /**
+     *  Block while the queue is over HIGH_WATER, until it is down to LOW_WATER.
+     *  For the fetchers, so they don't get far ahead of the imports.
+     */
+    public void awaitCapacity() throws InterruptedException {
+        if (_depth.get() < HIGH_WATER || !isRunning())
+            return;
+        long start = System.currentTimeMillis();
+        synchronized (_capacityLock) {
+            while (_depth.get() > LOW_WATER && isRunning())
+                _capacityLock.wait(1000);
+        }
+        long waited = System.currentTimeMillis() - start;
+        synchronized (this) {
+            _blocked += waited;
+        }
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug(Thread.currentThread().getName() + " waited " + waited + "ms for the writer queue");
+    }
+
+    /** commands queued or running */
+    public int getDepth() {
+        return _depth.get();
+    }
+
+    public void run() {
+        List<Entry> batch = new ArrayList<Entry>(MAX_BATCH);
+        try {
+            while (true) {
+                Entry e;
+                try {
+                    e = _queue.take();
+                } catch (InterruptedException ie) {
+                    continue;
+                }
+                if (e == STOP)
+                    break;
+                batch.add(e);
+                if (e.cmd.batchable) {
+                    while (batch.size() < MAX_BATCH) {
+                        Entry next = _queue.peek();
+                        if (next == null || next == STOP || !next.cmd.batchable)
+                            break;
+                        batch.add(_queue.poll());
+                    }
+                }
+                runBatch(batch);
+                batch.clear();
+            }
+        } finally {
+            // anything left after STOP
+            Entry e;
+            while ((e = _queue.poll()) != null) {
+                if (e != STOP) {
+                    runInline(e);
+                    _depth.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void runBatch(List<Entry> batch) {
+        boolean group = batch.size() > 1;
+        _client.beginWrite();
+        try {
+            if (group)
+                _client.beginGroupCommit(MAX_BATCH, DBClient.DEFAULT_GROUP_COMMIT_DELAY);
+            try {
+                for (Entry e : batch) {
+                    long start = System.currentTimeMillis();
+                    Throwable err = null;
+                    if (group) {
+                        // complete the Future only once the group commits
+                        long token = _client.getGroupCommitToken();
+                        Object result = null;
+                        try {
+                            result = e.cmd.call();
+                        } catch (Throwable t) {
+                            err = t;
+                        }
+                        if (err != null)
+                            e.fail(err);
+                        else
+                            _client.afterImportCommit(token, new EntryCommit(e, result));
+                    } else {
+                        e.run();
+                        err = getError(e);
+                    }
+                    long end = System.currentTimeMillis();
+                    _depth.decrementAndGet();
+                    record(e, start, end, err);
+                }
+            } finally {
+                if (group)
+                    _client.endGroupCommit();
+            }
+        } finally {
+            _client.endWrite();
+        }
+        synchronized (this) {
+            _batches++;
+        }
+        if (_depth.get() <= LOW_WATER) {
+            synchronized (_capacityLock) {
+                _capacityLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     *  @param e done
+     *  @return what it threw, or null
+     */
+    private static Throwable getError(Entry e) {
+        try {
+            e.get();
+        } catch (ExecutionException ee) {
+            return ee.getCause();
+        } catch (InterruptedException ie) {}
+        return null;
+    }
+
+    /**
+     *  @param err what the command threw, or null
+     */
+    private void record(Entry e, long start, long end, Throwable err) {
+        long wait = start - e.queued;
+        long run = end - start;
+        boolean failed = err != null;
+        if (failed && _log.shouldLog(Log.WARN))
+            _log.warn("DB writer command " + e.cmd.name + " failed", err);
+        synchronized (this) {
+            _completed++;
+            if (failed)
+                _failed++;
+            _totalWait += wait;
+            if (wait > _maxWait)
+                _maxWait = wait;
+            _totalRun += run;
+            if (run > _maxRun)
+                _maxRun = run;
+        }
+        if (run > 1000 && _log.shouldLog(Log.INFO))
+            _log.info("DB writer command " + e.cmd.name + " took " + run + "ms, waited " + wait + "ms");
+    }
+
+    @Override
+    public synchronized String toString() {
+        long n = Math.max(_completed, 1);
+        return "depth: " + _depth.get() + " max depth: " + _maxDepth +
+               " completed: " + _completed + " failed: " + _failed + " batches: " + _batches +
+               " wait avg/max: " + (_totalWait / n) + '/' + _maxWait + "ms" +
+               " run avg/max: " + (_totalRun / n) + '/' + _maxRun + "ms" +
+               " fetchers blocked: " + _blocked + "ms";
+    }
+}
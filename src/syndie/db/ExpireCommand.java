@@ -0,0 +1,33 @@
+package syndie.db;
+
+/**
+ *CLI expire
+ * [--dryrun $boolean]
+ *
+ * Run the expiration policies now, instead of waiting for the daily run.
+ * With --dryrun true, only report how many messages and data files
+ * would be expired and how much space that would free.
+ *
+ * @since 1.107b-1
+ */
+public class ExpireCommand extends CommandImpl {
+
+    public static String getHelp(String cmd) {
+        return "[--dryrun $boolean]";
+    }
+
+    public DBClient runCommand(Opts args, UI ui, DBClient client) {
+        if ( (client == null) || (!client.isLoggedIn()) ) {
+            ui.errorMessage("Not logged in");
+            ui.commandComplete(-1, null);
+            return client;
+        }
+        Expirer expirer = new Expirer(client, ui);
+        expirer.setDryRun(args.getOptBoolean("dryrun", false));
+        long start = System.currentTimeMillis();
+        expirer.expireMessages();
+        ui.debugMessage("Expiration took " + (System.currentTimeMillis() - start) + "ms");
+        ui.commandComplete(0, null);
+        return client;
+    }
+}
@@ -37,8 +37,14 @@ public class Expirer {
     private Map _chanIdToDataFilePolicy;
     private SharedArchive _sharedArchive;
 
+    private boolean _dryRun;
+    // totals for the summary
+    private int _dbExpired;
+    private long _dbExpiredKB;
+    private int _dataFilesExpired;
+    private long _dataFilesExpiredKB;
+
     private static final boolean LOG_EXPIRE_CAUSES = false;
-    private static final boolean ACTUALLY_DELETE = true;
     
     public Expirer(DBClient client, UI ui) {
         _client = client;
@@ -47,8 +53,18 @@ public class Expirer {
         _chanIdToDataFilePolicy = new HashMap();
     }
     
+    /**
+     *  Only report what would be expired, and how much that would free.
+     *  Message sizes missing in the database are still filled in.
+     *
+     *  @since 1.107b-1
+     */
+    public void setDryRun(boolean dryRun) { _dryRun = dryRun; }
+
     public void expireMessages() {
-        populateDBMessageSizes();
+        // a dry run computes the missing sizes in selectDBToExpire() instead
+        if (!_dryRun)
+            populateDBMessageSizes();
         loadPolicies();
         loadDataFileSummaries(); // expire by *target* channel, not scope channel, so do some crunching
         Set channelsWithCustomPolicies = _chanIdToDBPolicy.keySet();
@@ -110,6 +126,9 @@ public class Expirer {
             executeDataFilePolicy("removed", chan, -1, _defaultDataFilePolicy);
         }
         
+        _ui.statusMessage((_dryRun ? "Would expire " : "Expired ") +
+                          _dbExpired + " messages (" + _dbExpiredKB + "KB) from the database and " +
+                          _dataFilesExpired + " data files (" + _dataFilesExpiredKB + "KB)");
         _ui.debugMessage("Done expiring messages");
     }
     
@@ -171,17 +190,53 @@ public class Expirer {
         ArrayList sizes = new ArrayList();
         ArrayList uris = new ArrayList();
         long totalSizeKB = 0;
+        /** set by selectToExpire() */
+        long expiredSizeKB = 0;
     }
     
-    private static final String SQL_GET_TO_EXPIRE = "SELECT msgId, importDate, totalMessageSizeKB FROM channelMessage WHERE deletionCause IS NULL AND isCancelled = FALSE AND targetChannelId = ?";
-    /** get the db channel summary */
-    private ChannelData getChannelData(long chanId, String chan) {
+    /** the size of a channelMessage row's message, as set at import */
+    private static final String SQL_MSG_SIZE_KB = "(1024 + 1023" +
+        " + COALESCE((SELECT SUM(attachmentSize) FROM messageAttachment a WHERE a.msgId = channelMessage.msgId), 0)" +
+        " + COALESCE((SELECT SUM(COALESCE(LENGTH(dataString), LENGTH(lob), 0)) FROM messagePageData p WHERE p.msgId = channelMessage.msgId), 0)" +
+        " + COALESCE((SELECT OCTET_LENGTH(avatarData) FROM messageAvatar v WHERE v.msgId = channelMessage.msgId), 0)" +
+        ") / 1024";
+
+    private static final String SQL_GET_TO_EXPIRE = "SELECT msgId, importDate, totalMessageSizeKB FROM channelMessage " +
+                                                     "WHERE deletionCause IS NULL AND isCancelled = FALSE AND targetChannelId = ? " +
+                                                     "ORDER BY importDate DESC, msgId DESC";
+    /** for a dry run, computes the sizes that populateDBMessageSizes() would have set */
+    private static final String SQL_GET_TO_EXPIRE_DRYRUN = "SELECT msgId, importDate, COALESCE(totalMessageSizeKB, " + SQL_MSG_SIZE_KB + ") FROM channelMessage " +
+                                                     "WHERE deletionCause IS NULL AND isCancelled = FALSE AND targetChannelId = ? " +
+                                                     "ORDER BY importDate DESC, msgId DESC";
+
+    /**
+     *  The db messages to expire in the channel, in one pass over its messages,
+     *  newest first. They are kept while they are all within the age, count,
+     *  and size limits; the first one that isn't is expired with everything older.
+     *  This is what selectToExpire() does dropping the oldest first.
+     *
+     *  @param policy non-null
+     *  @return the msgIds, with expiredSizeKB set
+     *  @since 1.107b-1
+     */
+    private ChannelData selectDBToExpire(long chanId, String chan, ExpirationPolicy policy) {
         ChannelData data = new ChannelData();
+        int maxDays = policy.getMaxAgeDays();
+        long maxMsgs = policy.getMaxNumMessages();
+        int maxSizeKB = policy.getMaxSizeKB();
+        long earliestImportDate = 0;
+        if (maxDays > 0) {
+            long now = System.currentTimeMillis();
+            long dayBegin = now - (now % (24*60*60*1000l));
+            earliestImportDate = dayBegin - (24*60*60*1000l)*maxDays;
+        }
         
+        int kept = 0;
+        boolean expiring = false;
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _client.con().prepareStatement(SQL_GET_TO_EXPIRE);
+            stmt = _client.prepare(_dryRun ? SQL_GET_TO_EXPIRE_DRYRUN : SQL_GET_TO_EXPIRE);
             stmt.setLong(1, chanId);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -189,22 +244,41 @@ public class Expirer {
                 Date importDate = rs.getDate(2);
                 int size = rs.getInt(3);
                 
-                data.totalSizeKB += size;
-                
-                data.ids.add(Long.valueOf(msgId));
-                data.dates.add(Long.valueOf(importDate.getTime()));
-                data.sizes.add(Integer.valueOf(size));
-                data.uris.add(Long.valueOf(msgId));
+                if (!expiring) {
+                    long when = importDate != null ? importDate.getTime() : 0;
+                    if (maxDays > 0 && when < earliestImportDate) {
+                        if (LOG_EXPIRE_CAUSES)
+                            _ui.debugMessage("Expiring message " + msgId + " and older because it was imported too long ago vs the limit (" + maxDays + " days)");
+                        expiring = true;
+                    } else if (maxMsgs > 0 && kept >= maxMsgs) {
+                        if (LOG_EXPIRE_CAUSES)
+                            _ui.debugMessage("Expiring message " + msgId + " and older because the number of messages exceeds the max (" + maxMsgs + ")");
+                        expiring = true;
+                    } else if (maxSizeKB > 0 && data.totalSizeKB + size > maxSizeKB) {
+                        if (LOG_EXPIRE_CAUSES)
+                            _ui.debugMessage("Expiring message " + msgId + " and older because the total size exceeds the max size (" + maxSizeKB + "KB)");
+                        expiring = true;
+                    }
+                }
+                if (expiring) {
+                    data.ids.add(Long.valueOf(msgId));
+                    data.expiredSizeKB += size;
+                } else {
+                    kept++;
+                    data.totalSizeKB += size;
+                }
             }
         } catch (SQLException se) {
             _ui.errorMessage("Error listing messages to expire", se);
+            return new ChannelData();
         } finally {
             if (rs != null) try { rs.close(); } catch (SQLException se) {}
             if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
         }
         
-        if (data.totalSizeKB > 0)
-            _ui.debugMessage("db channel data for " + chan + "/" + chanId + ": total size: " + data.totalSizeKB + "KB, messages: " + data.ids.size());
+        if (data.totalSizeKB + data.expiredSizeKB > 0)
+            _ui.debugMessage("db channel data for " + chan + "/" + chanId + ": total size: " + (data.totalSizeKB + data.expiredSizeKB) +
+                             "KB, messages: " + (kept + data.ids.size()) + ", to expire: " + data.ids.size() + " (" + data.expiredSizeKB + "KB)");
         return data;
     }
     
@@ -246,11 +320,13 @@ public class Expirer {
             _ui.errorMessage("Null policy", new Exception("I did it"));
             return;
         }
-        ChannelData data = getChannelData(chanId, chan+"");
-        Map idsToExpire = selectToExpire(data, policy);
-        if (idsToExpire.size() > 0) {
+        ChannelData data = selectDBToExpire(chanId, chan+"", policy);
+        if (data.ids.size() > 0) {
             //_ui.debugMessage("Executing " + policyType + " db policy for channel " + chanId + "/" + chan);
-            deleteDBMessages(chanId, chan, new TreeSet(idsToExpire.keySet()));
+            if (deleteDBMessages(chanId, chan, data.ids)) {
+                _dbExpired += data.ids.size();
+                _dbExpiredKB += data.expiredSizeKB;
+            }
         }
     }
 
@@ -267,6 +343,8 @@ public class Expirer {
         if (idsToExpire.size() > 0) {
             //_ui.debugMessage("Executing " + policyType + " data file policy for channel " + chan);
             deleteDataFileMessages(chan, chanId, idsToExpire);
+            _dataFilesExpired += idsToExpire.size();
+            _dataFilesExpiredKB += data.expiredSizeKB;
         }
     }
     
@@ -297,6 +375,7 @@ public class Expirer {
                     Object uri = data.uris.remove(i);
                     Integer sizeKB = (Integer)data.sizes.remove(i);
                     data.totalSizeKB -= sizeKB.intValue();
+                    data.expiredSizeKB += sizeKB.intValue();
                     
                     int importDays = (int)((dayBegin - impDate.longValue()) / (24*60*60*1000l));
 
@@ -316,6 +395,7 @@ public class Expirer {
                 Object uri = data.uris.remove(0);
                 Integer size = (Integer)data.sizes.remove(0);
                 data.totalSizeKB -= size.intValue();
+                data.expiredSizeKB += size.intValue();
                 
                 if (LOG_EXPIRE_CAUSES)
                     _ui.debugMessage("Expiring message " + id + " because the total number of messages (" + data.ids.size() + ") still exceedsthe max number of messages (" + maxMsgs + ")");
@@ -335,6 +415,7 @@ public class Expirer {
                     _ui.debugMessage("Expiring message " + id + " because the total size (" + data.totalSizeKB + "KB) still exceeds the max size (" + maxSizeKB + "KB)");
                 
                 data.totalSizeKB -= size.intValue();
+                data.expiredSizeKB += size.intValue();
                 idsToExpire.put(id, uri);
             }
         }
@@ -342,24 +423,29 @@ public class Expirer {
         return idsToExpire;
     }
     
-    private void deleteDBMessages(long chanId, Hash chan, Collection msgIds) {
+    /**
+     *  All in one transaction
+     *
+     *  @return success
+     */
+    private boolean deleteDBMessages(long chanId, Hash chan, List<Long> msgIds) {
         if (msgIds.size() > 0) {
             _ui.debugMessage("Messages to expire in " + chan + "/" + chanId + " for the db policy: " + msgIds);
-            if (ACTUALLY_DELETE) {
-                for (Iterator iter = msgIds.iterator(); iter.hasNext(); ) {
-                    Long msgId = (Long)iter.next();
-                    Exception err = _client.expireMessageFromDB(msgId.longValue());
-                    if (err != null)
-                        _ui.errorMessage("Error deleting expired message from the db: " + msgId, err);
+            if (!_dryRun) {
+                Exception err = _client.expireMessagesFromDB(msgIds);
+                if (err != null) {
+                    _ui.errorMessage("Error deleting expired messages from the db in " + chan + "/" + chanId, err);
+                    return false;
                 }
             }
         }
+        return true;
     }
     
     private void deleteDataFileMessages(Hash chan, long chanId, Map ids) {
         if (ids.size() > 0) {
             _ui.debugMessage("Messages to expire in " + chan + "/" + chanId + " for the data file policy: " + ids.values());
-            if (ACTUALLY_DELETE) {
+            if (!_dryRun) {
                 // we figure out what to delete by target channel id, but the files are stored by
                 // scope channel id (which is why we keep track of the uris so we can pick the right dir)
                 for (Iterator iter = ids.values().iterator(); iter.hasNext(); ) {
@@ -420,79 +506,34 @@ public class Expirer {
         return rv;
     }
     
-    /** 
-     * old messages may not yet have their totalMessageSizeKB fields set, so lets populate those
-     * ones before continuing on
+    private static final String SQL_POPULATE_MSG_SIZES =
+        "UPDATE channelMessage SET totalMessageSizeKB = " + SQL_MSG_SIZE_KB +
+        " WHERE totalMessageSizeKB IS NULL AND isCancelled = FALSE AND deletionCause IS NULL";
+
+    /**
+     *  Messages are sized at import, but ones imported before the
+     *  totalMessageSizeKB column was added (ddl_update20) may not be,
+     *  so set those in one statement before continuing on.
+     *  Pages in the blob store aren't counted, but those were all
+     *  imported with their size.
      */
     private void populateDBMessageSizes() {
-        List msgIds = getSizelessMessages();
-        for (int i = 0; i < msgIds.size(); i++) {
-            long msgId = ((Long)msgIds.get(i)).longValue();
-            setMessageSize(msgId, calculateMessageSizeKB(msgId));
-        }
-    }
-    
-    private static final String SQL_GET_SIZELESS_MSGS = "SELECT msgId FROM channelMessage WHERE totalMessageSizeKB is NULL AND isCancelled = FALSE AND deletionCause IS NULL";
-    private List getSizelessMessages() {
-        ArrayList rv = new ArrayList();
-        PreparedStatement stmt = null;
-        ResultSet rs = null;
         try {
-            stmt = _client.con().prepareStatement(SQL_GET_SIZELESS_MSGS);
-            rs = stmt.executeQuery();
-            while (rs.next()) {
-                long id = rs.getLong(1);
-                if ( (!rs.wasNull()) && (id >= 0) )
-                    rv.add(Long.valueOf(id));
-            }
-        } catch (SQLException se) {
-            _ui.errorMessage("Error listing sizeless messages", se);
-        } finally {
-            if (rs != null) try { rs.close(); } catch (SQLException se) {}
-            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
-        }
-        return rv;
-    }
-    
-    private static final String SQL_GET_SIZE_ATTACHMENTS = "SELECT SUM(attachmentSize) FROM messageAttachment WHERE msgId = ?";
-    private static final String SQL_GET_SIZE_PAGES = "SELECT SUM(LENGTH(dataString)) FROM messagePageData WHERE msgId = ?";
-    private static final String SQL_GET_SIZE_AVATAR = "SELECT LENGTH(avatarData) FROM messageAvatar WHERE msgId = ?";
-    private int calculateMessageSizeKB(long msgId) {
-        long attachmentSize = calculateSize(SQL_GET_SIZE_ATTACHMENTS, msgId);
-        long pageSize = calculateSize(SQL_GET_SIZE_PAGES, msgId);
-        long msgAvatarSize = calculateSize(SQL_GET_SIZE_AVATAR, msgId);
-        long otherSize = 1024;
-        
-        return (int)((attachmentSize + pageSize + msgAvatarSize + otherSize + 1023)/1024);
-    }
-    
-    private long calculateSize(String query, long msgId) {
-        PreparedStatement stmt = null;
-        ResultSet rs = null;
-        try {
-            stmt = _client.con().prepareStatement(query);
-            stmt.setLong(1, msgId);
-            rs = stmt.executeQuery();
-            if (rs.next()) {
-                long val = rs.getLong(1);
-                if (!rs.wasNull())
-                    return val;
-            }
-        } catch (SQLException se) {
-            _ui.errorMessage("Error calculating size [" + query + "]", se);
-        } finally {
-            if (rs != null) try { rs.close(); } catch (SQLException se) {}
-            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
-        }
-        return 0;
-    }
-    
-    private static final String SQL_SET_MSG_SIZE = "UPDATE channelMessage SET totalMessageSizeKB = ? WHERE msgId = ?";
-    private void setMessageSize(long msgId, int sizeKB) {
-        try {
-            _client.exec(SQL_SET_MSG_SIZE, sizeKB, msgId);
-        } catch (SQLException se) {
-            _ui.errorMessage("error setting the message size", se);
+            int count = _client.writer().call(new DBWriter.Command<Integer>("populateSizes") {
+                public Integer call() throws SQLException {
+                    PreparedStatement stmt = null;
+                    try {
+                        stmt = _client.prepareUncached(SQL_POPULATE_MSG_SIZES);
+                        return Integer.valueOf(stmt.executeUpdate());
+                    } finally {
+                        if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+                    }
+                }
+            }).intValue();
+            if (count > 0)
+                _ui.debugMessage("Set the size of " + count + " old messages");
+        } catch (RuntimeException re) {
+            _ui.errorMessage("Error setting the message sizes", re);
         }
     }
 }
@@ -0,0 +1,558 @@
+package syndie.db;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.SecureFile;
+
+import syndie.thread.ThreadAccumulatorJWZ;
+
+/**
+ *CLI explainplans
+ * --db $url
+ * [--synthetic $numMessages]
+ * [--baseline $file]
+ * [--save $file]
+ * [--maxms $ms]
+ * [--rounds $num]
+ * [--class $className]*
+ *
+ * Query plan regression check.
+ * Runs EXPLAIN PLAN on every SQL_* constant of DBClient and ThreadAccumulatorJWZ
+ * (and of any --class given), and times the SELECTs.
+ *
+ * With --synthetic, the database must be a new in-memory one
+ * (jdbc:hsqldb:mem:...), which is filled with generated forums and messages first.
+ * With --baseline, fails if a statement does a full table scan
+ * that it did not do in the baseline, as written before with --save,
+ * or if a statement not in the baseline does any full scan.
+ * The baseline for the current schema is tests/explainplans-baseline.txt,
+ * save it again when a change to the schema or the statements is meant to change the plans.
+ * With --maxms, fails if a SELECT takes longer than that on average.
+ *
+ * @since 1.107b-1
+ */
+public class ExplainPlans extends CommandImpl {
+
+    private static final long DEFAULT_ROUNDS = 3;
+    private static final String FULL_SCAN = "FULL SCAN";
+    private static final Class[] DEFAULT_CLASSES = { DBClient.class, ThreadAccumulatorJWZ.class };
+
+    public static String getHelp(String cmd) {
+        return "[--synthetic $numMessages] [--baseline $file] [--save $file] [--maxms $ms] [--rounds $num] [--class $className]*";
+    }
+
+    public DBClient runCommand(Opts args, UI ui, DBClient client) {
+        if ( (client == null) || (!client.isLoggedIn()) ) {
+            List missing = args.requireOpts(new String[] { "db" });
+            if (missing.size() > 0) {
+                ui.errorMessage("Invalid options, missing " + missing);
+                ui.commandComplete(-1, null);
+                return client;
+            }
+        }
+
+        try {
+            if (args.dbOptsSpecified()) {
+                if (client == null)
+                    client = new DBClient(I2PAppContext.getGlobalContext(), new SecureFile(TextEngine.getRootPath()));
+                else
+                    client.close();
+                client.connect(args.getOptValue("db"));
+            }
+            long synthetic = args.getOptLong("synthetic", 0);
+            if (synthetic > 0) {
+                String url = args.getOptValue("db");
+                if (url == null || !url.startsWith("jdbc:hsqldb:mem:")) {
+                    ui.errorMessage("Synthetic data may only be generated in a jdbc:hsqldb:mem: database");
+                    ui.commandComplete(-1, null);
+                    return client;
+                }
+                long start = System.currentTimeMillis();
+                client.beginWrite();
+                try {
+                    generate(client, (int) synthetic);
+                    new ChannelStats(client).rebuild();
+                } finally {
+                    client.endWrite();
+                }
+                ui.statusMessage("Generated " + synthetic + " messages in " + (System.currentTimeMillis() - start) + "ms");
+            }
+
+            List<Class> classes = new ArrayList<Class>(Arrays.asList(DEFAULT_CLASSES));
+            List<String> extra = args.getOptValues("class");
+            if (extra != null) {
+                for (String name : extra) {
+                    try {
+                        classes.add(Class.forName(name));
+                    } catch (ClassNotFoundException cnfe) {
+                        ui.errorMessage("Unknown class: " + name);
+                        ui.commandComplete(-1, null);
+                        return client;
+                    }
+                }
+            }
+
+            Map<String, String> baseline = null;
+            String baselineFile = args.getOptValue("baseline");
+            if (baselineFile != null)
+                baseline = readPlans(new File(baselineFile));
+            int rounds = (int) Math.max(1, args.getOptLong("rounds", DEFAULT_ROUNDS));
+            long maxMs = args.getOptLong("maxms", -1);
+
+            Map<String, String> plans = new TreeMap<String, String>();
+            int failures = check(client, ui, classes, plans, baseline, rounds, maxMs);
+
+            String saveFile = args.getOptValue("save");
+            if (saveFile != null) {
+                writePlans(new File(saveFile), plans);
+                ui.statusMessage("Plans saved to " + saveFile);
+            }
+            ui.commandComplete(failures > 0 ? -1 : 0, null);
+        } catch (SQLException se) {
+            ui.errorMessage("Invalid database URL", se);
+            ui.commandComplete(-1, null);
+        } catch (IOException ioe) {
+            ui.errorMessage("Error with the plan file", ioe);
+            ui.commandComplete(-1, null);
+        }
+        return client;
+    }
+
+    /**
+     *  Explain and time every statement.
+     *
+     *  @param plans out parameter, statement name to plan summary
+     *  @param baseline may be null
+     *  @param maxMs less than zero for no limit
+     *  @return the number of regressions and slow statements
+     */
+    private static int check(DBClient client, UI ui, List<Class> classes, Map<String, String> plans,
+                             Map<String, String> baseline, int rounds, long maxMs) {
+        int explained = 0;
+        int skipped = 0;
+        int scans = 0;
+        int regressions = 0;
+        int slow = 0;
+        for (Class cls : classes) {
+            Map<String, String> stmts = getStatements(cls);
+            for (Map.Entry<String, String> e : stmts.entrySet()) {
+                String name = cls.getSimpleName() + '.' + e.getKey();
+                String sql = complete(client.con(), e.getValue());
+                if (sql == null) {
+                    ui.debugMessage(name + ": skipped, not a complete statement");
+                    skipped++;
+                    continue;
+                }
+                String plan;
+                try {
+                    plan = explain(client.con(), sql);
+                } catch (SQLException se) {
+                    ui.debugMessage(name + ": skipped, " + se.getMessage());
+                    skipped++;
+                    continue;
+                }
+                explained++;
+                plans.put(name, plan);
+                List<String> fullScans = getFullScans(plan);
+                scans += fullScans.size();
+
+                if (baseline != null) {
+                    String old = baseline.get(name);
+                    if (old == null) {
+                        if (!fullScans.isEmpty()) {
+                            ui.errorMessage(name + ": not in the baseline, full scan of " + fullScans + ", plan: " + plan);
+                            regressions++;
+                        }
+                    } else {
+                        List<String> added = new ArrayList<String>(fullScans);
+                        for (String t : getFullScans(old)) {
+                            added.remove(t);
+                        }
+                        if (!added.isEmpty()) {
+                            ui.errorMessage(name + ": new full scan of " + added + ", was: " + old + " now: " + plan);
+                            regressions++;
+                        }
+                    }
+                }
+
+                long avg = -1;
+                if (sql.trim().toUpperCase(Locale.US).startsWith("SELECT")) {
+                    try {
+                        avg = time(client.con(), sql, rounds);
+                    } catch (SQLException se) {
+                        ui.debugMessage(name + ": not timed, " + se.getMessage());
+                    }
+                }
+                if (maxMs >= 0 && avg > maxMs) {
+                    ui.errorMessage(name + ": " + avg + "ms, limit " + maxMs + "ms, plan: " + plan);
+                    slow++;
+                }
+                ui.debugMessage(name + ": " + plan + (avg >= 0 ? " " + avg + "ms" : ""));
+            }
+        }
+        ui.statusMessage(explained + " statements explained, " + skipped + " skipped, " +
+                         scans + " full scans, " + regressions + " new full scans, " + slow + " too slow");
+        return regressions + slow;
+    }
+
+    /**
+     *  The private static final String SQL_* fields.
+     *
+     *  @return field name to SQL, ordered by name
+     */
+    static Map<String, String> getStatements(Class cls) {
+        Map<String, String> rv = new TreeMap<String, String>();
+        Field fields[] = cls.getDeclaredFields();
+        for (int i = 0; i < fields.length; i++) {
+            Field f = fields[i];
+            int mod = f.getModifiers();
+            if (!Modifier.isStatic(mod) || !Modifier.isFinal(mod) ||
+                f.getType() != String.class || !f.getName().startsWith("SQL_"))
+                continue;
+            try {
+                f.setAccessible(true);
+                String sql = (String) f.get(null);
+                if (sql != null)
+                    rv.put(f.getName(), sql);
+            } catch (IllegalAccessException iae) {
+            } catch (SecurityException se) {}
+        }
+        return rv;
+    }
+
+    /**
+     *  Some of the constants are prefixes, completed with an IN list at runtime.
+     *  Complete those with a single parameter.
+     *
+     *  @return null if it can't be prepared, or isn't something to explain
+     */
+    private static String complete(Connection con, String sql) {
+        String s = sql.trim();
+        String upper = s.toUpperCase(Locale.US);
+        if (!(upper.startsWith("SELECT") || upper.startsWith("INSERT") || upper.startsWith("UPDATE") ||
+              upper.startsWith("DELETE") || upper.startsWith("MERGE")))
+            return null;
+        String candidates[];
+        if (upper.endsWith(" IN"))
+            candidates = new String[] { s + " (?)" };
+        else if (upper.endsWith("("))
+            candidates = new String[] { s + "?)" };
+        else
+            candidates = new String[] { s };
+        for (int i = 0; i < candidates.length; i++) {
+            PreparedStatement stmt = null;
+            try {
+                stmt = con.prepareStatement(candidates[i]);
+                return candidates[i];
+            } catch (SQLException se) {
+            } finally {
+                if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+            }
+        }
+        return null;
+    }
+
+    /**
+     *  @return a summary of the plan: "TABLE=access" for each table, in order, comma separated
+     */
+    private static String explain(Connection con, String sql) throws SQLException {
+        StringBuilder buf = new StringBuilder();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = con.prepareStatement("EXPLAIN PLAN FOR " + sql);
+            rs = stmt.executeQuery();
+            String table = null;
+            while (rs.next()) {
+                String line = rs.getString(1);
+                if (line == null)
+                    continue;
+                line = line.trim();
+                if (line.startsWith("table=")) {
+                    table = line.substring("table=".length());
+                } else if (line.startsWith("access=") && table != null) {
+                    if (buf.length() > 0)
+                        buf.append(',');
+                    buf.append(table).append('=').append(line.substring("access=".length()));
+                    table = null;
+                }
+            }
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return buf.toString();
+    }
+
+    /**
+     *  @return the tables fully scanned, once per scan
+     */
+    private static List<String> getFullScans(String plan) {
+        List<String> rv = new ArrayList<String>();
+        StringTokenizer tok = new StringTokenizer(plan, ",");
+        while (tok.hasMoreTokens()) {
+            String t = tok.nextToken();
+            int eq = t.indexOf('=');
+            if (eq > 0 && FULL_SCAN.equals(t.substring(eq + 1)))
+                rv.add(t.substring(0, eq));
+        }
+        return rv;
+    }
+
+    /**
+     *  Run the query with sample parameters, after one untimed run.
+     *
+     *  @return average ms per run
+     */
+    private static long time(Connection con, String sql, int rounds) throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = con.prepareStatement(sql);
+            bindSamples(stmt);
+            long total = 0;
+            for (int r = 0; r <= rounds; r++) {
+                long start = System.currentTimeMillis();
+                rs = stmt.executeQuery();
+                while (rs.next()) {}
+                rs.close();
+                rs = null;
+                if (r > 0)
+                    total += System.currentTimeMillis() - start;
+            }
+            return total / rounds;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    private static final long SAMPLE_DATE = System.currentTimeMillis() - 30*24*60*60*1000l;
+
+    private static void bindSamples(PreparedStatement stmt) throws SQLException {
+        ParameterMetaData md = stmt.getParameterMetaData();
+        int count = md.getParameterCount();
+        for (int i = 1; i <= count; i++) {
+            switch (md.getParameterType(i)) {
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                case Types.BIGINT:
+                case Types.NUMERIC:
+                case Types.DECIMAL:
+                    stmt.setLong(i, 1);
+                    break;
+                case Types.BOOLEAN:
+                case Types.BIT:
+                    stmt.setBoolean(i, false);
+                    break;
+                case Types.DATE:
+                    stmt.setDate(i, new java.sql.Date(SAMPLE_DATE));
+                    break;
+                case Types.TIMESTAMP:
+                    stmt.setTimestamp(i, new java.sql.Timestamp(SAMPLE_DATE));
+                    break;
+                case Types.BINARY:
+                case Types.VARBINARY:
+                    stmt.setBytes(i, new byte[32]);
+                    break;
+                case Types.CHAR:
+                case Types.VARCHAR:
+                    stmt.setString(i, "a");
+                    break;
+                default:
+                    stmt.setNull(i, md.getParameterType(i));
+                    break;
+            }
+        }
+    }
+
+    private static final String SQL_GEN_CHANNEL = "INSERT INTO channel (channelId, channelHash, edition, name, description, " +
+                                                  "allowPubPost, allowPubReply, importDate) VALUES (?, ?, 1, ?, 'synthetic', FALSE, TRUE, ?)";
+    private static final String SQL_GEN_MESSAGE = "INSERT INTO channelMessage (msgId, scopeChannelId, messageId, targetChannelId, " +
+                                                  "authorChannelId, subject, forceNewThread, refuseReplies, wasEncrypted, wasPBE, wasPrivate, " +
+                                                  "wasAuthorized, wasAuthenticated, isCancelled, importDate, totalMessageSizeKB) " +
+                                                  "VALUES (?, ?, ?, ?, ?, ?, FALSE, FALSE, TRUE, FALSE, ?, TRUE, TRUE, FALSE, ?, 4)";
+    private static final String SQL_GEN_PARENT = "INSERT INTO messageHierarchy (msgId, referencedChannelHash, referencedMessageId, referencedCloseness) VALUES (?, ?, ?, 1)";
+    private static final String SQL_GEN_TAG = "INSERT INTO messageTag (msgId, tag, isPublic) VALUES (?, ?, TRUE)";
+    private static final String SQL_GEN_PAGE = "INSERT INTO messagePage (msgId, pageNum, contentType) VALUES (?, 0, 'text/plain')";
+    private static final String SQL_GEN_TERM = "INSERT INTO messageTerm (term, msgId, positions) VALUES (?, ?, '0')";
+    private static final String SQL_GEN_UNREAD = "INSERT INTO nymUnreadMessage (nymId, msgId) VALUES (?, ?)";
+    private static final int GEN_TAGS = 50;
+
+    /**
+     *  Fill an empty database with forums, messages in threads, tags, pages,
+     *  index terms and unread messages, all from a fixed seed so runs compare.
+     *  Caller must be in a write scope.
+     */
+    private static void generate(DBClient client, int messages) throws SQLException {
+        Random rnd = new Random(messages);
+        int channels = Math.max(10, messages / 100);
+        long now = System.currentTimeMillis();
+        byte hashes[][] = new byte[channels][32];
+        long messageIds[] = new long[messages];
+        int scopes[] = new int[messages];
+        Connection con = client.con();
+        PreparedStatement stmt = null;
+        Object tx = client.beginImportTransaction();
+        try {
+            stmt = con.prepareStatement(SQL_GEN_CHANNEL);
+            for (int i = 0; i < channels; i++) {
+                rnd.nextBytes(hashes[i]);
+                stmt.setLong(1, i);
+                stmt.setBytes(2, hashes[i]);
+                stmt.setString(3, "forum " + i);
+                stmt.setDate(4, new java.sql.Date(now - rnd.nextInt(365) * 24*60*60*1000l));
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            stmt.close();
+
+            stmt = con.prepareStatement(SQL_GEN_MESSAGE);
+            for (int i = 0; i < messages; i++) {
+                scopes[i] = rnd.nextInt(channels);
+                messageIds[i] = now - (messages - i) * 60*1000l;
+                stmt.setLong(1, i);
+                stmt.setLong(2, scopes[i]);
+                stmt.setLong(3, messageIds[i]);
+                stmt.setLong(4, rnd.nextInt(10) == 0 ? rnd.nextInt(channels) : scopes[i]);
+                stmt.setLong(5, scopes[i]);
+                stmt.setString(6, "subject " + i);
+                stmt.setBoolean(7, rnd.nextInt(20) == 0);
+                stmt.setDate(8, new java.sql.Date(messageIds[i]));
+                stmt.addBatch();
+                if ((i % 1000) == 999)
+                    stmt.executeBatch();
+            }
+            stmt.executeBatch();
+            stmt.close();
+
+            // about two thirds are replies to an earlier message
+            stmt = con.prepareStatement(SQL_GEN_PARENT);
+            for (int i = 1; i < messages; i++) {
+                if (rnd.nextInt(3) == 0)
+                    continue;
+                int parent = Math.max(0, i - 1 - rnd.nextInt(Math.min(i, 200)));
+                stmt.setLong(1, i);
+                stmt.setBytes(2, hashes[scopes[parent]]);
+                stmt.setLong(3, messageIds[parent]);
+                stmt.addBatch();
+                if ((i % 1000) == 999)
+                    stmt.executeBatch();
+            }
+            stmt.executeBatch();
+            stmt.close();
+
+            stmt = con.prepareStatement(SQL_GEN_TAG);
+            for (int i = 0; i < messages; i++) {
+                int first = rnd.nextInt(GEN_TAGS);
+                stmt.setLong(1, i);
+                stmt.setString(2, "tag" + first);
+                stmt.addBatch();
+                stmt.setLong(1, i);
+                stmt.setString(2, "tag" + ((first + 1 + rnd.nextInt(GEN_TAGS - 1)) % GEN_TAGS));
+                stmt.addBatch();
+                if ((i % 500) == 499)
+                    stmt.executeBatch();
+            }
+            stmt.executeBatch();
+            stmt.close();
+
+            stmt = con.prepareStatement(SQL_GEN_PAGE);
+            for (int i = 0; i < messages; i++) {
+                stmt.setLong(1, i);
+                stmt.addBatch();
+                if ((i % 1000) == 999)
+                    stmt.executeBatch();
+            }
+            stmt.executeBatch();
+            stmt.close();
+
+            stmt = con.prepareStatement(SQL_GEN_TERM);
+            for (int i = 0; i < messages; i++) {
+                stmt.setString(1, "subject");
+                stmt.setLong(2, i);
+                stmt.addBatch();
+                stmt.setString(1, "word" + rnd.nextInt(1000));
+                stmt.setLong(2, i);
+                stmt.addBatch();
+                if ((i % 500) == 499)
+                    stmt.executeBatch();
+            }
+            stmt.executeBatch();
+            stmt.close();
+
+            // the newest third is unread
+            stmt = con.prepareStatement(SQL_GEN_UNREAD);
+            for (int i = messages - messages / 3; i < messages; i++) {
+                stmt.setLong(1, 1);
+                stmt.setLong(2, i);
+                stmt.addBatch();
+                if ((i % 1000) == 999)
+                    stmt.executeBatch();
+            }
+            stmt.executeBatch();
+            stmt.close();
+            stmt = null;
+        } catch (SQLException se) {
+            if (stmt != null) try { stmt.close(); } catch (SQLException e) {}
+            client.rollbackImportTransaction(tx);
+            throw se;
+        }
+        if (!client.commitImportTransaction(tx))
+            throw new SQLException("Error committing the synthetic data");
+    }
+
+    /**
+     *  One "name TAB plan" per line
+     */
+    private static Map<String, String> readPlans(File f) throws IOException {
+        Map<String, String> rv = new HashMap<String, String>();
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (line.startsWith("#") || tab <= 0)
+                    continue;
+                rv.put(line.substring(0, tab), line.substring(tab + 1));
+            }
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+        return rv;
+    }
+
+    private static void writePlans(File f, Map<String, String> plans) throws IOException {
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+            out.println("# explainplans baseline, statement TAB table=access,...");
+            for (Map.Entry<String, String> e : plans.entrySet()) {
+                out.println(e.getKey() + '\t' + e.getValue());
+            }
+            if (out.checkError())
+                throw new IOException("Error writing " + f);
+        } finally {
+            if (out != null) out.close();
+        }
+    }
+}
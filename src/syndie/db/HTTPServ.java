@@ -1,5 +1,7 @@
 package syndie.db;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -15,6 +17,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 
 import net.i2p.data.Base64;
@@ -47,6 +50,13 @@ public class HTTPServ implements CLI.Command {
     private static String _startFailedMessage;
     private boolean _allowPost;
     private static SharedArchive _archive;
+    /** the last modified time of the index file _archive was loaded from */
+    private static long _archiveLastModified;
+    /** since version to the delta to _deltaCacheVersion, or NO_DELTA for the full index; protected by itself */
+    private static final Map<Long, byte[]> _deltaCache = new HashMap<Long, byte[]>();
+    /** the published index version the cached deltas go to, protected by _deltaCache */
+    private static long _deltaCacheVersion;
+    private static final byte[] NO_DELTA = new byte[0];
     private int _minListeners;
     private int _curListeners;
     private static final int MAX_LISTENERS = 50;
@@ -268,31 +278,11 @@ public class HTTPServ implements CLI.Command {
                     _ui.debugMessage("shared index is too old, rebuilding it");
                     JobRunner.instance().enqueue(new Runnable() { 
                         public void run() { 
-                            File tmp = null;
-                            FileInputStream fis = null;
-                            FileOutputStream fos = null;
                             try {
-                                tmp = SecureFile.createTempFile("index", "dat", _client.getTempDir());
-                                boolean ok = LocalArchiveManager.buildIndex(_client, _ui, mgr.getDefaultPullStrategy(), tmp);
-                                // TODO don't copy if it didn't rebuild
-                                fis = new FileInputStream(tmp);
-                                fos = new SecureFileOutputStream(sharedIndex);
-                                byte buf[] = new byte[1024*16];
-                                int read = -1;
-                                while ( (read = fis.read(buf)) != -1)
-                                    fos.write(buf, 0, read);
-                                fos.close();
-                                fis.close();
-                                fis = null;
-                                fos = null;
-                                tmp.delete();
-                                tmp = null;
+                                // written to a temp file and renamed, with the delta from the old one
+                                LocalArchiveManager.buildIndex(_client, _ui, mgr.getDefaultPullStrategy());
                             } catch (Exception e) {
                                 _ui.errorMessage("Error rebuilding", e);
-                            } finally {
-                                if (fis != null) try { fis.close(); } catch (IOException ioe) {}
-                                if (fos != null) try { fos.close(); } catch (IOException ioe) {}
-                                if (tmp != null) tmp.delete();
                             }
                             _rebuilding = false;
                         }
@@ -481,6 +471,15 @@ public class HTTPServ implements CLI.Command {
             return;
         }
         
+        if (path.startsWith("/" + LocalArchiveManager.SHARED_INDEX_DELTA_FILE)) {
+            sendIndexDelta(path, socket, in, out, timeout);
+            return;
+        }
+        if (path.startsWith("/" + BundleFetcher.BUNDLE_FILE + '?')) {
+            sendBundle(path, socket, in, out, timeout);
+            return;
+        }
+        
         File file = _sharedFiles.get(path);
         if (file != null) {
             if (file.exists()) {
@@ -540,9 +539,11 @@ public class HTTPServ implements CLI.Command {
         File indexFile = new File(_client.getWebDir(), LocalArchiveManager.SHARED_INDEX_FILE);
         boolean needsLoad = false;
         synchronized(HTTPServ.class) {
+            // the index version is its file time, which can be before we loaded the previous one
+            long lastModified = indexFile.lastModified();
             if (_archive == null)
                 needsLoad = true;
-            else if (_archive.getLoadDate() < indexFile.lastModified())
+            else if (_archiveLastModified != lastModified)
                 needsLoad = true;
         
             if (needsLoad && indexFile.exists()) {
@@ -554,6 +555,7 @@ public class HTTPServ implements CLI.Command {
                     fin.close();
                     fin = null;
                     _archive = archive;
+                    _archiveLastModified = lastModified;
                 } catch (IOException ioe) {
                     _ui.errorMessage("Error loading the archive index", ioe);
                 } finally {
@@ -572,42 +574,108 @@ public class HTTPServ implements CLI.Command {
             fail404(socket, in, out, timeout);
             return;
         }
-        
+        File file = getAllowedFile(archive, chan, sub);
+        if (file != null) {
+            // ok, it is published, allow the send
+            send(socket, in, out, file, timeout);
+        } else {
+            // we may even have it, but its not in our published index, so dont give it to them
+            fail404(socket, in, out, timeout);
+        }
+    }
+
+    /**
+     *  The archive file, if it is in our published shared archive index
+     *
+     *  @param chan may be null
+     *  @param sub may be null
+     *  @return null if not published or a bad name, may not exist
+     *  @since 1.107b-1
+     */
+    private File getAllowedFile(SharedArchive archive, String chan, String sub) {
+        if (chan == null || sub == null)
+            return null;
+        byte hash[] = Base64.decode(chan);
+        if ( (hash == null) || (hash.length != Hash.HASH_LENGTH) ) {
+            // bad channel name
+            return null;
+        }
+        Hash chanHash = Hash.create(hash);
         if (("meta" + Constants.FILENAME_SUFFIX).equals(sub)) {
-            byte hash[] = Base64.decode(chan);
-            if ( (hash != null) && (hash.length == Hash.HASH_LENGTH) ) {
-                Hash chanHash = Hash.create(hash);
-                if (archive.getChannel(chanHash) != null) {
-                    // ok, metadata is published, allow the send
-                    send(socket, in, out, new File(new File(_client.getArchiveDir(), chan), "meta" + Constants.FILENAME_SUFFIX), timeout);
-                    return;
-                } else {
-                    // we may even have it, but its not in our published index, so dont give it to them
-                    fail404(socket, in, out, timeout);
-                }
-            } else {
-                // bad channel name
-                fail404(socket, in, out, timeout);
+            if (archive.getChannel(chanHash) != null) {
+                // ok, metadata is published
+                return new File(new File(_client.getArchiveDir(), chan), "meta" + Constants.FILENAME_SUFFIX);
             }
         } else {
-            byte hash[] = Base64.decode(chan);
-            if ( (hash != null) && (hash.length == Hash.HASH_LENGTH) ) {
-                Hash chanHash = Hash.create(hash);
-                long messageId = SharedArchiveBuilder.getMessageId(sub);
-                if (messageId < 0) {
-                    fail404(socket, in, out, timeout);
-                } else if (archive.isKnown(chanHash, messageId)) {
-                    // ok, message is published, allow the send
-                    send(socket, in, out, new File(new File(_client.getArchiveDir(), chan), messageId + Constants.FILENAME_SUFFIX), timeout);
-                    return;
+            long messageId = SharedArchiveBuilder.getMessageId(sub);
+            if (messageId >= 0 && archive.isKnown(chanHash, messageId)) {
+                // ok, message is published
+                return new File(new File(_client.getArchiveDir(), chan), messageId + Constants.FILENAME_SUFFIX);
+            }
+        }
+        return null;
+    }
+
+    /**
+     *  GET /bundle.dat?$channel/meta,$messageId;...
+     *  Send the files listed in the query as frames, see BundleFetcher,
+     *  each only if sendIfAllowed() would send it on its own.
+     *  Past MAX_BUNDLE_BYTES the files are deferred, for the client to ask again.
+     *
+     *  @param path non-null, with the query
+     *  @since 1.107b-1
+     */
+    private void sendBundle(String path, Socket socket, InputStream in, OutputStream out, SocketTimeout timeout) throws IOException {
+        SharedArchive archive = getSharedArchive();
+        List<String[]> entries = BundleFetcher.parseQuery(path);
+        if (archive == null || entries == null || entries.isEmpty()) {
+            fail404(socket, in, out, timeout);
+            return;
+        }
+        sendHeaders(out, BundleFetcher.CONTENT_TYPE, -1, -1, -1, timeout);
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out, 16*1024));
+        long sent = 0;
+        int ok = 0;
+        int deferred = 0;
+        byte dbuf[] = new byte[4096];
+        try {
+            for (String[] entry : entries) {
+                File file = getAllowedFile(archive, entry[0], entry[1]);
+                long len = file != null ? file.length() : 0;
+                if (file == null || !file.isFile() || len <= 0 || len > Integer.MAX_VALUE) {
+                    dout.writeByte(BundleFetcher.FRAME_NOT_FOUND);
+                    dout.writeInt(0);
+                } else if (sent > 0 && sent + len > BundleFetcher.MAX_BUNDLE_BYTES) {
+                    dout.writeByte(BundleFetcher.FRAME_DEFERRED);
+                    dout.writeInt(0);
+                    deferred++;
                 } else {
-                    // we may even have it, but its not in our published index, so dont give it to them
-                    fail404(socket, in, out, timeout);
+                    dout.writeByte(BundleFetcher.FRAME_OK);
+                    dout.writeInt((int) len);
+                    FileInputStream fin = null;
+                    try {
+                        fin = new FileInputStream(file);
+                        long remaining = len;
+                        while (remaining > 0) {
+                            int read = fin.read(dbuf, 0, (int) Math.min(dbuf.length, remaining));
+                            if (read < 0)
+                                throw new IOException("Truncated " + file);
+                            dout.write(dbuf, 0, read);
+                            remaining -= read;
+                            timeout.resetTimer();
+                        }
+                    } finally {
+                        if (fin != null) try { fin.close(); } catch (IOException ioe) {}
+                    }
+                    sent += len;
+                    ok++;
                 }
-            } else {
-                // bad channel name
-                fail404(socket, in, out, timeout);
+                timeout.resetTimer();
             }
+            dout.flush();
+            _ui.debugMessage("Sent a bundle of " + ok + "/" + entries.size() + ": " + sent + " bytes, " + deferred + " deferred");
+        } finally {
+            close(socket, in, out, timeout);
         }
     }
     
@@ -644,12 +712,30 @@ public class HTTPServ implements CLI.Command {
         } else {
             type = "application/octet-stream";
         }
+        long version = -1;
+        if (name.equals(LocalArchiveManager.SHARED_INDEX_FILE))
+            version = file.lastModified();
+        sendHeaders(out, type, file.length(), hideLastMod ? -1 : file.lastModified(), version, timeout);
+    }
+
+    /**
+     *  Send the HTTP headers
+     *  @param length -1 if unknown
+     *  @param lastMod -1 to hide
+     *  @param version the shared index version, or -1
+     *  @since 1.107b-1
+     */
+    private static void sendHeaders(OutputStream out, String type, long length, long lastMod,
+                                    long version, SocketTimeout timeout) throws IOException {
         StringBuilder buf = new StringBuilder();
         buf.append("HTTP/1.0 200 OK\r\n");
         buf.append("Content-type: ").append(type).append("\r\n");
-        buf.append("Content-length: ").append(file.length()).append("\r\n");
-        if (!hideLastMod)
-            buf.append("Last-modified: ").append(RFC822Date.to822Date(file.lastModified())).append("\r\n");
+        if (length >= 0)
+            buf.append("Content-length: ").append(length).append("\r\n");
+        if (lastMod >= 0)
+            buf.append("Last-modified: ").append(RFC822Date.to822Date(lastMod)).append("\r\n");
+        if (version >= 0)
+            buf.append(LocalArchiveManager.INDEX_VERSION_HEADER).append(": ").append(version).append("\r\n");
         buf.append("Connection: close\r\n");
         buf.append("\r\n");
         out.write(DataHelper.getUTF8(buf.toString()));
@@ -657,6 +743,88 @@ public class HTTPServ implements CLI.Command {
         timeout.resetTimer();
     }
 
+    /**
+     *  GET /shared-index-delta.dat?since=$version
+     *  Send the changes to the shared index since that version, 304 if there are none,
+     *  or the full index if the saved deltas don't go back that far, or the delta
+     *  would be as big. A 404 without a since version.
+     *
+     *  Only a version with a saved delta is looked up, and the result is
+     *  cached until the index is rebuilt, so a request costs the deltas' reads
+     *  and merge once per version and build.
+     *
+     *  @param path non-null, with the query
+     *  @since 1.107b-1
+     */
+    private void sendIndexDelta(String path, Socket socket, InputStream in, OutputStream out, SocketTimeout timeout) throws IOException {
+        File indexFile = _sharedFiles.get("/" + LocalArchiveManager.SHARED_INDEX_FILE);
+        if (indexFile == null || !indexFile.exists()) {
+            fail404(socket, in, out, timeout);
+            return;
+        }
+        long current = indexFile.lastModified();
+        long since = -1;
+        int idx = path.indexOf("since=");
+        if (idx > 0) {
+            int end = path.indexOf('&', idx);
+            String val = path.substring(idx + "since=".length(), end > 0 ? end : path.length());
+            try {
+                since = Long.parseLong(val);
+            } catch (NumberFormatException nfe) {}
+        }
+        if (since <= 0) {
+            fail404(socket, in, out, timeout);
+            return;
+        }
+        if (since == current) {
+            _ui.debugMessage("sending 304 for " + path);
+            send304(socket, in, out, timeout);
+            return;
+        }
+        byte delta[] = getIndexDelta(since, current, indexFile.length());
+        if (delta == null) {
+            _ui.debugMessage("no delta for " + path + ", sending the full index");
+            send(socket, in, out, indexFile, timeout);
+            return;
+        }
+        sendHeaders(out, "application/x-syndie-index-delta", delta.length, current, current, timeout);
+        try {
+            out.write(delta);
+            out.flush();
+            _ui.debugMessage("Sent the index delta since " + since + ": " + delta.length + " bytes, full index is " + indexFile.length());
+        } finally {
+            close(socket, in, out, timeout);
+        }
+    }
+
+    /**
+     *  The serialized delta from since to current, cached until the index changes
+     *
+     *  @param indexLength of the full index
+     *  @return null if the full index should be sent instead
+     *  @since 1.107b-1
+     */
+    private byte[] getIndexDelta(long since, long current, long indexLength) {
+        Long key = Long.valueOf(since);
+        synchronized (_deltaCache) {
+            if (_deltaCacheVersion != current) {
+                _deltaCache.clear();
+                _deltaCacheVersion = current;
+            }
+            byte rv[] = _deltaCache.get(key);
+            if (rv == null) {
+                // not a version we published, or one too old to have a delta
+                if (!LocalArchiveManager.hasIndexDelta(_client, since))
+                    return null;
+                rv = LocalArchiveManager.getIndexDelta(_client, _ui, since, current);
+                if (rv == null || rv.length >= indexLength)
+                    rv = NO_DELTA;
+                _deltaCache.put(key, rv);
+            }
+            return rv != NO_DELTA ? rv : null;
+        }
+    }
+
     /**
      *  Send the HTTP body
      *  @param file must exist
@@ -151,12 +151,10 @@ class ImportMeta {
         }
 
         // if we don't...
-        Connection con = client.con();
-        boolean wasAuto = true;
+        // single transaction, or part of a group commit if one is active
+        Object tx = null;
         try {
-            wasAuto = con.getAutoCommit();
-            con.commit();
-            con.setAutoCommit(false);
+            tx = client.beginImportTransaction();
             long channelId = -1;
             // FIXME race, ident is UNIQUE so insertIntoChannel can fail.
             // retry below as update?
@@ -185,7 +183,12 @@ class ImportMeta {
             // (plus lots of 'insert into uriAttribute' interspersed)
             setChannelAvatar(client, channelId, body);
             setUnread(client, channelId);
-            con.commit();
+            boolean ok = client.commitImportTransaction(tx);
+            tx = null;
+            if (!ok)
+                return IMPORT_SQLE;
+            // again, a reader may have cached the old version while we were importing
+            client.invalidateChannelCache(channelId, ident);
             ui.statusMessage("committed as channel " + channelId);
             
             saveToArchive(client, ui, ident, enc);
@@ -195,18 +198,10 @@ class ImportMeta {
             return IMPORT_OK_FORUM;
         } catch (SQLException se) {
             ui.errorMessage("Error importing", se);
-            try {
-                con.rollback();
-            } catch (SQLException ex) {
-                ui.errorMessage("Unable to rollback on error", ex);
-            }
             return IMPORT_SQLE;
         } finally {
-            try {
-                con.setAutoCommit(wasAuto);
-            } catch (SQLException ex) {
-                // ignore
-            }
+            if (tx != null)
+                client.rollbackImportTransaction(tx);
         }
     }
 
@@ -843,7 +838,7 @@ class ImportMeta {
             _ui = ui;
             _channelId = channelId;
             _nextId = 0;
-            _stmt = _client.con().prepareStatement(SQL_INSERT_CHANNEL_REFERENCE);
+            _stmt = _client.prepare(SQL_INSERT_CHANNEL_REFERENCE);
             _nymKeys = new ArrayList();
         }
         public List getImportedNymKeys() { return _nymKeys; }
@@ -919,7 +914,7 @@ class ImportMeta {
         if (avatar != null) {
             PreparedStatement stmt = null;
             try {
-                stmt = client.con().prepareStatement(SQL_SET_AVATAR);
+                stmt = client.prepare(SQL_SET_AVATAR);
                 stmt.setLong(1, channelId);
                 stmt.setBytes(2, avatar);
                 stmt.executeUpdate();
@@ -939,7 +934,7 @@ class ImportMeta {
         
         PreparedStatement stmt = null;
         try {
-            stmt = client.con().prepareStatement(SQL_MARK_UNREAD);
+            stmt = client.prepare(SQL_MARK_UNREAD);
             for (int i = 0; i < nymIds.size(); i++) {
                 stmt.setLong(1, ((Long)nymIds.get(i)).longValue());
                 stmt.setLong(2, channelId);
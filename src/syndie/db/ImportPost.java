@@ -94,9 +94,36 @@ public class ImportPost {
      * or the post's authentication key.  the exit code in ui.commandComplete is
      * -1 if unimportable, 0 if imported fully, or 1 if imported but not decryptable
      *
+     * Since 1.107b-1, all of the database changes are in a single transaction,
+     * or part of a group commit if one is active.
+     *
      * @return success
      */
     public ImportResult.Result process() {
+        Object tx;
+        try {
+            tx = _client.beginImportTransaction();
+        } catch (SQLException se) {
+            _ui.errorMessage("Error starting the import", se);
+            _ui.commandComplete(-1, null);
+            return IMPORT_SQLE;
+        }
+        ImportResult.Result rv = IMPORT_SQLE;
+        try {
+            rv = x_process();
+        } finally {
+            if (rv == IMPORT_SQLE)
+                _client.rollbackImportTransaction(tx);
+            else if (!_client.commitImportTransaction(tx))
+                rv = IMPORT_SQLE;
+        }
+        return rv;
+    }
+
+    /**
+     * @since 1.107b-1 split out of process()
+     */
+    private ImportResult.Result x_process() {
         _uri = _enc.getHeaderURI(Constants.MSG_HEADER_POST_URI);
         if (_uri == null) {
             _ui.errorMessage("No URI in the post");
@@ -532,7 +559,7 @@ public class ImportPost {
                 _ui.statusMessage("Already imported");
                 return IMPORT_ALREADY;
             }
-            if (!importMessageBody(msgId))
+            if (!importMessageBody(msgId, null))
                 return IMPORT_CANCEL_STUB;
             saveToArchive(_client, _ui, _channel, _enc);
             return IMPORT_OK_POST;
@@ -545,15 +572,20 @@ public class ImportPost {
     /**
      * Cancel messages, overwrite messages, import channel keys, etc
      *
+     * @param before the message's counter state before the import, null if new
      * @return true normally, false if it was a "stub" message containing only cancels, and was deleted.
      */
-    private boolean importMessageBody(long msgId) throws SQLException {
+    private boolean importMessageBody(long msgId, ChannelStats.MessageState before) throws SQLException {
             setMessageHierarchy(msgId);
             setMessageTags(msgId);
             setMessageAttachments(msgId);
             setMessagePages(msgId);
+            indexMessage(msgId);
             setMessageReferences(msgId);
             setUnread(msgId);
+            // before any cancels below, which adjust the counters themselves
+            ChannelStats stats = new ChannelStats(_client);
+            stats.update(before, stats.load(msgId));
         
             boolean rv = processControlActivity(msgId);
             
@@ -571,11 +603,12 @@ public class ImportPost {
         
         PreparedStatement stmt = null;
         try {
-            stmt = _client.con().prepareStatement(SQL_UNDELETE_MESSAGE);
+            ChannelStats.MessageState before = new ChannelStats(_client).load(msgId);
+            stmt = _client.prepare(SQL_UNDELETE_MESSAGE);
             stmt.setLong(1, msgId);
             stmt.executeUpdate();
             _ui.debugMessage("undelete successful id " + msgId);
-            return importMessageBody(msgId);
+            return importMessageBody(msgId, before);
         } catch (SQLException se) {
             _ui.errorMessage("Error reimporting the message", se);
             return false;
@@ -791,7 +824,7 @@ public class ImportPost {
         
         PreparedStatement stmt = null;
         try {
-            stmt = _client.con().prepareStatement(SQL_INSERT_CHANNEL);
+            stmt = _client.prepare(SQL_INSERT_CHANNEL);
             //"msgId, authorChannelId, messageId, targetChannelId, subject, overwriteScopeHash, " +
             //"overwriteMessageId, forceNewThread, refuseReplies, wasEncrypted, wasPrivate, wasAuthorized, " +
             //"wasAuthenticated, isCancelled, expiration, importDate, scopeChannelId, " +
@@ -978,7 +1011,7 @@ public class ImportPost {
         if ( (refs != null) && (refs.length > 0) ) {
             PreparedStatement stmt = null;
             try {
-                stmt = _client.con().prepareStatement(SQL_INSERT_MESSAGE_PARENT);
+                stmt = _client.prepare(SQL_INSERT_MESSAGE_PARENT);
                 int closeness = 1;
                 for (int i = 0; i < refs.length; i++) {
                     Hash chan = refs[i].getScope();
@@ -1010,7 +1043,7 @@ public class ImportPost {
              ( (pubTags != null) && (pubTags.length > 0) ) ) {
             PreparedStatement stmt = null;
             try {
-                stmt = _client.con().prepareStatement(SQL_INSERT_MESSAGE_TAG);
+                stmt = _client.prepare(SQL_INSERT_MESSAGE_TAG);
                 insertTags(stmt, msgId, privTags, false);
                 insertTags(stmt, msgId, pubTags, true);
             } finally {
@@ -1029,6 +1062,25 @@ public class ImportPost {
         }
     }
 
+    /**
+     *  Add the subject, page text, and public tags to the full text index
+     *  @since 1.107b-1
+     */
+    private void indexMessage(long msgId) throws SQLException {
+        String subject = _body.getHeaderString(Constants.MSG_HEADER_SUBJECT);
+        if (subject == null)
+            subject = _enc.getHeaderString(Constants.MSG_HEADER_SUBJECT);
+        List<String> pages = new ArrayList<String>(_body.getPages());
+        for (int i = 0; i < _body.getPages(); i++) {
+            byte data[] = _body.getPage(i);
+            String type = _body.getPageConfigString(i, Constants.MSG_PAGE_CONTENT_TYPE);
+            pages.add(data != null ? MessageIndex.getPageText(DataHelper.getUTF8(data), type) : null);
+        }
+        String pubTags[] = _enc.getHeaderStrings(Constants.MSG_HEADER_TAGS);
+        List<String> tags = pubTags != null ? Arrays.asList(pubTags) : null;
+        new MessageIndex(_client).index(msgId, subject, pages, tags);
+    }
+
     static final String SQL_DELETE_MESSAGE_ATTACHMENTS = "DELETE FROM messageAttachment WHERE msgId = ?";
     static final String SQL_DELETE_MESSAGE_ATTACHMENT_DATA = "DELETE FROM messageAttachmentData WHERE msgId = ?";
     static final String SQL_DELETE_MESSAGE_ATTACHMENT_CONFIG = "DELETE FROM messageAttachmentConfig WHERE msgId = ?";
@@ -1044,6 +1096,8 @@ public class ImportPost {
     private static final String SQL_INSERT_MESSAGE_ATTACHMENT = "INSERT INTO messageAttachment (msgId, attachmentNum, attachmentSize, contentType, name, description) VALUES (?, ?, ?, ?, ?, ?)";
     private static final String SQL_INSERT_MESSAGE_ATTACHMENT_DATA = "INSERT INTO messageAttachmentData (msgId, attachmentNum, dataBinary, storageType) VALUES (?, ?, ?, 0)";
     private static final String SQL_INSERT_MESSAGE_ATTACHMENT_DATA_BLOB = "INSERT INTO messageAttachmentData (msgId, attachmentNum, lob, storageType) VALUES (?, ?, ?, 1)";
+    /** @since 1.107b-1 */
+    private static final String SQL_INSERT_MESSAGE_ATTACHMENT_DATA_EXTERNAL = "INSERT INTO messageAttachmentData (msgId, attachmentNum, externalPath, storageType) VALUES (?, ?, ?, " + BlobStore.STORAGE_TYPE + ")";
     private static final String SQL_INSERT_MESSAGE_ATTACHMENT_CONFIG = "INSERT INTO messageAttachmentConfig (msgId, attachmentNum, dataString) VALUES (?, ?, ?)";
 
     private void insertAttachment(long msgId, int attachmentId) throws SQLException {
@@ -1057,7 +1111,7 @@ public class ImportPost {
         try {
             String cfg = formatConfig(attachConfig);
             
-            stmt = _client.con().prepareStatement(SQL_INSERT_MESSAGE_ATTACHMENT);
+            stmt = _client.prepare(SQL_INSERT_MESSAGE_ATTACHMENT);
             //(msgId, attachmentNum, attachmentSize, contentType, name, description)
             stmt.setLong(1, msgId);
             stmt.setInt(2, attachmentId);
@@ -1079,21 +1133,26 @@ public class ImportPost {
             stmt.close();
             
             boolean blob = data.length >= DBClient.MIN_ATT_BLOB_SIZE;
-            if (blob)
-                stmt = _client.con().prepareStatement(SQL_INSERT_MESSAGE_ATTACHMENT_DATA_BLOB);
+            String path = blob ? putBlob(data) : null;
+            if (path != null)
+                stmt = _client.prepare(SQL_INSERT_MESSAGE_ATTACHMENT_DATA_EXTERNAL);
+            else if (blob)
+                stmt = _client.prepare(SQL_INSERT_MESSAGE_ATTACHMENT_DATA_BLOB);
             else
-                stmt = _client.con().prepareStatement(SQL_INSERT_MESSAGE_ATTACHMENT_DATA);
+                stmt = _client.prepare(SQL_INSERT_MESSAGE_ATTACHMENT_DATA);
             //(msgId, attachmentNum, dataBinary)
             stmt.setLong(1, msgId);
             stmt.setInt(2, attachmentId);
-            if (blob)
+            if (path != null)
+                stmt.setString(3, path);
+            else if (blob)
                 stmt.setBlob(3, new SerialBlob(data));
             else
                 stmt.setBytes(3, data);
             stmt.executeUpdate();
             stmt.close();
             
-            stmt = _client.con().prepareStatement(SQL_INSERT_MESSAGE_ATTACHMENT_CONFIG);
+            stmt = _client.prepare(SQL_INSERT_MESSAGE_ATTACHMENT_CONFIG);
             //(msgId, attachmentNum, dataBinary)
             stmt.setLong(1, msgId);
             stmt.setInt(2, attachmentId);
@@ -1110,6 +1169,24 @@ public class ImportPost {
         }
     }
     
+    /**
+     *  Big attachments and pages go in the blob store if there is one.
+     *
+     *  @return the externalPath, or null to keep it in the database
+     *  @since 1.107b-1
+     */
+    private String putBlob(byte data[]) {
+        BlobStore store = _client.blobStore();
+        if (store == null)
+            return null;
+        try {
+            return store.put(data);
+        } catch (IOException ioe) {
+            _ui.debugMessage("Unable to store the blob, keeping it in the database", ioe);
+            return null;
+        }
+    }
+
     private void importMsg(byte data[]) {
         _ui.debugMessage("Post had a .syndie file attached to it, attempting to import that file");
         Importer imp = new Importer(_client);
@@ -1127,16 +1204,23 @@ public class ImportPost {
     static final String SQL_DELETE_MESSAGE_PAGE_CONFIG = "DELETE FROM messagePageConfig WHERE msgId = ?";
 
     private void setMessagePages(long msgId) throws SQLException {
-        _client.exec(SQL_DELETE_MESSAGE_PAGES, msgId);
-        _client.exec(SQL_DELETE_MESSAGE_PAGE_DATA, msgId);
-        _client.exec(SQL_DELETE_MESSAGE_PAGE_CONFIG, msgId);
-        for (int i = 0; i < _body.getPages(); i++)
-            insertPage(msgId, i);
+        try {
+            _client.exec(SQL_DELETE_MESSAGE_PAGES, msgId);
+            _client.exec(SQL_DELETE_MESSAGE_PAGE_DATA, msgId);
+            _client.exec(SQL_DELETE_MESSAGE_PAGE_CONFIG, msgId);
+            for (int i = 0; i < _body.getPages(); i++)
+                insertPage(msgId, i);
+        } finally {
+            // after the changes, and again when they commit
+            _client.invalidatePages(msgId);
+        }
     }
 
     private static final String SQL_INSERT_MESSAGE_PAGE = "INSERT INTO messagePage (msgId, pageNum, contentType) VALUES (?, ?, ?)";
     private static final String SQL_INSERT_MESSAGE_PAGE_DATA = "INSERT INTO messagePageData (msgId, pageNum, dataString, storageType) VALUES (?, ?, ?, 0)";
     private static final String SQL_INSERT_MESSAGE_PAGE_DATA_CLOB = "INSERT INTO messagePageData (msgId, pageNum, lob, storageType) VALUES (?, ?, ?, 1)";
+    /** @since 1.107b-1 */
+    private static final String SQL_INSERT_MESSAGE_PAGE_DATA_EXTERNAL = "INSERT INTO messagePageData (msgId, pageNum, externalPath, storageType) VALUES (?, ?, ?, " + BlobStore.STORAGE_TYPE + ")";
     private static final String SQL_INSERT_MESSAGE_PAGE_CONFIG = "INSERT INTO messagePageConfig (msgId, pageNum, dataString) VALUES (?, ?, ?)";
 
     private void insertPage(long msgId, int pageId) throws SQLException {
@@ -1147,7 +1231,7 @@ public class ImportPost {
 
             String cfg = formatConfig(_body.getPageConfig(pageId));
             
-            stmt = _client.con().prepareStatement(SQL_INSERT_MESSAGE_PAGE);
+            stmt = _client.prepare(SQL_INSERT_MESSAGE_PAGE);
             //(msgId, pageNum, contentType)
             stmt.setLong(1, msgId);
             stmt.setInt(2, pageId);
@@ -1160,14 +1244,19 @@ public class ImportPost {
             stmt.close();
             
             boolean clob = data != null && data.length >= DBClient.MIN_PAGE_CLOB_SIZE;
-            if (clob)
-                stmt = _client.con().prepareStatement(SQL_INSERT_MESSAGE_PAGE_DATA_CLOB);
+            String path = clob ? putBlob(data) : null;
+            if (path != null)
+                stmt = _client.prepare(SQL_INSERT_MESSAGE_PAGE_DATA_EXTERNAL);
+            else if (clob)
+                stmt = _client.prepare(SQL_INSERT_MESSAGE_PAGE_DATA_CLOB);
             else
-                stmt = _client.con().prepareStatement(SQL_INSERT_MESSAGE_PAGE_DATA);
+                stmt = _client.prepare(SQL_INSERT_MESSAGE_PAGE_DATA);
             //(msgId, pageNum, dataString)
             stmt.setLong(1, msgId);
             stmt.setInt(2, pageId);
-            if (clob)
+            if (path != null)
+                stmt.setString(3, path);
+            else if (clob)
                 stmt.setClob(3, new SerialClob(DataHelper.getUTF8(data).toCharArray()));
             else if (data != null)
                 stmt.setString(3, DataHelper.getUTF8(data));
@@ -1176,7 +1265,7 @@ public class ImportPost {
             stmt.executeUpdate();
             stmt.close();
             
-            stmt = _client.con().prepareStatement(SQL_INSERT_MESSAGE_PAGE_CONFIG);
+            stmt = _client.prepare(SQL_INSERT_MESSAGE_PAGE_CONFIG);
             //(msgId, pageNum, dataString)
             stmt.setLong(1, msgId);
             stmt.setInt(2, pageId);
@@ -1209,7 +1298,7 @@ public class ImportPost {
         
         PreparedStatement stmt = null;
         try {
-            stmt = _client.con().prepareStatement(SQL_MARK_UNREAD);
+            stmt = _client.prepare(SQL_MARK_UNREAD);
             for (int i = 0; i < nymIds.size(); i++) {
                 stmt.setLong(1, nymIds.get(i).longValue());
                 stmt.setLong(2, msgId);
@@ -1218,6 +1307,7 @@ public class ImportPost {
         } finally {
             if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
         }
+        _client.unreadIndex().setUnreadBy(msgId, nymIds);
     }
     
     static final String SQL_DELETE_MESSAGE_REF_URIS = "DELETE FROM uriAttribute WHERE uriId IN (SELECT uriId FROM messageReference WHERE msgId = ?)";
@@ -1283,7 +1373,7 @@ public class ImportPost {
                 PreparedStatement stmt = null;
                 try {
                     _ui.debugMessage("Importing reference: " + referenceId + ", uri " + uriId + ", type: " + type);
-                    stmt = _client.con().prepareStatement(SQL_INSERT_MESSAGE_REF);
+                    stmt = _client.prepare(SQL_INSERT_MESSAGE_REF);
                     // (msgId, referenceId, parentReferenceId, siblingOrder, name, description, uriId, refType)
                     stmt.setLong(1, _msgId);
                     stmt.setInt(2, referenceId);
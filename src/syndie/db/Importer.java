@@ -205,6 +205,8 @@ public class Importer extends CommandImpl {
         ImportResult.Result rv;
         boolean isMeta = false;
         Enclosure enc = new Enclosure(source);
+        // all the import reads and writes go through the dedicated writer connection
+        _client.beginWrite();
         try {
             String format = enc.getEnclosureType();
             if (format == null) {
@@ -243,6 +245,7 @@ public class Importer extends CommandImpl {
                 throw new IOException("Invalid message type: " + type);
             }
         } finally {
+            _client.endWrite();
             enc.discardData();
         }
         return rv;
@@ -2,17 +2,21 @@ package syndie.db;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 
 import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
 import net.i2p.util.EepGet;
 import net.i2p.util.FileUtil;
 import net.i2p.util.SecureFile;
+import net.i2p.util.SecureFileOutputStream;
 import net.i2p.util.SSLEepGet;
 
 import syndie.Constants;
@@ -289,18 +293,37 @@ class IndexFetcher {
             // already contains the shared-index.dat, so no need to rewrite it further
         }
         
+        long version = getSavedIndexVersion(getSavedIndexFile(url));
+        fetchHTTPIndex(archive, url, version);
+    }
+
+    /**
+     *  Fetch the full index, or if we have a saved one from a server that gave its version,
+     *  the changes since that version
+     *
+     *  @param url the shared-index.dat URL
+     *  @param version the version of the saved index, or -1 for the full index
+     *  @since 1.107b-1
+     */
+    private void fetchHTTPIndex(SyncArchive archive, String url, long version) {
+        String fetchURL = url;
+        if (version > 0) {
+            fetchURL = url.replace(LocalArchiveManager.SHARED_INDEX_FILE, LocalArchiveManager.SHARED_INDEX_DELTA_FILE);
+            fetchURL = fetchURL + (fetchURL.indexOf('?') >= 0 ? '&' : '?') + "since=" + version;
+        }
         int retries;
         boolean shouldProxy = archive.getHTTPProxyHost() != null && archive.getHTTPProxyHost().length() > 0;
         if (shouldProxy) {
             retries = I2P_RETRIES;
-            _manager.getUI().statusMessage("Fetching [" + url + "] proxy " + archive.getHTTPProxyHost() + ":" + archive.getHTTPProxyPort());
+            _manager.getUI().statusMessage("Fetching [" + fetchURL + "] proxy " + archive.getHTTPProxyHost() + ":" + archive.getHTTPProxyPort());
         } else {
             retries = CLEARNET_RETRIES;
-            _manager.getUI().statusMessage("Fetching [" + url + "]");
+            _manager.getUI().statusMessage("Fetching [" + fetchURL + "]");
         }
         try {
             long lastTime = archive.getLastSyncTime();
-            String lastMod = lastTime > 0 ? RFC822Date.to822Date(lastTime) : null;
+            // the delta is not modified when there are no changes since the version
+            String lastMod = (lastTime > 0 && version <= 0) ? RFC822Date.to822Date(lastTime) : null;
             File indexFile = SecureFile.createTempFile("httpindex", "dat", _manager.getClient().getTempDir());
             EepGet get;
             if (url.startsWith("https://")) {
@@ -308,15 +331,15 @@ class IndexFetcher {
                     throw new IOException("https with proxy unsupported");
                 SSLEepGet.SSLState state = _manager.getSSLState();
                 // lastmod unsupported
-                SSLEepGet sget = new SSLEepGet(I2PAppContext.getGlobalContext(), indexFile.getPath(), url, state);
+                SSLEepGet sget = new SSLEepGet(I2PAppContext.getGlobalContext(), indexFile.getPath(), fetchURL, state);
                 if (state == null)
                     _manager.setSSLState(sget.getSSLState());
                 get = sget;
             } else {
                 get = new EepGet(I2PAppContext.getGlobalContext(), shouldProxy, archive.getHTTPProxyHost(), archive.getHTTPProxyPort(),
-                                    retries, indexFile.getAbsolutePath(), url, true, null, lastMod);
+                                    retries, indexFile.getAbsolutePath(), fetchURL, true, null, lastMod);
             }
-            GetListener lsnr = new GetListener(get, url, archive, indexFile);
+            GetListener lsnr = new GetListener(get, url, version, archive, indexFile);
             get.addStatusListener(lsnr);
             // 1 minute for the headers, 5 minutes total, and up to 60s of inactivity
             get.fetch(60*1000, 5*60*1000, 60*1000);
@@ -325,39 +348,188 @@ class IndexFetcher {
         }
     }
     
+    /**
+     *  Where the last index fetched from the URL's host is saved
+     *  @return null on error
+     */
+    private File getSavedIndexFile(String url) {
+        String host;
+        try {
+            URI uri = new URI(url);
+            host = uri.getHost();
+            if (host == null || host.length() <= 0)
+                return null;
+        } catch (URISyntaxException use) {
+            return null;
+        }
+        File dir = new File(_manager.getClient().getRootDir(), "indexes");
+        String name = host + '-' + LocalArchiveManager.SHARED_INDEX_FILE;
+        return new SecureFile(dir, name);
+    }
+
+    /**
+     *  The server's version of the saved index, kept next to it,
+     *  only if the server sent one, so it can send the changes since then
+     *
+     *  @param saved may be null
+     *  @return -1 if unknown
+     *  @since 1.107b-1
+     */
+    private static long getSavedIndexVersion(File saved) {
+        if (saved == null || !saved.exists())
+            return -1;
+        File file = new File(saved.getPath() + VERSION_SUFFIX);
+        if (!file.exists())
+            return -1;
+        String val = FileUtil.readTextFile(file.getAbsolutePath(), 1, true);
+        if (val == null)
+            return -1;
+        try {
+            return Long.parseLong(val.trim());
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     *  @param version -1 to forget it
+     *  @since 1.107b-1
+     */
+    private static void setSavedIndexVersion(File saved, long version) {
+        File file = new File(saved.getPath() + VERSION_SUFFIX);
+        if (version <= 0) {
+            file.delete();
+            return;
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = new SecureFileOutputStream(file);
+            fos.write(DataHelper.getUTF8(Long.toString(version) + '\n'));
+            fos.close();
+            fos = null;
+        } catch (IOException ioe) {
+            file.delete();
+        } finally {
+            if (fos != null) try { fos.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    private static final String VERSION_SUFFIX = ".version";
+
     private class GetListener implements EepGet.StatusListener {
         private final EepGet _get;
         private final String _url;
+        /** of the saved index, -1 if the full index was requested */
+        private final long _version;
         private final SyncArchive _archive;
         private final File _indexFile;
         private Exception _err;
+        /** from the response headers */
+        private String _contentType;
+        private long _serverVersion = -1;
 
-        public GetListener(EepGet get, String url, SyncArchive archive, File indexFile) {
+        /**
+         *  @param url the shared-index.dat URL, even for a delta
+         */
+        public GetListener(EepGet get, String url, long version, SyncArchive archive, File indexFile) {
             _get = get;
             _url = url;
+            _version = version;
             _archive = archive;
             _indexFile = indexFile;
         }
 
         /** @return null on error */
         private File getSavedIndexFile() {
-            String host;
+            return IndexFetcher.this.getSavedIndexFile(_url);
+        }
+
+        /**
+         *  The delta didn't work, forget the version and get the full index
+         *  @since 1.107b-1
+         */
+        private void fetchFull(String reason) {
+            _manager.getUI().debugMessage("Index delta failed [" + _url + "]: " + reason + ", fetching the full index");
+            File saved = getSavedIndexFile();
+            if (saved != null)
+                setSavedIndexVersion(saved, -1);
+            fetchHTTPIndex(_archive, _url, -1);
+        }
+
+        /**
+         *  Merge the delta into the saved index and save the result
+         *  @since 1.107b-1
+         */
+        private void deltaFetched() {
+            File saved = getSavedIndexFile();
+            if (saved == null || !saved.exists()) {
+                fetchFull("no saved index");
+                return;
+            }
+            FileInputStream fin = null;
+            SharedArchiveDelta delta = new SharedArchiveDelta();
+            SharedArchive cached = new SharedArchive();
             try {
-                URI uri = new URI(_url);
-                host = uri.getHost();
-                if (host == null || host.length() <= 0)
-                    return null;
-            } catch (URISyntaxException use) {
-                return null;
+                fin = new FileInputStream(_indexFile);
+                delta.read(fin);
+                fin.close();
+                fin = new FileInputStream(saved);
+                cached.read(fin);
+            } catch (IOException ioe) {
+                fetchFull(ioe.getMessage());
+                return;
+            } finally {
+                if (fin != null) try { fin.close(); } catch (IOException ioe) {}
+                _indexFile.delete();
+            }
+            if (delta.getFromVersion() != _version) {
+                fetchFull("delta from " + delta.getFromVersion() + ", not " + _version);
+                return;
+            }
+            SharedArchive merged;
+            try {
+                merged = _archive.indexDeltaFetched(_manager.getUI(), cached, delta);
+            } catch (IOException ioe) {
+                fetchFull(ioe.getMessage());
+                return;
+            }
+            FileOutputStream fos = null;
+            File tmp = null;
+            try {
+                tmp = SecureFile.createTempFile("httpindex", "dat", _manager.getClient().getTempDir());
+                fos = new SecureFileOutputStream(tmp);
+                merged.write(fos);
+                fos.close();
+                fos = null;
+                if (FileUtil.rename(tmp, saved)) {
+                    tmp = null;
+                    setSavedIndexVersion(saved, delta.getToVersion());
+                } else {
+                    setSavedIndexVersion(saved, -1);
+                }
+            } catch (IOException ioe) {
+                _manager.getUI().debugMessage("Error saving the merged index", ioe);
+                setSavedIndexVersion(saved, -1);
+            } finally {
+                if (fos != null) try { fos.close(); } catch (IOException ioe) {}
+                if (tmp != null) tmp.delete();
             }
-            File dir = new File(_manager.getClient().getRootDir(), "indexes");
-            String name = host + '-' + LocalArchiveManager.SHARED_INDEX_FILE;
-            return new SecureFile(dir, name);
         }
 
         public void transferComplete(long alreadyTransferred, long bytesTransferred, long bytesRemaining, String url, String outputFile, boolean notModified) {
             _manager.getUI().debugMessage("Fetch complete [" + url + "] after " + bytesTransferred);
             int status = _get.getStatusCode();
+            if (_version > 0 && status != 304 && status != 403 &&
+                !(_indexFile.exists() && _indexFile.length() > 0)) {
+                // server without deltas, or they are gone
+                _indexFile.delete();
+                fetchFull("response code " + status);
+                return;
+            }
+            if (_version > 0 && status != 304 && "application/x-syndie-index-delta".equals(_contentType)) {
+                deltaFetched();
+                return;
+            }
             if (_indexFile.exists() && _indexFile.length() > 0) {
                 FileInputStream fin = null;
                 try {
@@ -368,8 +540,12 @@ class IndexFetcher {
                     // we don't store the full index in the DB, only the about part,
                     // so save it for later
                     File to = getSavedIndexFile();
-                    if (to != null)
-                        FileUtil.rename(_indexFile, to);
+                    if (to != null) {
+                        if (FileUtil.rename(_indexFile, to))
+                            setSavedIndexVersion(to, _serverVersion);
+                        else
+                            setSavedIndexVersion(to, -1);
+                    }
                 } catch (IOException ioe) {
                     _archive.indexFetchFail("Corrupt archive: " + ioe.getMessage(), ioe, true);
                 } finally {
@@ -412,6 +588,11 @@ class IndexFetcher {
 
         public void transferFailed(String url, long bytesTransferred, long bytesRemaining, int currentAttempt) {
             _manager.getUI().debugMessage("Fetch totally failed [" + url + "] after " + bytesTransferred + " and " + currentAttempt + " attempts");
+            if (_version > 0) {
+                _indexFile.delete();
+                fetchFull("fetch failed");
+                return;
+            }
             _archive.indexFetchFail("Unable to fetch", _err, true);
         }
 
@@ -422,7 +603,17 @@ class IndexFetcher {
             _archive.setIndexFetchProgress(rcvd, total);
         }
 
-        public void headerReceived(String url, int currentAttempt, String key, String val) {}
+        public void headerReceived(String url, int currentAttempt, String key, String val) {
+            if (key == null || val == null)
+                return;
+            if (key.equalsIgnoreCase("Content-Type")) {
+                _contentType = val.trim().toLowerCase(Locale.US);
+            } else if (key.equalsIgnoreCase(LocalArchiveManager.INDEX_VERSION_HEADER)) {
+                try {
+                    _serverVersion = Long.parseLong(val.trim());
+                } catch (NumberFormatException nfe) {}
+            }
+        }
         public void attempting(String url) {
             _manager.getUI().debugMessage("Fetch attempting [" + url + "]...");
         }
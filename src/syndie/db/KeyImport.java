@@ -206,6 +206,7 @@ public class KeyImport extends CommandImpl {
             
             byte salt[] = new byte[16]; // overwritten by pbeEncrypt
             byte encrypted[] = client.pbeEncrypt(raw, salt);
+            client.addToKeyring(encrypted, salt, raw);
             
             Connection con = client.con();
             stmt = con.prepareStatement(SQL_INSERT_KEY);
@@ -1,13 +1,19 @@
 package syndie.db;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
 import net.i2p.data.Base64;
+import net.i2p.util.FileUtil;
 import net.i2p.util.SecureFileOutputStream;
 
 import syndie.Constants;
@@ -91,6 +97,17 @@ public class LocalArchiveManager {
     }
     
     public static final String SHARED_INDEX_FILE = "shared-index.dat";
+    /**
+     *  The changes to SHARED_INDEX_FILE since the version in the "since" parameter
+     *  @since 1.107b-1
+     */
+    public static final String SHARED_INDEX_DELTA_FILE = "shared-index-delta.dat";
+    /** the version of the SHARED_INDEX_FILE sent, in the full index and delta responses */
+    public static final String INDEX_VERSION_HEADER = "X-Syndie-Index-Version";
+    /** the deltas between the last builds of the published index, in the web dir */
+    private static final String DELTA_DIR = "index-deltas";
+    /** a day or two at the default hourly rebuild */
+    private static final int MAX_DELTAS = 48;
     
     /**
      *  @return success
@@ -101,10 +118,41 @@ public class LocalArchiveManager {
     }
     
     /**
+     *  Build the published index, and save the delta from the previous one
+     *  for clients that have it.
+     *  The index is written to a temp file and renamed, so it is never served half written,
+     *  and its last modified time is set to its version.
+     *
      *  @return success
      */
     public static boolean buildIndex(DBClient client, UI ui, PullStrategy pullStrategy) {
-        return buildIndex(client, ui, pullStrategy, new File(client.getWebDir(), SHARED_INDEX_FILE));
+        if (!client.isLoggedIn()) return false;
+        File webDir = client.getWebDir();
+        File targetFile = new File(webDir, SHARED_INDEX_FILE);
+        SharedArchive old = null;
+        long oldVersion = -1;
+        if (targetFile.exists()) {
+            oldVersion = targetFile.lastModified();
+            old = readIndex(targetFile, ui);
+        }
+        SharedArchiveBuilder builder = new SharedArchiveBuilder(client, ui, getLocalAbout(client, pullStrategy));
+        SharedArchive archive = builder.buildSharedArchive();
+        // to the second, so it survives as a file time and in the Last-Modified header
+        long version = Math.max(System.currentTimeMillis() / 1000, oldVersion / 1000 + 1) * 1000;
+        File tmp = new File(webDir, SHARED_INDEX_FILE + ".tmp");
+        if (!writeIndex(archive, tmp, ui))
+            return false;
+        tmp.setLastModified(version);
+        if (old != null)
+            saveDelta(client, ui, SharedArchiveDelta.diff(old, oldVersion, archive, version));
+        if (!FileUtil.rename(tmp, targetFile)) {
+            ui.errorMessage("Error renaming the shared index " + tmp);
+            tmp.delete();
+            return false;
+        }
+        if (targetFile.lastModified() != version)
+            targetFile.setLastModified(version);
+        return true;
     }
 
     /**
@@ -115,6 +163,11 @@ public class LocalArchiveManager {
         if (!client.isLoggedIn()) return false;
         SharedArchiveBuilder builder = new SharedArchiveBuilder(client, ui, getLocalAbout(client, pullStrategy));
         SharedArchive archive = builder.buildSharedArchive();
+        return writeIndex(archive, targetFile, ui);
+    }
+
+    /** @since 1.107b-1 */
+    private static boolean writeIndex(SharedArchive archive, File targetFile, UI ui) {
         FileOutputStream fos = null;
         try {
             fos = new SecureFileOutputStream(targetFile);
@@ -129,7 +182,133 @@ public class LocalArchiveManager {
         }
         return true;
     }
-    
+
+    /**
+     *  @return null on error
+     *  @since 1.107b-1
+     */
+    private static SharedArchive readIndex(File file, UI ui) {
+        FileInputStream fin = null;
+        try {
+            fin = new FileInputStream(file);
+            SharedArchive archive = new SharedArchive();
+            archive.read(fin);
+            return archive;
+        } catch (IOException ioe) {
+            ui.debugMessage("Error reading the old shared index, not saving a delta", ioe);
+            return null;
+        } finally {
+            if (fin != null) try { fin.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  Save the delta as the one starting at its from version,
+     *  and drop the oldest beyond MAX_DELTAS
+     *
+     *  @since 1.107b-1
+     */
+    private static void saveDelta(DBClient client, UI ui, SharedArchiveDelta delta) {
+        File dir = new File(client.getWebDir(), DELTA_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            ui.errorMessage("Unable to create " + dir);
+            return;
+        }
+        File file = new File(dir, delta.getFromVersion() + ".dat");
+        FileOutputStream fos = null;
+        try {
+            fos = new SecureFileOutputStream(file);
+            delta.write(fos);
+            fos.close();
+            fos = null;
+            ui.debugMessage("Saved the shared index " + delta);
+        } catch (IOException ioe) {
+            ui.errorMessage("Error writing the shared index delta", ioe);
+            file.delete();
+        } finally {
+            if (fos != null) try { fos.close(); } catch (IOException ioe) {}
+        }
+
+        String names[] = dir.list();
+        if (names == null || names.length <= MAX_DELTAS)
+            return;
+        List<Long> versions = new ArrayList<Long>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            long v = getDeltaVersion(names[i]);
+            if (v >= 0)
+                versions.add(Long.valueOf(v));
+        }
+        Collections.sort(versions);
+        for (int i = 0; i < versions.size() - MAX_DELTAS; i++)
+            new File(dir, versions.get(i) + ".dat").delete();
+    }
+
+    /** @return -1 if not a delta file name */
+    private static long getDeltaVersion(String name) {
+        if (!name.endsWith(".dat"))
+            return -1;
+        try {
+            return Long.parseLong(name.substring(0, name.length() - ".dat".length()));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     *  Is there a saved delta starting at this version of the published index
+     *
+     *  @since 1.107b-1
+     */
+    static boolean hasIndexDelta(DBClient client, long since) {
+        return new File(new File(client.getWebDir(), DELTA_DIR), since + ".dat").isFile();
+    }
+
+    /**
+     *  The changes to the published index from the given version to the current one,
+     *  from the saved deltas between them
+     *
+     *  @param since the version the client has
+     *  @param current the version of the published index
+     *  @return the serialized delta, or null if the deltas don't go back that far
+     *  @since 1.107b-1
+     */
+    static byte[] getIndexDelta(DBClient client, UI ui, long since, long current) {
+        File dir = new File(client.getWebDir(), DELTA_DIR);
+        SharedArchiveDelta rv = null;
+        long version = since;
+        for (int i = 0; i < MAX_DELTAS && version != current; i++) {
+            File file = new File(dir, version + ".dat");
+            if (!file.exists())
+                return null;
+            FileInputStream fin = null;
+            try {
+                fin = new FileInputStream(file);
+                SharedArchiveDelta delta = new SharedArchiveDelta();
+                delta.read(fin);
+                if (rv == null)
+                    rv = delta;
+                else
+                    rv.append(delta);
+                version = delta.getToVersion();
+            } catch (IOException ioe) {
+                ui.errorMessage("Error reading the shared index delta " + file, ioe);
+                return null;
+            } finally {
+                if (fin != null) try { fin.close(); } catch (IOException ioe) {}
+            }
+        }
+        if (rv == null || version != current)
+            return null;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+        try {
+            rv.write(baos);
+        } catch (IOException ioe) {
+            ui.errorMessage("Error writing the shared index delta", ioe);
+            return null;
+        }
+        return baos.toByteArray();
+    }
+
     public static int getLocalRebuildDelayHours(DBClient client) {
         Properties prefs = client.getNymPrefs();
         int republishFrequencyHours = getInt(prefs, "archive.republishFrequencyHours", DEFAULT_REBUILD_DELAY_HOURS);
@@ -0,0 +1,298 @@
+package syndie.db;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.i2p.data.Hash;
+import net.i2p.util.Log;
+
+/**
+ *  What SharedArchiveEngine needs to know about the local database to plan
+ *  a pull or push, loaded in a few bulk queries instead of several queries
+ *  per remote or local message.
+ *
+ *  The channels (id and edition by hash) and the banned hashes are loaded
+ *  by the constructor. The (scope, messageId) of every local message is
+ *  loaded by loadKnownMessages(), for a pull. The messages of one scope
+ *  are loaded by getScopeMessages(), for a push of that scope.
+ *
+ *  A snapshot, for one planning pass only.
+ *  As with the single queries it replaces, a failed load is logged and
+ *  leaves things unknown.
+ *
+ *  @since 1.107b-1
+ */
+class LocalSyncState {
+    private final DBClient _client;
+    private final Log _log;
+    private final Map<Hash, Channel> _byHash;
+    private final Map<Long, Hash> _hashById;
+    private final Set<Hash> _banned;
+    /** scope channelId of the known messages, -1 for empty; null if not loaded */
+    private long _knownScopes[];
+    private long _knownIds[];
+    private int _knownMask;
+
+    private static final String SQL_GET_CHANNELS = "SELECT channelId, channelHash, edition FROM channel";
+    private static final String SQL_GET_MESSAGES = "SELECT scopeChannelId, messageId FROM channelMessage";
+    private static final String SQL_GET_SCOPE_MESSAGES = "SELECT messageId, msgId, importDate, authorChannelId, targetChannelId, " +
+                                                         "wasEncrypted, wasPBE, wasPrivate, readKeyMissing, pbePrompt, replyKeyMissing " +
+                                                         "FROM channelMessage WHERE scopeChannelId = ?";
+
+    private static class Channel {
+        final long id;
+        /** -1 if unknown */
+        final long edition;
+
+        Channel(long id, long edition) {
+            this.id = id;
+            this.edition = edition;
+        }
+    }
+
+    /**
+     *  A local message, with the fields scheduleNew() used to query one by one
+     */
+    public static class LocalMessage {
+        public final long msgId;
+        /** -1 if unknown */
+        public final long importDate;
+        /** -1 if unknown */
+        public final long authorId;
+        /** -1 if unknown */
+        public final long targetId;
+        /** as DBClient.getMessagePrivacy() */
+        public final int privacy;
+
+        LocalMessage(long msgId, long importDate, long authorId, long targetId, int privacy) {
+            this.msgId = msgId;
+            this.importDate = importDate;
+            this.authorId = authorId;
+            this.targetId = targetId;
+            this.privacy = privacy;
+        }
+    }
+
+    public LocalSyncState(DBClient client) {
+        _client = client;
+        _log = client.ctx().logManager().getLog(LocalSyncState.class);
+        _byHash = new HashMap<Hash, Channel>();
+        _hashById = new HashMap<Long, Hash>();
+        _banned = new HashSet<Hash>(client.getBannedChannels());
+        loadChannels();
+    }
+
+    private void loadChannels() {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.prepare(SQL_GET_CHANNELS);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                long id = rs.getLong(1);
+                if (rs.wasNull())
+                    continue;
+                byte hash[] = rs.getBytes(2);
+                if (hash == null || hash.length != Hash.HASH_LENGTH)
+                    continue;
+                long edition = rs.getLong(3);
+                if (rs.wasNull())
+                    edition = -1;
+                Hash h = new Hash(hash);
+                _byHash.put(h, new Channel(id, edition));
+                _hashById.put(Long.valueOf(id), h);
+            }
+        } catch (SQLException se) {
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("Error loading the channels", se);
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    /**
+     *  Load the (scope, messageId) of every local message, for isKnown()
+     */
+    public void loadKnownMessages() {
+        int size = 1024;
+        long scopes[] = new long[size];
+        long ids[] = new long[size];
+        int count = 0;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.prepare(SQL_GET_MESSAGES);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                long scope = rs.getLong(1);
+                if (rs.wasNull() || scope < 0)
+                    continue;
+                long id = rs.getLong(2);
+                if (rs.wasNull())
+                    continue;
+                if (count >= size) {
+                    size *= 2;
+                    long s[] = new long[size];
+                    long i[] = new long[size];
+                    System.arraycopy(scopes, 0, s, 0, count);
+                    System.arraycopy(ids, 0, i, 0, count);
+                    scopes = s;
+                    ids = i;
+                }
+                scopes[count] = scope;
+                ids[count] = id;
+                count++;
+            }
+        } catch (SQLException se) {
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("Error loading the messages", se);
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+
+        int capacity = 16;
+        while (capacity < count * 2)
+            capacity <<= 1;
+        _knownScopes = new long[capacity];
+        _knownIds = new long[capacity];
+        _knownMask = capacity - 1;
+        Arrays.fill(_knownScopes, -1);
+        for (int i = 0; i < count; i++) {
+            int slot = slot(scopes[i], ids[i], _knownMask);
+            while (_knownScopes[slot] >= 0 && !(_knownScopes[slot] == scopes[i] && _knownIds[slot] == ids[i]))
+                slot = (slot + 1) & _knownMask;
+            _knownScopes[slot] = scopes[i];
+            _knownIds[slot] = ids[i];
+        }
+    }
+
+    /**
+     *  As DBClient.getMessageId(scope, messageId) >= 0.
+     *  loadKnownMessages() must have been called.
+     */
+    public boolean isKnown(Hash scope, long messageId) {
+        long scopeId = getChannelId(scope);
+        if (scopeId < 0 || _knownScopes == null)
+            return false;
+        for (int slot = slot(scopeId, messageId, _knownMask); ; slot = (slot + 1) & _knownMask) {
+            long cur = _knownScopes[slot];
+            if (cur < 0)
+                return false;
+            if (cur == scopeId && _knownIds[slot] == messageId)
+                return true;
+        }
+    }
+
+    /** message ids are often dates, so mix them */
+    private static int slot(long scopeId, long messageId, int mask) {
+        long key = (messageId + (scopeId << 40)) * 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    /** @return -1 if unknown */
+    public long getChannelId(Hash scope) {
+        Channel chan = _byHash.get(scope);
+        return chan != null ? chan.id : -1;
+    }
+
+    /** as DBClient.getChannelVersion(Hash), -1 if unknown */
+    public long getChannelVersion(Hash scope) {
+        Channel chan = _byHash.get(scope);
+        return chan != null ? chan.edition : -1;
+    }
+
+    /** @return null if unknown */
+    public Hash getChannelHash(long channelId) {
+        return _hashById.get(Long.valueOf(channelId));
+    }
+
+    public boolean isBanned(Hash scope) {
+        return _banned.contains(scope);
+    }
+
+    /**
+     *  The local messages in the scope, in one query
+     *
+     *  @return messageId to message, non-null
+     */
+    public Map<Long, LocalMessage> getScopeMessages(long scopeId) {
+        Map<Long, LocalMessage> rv = new HashMap<Long, LocalMessage>();
+        if (scopeId < 0)
+            return rv;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.prepare(SQL_GET_SCOPE_MESSAGES);
+            stmt.setLong(1, scopeId);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                long messageId = rs.getLong(1);
+                if (rs.wasNull())
+                    continue;
+                long msgId = rs.getLong(2);
+                Date when = rs.getDate(3);
+                long importDate = when != null ? when.getTime() : -1;
+                long authorId = rs.getLong(4);
+                if (rs.wasNull())
+                    authorId = -1;
+                long targetId = rs.getLong(5);
+                if (rs.wasNull())
+                    targetId = -1;
+                int privacy = getPrivacy(rs);
+                Long key = Long.valueOf(messageId);
+                if (!rv.containsKey(key))
+                    rv.put(key, new LocalMessage(msgId, importDate, authorId, targetId, privacy));
+            }
+        } catch (SQLException se) {
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("Error loading the messages of " + scopeId, se);
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return rv;
+    }
+
+    /** as DBClient.getMessagePrivacy(), from columns 6-11 */
+    private static int getPrivacy(ResultSet rs) throws SQLException {
+        boolean readKeyMissing = rs.getBoolean(9);
+        if (rs.wasNull() || readKeyMissing)
+            return DBClient.PRIVACY_UNKNOWN;
+        rs.getString(10);
+        if (!rs.wasNull())
+            return DBClient.PRIVACY_UNKNOWN;
+        boolean replyKeyMissing = rs.getBoolean(11);
+        if (rs.wasNull() || replyKeyMissing)
+            return DBClient.PRIVACY_UNKNOWN;
+        boolean encrypted = rs.getBoolean(6);
+        if (rs.wasNull()) encrypted = false;
+        boolean pbe = rs.getBoolean(7);
+        if (rs.wasNull()) pbe = false;
+        boolean privReply = rs.getBoolean(8);
+        if (rs.wasNull()) privReply = false;
+        if (!encrypted)
+            return DBClient.PRIVACY_PUBLIC;
+        else if (pbe)
+            return DBClient.PRIVACY_PBE;
+        else if (privReply)
+            return DBClient.PRIVACY_PRIVREPLY;
+        else
+            return DBClient.PRIVACY_AUTHORIZEDONLY;
+    }
+
+    /** channels and known messages */
+    @Override
+    public String toString() {
+        return "channels: " + _byHash.size() + " banned: " + _banned.size() +
+               " known message slots: " + (_knownScopes != null ? _knownScopes.length : 0);
+    }
+}
@@ -0,0 +1,429 @@
+package syndie.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import syndie.html.HTMLStateBuilder;
+
+/**
+ *  Full text index of the messages, in the messageTerm table.
+ *  Each term (a lower cased run of letters and digits) found in the subject,
+ *  the page text, or the public tags of a message maps to the msgId,
+ *  along with the word positions so phrases can be matched from the index alone.
+ *
+ *  Query syntax, all clauses must match (AND):
+ *  <pre>
+ *    word          the term
+ *    pre*          any term starting with pre
+ *    "some words"  the terms next to each other, in order
+ *  </pre>
+ *  A literal AND between clauses is ignored.
+ *
+ *  Filled by ImportPost, emptied by DBClient.deleteMessageFromDB(),
+ *  and rebuilt for the existing messages at the first login after the
+ *  upgrade to INDEX_VERSION, or by the reindex command.
+ *
+ *  @since 1.107b-1
+ */
+class MessageIndex {
+    private final DBClient _client;
+
+    /** the schema version that added the index, see ddl_update25.txt */
+    static final int INDEX_VERSION = 26;
+    /** longer terms are truncated */
+    static final int MAX_TERM_LENGTH = 64;
+    /** positions beyond this string length are not recorded, so phrases that far in won't match */
+    private static final int MAX_POSITIONS_LENGTH = 1024;
+
+    static final String SQL_DELETE_TERMS = "DELETE FROM messageTerm WHERE msgId = ?";
+    private static final String SQL_DELETE_ALL_TERMS = "DELETE FROM messageTerm";
+    private static final String SQL_INSERT_TERM = "INSERT INTO messageTerm (term, msgId, positions) VALUES (?, ?, ?)";
+    private static final String SQL_GET_TERM = "SELECT msgId FROM messageTerm WHERE term = ?";
+    private static final String SQL_GET_TERM_POSITIONS = "SELECT msgId, positions FROM messageTerm WHERE term = ?";
+    private static final String SQL_GET_PREFIX = "SELECT DISTINCT msgId FROM messageTerm WHERE term LIKE ?";
+
+    public MessageIndex(DBClient client) {
+        _client = client;
+    }
+
+    /**
+     *  Replace the terms of the message.
+     *  Call within the import transaction.
+     *
+     *  @param subject may be null
+     *  @param pages plain text of each page, elements may be null
+     *  @param tags public tags, may be null
+     */
+    public void index(long msgId, String subject, List<String> pages, Collection<String> tags) throws SQLException {
+        Map<String, StringBuilder> terms = new LinkedHashMap<String, StringBuilder>();
+        // leave a gap between the fields so phrases don't span them
+        int pos = 0;
+        pos = addTerms(terms, subject, pos) + 1;
+        if (pages != null) {
+            for (String page : pages)
+                pos = addTerms(terms, page, pos) + 1;
+        }
+        if (tags != null) {
+            for (String tag : tags)
+                pos = addTerms(terms, tag, pos) + 1;
+        }
+
+        _client.exec(SQL_DELETE_TERMS, msgId);
+        if (terms.isEmpty())
+            return;
+        PreparedStatement stmt = null;
+        try {
+            stmt = _client.prepare(SQL_INSERT_TERM);
+            for (Map.Entry<String, StringBuilder> e : terms.entrySet()) {
+                stmt.setString(1, e.getKey());
+                stmt.setLong(2, msgId);
+                stmt.setString(3, e.getValue().toString());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    /**
+     *  @return the next free position
+     */
+    private static int addTerms(Map<String, StringBuilder> terms, String text, int pos) {
+        if (text == null)
+            return pos;
+        for (String term : tokenize(text)) {
+            StringBuilder positions = terms.get(term);
+            if (positions == null) {
+                positions = new StringBuilder(8);
+                terms.put(term, positions);
+            }
+            String p = Integer.toString(pos);
+            if (positions.length() + p.length() + 1 <= MAX_POSITIONS_LENGTH) {
+                if (positions.length() > 0)
+                    positions.append(',');
+                positions.append(p);
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     *  Split into lower case runs of letters and digits, truncated to MAX_TERM_LENGTH.
+     */
+    static List<String> tokenize(String text) {
+        List<String> rv = new ArrayList<String>();
+        int len = text.length();
+        int start = -1;
+        for (int i = 0; i <= len; i++) {
+            boolean word = i < len && Character.isLetterOrDigit(text.charAt(i));
+            if (word) {
+                if (start < 0)
+                    start = i;
+            } else if (start >= 0) {
+                String term = text.substring(start, Math.min(i, start + MAX_TERM_LENGTH));
+                rv.add(term.toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  The text to index for a page, with the markup removed from HTML pages
+     *
+     *  @param contentType may be null
+     */
+    static String getPageText(String data, String contentType) {
+        if (data == null)
+            return null;
+        if (contentType != null &&
+            ("text/html".equalsIgnoreCase(contentType) || "text/xhtml".equalsIgnoreCase(contentType))) {
+            HTMLStateBuilder sb = new HTMLStateBuilder(data);
+            sb.buildState();
+            return HTMLStateBuilder.stripPlaceholders(sb.getAsText());
+        }
+        return data;
+    }
+
+    /**
+     *  @return the msgIds matching all the clauses, or null if the query has no terms at all
+     */
+    public Set<Long> search(String query) throws SQLException {
+        List<Clause> clauses = parse(query);
+        if (clauses.isEmpty())
+            return null;
+        Set<Long> rv = null;
+        for (Clause c : clauses) {
+            Set<Long> ids;
+            if (c.terms.length > 1)
+                ids = getPhrase(c.terms, rv);
+            else if (c.prefix)
+                ids = getIds(SQL_GET_PREFIX, c.terms[0] + '%');
+            else
+                ids = getIds(SQL_GET_TERM, c.terms[0]);
+            if (rv == null)
+                rv = ids;
+            else
+                rv.retainAll(ids);
+            if (rv.isEmpty())
+                break;
+        }
+        return rv;
+    }
+
+    /** one term, a phrase, or a prefix */
+    private static class Clause {
+        final String terms[];
+        final boolean prefix;
+
+        Clause(List<String> terms, boolean prefix) {
+            this.terms = terms.toArray(new String[terms.size()]);
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     *  Quoted strings are phrases. A bare word with punctuation inside,
+     *  like foo-bar, is a phrase too, as that's how it was indexed.
+     */
+    private static List<Clause> parse(String query) {
+        List<Clause> rv = new ArrayList<Clause>();
+        if (query == null)
+            return rv;
+        int len = query.length();
+        int i = 0;
+        while (i < len) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"') {
+                int end = query.indexOf('"', i + 1);
+                if (end < 0)
+                    end = len;
+                List<String> terms = tokenize(query.substring(i + 1, end));
+                if (!terms.isEmpty())
+                    rv.add(new Clause(terms, false));
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < len && !Character.isWhitespace(query.charAt(end)) && query.charAt(end) != '"')
+                    end++;
+                String word = query.substring(i, end);
+                i = end;
+                if (word.equals("AND"))
+                    continue;
+                List<String> terms = tokenize(word);
+                if (terms.isEmpty())
+                    continue;
+                boolean prefix = word.endsWith("*");
+                if (prefix && terms.size() > 1) {
+                    // foo-ba* is the phrase foo-ba (which won't match) and the prefix ba*
+                    rv.add(new Clause(terms.subList(terms.size() - 1, terms.size()), true));
+                    terms = terms.subList(0, terms.size() - 1);
+                    prefix = false;
+                }
+                rv.add(new Clause(terms, prefix));
+            }
+        }
+        return rv;
+    }
+
+    private Set<Long> getIds(String sql, String term) throws SQLException {
+        Set<Long> rv = new HashSet<Long>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.prepare(sql);
+            stmt.setString(1, term);
+            rs = stmt.executeQuery();
+            while (rs.next())
+                rv.add(Long.valueOf(rs.getLong(1)));
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return rv;
+    }
+
+    /**
+     *  One query per term in the phrase, then match up the positions
+     *
+     *  @param candidates if non-null, only consider these
+     */
+    private Set<Long> getPhrase(String terms[], Set<Long> candidates) throws SQLException {
+        // msgId to the start positions still possible
+        Map<Long, Set<Integer>> starts = null;
+        for (int t = 0; t < terms.length; t++) {
+            Map<Long, Set<Integer>> next = new HashMap<Long, Set<Integer>>();
+            PreparedStatement stmt = null;
+            ResultSet rs = null;
+            try {
+                stmt = _client.prepare(SQL_GET_TERM_POSITIONS);
+                stmt.setString(1, terms[t]);
+                rs = stmt.executeQuery();
+                while (rs.next()) {
+                    Long msgId = Long.valueOf(rs.getLong(1));
+                    if (candidates != null && !candidates.contains(msgId))
+                        continue;
+                    Set<Integer> prev = null;
+                    if (starts != null) {
+                        prev = starts.get(msgId);
+                        if (prev == null)
+                            continue;
+                    }
+                    Set<Integer> s = getStarts(rs.getString(2), t, prev);
+                    if (!s.isEmpty())
+                        next.put(msgId, s);
+                }
+            } finally {
+                if (rs != null) try { rs.close(); } catch (SQLException se) {}
+                if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+            }
+            starts = next;
+            if (starts.isEmpty())
+                break;
+        }
+        return new HashSet<Long>(starts.keySet());
+    }
+
+    /**
+     *  @param positions comma separated
+     *  @param offset position of the term in the phrase
+     *  @param prev start positions possible so far, null for the first term
+     *  @return start positions still possible
+     */
+    private static Set<Integer> getStarts(String positions, int offset, Set<Integer> prev) {
+        Set<Integer> rv = new HashSet<Integer>();
+        if (positions == null || positions.length() <= 0)
+            return rv;
+        int i = 0;
+        while (i < positions.length()) {
+            int end = positions.indexOf(',', i);
+            if (end < 0)
+                end = positions.length();
+            try {
+                Integer start = Integer.valueOf(Integer.parseInt(positions.substring(i, end)) - offset);
+                if (prev == null || prev.contains(start))
+                    rv.add(start);
+            } catch (NumberFormatException nfe) {}
+            i = end + 1;
+        }
+        return rv;
+    }
+
+    private static final String SQL_GET_ANY_TERM = "SELECT msgId FROM messageTerm";
+    private static final String SQL_GET_INDEXABLE = "SELECT msgId, subject FROM channelMessage WHERE deletionCause IS NULL" +
+                                                    " AND readKeyMissing = FALSE AND replyKeyMissing = FALSE AND pbePrompt IS NULL";
+    private static final String SQL_GET_PAGES = "SELECT pageNum, contentType FROM messagePage WHERE msgId = ? ORDER BY pageNum";
+
+    /**
+     *  Is the index empty while there are messages to index,
+     *  as after the upgrade, or after a rebuild that failed before its first commit
+     */
+    public boolean isMissing() throws SQLException {
+        return !hasRow(SQL_GET_ANY_TERM) && hasRow(SQL_GET_INDEXABLE);
+    }
+
+    private boolean hasRow(String sql) throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.con().prepareStatement(sql);
+            stmt.setMaxRows(1);
+            rs = stmt.executeQuery();
+            return rs.next();
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    /**
+     *  Empty the index and index every readable message again.
+     *  Caller must be in a write scope.
+     *
+     *  @return the number of messages indexed
+     */
+    public int rebuild(UI ui) throws SQLException {
+        Map<Long, String> msgs = new LinkedHashMap<Long, String>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.con().prepareStatement(SQL_GET_INDEXABLE);
+            rs = stmt.executeQuery();
+            while (rs.next())
+                msgs.put(Long.valueOf(rs.getLong(1)), rs.getString(2));
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        ui.statusMessage("Indexing " + msgs.size() + " messages");
+
+        try {
+            stmt = _client.con().prepareStatement(SQL_DELETE_ALL_TERMS);
+            stmt.executeUpdate();
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        int done = 0;
+        boolean committed = false;
+        _client.beginGroupCommit(DBClient.DEFAULT_GROUP_COMMIT_SIZE, DBClient.DEFAULT_GROUP_COMMIT_DELAY);
+        try {
+            for (Map.Entry<Long, String> e : msgs.entrySet()) {
+                long msgId = e.getKey().longValue();
+                List<String> pages = getPages(msgId);
+                Set<String> tags = _client.getMessageTags(msgId, false, true);
+                Object tx = _client.beginImportTransaction();
+                try {
+                    index(msgId, e.getValue(), pages, tags);
+                } catch (SQLException se) {
+                    _client.rollbackImportTransaction(tx);
+                    throw se;
+                }
+                if (!_client.commitImportTransaction(tx))
+                    throw new SQLException("Error committing the index of message " + msgId);
+                if ((++done % 500) == 0)
+                    ui.statusMessage("Indexed " + done + " messages");
+            }
+        } finally {
+            committed = _client.endGroupCommit();
+        }
+        if (!committed)
+            throw new SQLException("Error committing the index");
+        return done;
+    }
+
+    private List<String> getPages(long msgId) throws SQLException {
+        Map<Integer, String> types = new LinkedHashMap<Integer, String>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.prepare(SQL_GET_PAGES);
+            stmt.setLong(1, msgId);
+            rs = stmt.executeQuery();
+            while (rs.next())
+                types.put(Integer.valueOf(rs.getInt(1)), rs.getString(2));
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        List<String> rv = new ArrayList<String>(types.size());
+        for (Map.Entry<Integer, String> e : types.entrySet()) {
+            String data = _client.getMessagePageData(msgId, e.getKey().intValue());
+            rv.add(getPageText(data, e.getValue()));
+        }
+        return rv;
+    }
+}
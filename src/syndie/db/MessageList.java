@@ -8,6 +8,8 @@ import net.i2p.I2PAppContext;
 import net.i2p.data.Hash;
 import net.i2p.util.SecureFile;
 
+import syndie.data.MessageInfo;
+
 /**
  *CLI messagelist
  * --db $url
@@ -47,29 +49,13 @@ public class MessageList extends CommandImpl {
             Hash chan = Hash.create(args.getOptBytes("channel"));
             ui.statusMessage("Channel " + chan.toBase64());
             List internalIds = client.getMessageIdsPrivate(chan);
-            if (internalIds.size() > 0) {
-                ui.statusMessage("Private messages available: ");
-                for (int i = 0; i < internalIds.size(); i++)
-                    ui.statusMessage("\tmessage " + internalIds.get(i));
-            }
+            list(ui, client, "Private messages available: ", internalIds);
             internalIds = client.getMessageIdsAuthorized(chan);
-            if (internalIds.size() > 0) {
-                ui.statusMessage("Authorized messages available: ");
-                for (int i = 0; i < internalIds.size(); i++)
-                    ui.statusMessage("\tmessage " + internalIds.get(i));
-            }
+            list(ui, client, "Authorized messages available: ", internalIds);
             internalIds = client.getMessageIdsAuthenticated(chan);
-            if (internalIds.size() > 0) {
-                ui.statusMessage("Authenticated yet unauthorized messages available: ");
-                for (int i = 0; i < internalIds.size(); i++)
-                    ui.statusMessage("\tmessage " + internalIds.get(i));
-            }
+            list(ui, client, "Authenticated yet unauthorized messages available: ", internalIds);
             internalIds = client.getMessageIdsUnauthenticated(chan);
-            if (internalIds.size() > 0) {
-                ui.statusMessage("Unauthenticated and unauthorized messages available: ");
-                for (int i = 0; i < internalIds.size(); i++)
-                    ui.statusMessage("\tmessage " + internalIds.get(i));
-            }
+            list(ui, client, "Unauthenticated and unauthorized messages available: ", internalIds);
         } catch (SQLException se) {
             ui.errorMessage("Invalid database URL", se);
         //} finally {
@@ -78,6 +64,29 @@ public class MessageList extends CommandImpl {
         return client;
     }
     
+    /**
+     *  Loads all the messages at once with getMessages()
+     *
+     *  @param internalIds Longs
+     *  @since 1.107b-1 pulled out of runCommand()
+     */
+    private static void list(UI ui, DBClient client, String header, List internalIds) {
+        if (internalIds.size() <= 0)
+            return;
+        ui.statusMessage(header);
+        long ids[] = new long[internalIds.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = ((Long)internalIds.get(i)).longValue();
+        Map<Long, MessageInfo> msgs = client.getMessages(ids);
+        for (int i = 0; i < ids.length; i++) {
+            MessageInfo msg = msgs.get(Long.valueOf(ids[i]));
+            if (msg != null && msg.getSubject() != null)
+                ui.statusMessage("\tmessage " + ids[i] + ": " + CommandImpl.strip(msg.getSubject()));
+            else
+                ui.statusMessage("\tmessage " + ids[i]);
+        }
+    }
+    
 /****
     public static void main(String args[]) {
         try {
@@ -3,6 +3,7 @@ package syndie.db;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
 import net.i2p.data.Hash;
 import syndie.data.ReferenceNode;
@@ -24,6 +25,52 @@ class MessageReferenceBuilder {
      */
     public List loadReferences(long internalMsgId) throws SQLException {
         buildReferences(internalMsgId);
+        return getRoots();
+    }
+
+    private static final String SQL_GET_MESSAGES_REFERENCE = "SELECT msgId, referenceId, parentReferenceId, siblingOrder, name, description, uriId, refType FROM messageReference WHERE msgId IN ";
+    private static final String SQL_GET_MESSAGES_REFERENCE_ORDER = " ORDER BY msgId ASC, referenceId ASC";
+
+    /**
+     *  Bulk version of loadReferences(long), with one query.
+     *
+     *  @param inList the message IDs as an SQL list, e.g. "(1,2,3)"
+     *  @return internal message ID to reference trees, messages without references not included
+     *  @since 1.107b-1
+     */
+    public Map<Long, List<ReferenceNode>> loadReferences(String inList) throws SQLException {
+        Map<Long, List<ReferenceNode>> rv = new HashMap<Long, List<ReferenceNode>>();
+        Statement stmt = null;
+        ResultSet rs = null;
+        long curMsgId = -1;
+        try {
+            stmt = _client.con().createStatement();
+            rs = stmt.executeQuery(SQL_GET_MESSAGES_REFERENCE + inList + SQL_GET_MESSAGES_REFERENCE_ORDER);
+            while (rs.next()) {
+                long msgId = rs.getLong(1);
+                if (msgId != curMsgId) {
+                    if (curMsgId >= 0)
+                        rv.put(Long.valueOf(curMsgId), getRoots());
+                    curMsgId = msgId;
+                }
+                addNode(rs, 2);
+            }
+            if (curMsgId >= 0)
+                rv.put(Long.valueOf(curMsgId), getRoots());
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+            _referenceIdToReferenceNode.clear();
+        }
+        return rv;
+    }
+
+    /**
+     *  Resolve the nodes added so far, and clear them
+     *
+     *  @since 1.107b-1 pulled out of loadReferences()
+     */
+    private List getRoots() {
         resolveTree();
         List rv = new ArrayList();
         for (Iterator iter = _referenceIdToReferenceNode.values().iterator(); iter.hasNext(); ) {
@@ -55,32 +102,40 @@ class MessageReferenceBuilder {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _client.con().prepareStatement(SQL_GET_MESSAGE_REFERENCE);
+            stmt = _client.prepare(SQL_GET_MESSAGE_REFERENCE);
             stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             while (rs.next()) {
-                // referenceId, parentReferenceId, siblingOrder, name, description, uriId, refType
-                int refId = rs.getInt(1);
-                if (rs.wasNull()) continue;
-                int parentId = rs.getInt(2);
-                if (rs.wasNull()) parentId = -1;
-                int order = rs.getInt(3);
-                if (rs.wasNull()) order = 0;
-                String name = rs.getString(4);
-                String desc = rs.getString(5);
-                long uriId = rs.getLong(6);
-                if (rs.wasNull()) uriId = -1;
-                String refType = rs.getString(7);
-                
-                SyndieURI uri = _client.getURI(uriId);
-                MsgReferenceNode node = new MsgReferenceNode(name, uri, desc, refType, refId, parentId, order);
-                _referenceIdToReferenceNode.put(Integer.valueOf(refId), node);
+                addNode(rs, 1);
             }
         } finally {
             if (rs != null) try { rs.close(); } catch (SQLException se) {}
             if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
         }
     }
+
+    /**
+     *  @param col the column of the referenceId, followed by the other columns of SQL_GET_MESSAGE_REFERENCE
+     *  @since 1.107b-1 pulled out of buildReferences()
+     */
+    private void addNode(ResultSet rs, int col) throws SQLException {
+        // referenceId, parentReferenceId, siblingOrder, name, description, uriId, refType
+        int refId = rs.getInt(col);
+        if (rs.wasNull()) return;
+        int parentId = rs.getInt(col + 1);
+        if (rs.wasNull()) parentId = -1;
+        int order = rs.getInt(col + 2);
+        if (rs.wasNull()) order = 0;
+        String name = rs.getString(col + 3);
+        String desc = rs.getString(col + 4);
+        long uriId = rs.getLong(col + 5);
+        if (rs.wasNull()) uriId = -1;
+        String refType = rs.getString(col + 6);
+
+        SyndieURI uri = _client.getURI(uriId);
+        MsgReferenceNode node = new MsgReferenceNode(name, uri, desc, refType, refId, parentId, order);
+        _referenceIdToReferenceNode.put(Integer.valueOf(refId), node);
+    }
     
     private void resolveTree() {
         setParents();
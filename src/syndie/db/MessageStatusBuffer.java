@@ -0,0 +1,187 @@
+package syndie.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.i2p.util.SimpleTimer2;
+
+/**
+ *  Read/unread changes not yet written to nymUnreadMessage.
+ *
+ *  markMessageRead() and markMessageUnread() only record the change here,
+ *  and getMessageStatus() and getUnread() look here first, so the change
+ *  is visible right away. Shortly after, or once enough have piled up,
+ *  all the pending changes are written in one transaction, and the
+ *  MessageStatusListeners are told about them in one batch.
+ *  Repeated changes to the same message collapse into the last one.
+ *
+ *  @since 1.107b-1
+ */
+class MessageStatusBuffer {
+    private final DBClient _client;
+    /** (nymId, msgId) to true for unread, false for read, in the order of the changes; protected by this */
+    private LinkedHashMap<Key, Boolean> _pending;
+    /** being written by flush(), still answers get(); protected by this */
+    private Map<Key, Boolean> _flushing;
+    /** one flush at a time */
+    private final Object _flushLock = new Object();
+    private final FlushEvent _event;
+    private boolean _scheduled;
+
+    /** how long a change may wait before it is written */
+    public static final long FLUSH_DELAY = 1000;
+    /** more than this many pending, and the caller writes them right away */
+    private static final int MAX_PENDING = 500;
+
+    public MessageStatusBuffer(DBClient client) {
+        _client = client;
+        _pending = new LinkedHashMap<Key, Boolean>();
+        _flushing = new LinkedHashMap<Key, Boolean>();
+        _event = new FlushEvent();
+    }
+
+    /**
+     *  Record the change and schedule the flush.
+     *  If too much is pending, flush in the caller's thread.
+     */
+    public void mark(long nymId, long msgId, boolean unread) {
+        boolean flushNow;
+        synchronized (this) {
+            Key key = new Key(nymId, msgId);
+            // move it to the end
+            _pending.remove(key);
+            _pending.put(key, Boolean.valueOf(unread));
+            flushNow = _pending.size() > MAX_PENDING;
+            if (!flushNow && !_scheduled) {
+                _scheduled = true;
+                _event.schedule(FLUSH_DELAY);
+            }
+        }
+        if (flushNow)
+            flush();
+    }
+
+    /**
+     *  @return true if pending unread, false if pending read, null if nothing pending
+     */
+    public synchronized Boolean get(long nymId, long msgId) {
+        if (_pending.isEmpty() && _flushing.isEmpty())
+            return null;
+        Key key = new Key(nymId, msgId);
+        Boolean rv = _pending.get(key);
+        if (rv == null)
+            rv = _flushing.get(key);
+        return rv;
+    }
+
+    /**
+     *  @return msgId to true for unread, false for read, for the nym; empty if nothing pending
+     */
+    public synchronized Map<Long, Boolean> get(long nymId) {
+        Map<Long, Boolean> rv = new LinkedHashMap<Long, Boolean>();
+        for (Map.Entry<Key, Boolean> e : _flushing.entrySet()) {
+            if (e.getKey().nymId == nymId)
+                rv.put(Long.valueOf(e.getKey().msgId), e.getValue());
+        }
+        for (Map.Entry<Key, Boolean> e : _pending.entrySet()) {
+            if (e.getKey().nymId == nymId)
+                rv.put(Long.valueOf(e.getKey().msgId), e.getValue());
+        }
+        return rv;
+    }
+
+    /**
+     *  Write everything pending now, in the caller's thread, and notify the listeners.
+     *  If the write fails, the changes are pending again.
+     *  Called by the timer, before markChannelRead(), and at close.
+     */
+    public void flush() {
+        synchronized (_flushLock) {
+            Map<Key, Boolean> toWrite;
+            synchronized (this) {
+                if (_scheduled) {
+                    _event.cancel();
+                    _scheduled = false;
+                }
+                if (_pending.isEmpty())
+                    return;
+                toWrite = _pending;
+                _flushing = toWrite;
+                _pending = new LinkedHashMap<Key, Boolean>();
+            }
+            try {
+                _client.writeMessageStatus(toWrite);
+            } finally {
+                synchronized (this) {
+                    _flushing = new LinkedHashMap<Key, Boolean>();
+                }
+            }
+        }
+    }
+
+    /**
+     *  Put back changes that failed to write, to be tried again with the next flush.
+     *  A change made since to the same message wins.
+     */
+    public void requeue(Map<Key, Boolean> changes) {
+        synchronized (this) {
+            LinkedHashMap<Key, Boolean> pending = new LinkedHashMap<Key, Boolean>(changes);
+            for (Map.Entry<Key, Boolean> e : _pending.entrySet()) {
+                pending.remove(e.getKey());
+                pending.put(e.getKey(), e.getValue());
+            }
+            _pending = pending;
+            if (!_scheduled) {
+                _scheduled = true;
+                _event.schedule(FLUSH_DELAY);
+            }
+        }
+    }
+
+    /**
+     *  Forget the pending changes without writing them, for when the database is gone
+     */
+    public synchronized void clear() {
+        if (_scheduled) {
+            _event.cancel();
+            _scheduled = false;
+        }
+        _pending.clear();
+    }
+
+    static class Key {
+        final long nymId;
+        final long msgId;
+
+        Key(long nymId, long msgId) {
+            this.nymId = nymId;
+            this.msgId = msgId;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (msgId ^ (msgId >>> 32)) ^ (int) nymId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return k.msgId == msgId && k.nymId == nymId;
+        }
+    }
+
+    private class FlushEvent extends SimpleTimer2.TimedEvent {
+        FlushEvent() {
+            super(SimpleTimer2.getInstance());
+        }
+
+        public void timeReached() {
+            synchronized (MessageStatusBuffer.this) {
+                _scheduled = false;
+            }
+            flush();
+        }
+    }
+}
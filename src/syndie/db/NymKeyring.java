@@ -0,0 +1,83 @@
+package syndie.db;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.i2p.data.ByteArray;
+
+/**
+ *  The decrypted nym keys for the current nym passphrase,
+ *  keyed by the encrypted key data and salt as stored in the nymKey table.
+ *
+ *  Decrypting a nym key runs the passphrase KDF, which is deliberately slow,
+ *  and getReadKeys() is called for every imported post.
+ *  The ring is filled at login by verifyNymKeyEncryption(), which decrypts all
+ *  of the keys, and by KeyImport as keys are added.
+ *  It must be wiped whenever the nym passphrase changes or the client disconnects.
+ *
+ *  @since 1.107b-1
+ */
+class NymKeyring {
+    private final Map<ByteArray, byte[]> _keys;
+    /** KDF runs saved */
+    private long _hits;
+    /** KDF runs done */
+    private long _misses;
+
+    public NymKeyring() {
+        _keys = new HashMap<ByteArray, byte[]>();
+    }
+
+    /**
+     *  @return a copy of the decrypted key, or null if not in the ring
+     */
+    public byte[] get(byte encrypted[], byte salt[]) {
+        ByteArray k = key(encrypted, salt);
+        synchronized (this) {
+            byte[] rv = _keys.get(k);
+            if (rv == null) {
+                _misses++;
+                return null;
+            }
+            _hits++;
+            return copy(rv);
+        }
+    }
+
+    public void put(byte encrypted[], byte salt[], byte decrypted[]) {
+        ByteArray k = key(encrypted, salt);
+        byte[] v = copy(decrypted);
+        synchronized (this) {
+            _keys.put(k, v);
+        }
+    }
+
+    /**
+     *  Forget all keys, zeroing them first. Counters are retained.
+     */
+    public synchronized void clear() {
+        for (byte[] v : _keys.values()) {
+            for (int i = 0; i < v.length; i++)
+                v[i] = 0;
+        }
+        _keys.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "keys: " + _keys.size() + " KDF runs saved: " + _hits + " KDF runs: " + _misses;
+    }
+
+    private static ByteArray key(byte encrypted[], byte salt[]) {
+        byte k[] = new byte[salt.length + encrypted.length];
+        System.arraycopy(salt, 0, k, 0, salt.length);
+        System.arraycopy(encrypted, 0, k, salt.length, encrypted.length);
+        return new ByteArray(k);
+    }
+
+    private static byte[] copy(byte orig[]) {
+        byte rv[] = new byte[orig.length];
+        System.arraycopy(orig, 0, rv, 0, orig.length);
+        return rv;
+    }
+}
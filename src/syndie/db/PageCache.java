@@ -0,0 +1,137 @@
+package syndie.db;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  Bounded cache of page data and page config, by (msgId, pageNum),
+ *  so re-rendering a page (resize, theme change, preview then view)
+ *  doesn't read the string or CLOB from the database again.
+ *
+ *  Bounded by the approximate bytes of the strings, not the number of entries.
+ *  Evicts whole messages, least recently used first. Pages over
+ *  1/8 of the limit aren't cached at all.
+ *
+ *  Entries are removed when the message is deleted or expired
+ *  (deleteMessageFromDB()) or its pages are replaced (ImportPost).
+ *  As in ChannelInfoCache, a load is only cached if no invalidation
+ *  happened while it was loading. Nulls aren't cached.
+ *
+ *  @since 1.107b-1
+ */
+class PageCache {
+    /** msgId to its cached pages, access order */
+    private final LinkedHashMap<Long, Pages> _cache;
+    private final long _maxBytes;
+    private long _bytes;
+    /** incremented on every invalidation */
+    private long _generation;
+    private long _hits;
+    private long _misses;
+    private long _evictions;
+
+    public static final long DEFAULT_MAX_BYTES = 8*1024*1024;
+    /** per entry, plus 2 bytes per char */
+    private static final int OVERHEAD = 64;
+
+    private static class Pages {
+        final Map<Integer, String> data = new HashMap<Integer, String>(4);
+        final Map<Integer, String> config = new HashMap<Integer, String>(4);
+        long bytes;
+    }
+
+    public PageCache(long maxBytes) {
+        _cache = new LinkedHashMap<Long, Pages>(64, 0.75f, true);
+        _maxBytes = maxBytes;
+    }
+
+    /** @return null if not cached */
+    public synchronized String getData(long msgId, int pageNum) {
+        return get(msgId, pageNum, true);
+    }
+
+    /** @return null if not cached */
+    public synchronized String getConfig(long msgId, int pageNum) {
+        return get(msgId, pageNum, false);
+    }
+
+    private String get(long msgId, int pageNum, boolean data) {
+        Pages pages = _cache.get(Long.valueOf(msgId));
+        String rv = null;
+        if (pages != null)
+            rv = (data ? pages.data : pages.config).get(Integer.valueOf(pageNum));
+        if (rv != null)
+            _hits++;
+        else
+            _misses++;
+        return rv;
+    }
+
+    /**
+     *  Call before loading, and pass the value to put()
+     */
+    public synchronized long getGeneration() {
+        return _generation;
+    }
+
+    /** @param generation from getGeneration() before the data was loaded */
+    public synchronized void putData(long msgId, int pageNum, String val, long generation) {
+        put(msgId, pageNum, val, generation, true);
+    }
+
+    /** @param generation from getGeneration() before the config was loaded */
+    public synchronized void putConfig(long msgId, int pageNum, String val, long generation) {
+        put(msgId, pageNum, val, generation, false);
+    }
+
+    private void put(long msgId, int pageNum, String val, long generation, boolean data) {
+        if (val == null || generation != _generation)
+            return;
+        long size = OVERHEAD + 2l * val.length();
+        if (size > _maxBytes / 8)
+            return;
+        Long id = Long.valueOf(msgId);
+        Pages pages = _cache.get(id);
+        if (pages == null) {
+            pages = new Pages();
+            _cache.put(id, pages);
+        }
+        String old = (data ? pages.data : pages.config).put(Integer.valueOf(pageNum), val);
+        if (old != null)
+            size -= OVERHEAD + 2l * old.length();
+        pages.bytes += size;
+        _bytes += size;
+        evict();
+    }
+
+    private void evict() {
+        for (Iterator<Pages> iter = _cache.values().iterator(); _bytes > _maxBytes && iter.hasNext(); ) {
+            Pages pages = iter.next();
+            iter.remove();
+            _bytes -= pages.bytes;
+            _evictions++;
+        }
+    }
+
+    /** all the pages of the message */
+    public synchronized void invalidate(long msgId) {
+        _generation++;
+        Pages pages = _cache.remove(Long.valueOf(msgId));
+        if (pages != null)
+            _bytes -= pages.bytes;
+    }
+
+    public synchronized void clear() {
+        _generation++;
+        _cache.clear();
+        _bytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "messages: " + _cache.size() + " bytes: " + _bytes + '/' + _maxBytes +
+               " hits: " + _hits + " misses: " + _misses + " evictions: " + _evictions;
+    }
+}
@@ -0,0 +1,338 @@
+package syndie.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Per-SQL timing of the queries issued through DBClient:
+ *  a count, a latency histogram for the p50 and p99, and the rows updated.
+ *
+ *  Off unless the syndie.dbstats system property is true, or turned on
+ *  with dbstats --enable true or by dbbench, as the timing isn't free.
+ *  While on, the statements from DBClient.prepare(), prepareUncached() and
+ *  createStatement() are timed around each execute call.
+ *  The time is only the execute, not the caller's walk through the results,
+ *  and the ResultSets are handed out as they are, so the rows of a query aren't counted.
+ *
+ *  The cached statements are keyed by their SQL as it is, which is constant.
+ *  Dynamically built SQL is grouped by normalize(), with the numbers
+ *  and IN lists replaced by ?, and there are at most MAX_QUERIES
+ *  different ones, everything after that is counted as OTHER.
+ *
+ *  @since 1.107b-1
+ */
+class QueryStats {
+    private final ConcurrentHashMap<String, Stat> _stats;
+    private volatile boolean _enabled;
+    private long _since;
+
+    public static final String PROP_ENABLED = "syndie.dbstats";
+    private static final int MAX_QUERIES = 512;
+    static final String OTHER = "(other)";
+
+    /**
+     *  Histogram buckets: four per power of two of microseconds,
+     *  so a percentile is within 19% of the real value.
+     */
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 40 * SUB_BUCKETS;
+
+    public QueryStats() {
+        _stats = new ConcurrentHashMap<String, Stat>();
+        _enabled = Boolean.parseBoolean(System.getProperty(PROP_ENABLED));
+        _since = System.currentTimeMillis();
+    }
+
+    public boolean isEnabled() { return _enabled; }
+
+    /** off means the statements are handed out unwrapped */
+    public void setEnabled(boolean enabled) { _enabled = enabled; }
+
+    /** when the stats were last reset */
+    public synchronized long getSince() { return _since; }
+
+    public void reset() {
+        _stats.clear();
+        synchronized (this) {
+            _since = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     *  @param sql as it is for a constant statement, normalized for a dynamic one
+     *  @param rows updated, or -1 if unknown
+     */
+    public void record(String sql, long nanos, int rows) {
+        Stat stat = _stats.get(sql);
+        if (stat == null) {
+            // the limit may be overshot by a few racing threads, that's fine
+            String key = _stats.size() >= MAX_QUERIES ? OTHER : sql;
+            stat = new Stat(key);
+            Stat old = _stats.putIfAbsent(key, stat);
+            if (old != null)
+                stat = old;
+        }
+        stat.add(nanos, rows);
+    }
+
+    /**
+     *  Copies of the current stats, most total time first
+     */
+    public List<Snapshot> getSnapshots() {
+        List<Stat> stats = new ArrayList<Stat>(_stats.values());
+        List<Snapshot> rv = new ArrayList<Snapshot>(stats.size());
+        for (Stat stat : stats)
+            rv.add(stat.snapshot());
+        Collections.sort(rv, new TotalTimeComparator());
+        return rv;
+    }
+
+    /** totals over all the queries, for DBClient's trace: { count, nanos } */
+    public long[] getTotals() {
+        long count = 0;
+        long nanos = 0;
+        for (Snapshot s : getSnapshots()) {
+            count += s.count;
+            nanos += s.totalNanos;
+        }
+        return new long[] { count, nanos };
+    }
+
+    /**
+     *  Numbers and quoted strings become ?, and lists of ? become one (?...),
+     *  so the same query built with different values is one entry.
+     */
+    static String normalize(String sql) {
+        StringBuilder buf = new StringBuilder(sql.length());
+        int len = sql.length();
+        for (int i = 0; i < len; i++) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                int end = sql.indexOf('\'', i + 1);
+                while (end > 0 && end + 1 < len && sql.charAt(end + 1) == '\'')
+                    end = sql.indexOf('\'', end + 2);
+                if (end < 0)
+                    end = len - 1;
+                buf.append('?');
+                i = end;
+            } else if ((c >= '0' && c <= '9') && (i == 0 || !isWordChar(sql.charAt(i - 1)))) {
+                while (i + 1 < len && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.'))
+                    i++;
+                buf.append('?');
+            } else if (Character.isWhitespace(c)) {
+                if (buf.length() > 0 && buf.charAt(buf.length() - 1) != ' ')
+                    buf.append(' ');
+            } else {
+                buf.append(c);
+            }
+        }
+        // (?, ?, ?) and (?,?) to (?...)
+        String rv = buf.toString().trim();
+        int idx = rv.indexOf("(?,");
+        while (idx >= 0) {
+            int end = idx + 1;
+            while (end < rv.length()) {
+                char c = rv.charAt(end);
+                if (c == '?' || c == ',' || c == ' ')
+                    end++;
+                else
+                    break;
+            }
+            if (end < rv.length() && rv.charAt(end) == ')')
+                rv = rv.substring(0, idx) + "(?...)" + rv.substring(end + 1);
+            idx = rv.indexOf("(?,", idx + 1);
+        }
+        return rv;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     *  A statement that times its executes into these stats.
+     *  Returns the statement itself if disabled.
+     *
+     *  @param sql for a PreparedStatement, null for a plain Statement
+     */
+    public <T extends Statement> T wrap(T stmt, String sql, Class<T> type) {
+        if (!_enabled)
+            return stmt;
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+                                                new Class[] { type },
+                                                new StatementHandler(stmt, sql)));
+    }
+
+    /**
+     *  Call the method on the real statement, timing it if it is an execute.
+     *  For StatementCache's handle, which has its own close().
+     *
+     *  @param sql for a PreparedStatement, null for a plain Statement
+     *  @param constant the sql is a cached statement's, used as the key without normalizing
+     */
+    Object invoke(Statement stmt, String sql, boolean constant, Method method, Object[] args) throws Throwable {
+        if (!_enabled || !method.getName().startsWith("execute"))
+            return invokeReal(stmt, method, args);
+        String query;
+        if (args != null && args.length > 0 && args[0] instanceof String) {
+            // Statement.execute(sql), always dynamic
+            query = normalize((String) args[0]);
+        } else if (sql != null) {
+            query = constant ? sql : normalize(sql);
+        } else {
+            return invokeReal(stmt, method, args);
+        }
+        long start = System.nanoTime();
+        Object rv = invokeReal(stmt, method, args);
+        long nanos = System.nanoTime() - start;
+        if (rv instanceof Integer) {
+            record(query, nanos, ((Integer) rv).intValue());
+        } else if (rv instanceof int[]) {
+            int rows = 0;
+            int counts[] = (int[]) rv;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0)
+                    rows += counts[i];
+            }
+            record(query, nanos, rows);
+        } else {
+            // a query, or execute(), the rows are unknown
+            record(query, nanos, -1);
+        }
+        return rv;
+    }
+
+    private static Object invokeReal(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ite) {
+            throw ite.getCause();
+        }
+    }
+
+    private class StatementHandler implements InvocationHandler {
+        private final Statement _stmt;
+        private final String _sql;
+
+        public StatementHandler(Statement stmt, String sql) {
+            _stmt = stmt;
+            _sql = sql;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals") && args != null && args.length == 1)
+                return Boolean.valueOf(proxy == args[0]);
+            if (name.equals("hashCode") && (args == null || args.length == 0))
+                return Integer.valueOf(System.identityHashCode(proxy));
+            return QueryStats.this.invoke(_stmt, _sql, false, method, args);
+        }
+    }
+
+    /** one SQL, protected by itself */
+    private static class Stat {
+        private final String _sql;
+        private final long _buckets[];
+        private long _count;
+        private long _totalNanos;
+        private long _maxNanos;
+        private long _rows;
+
+        public Stat(String sql) {
+            _sql = sql;
+            _buckets = new long[BUCKETS];
+        }
+
+        public synchronized void add(long nanos, int rows) {
+            _count++;
+            _totalNanos += nanos;
+            if (nanos > _maxNanos)
+                _maxNanos = nanos;
+            if (rows > 0)
+                _rows += rows;
+            _buckets[bucket(nanos)]++;
+        }
+
+        public synchronized Snapshot snapshot() {
+            return new Snapshot(_sql, _count, _totalNanos, _maxNanos, _rows,
+                                percentile(50), percentile(99));
+        }
+
+        /** upper bound of the bucket holding the percentile, in nanoseconds */
+        private long percentile(int pct) {
+            if (_count <= 0)
+                return 0;
+            long target = (_count * pct + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += _buckets[i];
+                if (seen >= target)
+                    return Math.min(upperBound(i), _maxNanos);
+            }
+            return _maxNanos;
+        }
+    }
+
+    /** the bucket for a time, by microseconds */
+    private static int bucket(long nanos) {
+        long us = nanos / 1000;
+        if (us < SUB_BUCKETS)
+            return (int) Math.max(us, 0);
+        int log = 63 - Long.numberOfLeadingZeros(us);
+        // the two bits below the highest
+        int sub = (int) ((us >> (log - 2)) & (SUB_BUCKETS - 1));
+        int rv = (log - 1) * SUB_BUCKETS + sub;
+        return Math.min(rv, BUCKETS - 1);
+    }
+
+    /** the largest time in nanoseconds in the bucket */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return (bucket + 1) * 1000l - 1;
+        int log = bucket / SUB_BUCKETS + 1;
+        int sub = bucket % SUB_BUCKETS;
+        long us = (1l << log) + ((sub + 1l) << (log - 2)) - 1;
+        return us * 1000 + 999;
+    }
+
+    /**
+     *  The stats of one SQL at one time
+     */
+    public static class Snapshot {
+        public final String sql;
+        public final long count;
+        public final long totalNanos;
+        public final long maxNanos;
+        public final long rows;
+        public final long p50Nanos;
+        public final long p99Nanos;
+
+        Snapshot(String sql, long count, long totalNanos, long maxNanos, long rows, long p50, long p99) {
+            this.sql = sql;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.rows = rows;
+            this.p50Nanos = p50;
+            this.p99Nanos = p99;
+        }
+    }
+
+    private static class TotalTimeComparator implements Comparator<Snapshot> {
+        public int compare(Snapshot l, Snapshot r) {
+            if (l.totalNanos > r.totalNanos)
+                return -1;
+            if (l.totalNanos < r.totalNanos)
+                return 1;
+            return l.sql.compareTo(r.sql);
+        }
+    }
+}
@@ -426,7 +426,7 @@ class ReadMenu implements TextEngine.Menu {
     }
     
     // $index\t$date\t$subject\t$author
-    private static final String SQL_LIST_MESSAGES = "SELECT msgId, messageId, subject, authorChannelId FROM channelMessage WHERE targetChannelId = ? AND wasPrivate = FALSE AND isCancelled = FALSE AND deletionCause IS NULL";
+    private static final String SQL_LIST_MESSAGES = "SELECT msgId, messageId, subject, authorChannelId, readKeyMissing, replyKeyMissing, pbePrompt FROM channelMessage WHERE targetChannelId = ? AND wasPrivate = FALSE AND isCancelled = FALSE AND deletionCause IS NULL";
     /** messages [--channel ($index|$hash)] [--includeUnauthorized $boolean] [--includeUnauthenticated $boolean] */
     private void processMessages(DBClient client, UI ui, Opts opts) {
         boolean unauthorized = opts.getOptBoolean("includeUnauthorized", false);
@@ -496,10 +496,12 @@ class ReadMenu implements TextEngine.Menu {
         }
         
         List privMsgIds = client.getMessageIdsPrivate(_currentChannel.getChannelHash());
-        for (int i = 0; i < privMsgIds.size(); i++) {
-            Long msgId = (Long)privMsgIds.get(i);
-            _messageKeys.add(msgId);
-            MessageInfo msg = client.getMessage(msgId.longValue());
+        long ids[] = new long[privMsgIds.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = ((Long)privMsgIds.get(i)).longValue();
+        Map<Long, MessageInfo> privMsgs = client.getMessages(ids);
+        for (MessageInfo msg : privMsgs.values()) {
+            _messageKeys.add(Long.valueOf(msg.getInternalId()));
             StringBuilder buf = new StringBuilder();
             String date = null;
             synchronized (_dayFmt) {
@@ -557,6 +559,11 @@ class ReadMenu implements TextEngine.Menu {
                 long authorChannelId = rs.getLong(4);
                 if (rs.wasNull()) authorChannelId = -1;
                 //byte hash[] = rs.getBytes(4);
+                boolean readKeyMissing = rs.getBoolean(5);
+                if (rs.wasNull()) readKeyMissing = false;
+                boolean replyKeyMissing = rs.getBoolean(6);
+                if (rs.wasNull()) replyKeyMissing = false;
+                String pbePrompt = rs.getString(7);
                 
                 // ok, matches criteria
                 _messageKeys.add(Long.valueOf(id));
@@ -568,13 +575,13 @@ class ReadMenu implements TextEngine.Menu {
                     }
                 }
                 
-                MessageInfo msg = client.getMessage(id);
-                if (msg.getReplyKeyUnknown() || msg.getReadKeyUnknown()) {
+                // everything we need from the MessageInfo is in the query
+                if (replyKeyMissing || readKeyMissing) {
                     buf.append("(undecrypted message)\tuse 'decrypt --message ");
                     buf.append(_messageKeys.size()-1).append("' to decrypt");
-                } else if (msg.getPassphrasePrompt() != null) {
+                } else if (pbePrompt != null) {
                     buf.append("(undecrypted message) - prompt: \"");
-                    buf.append(CommandImpl.strip(msg.getPassphrasePrompt()));
+                    buf.append(CommandImpl.strip(pbePrompt));
                     buf.append("\"\tuse 'decrypt --message ");
                     buf.append(_messageKeys.size()-1).append(" --passphrase $passphrase' to decrypt");
                 } else {
@@ -0,0 +1,57 @@
+package syndie.db;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.SecureFile;
+
+/**
+ *CLI reindex
+ * --db $url
+ *
+ * Rebuild the full text message index. This is done at the first login
+ * after upgrading a database created before the index existed,
+ * so it is only needed if that failed.
+ *
+ * @since 1.107b-1
+ */
+public class Reindex extends CommandImpl {
+
+    public static String getHelp(String cmd) {
+        return "(rebuild the full text message index)";
+    }
+
+    public DBClient runCommand(Opts args, UI ui, DBClient client) {
+        if ( (client == null) || (!client.isLoggedIn()) ) {
+            List missing = args.requireOpts(new String[] { "db" });
+            if (missing.size() > 0) {
+                ui.errorMessage("Invalid options, missing " + missing);
+                ui.commandComplete(-1, null);
+                return client;
+            }
+        }
+
+        try {
+            if (args.dbOptsSpecified()) {
+                if (client == null)
+                    client = new DBClient(I2PAppContext.getGlobalContext(), new SecureFile(TextEngine.getRootPath()));
+                else
+                    client.close();
+                client.connect(args.getOptValue("db"));
+            }
+            long start = System.currentTimeMillis();
+            int count = client.rebuildMessageIndex(ui);
+            if (count < 0) {
+                ui.commandComplete(-1, null);
+                return client;
+            }
+            ui.statusMessage("Indexed " + count + " messages in " + (System.currentTimeMillis() - start) + "ms");
+            ui.commandComplete(0, null);
+        } catch (SQLException se) {
+            ui.errorMessage("Invalid database URL", se);
+            ui.commandComplete(-1, null);
+        }
+        return client;
+    }
+}
@@ -8,6 +8,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -27,11 +28,12 @@ import syndie.data.SyndieURI;
  * serialize(About)+numChannels+serialize(Channel[])+numMessages+serialize(Message[])
  */
 public class SharedArchive {
-    // FIXME need better data structures to look up messages by ID, or channel, or something
     private Channel _channels[];
     private Message _messages[];
     private About _about;
     private long _loadedOn = System.currentTimeMillis();
+    /** built by read(), or on first use after setChannels() / setMessages() */
+    private volatile Index _index;
 
     /** See also SyndicatorDetailHTTPArchive */
     public static final int DEFAULT_MAX_SIZE_KB = 512;
@@ -39,8 +41,8 @@ public class SharedArchive {
     public static final int DEFAULT_NEWAGE_DAYS = 92;
     public static final boolean DEFAULT_RECENT_ONLY = true;
     
-    void setChannels(List channels) { _channels = (Channel[])channels.toArray(new Channel[0]); }
-    void setMessages(List messages) { _messages = (Message[])messages.toArray(new Message[0]); }
+    void setChannels(List channels) { _channels = (Channel[])channels.toArray(new Channel[0]); _index = null; }
+    void setMessages(List messages) { _messages = (Message[])messages.toArray(new Message[0]); _index = null; }
     void setAbout(About about) { _about = about; }
     
     /** was the archive index loaded long enough ago that the remote archive should have rebuilt their index by now? */
@@ -69,45 +71,196 @@ public class SharedArchive {
     Message[] getMessages() { return _messages; }
     public About getAbout() { return _about; }
     
+    /**
+     *  The messages targetting the channel, in index order
+     *
+     *  @return empty if the channel isn't in the index
+     */
     public ArrayList getTargetMessages(Hash targetChan) {
-        ArrayList rv = new ArrayList();
-        int targetIndex = getTargetIndex(targetChan);
-        for (int i = 0; i < _messages.length; i++) {
-            if (_messages[i].getTargetIndex() == targetIndex)
-                rv.add(_messages[i]);
-        }
+        Index index = getIndex();
+        int targetIndex = index.getChannelIndex(_channels, targetChan);
+        if (targetIndex < 0)
+            return new ArrayList();
+        int start = index.targetStart[targetIndex];
+        int end = index.targetStart[targetIndex + 1];
+        ArrayList rv = new ArrayList(end - start);
+        for (int i = start; i < end; i++)
+            rv.add(_messages[index.targetMsgs[i]]);
         return rv;
     }
     
-    /** very inefficient, O(N) search */
     Channel getChannel(Hash chan) {
-        int index = getTargetIndex(chan);
+        int index = getIndex().getChannelIndex(_channels, chan);
         if (index >= 0)
             return _channels[index];
         return null;
     }
 
-    private int getTargetIndex(Hash chan) {
-        for (int i = 0; i < _channels.length; i++) {
-            if (DataHelper.eq(_channels[i].getScope(), chan.getData()))
-                return i;
+    boolean isKnown(Hash chan, long messageId) {
+        Index index = getIndex();
+        int scope = index.getChannelIndex(_channels, chan);
+        if (scope < 0)
+            return false;
+        return index.isKnown(scope, messageId);
+    }
+
+    private Index getIndex() {
+        Index rv = _index;
+        if (rv == null) {
+            synchronized (this) {
+                rv = _index;
+                if (rv == null) {
+                    rv = new Index(_channels, _messages);
+                    _index = rv;
+                }
+            }
         }
-        return -1;
+        return rv;
     }
 
     /**
-     * FIXME O(n**2) in SharedArchiveEngine.scheduleNew()
-     * very inefficient, O(N) search
+     *  Lookup tables over _channels and _messages, so getChannel(), isKnown()
+     *  and getTargetMessages() don't scan the whole archive, which made
+     *  SharedArchiveEngine.scheduleNew() O(n**2) and HTTPServ scan every
+     *  message on every GET.
+     *
+     *  Channels by the first 8 bytes of their scope in an open addressing
+     *  table of index + 1. When a scope is listed more than once, the first wins,
+     *  and messages in the later duplicates are keyed on the first.
+     *  Messages by (scope index, messageId) in an open addressing table of
+     *  primitives. Message indexes by target channel as one array with the
+     *  start of each channel's run (a posting list per target).
+     *
+     *  Immutable once built, rebuilt after the channels or messages change.
+     *
+     *  @since 1.107b-1
      */
-    boolean isKnown(Hash chan, long messageId) {
-        for (int i = 0; i < _messages.length; i++) {
-            if (messageId == _messages[i].getMessageId()) {
-                Channel scope = _channels[_messages[i].getScopeIndex()];
-                if (DataHelper.eq(scope.getScope(), chan.getData()))
+    private static final class Index {
+        /** channel index + 1, 0 for empty */
+        final int[] chanSlots;
+        final int chanMask;
+        /** scope index, -1 for empty */
+        final int[] msgScopes;
+        final long[] msgIds;
+        final int msgMask;
+        /** target t's messages are targetMsgs[targetStart[t]] to targetMsgs[targetStart[t+1] - 1] */
+        final int[] targetStart;
+        final int[] targetMsgs;
+
+        Index(Channel channels[], Message messages[]) {
+            if (channels == null)
+                channels = new Channel[0];
+            if (messages == null)
+                messages = new Message[0];
+
+            chanSlots = new int[capacity(channels.length)];
+            chanMask = chanSlots.length - 1;
+            // for each channel, the first one with the same scope
+            int canonical[] = new int[channels.length];
+            for (int i = 0; i < channels.length; i++) {
+                byte scope[] = channels[i].getScope();
+                canonical[i] = i;
+                if (scope == null)
+                    continue;
+                int slot = chanSlot(scope, chanMask);
+                while (true) {
+                    int cur = chanSlots[slot];
+                    if (cur == 0) {
+                        chanSlots[slot] = i + 1;
+                        break;
+                    }
+                    if (DataHelper.eq(channels[cur - 1].getScope(), scope)) {
+                        canonical[i] = cur - 1;
+                        break;
+                    }
+                    slot = (slot + 1) & chanMask;
+                }
+            }
+
+            msgScopes = new int[capacity(messages.length)];
+            msgIds = new long[msgScopes.length];
+            msgMask = msgScopes.length - 1;
+            Arrays.fill(msgScopes, -1);
+            int counts[] = new int[channels.length + 1];
+            for (int i = 0; i < messages.length; i++) {
+                Message msg = messages[i];
+                int scope = msg.getScopeIndex();
+                if (scope >= 0 && scope < channels.length) {
+                    scope = canonical[scope];
+                    long id = msg.getMessageId();
+                    int slot = msgSlot(scope, id, msgMask);
+                    while (msgScopes[slot] >= 0 && !(msgScopes[slot] == scope && msgIds[slot] == id))
+                        slot = (slot + 1) & msgMask;
+                    msgScopes[slot] = scope;
+                    msgIds[slot] = id;
+                }
+                int target = msg.getTargetIndex();
+                if (target >= 0 && target < channels.length)
+                    counts[target + 1]++;
+            }
+
+            // counting sort of the message indexes by target, keeping their order
+            targetStart = new int[channels.length + 1];
+            for (int t = 0; t < channels.length; t++)
+                targetStart[t + 1] = targetStart[t] + counts[t + 1];
+            targetMsgs = new int[targetStart[channels.length]];
+            int next[] = new int[channels.length];
+            System.arraycopy(targetStart, 0, next, 0, channels.length);
+            for (int i = 0; i < messages.length; i++) {
+                int target = messages[i].getTargetIndex();
+                if (target >= 0 && target < channels.length)
+                    targetMsgs[next[target]++] = i;
+            }
+        }
+
+        /** @return the first channel with the scope, or -1 */
+        int getChannelIndex(Channel channels[], Hash chan) {
+            if (chan == null)
+                return -1;
+            byte scope[] = chan.getData();
+            for (int slot = chanSlot(scope, chanMask); ; slot = (slot + 1) & chanMask) {
+                int cur = chanSlots[slot];
+                if (cur == 0)
+                    return -1;
+                if (DataHelper.eq(channels[cur - 1].getScope(), scope))
+                    return cur - 1;
+            }
+        }
+
+        /** @param scope from getChannelIndex() */
+        boolean isKnown(int scope, long messageId) {
+            for (int slot = msgSlot(scope, messageId, msgMask); ; slot = (slot + 1) & msgMask) {
+                int cur = msgScopes[slot];
+                if (cur < 0)
+                    return false;
+                if (cur == scope && msgIds[slot] == messageId)
                     return true;
             }
         }
-        return false;
+
+        /** @return a power of 2, at least twice the entries, so there's always an empty slot */
+        private static int capacity(int entries) {
+            int rv = 16;
+            while (rv < entries * 2)
+                rv <<= 1;
+            return rv;
+        }
+
+        /** the first 8 bytes of a hash are as random as any */
+        private static int chanSlot(byte scope[], int mask) {
+            if (scope == null || scope.length < 8)
+                return Arrays.hashCode(scope) & mask;
+            long key = 0;
+            for (int i = 0; i < 8; i++)
+                key = (key << 8) | (scope[i] & 0xff);
+            return (int) (key ^ (key >>> 32)) & mask;
+        }
+
+        /** message ids are often sequential or dates, so mix them */
+        private static int msgSlot(int scope, long messageId, int mask) {
+            long key = (messageId + (((long) scope) << 40)) * 0x9E3779B97F4A7C15L;
+            return (int) (key ^ (key >>> 32)) & mask;
+        }
     }
     
     /** is the channel info PBE encrypted? */
@@ -499,9 +652,11 @@ public class SharedArchive {
                 msgs[i].read(in);
             }
 
+            Index index = new Index(chans, msgs);
             _about = about;
             _channels = chans;
             _messages = msgs;
+            _index = index;
         } catch (DataFormatException dfe) {
             throw new IOException("Corrupt archive: " + dfe.getMessage());
         }
@@ -2,9 +2,9 @@ package syndie.db;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -14,10 +14,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import net.i2p.data.Base64;
-import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
 import syndie.Constants;
-import syndie.data.Enclosure;
 
 /**
  * load the local archive (disk and database) into a SharedArchive
@@ -31,6 +29,12 @@ public class SharedArchiveBuilder {
     private boolean _shareBanned;
     private boolean _shareReceivedOnly;
     private final SharedArchive.About _about;
+    /** the headers of the archive files, for the current build */
+    private ArchiveHeaderCache _cache;
+    /** null for the default one in the root dir */
+    private File _cacheFile;
+    /** index in the channels list by scope, for the current build */
+    private Map<Hash, Integer> _channelIndexes;
     
     /** if it arrived in the last 3 days, its "new" */
     static final long PERIOD_NEW = 3*24*60*60*1000L;
@@ -54,28 +58,83 @@ public class SharedArchiveBuilder {
     
     /** how old messages can be and still be marked as new (set to <= 0 and that means all messages are) */
     public void setPeriodNew(long ageMs) { _periodNew = ageMs; }
+
+    /**
+     *  Use this header cache file instead of the one in the root dir
+     *  @since 1.107b-1
+     */
+    void setHeaderCacheFile(File file) { _cacheFile = file; }
     
     /**
+     *  Only the archive files that are new or changed since the last build are parsed,
+     *  the headers of the others come from the ArchiveHeaderCache.
+     *
      *  TODO force-rebuild parameter
-     *  TODO only rebuild if something changed
      */
     public SharedArchive buildSharedArchive() {
         _ui.statusMessage("Building shared archive rooted out of " + _client.getArchiveDir().getPath());
+        long start = System.currentTimeMillis();
         SharedArchive archive = new SharedArchive();
+        _cache = _cacheFile != null ? new ArchiveHeaderCache(_client, _cacheFile) : new ArchiveHeaderCache(_client);
+        File dirs[] = getChannelDirs();
         // get all updated channel metadata
-        List channels = getRecentChannels();
+        List channels = getRecentChannels(dirs);
         // get all matching messages
-        List messages = getRecentMessages(channels);
+        List messages = getRecentMessages(dirs, channels);
+        _cache.save();
         
         SharedArchive.About about = buildAbout();
         archive.setChannels(channels);
         archive.setMessages(messages);
         archive.setAbout(about);
         //_ui.debugMessage("no_admin_chan = " + SharedArchive.ABOUT_NO_ADMIN_CHANNEL);
-        _ui.debugMessage("shared archive message count = " + messages.size() + " channel count = " + channels.size());
+        _ui.debugMessage("shared archive message count = " + messages.size() + " channel count = " + channels.size() +
+                         " built in " + (System.currentTimeMillis() - start) + "ms, headers " + _cache);
+        _cache = null;
+        _channelIndexes = null;
         
         return archive;
     }
+
+    /**
+     *  The channel directories in the archive, sorted
+     *  @return non-null
+     *  @since 1.107b-1
+     */
+    private File[] getChannelDirs() {
+        File dirs[] = _client.getArchiveDir().listFiles(new FileFilter() {
+            public boolean accept(File pathname) {
+                return (pathname.isDirectory() && !pathname.getName().startsWith("."));
+            }
+        });
+        if (dirs == null)
+            return new File[0];
+        sortFiles(dirs);
+        return dirs;
+    }
+
+    /**
+     *  A message file and the messageId from its name
+     *  @since 1.107b-1
+     */
+    private static class MessageFile implements Comparable<MessageFile> {
+        final File file;
+        final long messageId;
+
+        MessageFile(File file, long messageId) {
+            this.file = file;
+            this.messageId = messageId;
+        }
+
+        /** the FILENAME_COMPARATOR order, without parsing the names again */
+        public int compareTo(MessageFile mf) {
+            if (messageId < mf.messageId)
+                return -1;
+            if (messageId > mf.messageId)
+                return 1;
+            return file.getName().compareTo(mf.file.getName());
+        }
+    }
     
     private SharedArchive.About buildAbout() {
         /*
@@ -173,20 +232,18 @@ public class SharedArchiveBuilder {
      * return a list of SharedArchive.Message instances, including the index into the channels list.
      * the channels list itself will be updated to contain any additional channels not already in there
      */
-    private List getRecentMessages(List channels) {
+    private List getRecentMessages(File dirs[], List channels) {
         List rv = new ArrayList();
-        File dirs[] = _client.getArchiveDir().listFiles(new FileFilter() {
-            public boolean accept(File pathname) {
-                return (pathname.isDirectory() && !pathname.getName().startsWith("."));
-            }
-        });
-        if (dirs == null)
-            return rv;
-        sortFiles(dirs);
+        _channelIndexes = new HashMap<Hash, Integer>(channels.size() * 2);
+        for (int i = 0; i < channels.size(); i++) {
+            Hash h = Hash.create(((SharedArchive.Channel)channels.get(i)).getScope());
+            if (!_channelIndexes.containsKey(h))
+                _channelIndexes.put(h, Integer.valueOf(i));
+        }
+        long now = System.currentTimeMillis();
         for (int i = 0; i < dirs.length; i++) {
             Hash scope = Hash.create(Base64.decode(dirs[i].getName()));
             
-            // FIXME O(n**2)
             int scopeChannel = getChannelIndex(channels, scope);
             if (scopeChannel < 0) {
                 _ui.debugMessage("Could not share the metadata for " + scope.toBase64() + ", so we cannot share any of its messages");
@@ -201,31 +258,33 @@ public class SharedArchiveBuilder {
             //_ui.debugMessage("# message files in " + scope.toBase64() + ": " + msgFiles.length);
             if (msgFiles == null)
                 continue;
-            sortFiles(msgFiles);
+            List<MessageFile> sorted = new ArrayList<MessageFile>(msgFiles.length);
             for (int j = 0; j < msgFiles.length; j++) {
                 long messageId = getMessageId(msgFiles[j]);
                 if (messageId < 0) {
                     _ui.errorMessage("Error parsing messageId out of " + msgFiles[j].getPath());
                     continue;
                 }
+                sorted.add(new MessageFile(msgFiles[j], messageId));
+            }
+            Collections.sort(sorted);
+            String dirName = dirs[i].getName() + '/';
+            for (MessageFile mf : sorted) {
+                long messageId = mf.messageId;
                 
                 //_ui.debugMessage("parsing message " + messageId + " in " + scope.toBase64());
                 
-                FileInputStream fin = null;
                 try {
-                    fin = new FileInputStream(msgFiles[j]);
-                    Enclosure enc = new Enclosure(fin);
+                    long size = mf.file.length();
+                    long when = mf.file.lastModified(); // _client.getMessageImportDate(scope, messageId);
+                    ArchiveHeaderCache.Entry headers = _cache.get(dirName + mf.file.getName(), mf.file, size, when);
                     
-                    long size = -1;
-                    boolean isPBE = false;
-                    boolean isPublic = false;
                     boolean isNew = false;
                     boolean isPrivate = false;
                     int targetChannel = -1;
                     
-                    byte target[] = enc.getHeaderBytes(Constants.MSG_HEADER_TARGET_CHANNEL);
-                    if ( (target != null) && (target.length == Hash.HASH_LENGTH) ) {
-                        // FIXME O(n**2)
+                    byte target[] = headers.target;
+                    if (target != null) {
                         targetChannel = getChannelIndex(channels, Hash.create(target));
                         if (targetChannel == -1) {
                             _ui.debugMessage("cannot include message " + messageId + " because it depends on a channel we can't share: " + Base64.encode(target));
@@ -235,12 +294,11 @@ public class SharedArchiveBuilder {
                         targetChannel = scopeChannel;
                     }
                     
-                    long when = msgFiles[j].lastModified(); // _client.getMessageImportDate(scope, messageId);
-                    
-                    if ( (_periodNew <= 0) || (when + _periodNew >= System.currentTimeMillis()) )
+                    if ( (_periodNew <= 0) || (when + _periodNew >= now) )
                         isNew = true;
                     
-                    if (isLocal(scope, messageId) && (when + _hideLocalHours*60*1000L >= System.currentTimeMillis())) {
+                    // the time first, so the outbound dir is only checked for the recent ones
+                    if ((when + _hideLocalHours*60*1000L >= now) && isLocal(scope, messageId)) {
                         //_ui.debugMessage("Message is in a local channel and was imported very recently, not sharing it: " + scope.toBase64() + ":" + messageId);
                         continue;
                     }
@@ -248,17 +306,12 @@ public class SharedArchiveBuilder {
                     //if (!isNew)
                     //    continue;
                     
-                    isPBE = null != enc.getHeaderString(Constants.MSG_HEADER_PBE_PROMPT);
-                    isPublic = null != enc.getHeaderString(Constants.MSG_HEADER_BODYKEY);
-                    
-                    size = msgFiles[j].length();
-                    String type = enc.getHeaderString(Constants.MSG_HEADER_TYPE);
-                    if (Constants.MSG_TYPE_POST.equals(type))
+                    if (headers.type == ArchiveHeaderCache.TYPE_POST)
                         isPrivate = false;
-                    else if (Constants.MSG_TYPE_REPLY.equals(type))
+                    else if (headers.type == ArchiveHeaderCache.TYPE_REPLY)
                         isPrivate = true;
                     else {
-                        _ui.debugMessage("message " + messageId + " in " + scope.toBase64() + ": invalid type: " + type);
+                        _ui.debugMessage("message " + messageId + " in " + scope.toBase64() + ": invalid type");
                         continue;
                     }
                     
@@ -269,14 +322,12 @@ public class SharedArchiveBuilder {
                     msg.setSize(size);
                     msg.setIsNew(isNew);
                     msg.setLocalMessageDate(when);
-                    msg.setIsPBE(isPBE);
+                    msg.setIsPBE(headers.isPBE);
                     msg.setIsPrivate(isPrivate);
-                    msg.setIsPublic(isPublic);
+                    msg.setIsPublic(headers.isPublic);
                     rv.add(msg);
                 } catch (IOException ioe) {
-                    _ui.errorMessage("Error parsing message file " + msgFiles[j].getPath() + ": " + ioe.getMessage());
-                } finally {
-                    if (fin != null) try { fin.close(); } catch (IOException ioe) {}
+                    _ui.errorMessage("Error parsing message file " + mf.file.getPath() + ": " + ioe.getMessage());
                 }
             }
         }
@@ -307,93 +358,61 @@ public class SharedArchiveBuilder {
      * adding a new one if necessary and possible, or returning -1 if not possible.
      */
     private int getChannelIndex(List channels, Hash scope) {
-        // FIXME O(n**2)
-        for (int i = 0; i < channels.size(); i++) {
-            SharedArchive.Channel chan = (SharedArchive.Channel)channels.get(i);
-            if (DataHelper.eq(scope.getData(), chan.getScope()))
-                return i;
-        }
+        Integer idx = _channelIndexes.get(scope);
+        if (idx != null)
+            return idx.intValue();
         // not found.  add if possible
-        File metaFile = new File(new File(_client.getArchiveDir(), scope.toBase64()), "meta" + Constants.FILENAME_SUFFIX);
-        if (!metaFile.exists())
+        String dirName = scope.toBase64();
+        File metaFile = new File(new File(_client.getArchiveDir(), dirName), "meta" + Constants.FILENAME_SUFFIX);
+        long when = metaFile.lastModified();
+        if (when <= 0)
             return -1;
         
         //long version = _client.getChannelVersion(scope);
         boolean isNew = false; // if it isn't in the list already, its not new
-        boolean isPBE = false;
-        boolean isPublic = false;
 
-        FileInputStream fin = null;
         try {
-            fin = new FileInputStream(metaFile);
-            Enclosure enc = new Enclosure(fin);
-
-            Long version = enc.getHeaderLong(Constants.MSG_META_HEADER_EDITION);
-            isPBE = (null != enc.getHeaderString(Constants.MSG_HEADER_PBE_PROMPT));
-            isPublic = (null != enc.getHeaderString(Constants.MSG_HEADER_BODYKEY));
-
-            fin.close();
-            fin = null;
+            ArchiveHeaderCache.Entry headers = _cache.get(dirName + "/meta" + Constants.FILENAME_SUFFIX, metaFile,
+                                                          metaFile.length(), when);
+            Long version = headers.edition;
 
             SharedArchive.Channel chan = new SharedArchive.Channel();
             chan.setScope(scope);
             chan.setVersion(version != null ? version.longValue() : System.currentTimeMillis());
             chan.setIsNew(isNew);
-            chan.setIsPBE(isPBE);
-            chan.setIsPublic(isPublic);
+            chan.setIsPBE(headers.isPBE);
+            chan.setIsPublic(headers.isPublic);
             chan.setWantNewMeta(true); // todo: make this configurable
             chan.setWantNewMsgs(true); // todo: make this configurable
 
             channels.add(chan);
+            _channelIndexes.put(scope, Integer.valueOf(channels.size()-1));
             return channels.size()-1;
         } catch (IOException ioe) {
             _ui.errorMessage("Error getting the channel metadata from " + metaFile.getPath() + ": " + ioe.getMessage()); //, ioe);
             return -1;
-        } finally {
-            if (fin != null) try { fin.close(); } catch (IOException ioe) {}
         }
     }
     
     /** list of SharedArchive.Channel of those whose version has recently been updated */
-    private List getRecentChannels() {
+    private List getRecentChannels(File dirs[]) {
         List rv = new ArrayList();
-        File dirs[] = _client.getArchiveDir().listFiles(new FileFilter() {
-            public boolean accept(File pathname) {
-                return (pathname.isDirectory() && !pathname.getName().startsWith("."));
-            }
-        });
-        if (dirs == null)
-            return rv;
-        sortFiles(dirs);
+        long now = System.currentTimeMillis();
         for (int i = 0; i < dirs.length; i++) {
             File metaFile = new File(dirs[i], "meta" + Constants.FILENAME_SUFFIX);
-            if (!metaFile.exists())
+            long when = metaFile.lastModified(); //_client.getChannelImportDate(scope);
+            if (when <= 0)
+                continue;
+            // check the age first, so the old ones aren't parsed
+            if ( (_periodNew > 0) && (when + _periodNew < now) )
                 continue;
             Hash scope = Hash.create(Base64.decode(dirs[i].getName()));
-            boolean isNew = false;
-            boolean isPBE = false;
-            boolean isPublic = false;
+            boolean isNew = true;
             
-            FileInputStream fin = null;
             try {
-                fin = new FileInputStream(metaFile);
-                Enclosure enc = new Enclosure(fin);
-                
-                Long version = enc.getHeaderLong(Constants.MSG_META_HEADER_EDITION);
-                isPBE = (null != enc.getHeaderString(Constants.MSG_HEADER_PBE_PROMPT));
-                isPublic = (null != enc.getHeaderString(Constants.MSG_HEADER_BODYKEY));
-                
-                long when = metaFile.lastModified(); //_client.getChannelImportDate(scope);
-                if ( (_periodNew > 0) && (when + _periodNew < System.currentTimeMillis()) )
-                    isNew = false;
-                else
-                    isNew = true;
-                
-                fin.close();
-                fin = null;
-                
-                if (!isNew)
-                    continue;
+                ArchiveHeaderCache.Entry headers = _cache.get(dirs[i].getName() + "/meta" + Constants.FILENAME_SUFFIX,
+                                                              metaFile, metaFile.length(), when);
+                Long version = headers.edition;
                 
                 // todo: keep track of old channel metadata messages that are managed
                 // locally, so we can update that metadata and still be able to serve up
@@ -403,16 +422,14 @@ public class SharedArchiveBuilder {
                 chan.setScope(scope);
                 chan.setVersion(version != null ? version.longValue() : when);
                 chan.setIsNew(isNew);
-                chan.setIsPBE(isPBE);
-                chan.setIsPublic(isPublic);
+                chan.setIsPBE(headers.isPBE);
+                chan.setIsPublic(headers.isPublic);
                 chan.setWantNewMeta(true); // todo: make this configurable
                 chan.setWantNewMsgs(true); // todo: make this configurable
 
                 rv.add(chan);
             } catch (IOException ioe) {
                 _ui.errorMessage("Error checking " + metaFile.getPath() +": " + ioe.getMessage()); //, ioe);
-            } finally {
-                if (fin != null) try { fin.close(); } catch (IOException ioe) {}
             }
         }
         addBannedChannels(rv);
@@ -0,0 +1,411 @@
+package syndie.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.i2p.data.DataFormatException;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+
+/**
+ * Read and write the changes from one version of the shared-index.dat file
+ * to a later one, so a client holding the older version fetches only what
+ * changed instead of the whole index.
+ *
+ * A version is the time the index was built, to the second, which is also
+ * the last modified time of the published shared-index.dat.
+ * Channels are keyed by scope and messages by (scope, messageId), not by their
+ * index, which differs from one build to the next. Each changed entry is sent
+ * whole, to be added or replaced, or is removed, so applying a delta to an
+ * index that already has some of its changes is harmless.
+ *
+ * serialized as
+ * magic+formatVersion+fromVersion+toVersion+totalChannels+totalMessages+serialize(About)+
+ * numTableChannels+(op+serialize(Channel))[]+numMessages+serialize(Message[])+
+ * numRemovedMessages+(scopeIndex+messageId)[]
+ * The scope and target of the Messages, and the scopeIndex of the removed ones,
+ * are indexes into the channel table, which has the added or replaced channels
+ * (op 1), the removed ones (op 2), and the others the messages refer to (op 0).
+ * The totals are those of the later index, to check the merge.
+ *
+ * @since 1.107b-1
+ */
+public class SharedArchiveDelta {
+    /** "SyDx" */
+    private static final int MAGIC = 0x53794478;
+    private static final int FORMAT_VERSION = 1;
+    private static final int OP_REFERENCE = 0;
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+
+    private long _fromVersion;
+    private long _toVersion;
+    private int _totalChannels;
+    private int _totalMessages;
+    private SharedArchive.About _about;
+    private final Map<Hash, SharedArchive.Channel> _putChannels;
+    private final Set<Hash> _removedChannels;
+    private final Map<MessageKey, MessageEntry> _putMessages;
+    private final Set<MessageKey> _removedMessages;
+
+    private static final class MessageKey {
+        final Hash scope;
+        final long messageId;
+
+        MessageKey(Hash scope, long messageId) {
+            this.scope = scope;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public int hashCode() {
+            return scope.hashCode() ^ (int) (messageId ^ (messageId >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MessageKey))
+                return false;
+            MessageKey k = (MessageKey) o;
+            return messageId == k.messageId && scope.equals(k.scope);
+        }
+    }
+
+    /** a message keyed by channel instead of by channel index */
+    private static final class MessageEntry {
+        final MessageKey key;
+        /** the scope if it isn't targetting another channel */
+        final Hash target;
+        final int flags;
+
+        MessageEntry(MessageKey key, Hash target, int flags) {
+            this.key = key;
+            this.target = target;
+            this.flags = flags;
+        }
+
+        boolean sameAs(MessageEntry e) {
+            return flags == e.flags && target.equals(e.target);
+        }
+    }
+
+    public SharedArchiveDelta() {
+        _fromVersion = -1;
+        _toVersion = -1;
+        _putChannels = new LinkedHashMap<Hash, SharedArchive.Channel>();
+        _removedChannels = new LinkedHashSet<Hash>();
+        _putMessages = new LinkedHashMap<MessageKey, MessageEntry>();
+        _removedMessages = new LinkedHashSet<MessageKey>();
+    }
+
+    /**
+     *  The changes from one index to a later one
+     *
+     *  @param from the older index
+     *  @param to the later index
+     */
+    public static SharedArchiveDelta diff(SharedArchive from, long fromVersion, SharedArchive to, long toVersion) {
+        SharedArchiveDelta rv = new SharedArchiveDelta();
+        rv._fromVersion = fromVersion;
+        rv._toVersion = toVersion;
+        rv._about = to.getAbout();
+
+        Map<Hash, SharedArchive.Channel> oldChans = getChannels(from);
+        Map<Hash, SharedArchive.Channel> newChans = getChannels(to);
+        for (Map.Entry<Hash, SharedArchive.Channel> e : newChans.entrySet()) {
+            SharedArchive.Channel old = oldChans.get(e.getKey());
+            SharedArchive.Channel cur = e.getValue();
+            if (old == null || old._version != cur._version || old._flags != cur._flags)
+                rv._putChannels.put(e.getKey(), cur);
+        }
+        for (Hash h : oldChans.keySet()) {
+            if (!newChans.containsKey(h))
+                rv._removedChannels.add(h);
+        }
+
+        Map<MessageKey, MessageEntry> oldMsgs = getMessages(from);
+        Map<MessageKey, MessageEntry> newMsgs = getMessages(to);
+        for (MessageEntry cur : newMsgs.values()) {
+            MessageEntry old = oldMsgs.get(cur.key);
+            if (old == null || !old.sameAs(cur))
+                rv._putMessages.put(cur.key, cur);
+        }
+        for (MessageKey k : oldMsgs.keySet()) {
+            if (!newMsgs.containsKey(k))
+                rv._removedMessages.add(k);
+        }
+
+        rv._totalChannels = newChans.size();
+        rv._totalMessages = newMsgs.size();
+        return rv;
+    }
+
+    /**
+     *  Add the changes of the next delta to these, so this one goes from
+     *  our fromVersion to its toVersion
+     *
+     *  @param next must start at our toVersion
+     *  @throws IOException if it doesn't
+     */
+    public void append(SharedArchiveDelta next) throws IOException {
+        if (next._fromVersion != _toVersion)
+            throw new IOException("Delta from " + next._fromVersion + " does not follow " + _toVersion);
+        for (Hash h : next._removedChannels) {
+            _putChannels.remove(h);
+            _removedChannels.add(h);
+        }
+        for (Map.Entry<Hash, SharedArchive.Channel> e : next._putChannels.entrySet()) {
+            _removedChannels.remove(e.getKey());
+            _putChannels.put(e.getKey(), e.getValue());
+        }
+        for (MessageKey k : next._removedMessages) {
+            _putMessages.remove(k);
+            _removedMessages.add(k);
+        }
+        for (MessageEntry e : next._putMessages.values()) {
+            _removedMessages.remove(e.key);
+            _putMessages.put(e.key, e);
+        }
+        _toVersion = next._toVersion;
+        _about = next._about;
+        _totalChannels = next._totalChannels;
+        _totalMessages = next._totalMessages;
+    }
+
+    /**
+     *  The later index, from the earlier one.
+     *  Changed and added entries go at the end.
+     *
+     *  @param base the index at our fromVersion, not modified
+     *  @throws IOException if the result isn't the index at our toVersion
+     */
+    public SharedArchive apply(SharedArchive base) throws IOException {
+        Map<Hash, SharedArchive.Channel> chans = getChannels(base);
+        Map<MessageKey, MessageEntry> msgs = getMessages(base);
+        chans.keySet().removeAll(_removedChannels);
+        msgs.keySet().removeAll(_removedMessages);
+        chans.putAll(_putChannels);
+        msgs.putAll(_putMessages);
+        if (chans.size() != _totalChannels || msgs.size() != _totalMessages)
+            throw new IOException("Delta does not apply, " + chans.size() + '/' + _totalChannels + " channels, " +
+                                  msgs.size() + '/' + _totalMessages + " messages");
+
+        Map<Hash, Integer> indexes = new HashMap<Hash, Integer>(chans.size() * 2);
+        List<SharedArchive.Channel> channelList = new ArrayList<SharedArchive.Channel>(chans.size());
+        for (Map.Entry<Hash, SharedArchive.Channel> e : chans.entrySet()) {
+            indexes.put(e.getKey(), Integer.valueOf(channelList.size()));
+            channelList.add(e.getValue());
+        }
+        List<SharedArchive.Message> messageList = new ArrayList<SharedArchive.Message>(msgs.size());
+        for (MessageEntry e : msgs.values()) {
+            Integer scope = indexes.get(e.key.scope);
+            Integer target = indexes.get(e.target);
+            if (scope == null || target == null)
+                throw new IOException("Delta does not apply, message " + e.key.messageId + " without its channel");
+            SharedArchive.Message msg = new SharedArchive.Message();
+            msg._messageId = e.key.messageId;
+            msg._scopeChannel = scope.intValue();
+            msg._targetChannel = target.intValue();
+            msg._flags = e.flags;
+            messageList.add(msg);
+        }
+
+        SharedArchive rv = new SharedArchive();
+        rv.setAbout(_about);
+        rv.setChannels(channelList);
+        rv.setMessages(messageList);
+        return rv;
+    }
+
+    /** by scope, the first wins, as in the SharedArchive lookups */
+    private static Map<Hash, SharedArchive.Channel> getChannels(SharedArchive archive) {
+        SharedArchive.Channel chans[] = archive.getChannels();
+        Map<Hash, SharedArchive.Channel> rv = new LinkedHashMap<Hash, SharedArchive.Channel>(chans.length * 2);
+        for (int i = 0; i < chans.length; i++) {
+            Hash h = new Hash(chans[i].getScope());
+            if (!rv.containsKey(h))
+                rv.put(h, chans[i]);
+        }
+        return rv;
+    }
+
+    /** by (scope, messageId), the first wins, skipping any with a bad channel index */
+    private static Map<MessageKey, MessageEntry> getMessages(SharedArchive archive) {
+        SharedArchive.Channel chans[] = archive.getChannels();
+        SharedArchive.Message msgs[] = archive.getMessages();
+        Hash hashes[] = new Hash[chans.length];
+        Map<MessageKey, MessageEntry> rv = new LinkedHashMap<MessageKey, MessageEntry>(msgs.length * 2);
+        for (int i = 0; i < msgs.length; i++) {
+            int scope = msgs[i]._scopeChannel;
+            int target = msgs[i]._targetChannel;
+            if (target < 0)
+                target = scope;
+            if (scope < 0 || scope >= chans.length || target >= chans.length)
+                continue;
+            if (hashes[scope] == null)
+                hashes[scope] = new Hash(chans[scope].getScope());
+            if (hashes[target] == null)
+                hashes[target] = new Hash(chans[target].getScope());
+            MessageKey key = new MessageKey(hashes[scope], msgs[i]._messageId);
+            if (!rv.containsKey(key))
+                rv.put(key, new MessageEntry(key, hashes[target], msgs[i]._flags));
+        }
+        return rv;
+    }
+
+    public long getFromVersion() { return _fromVersion; }
+    public long getToVersion() { return _toVersion; }
+    /** added, replaced, and removed channels and messages */
+    public int countChanges() {
+        return _putChannels.size() + _removedChannels.size() + _putMessages.size() + _removedMessages.size();
+    }
+
+    public void write(OutputStream out) throws IOException {
+        Map<Hash, Integer> indexes = new HashMap<Hash, Integer>();
+        List<SharedArchive.Channel> table = new ArrayList<SharedArchive.Channel>();
+        List<Integer> ops = new ArrayList<Integer>();
+        for (Map.Entry<Hash, SharedArchive.Channel> e : _putChannels.entrySet())
+            addToTable(e.getKey(), e.getValue(), OP_PUT, indexes, table, ops);
+        for (Hash h : _removedChannels)
+            addToTable(h, null, OP_REMOVE, indexes, table, ops);
+        for (MessageEntry e : _putMessages.values()) {
+            addToTable(e.key.scope, null, OP_REFERENCE, indexes, table, ops);
+            addToTable(e.target, null, OP_REFERENCE, indexes, table, ops);
+        }
+        for (MessageKey k : _removedMessages)
+            addToTable(k.scope, null, OP_REFERENCE, indexes, table, ops);
+
+        try {
+            DataHelper.writeLong(out, 4, MAGIC);
+            DataHelper.writeLong(out, 1, FORMAT_VERSION);
+            DataHelper.writeLong(out, 8, _fromVersion);
+            DataHelper.writeLong(out, 8, _toVersion);
+            DataHelper.writeLong(out, 4, _totalChannels);
+            DataHelper.writeLong(out, 4, _totalMessages);
+            _about.write(out);
+            DataHelper.writeLong(out, 4, table.size());
+            for (int i = 0; i < table.size(); i++) {
+                DataHelper.writeLong(out, 1, ops.get(i).intValue());
+                table.get(i).write(out);
+            }
+            DataHelper.writeLong(out, 4, _putMessages.size());
+            SharedArchive.Message msg = new SharedArchive.Message();
+            for (MessageEntry e : _putMessages.values()) {
+                msg._messageId = e.key.messageId;
+                msg._scopeChannel = indexes.get(e.key.scope).intValue();
+                msg._targetChannel = indexes.get(e.target).intValue();
+                msg._flags = e.flags;
+                msg.write(out);
+            }
+            DataHelper.writeLong(out, 4, _removedMessages.size());
+            for (MessageKey k : _removedMessages) {
+                DataHelper.writeLong(out, 4, indexes.get(k.scope).intValue());
+                DataHelper.writeLong(out, 8, k.messageId);
+            }
+        } catch (DataFormatException dfe) {
+            throw new IOException("values out of range: " + dfe.getMessage());
+        }
+    }
+
+    /**
+     *  @param chan null to write only the scope
+     */
+    private static void addToTable(Hash scope, SharedArchive.Channel chan, int op, Map<Hash, Integer> indexes,
+                                   List<SharedArchive.Channel> table, List<Integer> ops) {
+        if (indexes.containsKey(scope))
+            return;
+        if (chan == null) {
+            chan = new SharedArchive.Channel();
+            chan.setScope(scope);
+            chan.setVersion(0);
+        }
+        indexes.put(scope, Integer.valueOf(table.size()));
+        table.add(chan);
+        ops.add(Integer.valueOf(op));
+    }
+
+    public void read(InputStream in) throws IOException {
+        try {
+            long magic = DataHelper.readLong(in, 4);
+            if (magic != MAGIC)
+                throw new IOException("Not a shared index delta");
+            int format = (int)DataHelper.readLong(in, 1);
+            if (format != FORMAT_VERSION)
+                throw new IOException("Unsupported delta format " + format);
+            long fromVersion = DataHelper.readLong(in, 8);
+            long toVersion = DataHelper.readLong(in, 8);
+            int totalChannels = (int)DataHelper.readLong(in, 4);
+            int totalMessages = (int)DataHelper.readLong(in, 4);
+            SharedArchive.About about = new SharedArchive.About();
+            about.read(in);
+
+            int numTable = (int)DataHelper.readLong(in, 4);
+            Hash table[] = new Hash[numTable];
+            Map<Hash, SharedArchive.Channel> putChannels = new LinkedHashMap<Hash, SharedArchive.Channel>();
+            Set<Hash> removedChannels = new LinkedHashSet<Hash>();
+            for (int i = 0; i < numTable; i++) {
+                int op = (int)DataHelper.readLong(in, 1);
+                SharedArchive.Channel chan = new SharedArchive.Channel();
+                chan.read(in);
+                table[i] = new Hash(chan.getScope());
+                if (op == OP_PUT)
+                    putChannels.put(table[i], chan);
+                else if (op == OP_REMOVE)
+                    removedChannels.add(table[i]);
+            }
+
+            int numMessages = (int)DataHelper.readLong(in, 4);
+            Map<MessageKey, MessageEntry> putMessages = new LinkedHashMap<MessageKey, MessageEntry>();
+            SharedArchive.Message msg = new SharedArchive.Message();
+            for (int i = 0; i < numMessages; i++) {
+                msg.read(in);
+                if (msg._scopeChannel < 0 || msg._scopeChannel >= numTable ||
+                    msg._targetChannel < 0 || msg._targetChannel >= numTable)
+                    throw new IOException("Bad channel index for message " + msg._messageId);
+                MessageKey key = new MessageKey(table[msg._scopeChannel], msg._messageId);
+                putMessages.put(key, new MessageEntry(key, table[msg._targetChannel], msg._flags));
+            }
+
+            int numRemoved = (int)DataHelper.readLong(in, 4);
+            Set<MessageKey> removedMessages = new LinkedHashSet<MessageKey>();
+            for (int i = 0; i < numRemoved; i++) {
+                int scope = (int)DataHelper.readLong(in, 4);
+                long messageId = DataHelper.readLong(in, 8);
+                if (scope < 0 || scope >= numTable)
+                    throw new IOException("Bad channel index for removed message " + messageId);
+                removedMessages.add(new MessageKey(table[scope], messageId));
+            }
+
+            _fromVersion = fromVersion;
+            _toVersion = toVersion;
+            _totalChannels = totalChannels;
+            _totalMessages = totalMessages;
+            _about = about;
+            _putChannels.clear();
+            _putChannels.putAll(putChannels);
+            _removedChannels.clear();
+            _removedChannels.addAll(removedChannels);
+            _putMessages.clear();
+            _putMessages.putAll(putMessages);
+            _removedMessages.clear();
+            _removedMessages.addAll(removedMessages);
+        } catch (DataFormatException dfe) {
+            throw new IOException("Corrupt delta: " + dfe.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "delta from " + _fromVersion + " to " + _toVersion +
+               ": channels +" + _putChannels.size() + " -" + _removedChannels.size() +
+               " messages +" + _putMessages.size() + " -" + _removedMessages.size();
+    }
+}
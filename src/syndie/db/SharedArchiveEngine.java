@@ -11,7 +11,6 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -46,19 +45,29 @@ public class SharedArchiveEngine {
             return Collections.EMPTY_LIST;
         long begin = System.currentTimeMillis();
         
-        List banned = client.getBannedChannels();
+        LocalSyncState local = new LocalSyncState(client);
+        if (!strategy.includeDupForPIR)
+            local.loadKnownMessages();
+        long loaded = System.currentTimeMillis();
         
         SharedArchive.Channel channels[] = archive.getChannels();
+        // create them once, not for every message
+        Hash hashes[] = new Hash[channels.length];
+        SyndieURI scopeURIs[] = new SyndieURI[channels.length];
         for (int i = 0; i < channels.length; i++) {
-            Hash scope = new Hash(channels[i].getScope());
+            hashes[i] = new Hash(channels[i].getScope());
+            scopeURIs[i] = SyndieURI.createScope(hashes[i]);
+        }
+        for (int i = 0; i < channels.length; i++) {
+            Hash scope = hashes[i];
             if (!channels[i].wantNewMsg() && !channels[i].wantNewMeta() && (channels[i].getVersion() == 0) ) {
                 // the remote side has banned it, so they won't be able to give it to us, obviously
             } else if (channels[i].isNew() && strategy.includeDupForPIR) {
-                scopes.add(SyndieURI.createScope(scope));
+                scopes.add(scopeURIs[i]);
             } else {
-                if (banned.contains(scope))
+                if (local.isBanned(scope))
                     continue;
-                long knownVersion = client.getChannelVersion(scope);
+                long knownVersion = local.getChannelVersion(scope);
                 if (strategy.knownChannelsOnly && (knownVersion < 0))
                     continue;
                 if (strategy.requiredChannelsOnly && knownVersion < 0) {
@@ -69,7 +78,7 @@ public class SharedArchiveEngine {
                 }
                 if (channels[i].getVersion() > knownVersion) {
                     ui.debugMessage("shared archive has a newer version than we do for " + scope.toBase64() + " [them: " + channels[i].getVersion() + ", us: " + knownVersion + "]");
-                    scopes.add(SyndieURI.createScope(scope));
+                    scopes.add(scopeURIs[i]);
                 } else {
                     // already known.  no need
                 }
@@ -78,15 +87,19 @@ public class SharedArchiveEngine {
         
         Set whitelistScopes = client.getReferencedScopes(whitelistGroupId);
         
+        long recentCutoff = System.currentTimeMillis() - strategy.newAgeDays*24L*60*60*1000L;
         SharedArchive.Message messages[] = archive.getMessages();
         for (int i = 0; i < messages.length; i++) {
-            Hash scope = new Hash(channels[messages[i].getScopeIndex()].getScope());
-            Hash target = new Hash(channels[messages[i].getTargetIndex()].getScope());
+            int scopeIndex = messages[i].getScopeIndex();
+            int targetIndex = messages[i].getTargetIndex();
+            // -1 means the same as the scope
+            if (targetIndex < 0)
+                targetIndex = scopeIndex;
+            Hash scope = hashes[scopeIndex];
+            Hash target = hashes[targetIndex];
             if (messages[i].isNew() && strategy.includeDupForPIR) {
-                SyndieURI scopeURI = SyndieURI.createScope(scope);
-                SyndieURI targetURI = SyndieURI.createScope(target);
-                scopes.add(scopeURI);
-                scopes.add(targetURI);
+                scopes.add(scopeURIs[scopeIndex]);
+                scopes.add(scopeURIs[targetIndex]);
                 msgs.add(SyndieURI.createMessage(scope, messages[i].getMessageId()));
                 totalAllocatedKB += messages[i].getMaxSizeKB();
             } else {
@@ -102,18 +115,17 @@ public class SharedArchiveEngine {
                 if (strategy.includeRecentMessagesOnly) {
                     // if the server hasn't marked it as 'new' and the author gave it a date earlier 
                     // than what we want, skip
-                    if (!messages[i].isNew() && 
-                        (messages[i].getMessageId() < System.currentTimeMillis()-strategy.newAgeDays*24L*60*60*1000L))
+                    if (!messages[i].isNew() && (messages[i].getMessageId() < recentCutoff))
                         continue;
                 }
                 
                 // already known
-                if (!strategy.includeDupForPIR && (client.getMessageId(scope, messages[i].getMessageId()) >= 0)) {
+                if (!strategy.includeDupForPIR && local.isKnown(scope, messages[i].getMessageId())) {
                     //ui.debugMessage("message is already known: " + messages[i]);
                     continue;
                 }
                 
-                if (banned.contains(scope) || banned.contains(target))
+                if (local.isBanned(scope) || local.isBanned(target))
                     continue;
                 
                 if (strategy.pullWhitelistOnly) {
@@ -124,20 +136,18 @@ public class SharedArchiveEngine {
                     }
                 }
                         
-                long targetChanId = client.getChannelId(target);
-                long scopeChanId = client.getChannelId(scope);
+                long targetChanId = local.getChannelId(target);
+                long scopeChanId = local.getChannelId(scope);
                 if ( ( (scopeChanId < 0) || (targetChanId < 0) ) && (strategy.knownChannelsOnly) )
                     continue;
                 
                 if ( (strategy.maxKBTotal > 0) && (totalAllocatedKB + messages[i].getMaxSizeKB() > strategy.maxKBTotal) )
                     continue;
                 
-                SyndieURI scopeURI = SyndieURI.createScope(scope);
-                SyndieURI targetURI = SyndieURI.createScope(target);
-                if (!scopes.contains(scopeURI) && (client.getChannelId(scope) < 0))
-                    scopes.add(scopeURI);
-                if (!scopes.contains(targetURI) && (client.getChannelId(target) < 0))
-                    scopes.add(targetURI);
+                if (scopeChanId < 0)
+                    scopes.add(scopeURIs[scopeIndex]);
+                if (targetChanId < 0)
+                    scopes.add(scopeURIs[targetIndex]);
                 totalAllocatedKB += messages[i].getMaxSizeKB();
                 ui.debugMessage("message meets our criteria: " + scope.toBase64() + ":" + messages[i]);
                 msgs.add(SyndieURI.createMessage(scope, messages[i].getMessageId()));
@@ -148,7 +158,8 @@ public class SharedArchiveEngine {
         uris.addAll(msgs);
         ui.debugMessage("Selected to Pull: strategy=" + strategy + " Total allocated KB: " + totalAllocatedKB +
                         " URIs: " + uris.size() +
-                        " total time = " + (System.currentTimeMillis() - begin));
+                        " total time = " + (System.currentTimeMillis() - begin) +
+                        " loading local state = " + (loaded - begin));
         // makes debugging harder and the UI messier
         //Collections.shuffle(uris);
         return uris;
@@ -180,12 +191,13 @@ public class SharedArchiveEngine {
             return rv;
         long begin = System.currentTimeMillis();
         
+        LocalSyncState local = new LocalSyncState(client);
         /** SyndieURI of a message to the SyndieURI of a scope it depends on */
-        Map dependencies = new HashMap();
+        Map<SyndieURI, SyndieURI> dependencies = new HashMap<SyndieURI, SyndieURI>();
         if (strategy.sendLocalNewOnly) // local new == messages in our ./outbound/*/ directories
-            scheduleNew(client, ui, archive, rv, dependencies, client.getOutboundDir(), strategy);
+            scheduleNew(client, ui, archive, local, rv, dependencies, client.getOutboundDir(), strategy);
         else // otherwise, push new (etc) from our ./archive/*/ directories
-            scheduleNew(client, ui, archive, rv, dependencies, client.getArchiveDir(), strategy);
+            scheduleNew(client, ui, archive, local, rv, dependencies, client.getArchiveDir(), strategy);
         resolveDependencies(client, ui, archive, rv, dependencies);
         
         ui.debugMessage("Selected to Push: strategy=" + strategy + " URIs: " + rv.size() +
@@ -195,24 +207,27 @@ public class SharedArchiveEngine {
         return rv;
     }
     
+    /**
+     *  Add the metadata the scheduled messages depend on, or drop the messages
+     *  if we can't send it. Uses sets, not rv.contains() and rv.remove(), so it's linear.
+     */
     private void resolveDependencies(DBClient client, UI ui, SharedArchive archive,
                                      List<SyndieURI> rv, Map<SyndieURI, SyndieURI> dependencies) {
-        for (Iterator iter = dependencies.entrySet().iterator(); iter.hasNext(); ) {
-            Map.Entry entry = (Map.Entry)iter.next();
-            SyndieURI msgURI = (SyndieURI)entry.getKey();
-            SyndieURI chanURI = (SyndieURI)entry.getValue();
-            // FIXME O(n**2)
-            if (rv.contains(chanURI))
+        Set<SyndieURI> scheduled = new HashSet<SyndieURI>(rv);
+        Set<SyndieURI> dropped = new HashSet<SyndieURI>();
+        for (Map.Entry<SyndieURI, SyndieURI> entry : dependencies.entrySet()) {
+            SyndieURI msgURI = entry.getKey();
+            SyndieURI chanURI = entry.getValue();
+            if (scheduled.contains(chanURI))
                 continue; // ok, already scheduled
             
-            // FIXME O(n**2)
             if (archive.getChannel(chanURI.getScope()) != null)
                 continue; // ok, they already have it (or at least some version of it)
 
             if (archive.getAbout().wantKnownChannelsOnly()) {
                 // boo.  dependency failed because they are no fun.
                 //ui.debugMessage("not sending " + msgURI.toString() + " because it depends on " + chanURI.toString() + ", which they don't know, and they don't want new channels");
-                rv.remove(msgURI);
+                dropped.add(msgURI);
                 continue;
             }
             
@@ -220,20 +235,33 @@ public class SharedArchiveEngine {
             if (meta.exists()) {
                 ui.debugMessage("Adding metadata for " + chanURI.getScope().toBase64() + " as dependency");
                 rv.add(chanURI);
+                scheduled.add(chanURI);
             } else {
                 // dependency failed because we don't keep full archives
                 ui.debugMessage("not sending " + msgURI.toString() + " because it depends on " + chanURI.toString() + ", which they don't know, and we don't have that channel's signed metadata anymore");
-                rv.remove(msgURI);
+                dropped.add(msgURI);
+            }
+        }
+        if (!dropped.isEmpty()) {
+            List<SyndieURI> kept = new ArrayList<SyndieURI>(rv.size());
+            for (SyndieURI uri : rv) {
+                if (!dropped.contains(uri))
+                    kept.add(uri);
             }
+            rv.clear();
+            rv.addAll(kept);
         }
     }
     
     /**
      *  What to push?
+     *  One query per scope directory for its local messages, see LocalSyncState.
      */
-    private void scheduleNew(DBClient client, UI ui, SharedArchive archive,
+    private void scheduleNew(DBClient client, UI ui, SharedArchive archive, LocalSyncState local,
                              List<SyndieURI> rv, Map<SyndieURI, SyndieURI> dependencies, File dir, PushStrategy strategy) {
         long totalKB = 0;
+        /** the values of dependencies */
+        Set<SyndieURI> dependedOn = new HashSet<SyndieURI>();
         File dirs[] = dir.listFiles(new FileFilter() {
             public boolean accept(File pathname) {
                 return pathname.isDirectory() && !pathname.getName().startsWith(".");
@@ -248,10 +276,10 @@ public class SharedArchiveEngine {
         
         for (int i = 0; i < dirs.length; i++) {
             Hash scope = Hash.create(Base64.decode(dirs[i].getName()));
-            long version = client.getChannelVersion(scope);
+            long version = local.getChannelVersion(scope);
+            long scopeId = local.getChannelId(scope);
             //ui.debugMessage("Scheduling push from " + scope.toBase64());
 
-            // FIXME O(n**2)
             SharedArchive.Channel remChan = archive.getChannel(scope);
             if (archive.getAbout().wantKnownChannelsOnly() && (remChan == null)) {
                 ui.debugMessage("Remote archive doesn't know " + scope.toBase64().substring(0,6) + " and doesn't want any new chans.  skipping");
@@ -296,13 +324,14 @@ public class SharedArchiveEngine {
             SharedArchiveBuilder.sortFiles(files);
             
             boolean added = false;
+            // loaded when the first message gets past the archive's checks
+            Map<Long, LocalSyncState.LocalMessage> localMsgs = null;
             for (int j = 0; j < files.length; j++) {
                 long messageId = SharedArchiveBuilder.getMessageId(files[j]);
                 if (messageId < 0) {                
                     ui.debugMessage("File is not relevant for a message: " + files[j].getName());
                     continue;
                 }
-                // FIXME O(n**2)
                 boolean known = archive.isKnown(scope, messageId);
                 if (known)
                     continue;
@@ -317,9 +346,10 @@ public class SharedArchiveEngine {
                     continue;
                 }
 
-                // the internal ID
-                long msgId = client.getMessageId(scope, messageId);
-                int privacy = client.getMessagePrivacy(msgId);
+                if (localMsgs == null)
+                    localMsgs = local.getScopeMessages(scopeId);
+                LocalSyncState.LocalMessage localMsg = localMsgs.get(Long.valueOf(messageId));
+                int privacy = localMsg != null ? localMsg.privacy : DBClient.PRIVACY_UNKNOWN;
                 if (!archive.getAbout().wantPBE() && (privacy == DBClient.PRIVACY_PBE)) {
                     ui.debugMessage("Don't send them " + messageId + " because it they don't want PBE'd messages");
                     continue;
@@ -334,7 +364,7 @@ public class SharedArchiveEngine {
                 // If the other side wants it, they can pull it from some other archive.
                 // But use the min in case they spoofed it to the future.
                 // TODO maybe add an option?
-                long importDate = client.getMessageImportDate(msgId);
+                long importDate = localMsg != null ? localMsg.importDate : -1;
                 long msgDate = messageId;
                 if (importDate > 0 && importDate < msgDate)
                     msgDate = importDate;
@@ -357,9 +387,8 @@ public class SharedArchiveEngine {
                     continue;
                 }
 
-                long authorId = client.getMessageAuthor(msgId);
-                long targetId = client.getMessageTarget(msgId);
-                long scopeId = client.getChannelId(scope);
+                long authorId = localMsg != null ? localMsg.authorId : -1;
+                long targetId = localMsg != null ? localMsg.targetId : -1;
 
                 totalKB += lenKB;
                 SyndieURI msgURI = SyndieURI.createMessage(scope, messageId);
@@ -367,25 +396,30 @@ public class SharedArchiveEngine {
                 ui.debugMessage("scheduling " + msgURI + ": size=" + lenKB + " privacy=" + privacy + " age=" + DataHelper.formatDuration(System.currentTimeMillis()-msgDate));
 
                 if ( (targetId >= 0) && (scopeId != targetId) ) {
-                    Hash target = client.getChannelHash(targetId);
+                    Hash target = local.getChannelHash(targetId);
                     SyndieURI uri = SyndieURI.createScope(target);
                     dependencies.put(msgURI, uri);
+                    dependedOn.add(uri);
                 } else if ( (authorId >= 0) && (scopeId != authorId) ) {
-                    Hash author = client.getChannelHash(authorId);
+                    Hash author = local.getChannelHash(authorId);
                     SyndieURI uri = SyndieURI.createScope(author);
                     dependencies.put(msgURI, uri);
+                    dependedOn.add(uri);
                 }
                 added = true;
             }
             if (!added) {
                 if ( (remChan != null) && (remChan.getVersion() > version) ) {
                     // ok, they want this new version
-                } else if (dependencies.containsValue(metaURI)) {
+                } else if (dependedOn.contains(metaURI)) {
                     //ui.debugMessage("All of the messages in " + scope.toBase64() + " were rejected, but someone else depends on it, so send it");
                 } else {
                     ui.debugMessage("All of the messages in " + scope.toBase64() + " were rejected, and no one else depends on it, so don't send it");
                     //ui.debugMessage("All of the messages in " + scope.toBase64() + " were rejected, so we don't need to send them the metadata");
-                    rv.remove(metaURI);
+                    // nothing was added after it
+                    int last = rv.size() - 1;
+                    if (last >= 0 && rv.get(last).equals(metaURI))
+                        rv.remove(last);
                 }
             }
         }
@@ -0,0 +1,68 @@
+package syndie.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  How long each phase of the login took, from DBClient.connect() through
+ *  the login script, so a slow start can be pinned on the phase that
+ *  dominates. Logged at INFO when the login completes, and shown by dbstats.
+ *
+ *  A phase ends when the next one is marked, so mark each one at its end.
+ *
+ *  @since 1.107b-1
+ */
+class StartupTimer {
+    private final long _start;
+    private long _last;
+    private long _end;
+    private final List<String> _names;
+    private final List<Long> _times;
+
+    public StartupTimer() {
+        _start = System.currentTimeMillis();
+        _last = _start;
+        _names = new ArrayList<String>(16);
+        _times = new ArrayList<Long>(16);
+    }
+
+    /**
+     *  The named phase just ended, it started at the previous mark
+     */
+    public synchronized void mark(String name) {
+        if (_end > 0)
+            return;
+        long now = System.currentTimeMillis();
+        _names.add(name);
+        _times.add(Long.valueOf(now - _last));
+        _last = now;
+    }
+
+    /** no more marks after this */
+    public synchronized void complete() {
+        if (_end <= 0)
+            _end = System.currentTimeMillis();
+    }
+
+    public synchronized boolean isComplete() {
+        return _end > 0;
+    }
+
+    /** @return total ms so far, or until complete() */
+    public synchronized long getTotal() {
+        return (_end > 0 ? _end : System.currentTimeMillis()) - _start;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder buf = new StringBuilder(256);
+        buf.append("total: ").append(getTotal()).append("ms");
+        if (_end <= 0)
+            buf.append(" (in progress)");
+        for (int i = 0; i < _names.size(); i++) {
+            buf.append(i == 0 ? " - " : ", ");
+            buf.append(_names.get(i)).append(": ").append(_times.get(i)).append("ms");
+        }
+        return buf.toString();
+    }
+}
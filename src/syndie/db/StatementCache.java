@@ -0,0 +1,211 @@
+package syndie.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Idle PreparedStatements for one connection, keyed by the SQL text,
+ *  so the constant queries aren't reparsed by the database every time.
+ *
+ *  prepare() hands out a statement for the exclusive use of the caller.
+ *  The statement goes back into the cache when the caller closes it,
+ *  so the usual try/finally close() pattern works unchanged.
+ *  If the same SQL is already checked out by another thread,
+ *  a second statement is prepared and one of them is really closed
+ *  when both are returned.
+ *
+ *  Only for constant SQL; dynamically built queries would just churn the cache.
+ *
+ *  @since 1.107b-1
+ */
+class StatementCache {
+    private final Connection _con;
+    private final Counters _counters;
+    private final QueryStats _stats;
+    /** SQL to idle statement, access order, protected by itself */
+    private final Map<String, PreparedStatement> _idle;
+    private boolean _closed;
+
+    public static final int DEFAULT_MAX_STATEMENTS = 128;
+
+    /**
+     *  @param counters shared between the caches of all connections
+     *  @param stats shared between the caches of all connections
+     */
+    public StatementCache(Connection con, int maxStatements, Counters counters, QueryStats stats) {
+        _con = con;
+        _counters = counters;
+        _stats = stats;
+        _idle = new IdleMap(maxStatements);
+    }
+
+    public Connection getConnection() { return _con; }
+
+    /**
+     *  Caller must close the returned statement, and must not use it afterwards.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt;
+        synchronized (_idle) {
+            stmt = _closed ? null : _idle.remove(sql);
+        }
+        if (stmt != null) {
+            _counters.hit();
+        } else {
+            _counters.miss();
+            stmt = _con.prepareStatement(sql);
+        }
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                                          new Class[] { PreparedStatement.class },
+                                                          new Handle(sql, stmt));
+    }
+
+    /**
+     *  Put a statement back after use, or close it if we don't want it.
+     */
+    private void release(String sql, PreparedStatement stmt) {
+        boolean keep = false;
+        try {
+            stmt.clearParameters();
+            stmt.clearBatch();
+            synchronized (_idle) {
+                if (!_closed && !_idle.containsKey(sql)) {
+                    _idle.put(sql, stmt);
+                    keep = true;
+                }
+            }
+        } catch (SQLException se) {
+            // broken, don't reuse it
+        }
+        if (!keep)
+            closeQuietly(stmt);
+    }
+
+    /**
+     *  Close all the idle statements. Statements checked out at the time
+     *  are closed when they are returned.
+     *  Must be called before the connection is closed, or on disconnect.
+     */
+    public void clear() {
+        List<PreparedStatement> toClose;
+        synchronized (_idle) {
+            _closed = true;
+            toClose = new ArrayList<PreparedStatement>(_idle.values());
+            _idle.clear();
+        }
+        for (PreparedStatement stmt : toClose) {
+            closeQuietly(stmt);
+        }
+    }
+
+    /** current number of idle statements */
+    public int size() {
+        synchronized (_idle) {
+            return _idle.size();
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException se) {}
+    }
+
+    /**
+     *  LRU, really closes the eldest when full.
+     *  Called with the lock held, but closing a statement doesn't block on the database.
+     */
+    private class IdleMap extends LinkedHashMap<String, PreparedStatement> {
+        private final int _max;
+
+        public IdleMap(int max) {
+            super(16, 0.75f, true);
+            _max = max;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > _max) {
+                closeQuietly(eldest.getValue());
+                _counters.evicted();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     *  What the caller gets. close() returns the statement to the cache
+     *  instead of closing it, everything else goes to the real statement,
+     *  with the executes timed into the QueryStats when they are enabled.
+     */
+    private class Handle implements InvocationHandler {
+        private final String _sql;
+        private PreparedStatement _stmt;
+
+        public Handle(String sql, PreparedStatement stmt) {
+            _sql = sql;
+            _stmt = stmt;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close") && (args == null || args.length == 0)) {
+                PreparedStatement stmt;
+                synchronized (this) {
+                    stmt = _stmt;
+                    _stmt = null;
+                }
+                if (stmt != null)
+                    release(_sql, stmt);
+                return null;
+            }
+            if (name.equals("isClosed") && (args == null || args.length == 0)) {
+                synchronized (this) {
+                    return Boolean.valueOf(_stmt == null);
+                }
+            }
+            if (name.equals("equals") && args != null && args.length == 1)
+                return Boolean.valueOf(proxy == args[0]);
+            if (name.equals("hashCode") && (args == null || args.length == 0))
+                return Integer.valueOf(System.identityHashCode(proxy));
+            PreparedStatement stmt;
+            synchronized (this) {
+                stmt = _stmt;
+            }
+            if (stmt == null)
+                throw new SQLException("Statement is closed");
+            return _stats.invoke(stmt, _sql, true, method, args);
+        }
+    }
+
+    /**
+     *  Hit and miss counts across all the caches of a client
+     */
+    public static class Counters {
+        private long _hits;
+        private long _misses;
+        private long _evictions;
+
+        synchronized void hit() { _hits++; }
+        synchronized void miss() { _misses++; }
+        synchronized void evicted() { _evictions++; }
+
+        public synchronized long getHits() { return _hits; }
+        public synchronized long getMisses() { return _misses; }
+        public synchronized long getEvictions() { return _evictions; }
+
+        @Override
+        public synchronized String toString() {
+            return "hits: " + _hits + " misses: " + _misses + " evictions: " + _evictions;
+        }
+    }
+}
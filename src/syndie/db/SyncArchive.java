@@ -1,6 +1,7 @@
 package syndie.db;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -113,6 +114,22 @@ public class SyncArchive {
         indexFetched(ui, archive, true);
     }
 
+    /**
+     * Merge the changes since the last fetch into the index from the last fetch,
+     * then create the actions as for indexFetched()
+     * @param cached the index from the last fetch, non-null, not modified
+     * @return the merged index, to save for the next delta
+     * @throws IOException if the delta does not apply, with nothing done
+     * @since 1.107b-1
+     */
+    public SharedArchive indexDeltaFetched(UI ui, SharedArchive cached, SharedArchiveDelta delta) throws IOException {
+        SharedArchive merged = delta.apply(cached);
+        ui.debugMessage("index " + delta + ", merged: " + merged.countTotalChannels() + " channels, " +
+                        merged.countTotalMessages() + " messages");
+        indexFetched(ui, merged, true);
+        return merged;
+    }
+
     /**
      * this creates the actions to be run as a result of fetching the specified archive index
      * @param archive non-null
@@ -578,7 +595,7 @@ public class SyncArchive {
             // nextPullDate, nextPushDate, lastPullDate, lastPushDate, customPullPolicy, customPushPolicy,
             // nextSyncDelayHours, whitelistGroupId
             // FROM nymArchive WHERE name = ? AND nymId = ?
-            stmt = _client.con().prepareStatement(SQL_GET_ATTRIBUTES);
+            stmt = _client.prepare(SQL_GET_ATTRIBUTES);
             stmt.setString(1, _name);
             stmt.setLong(2, _client.getLoggedInNymId());
             rs = stmt.executeQuery();
@@ -680,93 +697,17 @@ public class SyncArchive {
     /** persist all of the archive's attributes */
     public void store() { store(false); }
 
+    /**
+     *  Since 1.107b-1, written on the DB writer.
+     */
     public void store(boolean notifyListeners) {
         synchronized (this) {
-            delete(false);
-
-            PreparedStatement stmt = null;
-            try {
-                long uriId = _client.addURI(getArchiveURI());
-
-                // uriId, postKey, postKeySalt, readKey, readKeySalt, " +
-                // "consecutiveFailures, customProxyHost, customProxyPort, customFCPHost, customFCPPort, " +
-                // "nextPullDate, nextPushDate, lastPullDate, lastPushDate, customPullPolicy, customPushPolicy, " +
-                // "name, nymId)
-                stmt = _client.con().prepareStatement(SQL_INSERT);
-                stmt.setLong(1, uriId);
-                if (_postKey != null) {
-                    byte postKeySalt[] = new byte[16];
-                    byte postKeyEncr[] = _client.pbeEncrypt(DataHelper.getUTF8(_postKey), postKeySalt);
-                    stmt.setBytes(2, postKeyEncr);
-                    stmt.setBytes(3, postKeySalt);
-                } else {
-                    stmt.setNull(2, Types.VARBINARY);
-                    stmt.setNull(3, Types.VARBINARY);
+            _client.writer().call(new DBWriter.Command<Object>("storeArchive") {
+                public Object call() {
+                    x_store();
+                    return null;
                 }
-                if (_readKey != null) {
-                    byte readKeySalt[] = new byte[16];
-                    byte readKeyEncr[] = _client.pbeEncrypt(DataHelper.getUTF8(_readKey), readKeySalt);
-                    stmt.setBytes(4, readKeyEncr);
-                    stmt.setBytes(5, readKeySalt);
-                } else {
-                    stmt.setNull(4, Types.VARBINARY);
-                    stmt.setNull(5, Types.VARBINARY);
-                }
-                stmt.setInt(6, _consecutiveFailures);
-                if ( (_httpProxyHost != null) && (_httpProxyPort > 0) ) {
-                    stmt.setString(7, _httpProxyHost);
-                    stmt.setInt(8, _httpProxyPort);
-                } else {
-                    stmt.setNull(7, Types.VARCHAR);
-                    stmt.setNull(8, Types.INTEGER);
-                }
-                if ( (_fcpHost != null) && (_fcpPort > 0) ) {
-                    stmt.setString(9, _fcpHost);
-                    stmt.setInt(10, _fcpPort);
-                } else {
-                    stmt.setNull(9, Types.VARCHAR);
-                    stmt.setNull(10, Types.INTEGER);
-                }
-
-                if ( (_nextSyncTime > 0) && (!_nextSyncOneOff) )
-                    stmt.setTimestamp(11, new Timestamp(_nextSyncTime ));
-                else
-                    stmt.setNull(11, Types.TIMESTAMP);
-                if ( (_nextSyncTime > 0) && (!_nextSyncOneOff) )
-                    stmt.setTimestamp(12, new Timestamp(_nextSyncTime));
-                else
-                    stmt.setNull(12, Types.TIMESTAMP);
-
-                if (_lastSyncTime > 0)
-                    stmt.setTimestamp(13, new Timestamp(_lastSyncTime));
-                else
-                    stmt.setNull(13, Types.TIMESTAMP);
-                if (_lastSyncTime > 0)
-                    stmt.setTimestamp(14, new Timestamp(_lastSyncTime ));
-                else
-                    stmt.setNull(14, Types.TIMESTAMP);
-
-                if (_pullStrategy != null)
-                    stmt.setString(15, _pullStrategy.serialize());
-                else
-                    stmt.setNull(15, Types.VARCHAR);
-
-                if (_pushStrategy != null)
-                    stmt.setString(16, _pushStrategy.serialize());
-                else
-                    stmt.setNull(16, Types.VARCHAR);
-
-                stmt.setString(17, _name);
-                stmt.setLong(18, _client.getLoggedInNymId());
-                stmt.setInt(19, _nextSyncDelayHours);
-                stmt.setLong(20, _whitelistGroupId);
-
-                stmt.executeUpdate();
-            } catch (SQLException se) {
-                _client.logError("Error storing the nym archive details", se);
-            } finally {
-                if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
-            }
+            });
         }
         
         if (_oldName == null)
@@ -777,6 +718,99 @@ public class SyncArchive {
         
         _manager.wakeUpEngine();
     }
+
+    /**
+     *  The database part of store(), caller must synchronize on this
+     *
+     *  @since 1.107b-1 split out of store()
+     */
+    private void x_store() {
+        delete(false);
+
+        PreparedStatement stmt = null;
+        try {
+            long uriId = _client.addURI(getArchiveURI());
+
+            // uriId, postKey, postKeySalt, readKey, readKeySalt, " +
+            // "consecutiveFailures, customProxyHost, customProxyPort, customFCPHost, customFCPPort, " +
+            // "nextPullDate, nextPushDate, lastPullDate, lastPushDate, customPullPolicy, customPushPolicy, " +
+            // "name, nymId)
+            stmt = _client.prepare(SQL_INSERT);
+            stmt.setLong(1, uriId);
+            if (_postKey != null) {
+                byte postKeySalt[] = new byte[16];
+                byte postKeyEncr[] = _client.pbeEncrypt(DataHelper.getUTF8(_postKey), postKeySalt);
+                stmt.setBytes(2, postKeyEncr);
+                stmt.setBytes(3, postKeySalt);
+            } else {
+                stmt.setNull(2, Types.VARBINARY);
+                stmt.setNull(3, Types.VARBINARY);
+            }
+            if (_readKey != null) {
+                byte readKeySalt[] = new byte[16];
+                byte readKeyEncr[] = _client.pbeEncrypt(DataHelper.getUTF8(_readKey), readKeySalt);
+                stmt.setBytes(4, readKeyEncr);
+                stmt.setBytes(5, readKeySalt);
+            } else {
+                stmt.setNull(4, Types.VARBINARY);
+                stmt.setNull(5, Types.VARBINARY);
+            }
+            stmt.setInt(6, _consecutiveFailures);
+            if ( (_httpProxyHost != null) && (_httpProxyPort > 0) ) {
+                stmt.setString(7, _httpProxyHost);
+                stmt.setInt(8, _httpProxyPort);
+            } else {
+                stmt.setNull(7, Types.VARCHAR);
+                stmt.setNull(8, Types.INTEGER);
+            }
+            if ( (_fcpHost != null) && (_fcpPort > 0) ) {
+                stmt.setString(9, _fcpHost);
+                stmt.setInt(10, _fcpPort);
+            } else {
+                stmt.setNull(9, Types.VARCHAR);
+                stmt.setNull(10, Types.INTEGER);
+            }
+
+            if ( (_nextSyncTime > 0) && (!_nextSyncOneOff) )
+                stmt.setTimestamp(11, new Timestamp(_nextSyncTime ));
+            else
+                stmt.setNull(11, Types.TIMESTAMP);
+            if ( (_nextSyncTime > 0) && (!_nextSyncOneOff) )
+                stmt.setTimestamp(12, new Timestamp(_nextSyncTime));
+            else
+                stmt.setNull(12, Types.TIMESTAMP);
+
+            if (_lastSyncTime > 0)
+                stmt.setTimestamp(13, new Timestamp(_lastSyncTime));
+            else
+                stmt.setNull(13, Types.TIMESTAMP);
+            if (_lastSyncTime > 0)
+                stmt.setTimestamp(14, new Timestamp(_lastSyncTime ));
+            else
+                stmt.setNull(14, Types.TIMESTAMP);
+
+            if (_pullStrategy != null)
+                stmt.setString(15, _pullStrategy.serialize());
+            else
+                stmt.setNull(15, Types.VARCHAR);
+
+            if (_pushStrategy != null)
+                stmt.setString(16, _pushStrategy.serialize());
+            else
+                stmt.setNull(16, Types.VARCHAR);
+
+            stmt.setString(17, _name);
+            stmt.setLong(18, _client.getLoggedInNymId());
+            stmt.setInt(19, _nextSyncDelayHours);
+            stmt.setLong(20, _whitelistGroupId);
+
+            stmt.executeUpdate();
+        } catch (SQLException se) {
+            _client.logError("Error storing the nym archive details", se);
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
     
     public void delete() { delete(true); }
 
@@ -784,7 +818,7 @@ public class SyncArchive {
         PreparedStatement stmt = null;
         try {
             if (_name != null) {
-                stmt = _client.con().prepareStatement(SQL_DELETE);
+                stmt = _client.prepare(SQL_DELETE);
                 stmt.setString(1, _name);
                 stmt.setLong(2, _client.getLoggedInNymId());
                 stmt.executeUpdate();
@@ -793,7 +827,7 @@ public class SyncArchive {
             }
             
             if (_oldName != null) {
-                stmt = _client.con().prepareStatement(SQL_DELETE);
+                stmt = _client.prepare(SQL_DELETE);
                 stmt.setString(1, _oldName);
                 stmt.setLong(2, _client.getLoggedInNymId());
                 stmt.executeUpdate();
@@ -1,21 +1,31 @@
 package syndie.db;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.Hash;
 import net.i2p.util.EepGet;
 import net.i2p.util.SecureFile;
+import net.i2p.util.SecureFileOutputStream;
 import net.i2p.util.SSLEepGet;
 
 import syndie.Constants;
@@ -34,10 +44,18 @@ class SyncInboundFetcher {
     private static final int THREADS = 3;
     /** this is the number of concurrent HTTP metaindex or post fetches, per archive */
     private static final int CONCURRENT_FETCHES = 5;
-    /** number that the fetchers can get ahead of the importer */
-    private static final int MAX_IMPORT_QUEUE = 20;
-    
     private static final int I2P_RETRIES = 1;
+    /** the number of concurrent HTTP bundle fetches, per archive */
+    private static final int CONCURRENT_BUNDLES = 2;
+    /** ask for about this much per bundle, by the average file size so far */
+    private static final int BUNDLE_BYTES = 512*1024;
+    private static final int MIN_BUNDLE_COUNT = 8;
+    /** bundle frames bigger than this wait for the import in a temp file, not in memory */
+    private static final int MAX_QUEUED_FRAME = 64*1024;
+    /** imports rolled back with their group commit are queued again, up to this many tries */
+    private static final int MAX_IMPORT_ATTEMPTS = 3;
+    /** archive URLs that answered a bundle request with a 404 or something that isn't a bundle, don't ask again */
+    private static final Set<String> _noBundles = Collections.synchronizedSet(new HashSet<String>());
     
     public SyncInboundFetcher(SyncManager mgr) {
         _manager = mgr;
@@ -145,8 +163,6 @@ class SyncInboundFetcher {
         Set whitelistScopes = _manager.getClient().getReferencedScopes(whitelistGroupId);
 
         DataImporter importer = new DataImporter(whitelistScopes);
-        Thread t = new Thread(importer, "Data importer");
-        t.start();
         int actions = archive.getIncomingActionCount();
         for (int i = 0; i < actions; i++) {
             while (!_manager.isOnline())
@@ -268,22 +284,22 @@ class SyncInboundFetcher {
         long whitelistGroupId = archive.getWhitelistGroupId();
         Set<Hash> whitelistScopes = _manager.getClient().getReferencedScopes(whitelistGroupId);
         
-        // successful fetches are enqueued in the importer thread so we can import serially without
+        // successful fetches are enqueued on the DB writer so we can import serially without
         // blocking the fetches
         DataImporter importer = new DataImporter(whitelistScopes);
-        Thread t = new Thread(importer, "Data importer");
-        t.start();
         
         // fetch all of the meta before any of the messages, as we need the meta for the channels
         // we are importing the messages with (to verify signatures).  within these fetches there
         // are 5 concurrent fetches running through the individual files to fetch
         if (!pendingMeta.isEmpty()) {
+            fetchHTTPBundles(archive, pendingMeta, archiveURL, query, importer);
             fetchHTTPMeta(archive, pendingMeta, archiveURL, query, importer, whitelistScopes);
             _manager.getUI().debugMessage("meta fetches run, waiting for the queue to finish");
             importer.finishQueue();
             _manager.getUI().debugMessage("meta fetches imported, fetching msgs");
         }
         if (!pendingMsg.isEmpty()) {
+            fetchHTTPBundles(archive, pendingMsg, archiveURL, query, importer);
             fetchHTTPMsgs(archive, pendingMsg, archiveURL, query, importer, whitelistScopes);
             _manager.getUI().debugMessage("msg fetches run, waiting for the queue to finish");
             importer.finishQueue();
@@ -292,6 +308,186 @@ class SyncInboundFetcher {
         importer.complete();
     }
     
+    /**
+     *  Fetch as many of the actions as we can in bundles, leaving the rest
+     *  in the queue to be fetched file by file, as they all are from an
+     *  archive that doesn't serve bundles.
+     *
+     *  @since 1.107b-1
+     */
+    private void fetchHTTPBundles(SyncArchive archive, LinkedBlockingQueue<SyncArchive.IncomingAction> actions,
+                                  String archiveURL, String query, DataImporter importer) {
+        if (!BundleFetcher.isSupported(archiveURL) || _noBundles.contains(archiveURL))
+            return;
+        BundleFetcher fetcher = new BundleFetcher(_manager.getUI(), archiveURL, query,
+                                                  archive.getHTTPProxyHost(), archive.getHTTPProxyPort());
+        BundleStats stats = new BundleStats();
+        int cnt = Math.min((actions.size() + MIN_BUNDLE_COUNT - 1) / MIN_BUNDLE_COUNT, CONCURRENT_BUNDLES);
+        List<Thread> fetchers = new ArrayList<Thread>(cnt);
+        for (int i = 0; i < cnt; i++) {
+            Thread t = new Thread(new BundleFetch(archiveURL, fetcher, actions, importer, stats), "BundleFetcher " + i + '/' + cnt);
+            t.start();
+            fetchers.add(t);
+        }
+        while (fetchers.size() > 0) {
+            Thread t = fetchers.remove(0);
+            try { t.join(); } catch (InterruptedException ie) {}
+        }
+        _manager.getUI().debugMessage("Bundle fetches from [" + archiveURL + "] run: " + stats +
+                                      ", " + actions.size() + " left to fetch one by one");
+    }
+
+    /**
+     *  Shared by the bundle fetches of one queue
+     *
+     *  @since 1.107b-1
+     */
+    private static class BundleStats {
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong bundles = new AtomicLong();
+        /** stop bundling, and leave the rest to the file by file fetch */
+        volatile boolean stop;
+
+        /** how many to ask for next */
+        int nextCount() {
+            long f = files.get();
+            if (f <= 0)
+                return 4 * MIN_BUNDLE_COUNT;
+            long avg = Math.max(1, bytes.get() / f);
+            return (int) Math.max(MIN_BUNDLE_COUNT, Math.min(BundleFetcher.MAX_ENTRIES, BUNDLE_BYTES / avg));
+        }
+
+        @Override
+        public String toString() {
+            return bundles.get() + " bundles, " + files.get() + " files, " + bytes.get() + " bytes";
+        }
+    }
+
+    /**
+     *  Poll the queue for bundles of actions until it is empty,
+     *  putting back the ones the server defers.
+     *
+     *  @since 1.107b-1
+     */
+    private class BundleFetch implements Runnable, BundleFetcher.FrameHandler {
+        private final String _archiveURL;
+        private final BundleFetcher _fetcher;
+        private final LinkedBlockingQueue<SyncArchive.IncomingAction> _actions;
+        private final DataImporter _importer;
+        private final BundleStats _stats;
+        /** of the current bundle, by uri instance */
+        private final Map<SyndieURI, SyncArchive.IncomingAction> _pending;
+        
+        public BundleFetch(String archiveURL, BundleFetcher fetcher, LinkedBlockingQueue<SyncArchive.IncomingAction> actions,
+                           DataImporter importer, BundleStats stats) {
+            _archiveURL = archiveURL;
+            _fetcher = fetcher;
+            _actions = actions;
+            _importer = importer;
+            _stats = stats;
+            _pending = new IdentityHashMap<SyndieURI, SyncArchive.IncomingAction>();
+        }
+
+        public void run() {
+            while (!_stats.stop) {
+                while (!_manager.isOnline())
+                    try { Thread.sleep(1000); } catch (InterruptedException ie) {}
+                
+                int max = _stats.nextCount();
+                List<SyndieURI> uris = new ArrayList<SyndieURI>(max);
+                _pending.clear();
+                while (uris.size() < max) {
+                    SyncArchive.IncomingAction action = _actions.poll();
+                    if (action == null) break;
+                    if (action.getCompletionTime() > 0) continue; // already complete
+                    SyndieURI uri = action.getURI();
+                    if (isLocal(uri)) { // fetched concurrently from another archive
+                        action.importSuccessful(IMPORT_ALREADY);
+                        continue;
+                    }
+                    uris.add(uri);
+                    _pending.put(uri, action);
+                }
+                if (uris.isEmpty())
+                    return;
+                int fit = BundleFetcher.countFitting(uris);
+                while (uris.size() > fit) {
+                    requeue(_pending.remove(uris.remove(uris.size() - 1)));
+                }
+                for (SyndieURI uri : uris) {
+                    if (uri.getMessageId() == null)
+                        _pending.get(uri).setFetchingMeta();
+                    else
+                        _pending.get(uri).setFetchingBody();
+                }
+
+                try {
+                    if (!_fetcher.fetch(uris, this)) {
+                        _noBundles.add(_archiveURL);
+                        _stats.stop = true;
+                    } else {
+                        _stats.bundles.incrementAndGet();
+                    }
+                } catch (IOException ioe) {
+                    _manager.getUI().debugMessage(Thread.currentThread().getName() + ": Bundle fetch from [" + _archiveURL + "] failed", ioe);
+                    _stats.stop = true;
+                }
+                // whatever didn't come in goes back for the file by file fetch
+                for (SyncArchive.IncomingAction action : _pending.values()) {
+                    requeue(action);
+                }
+                _pending.clear();
+            }
+        }
+
+        public void frame(SyndieURI uri, int status, byte data[]) {
+            SyncArchive.IncomingAction action = _pending.remove(uri);
+            if (action == null)
+                return;
+            if (status == BundleFetcher.FRAME_OK) {
+                _stats.files.incrementAndGet();
+                _stats.bytes.addAndGet(data.length);
+                action.setSize(data.length, data.length);
+                try {
+                    action.setIsQueuedForProcessing();
+                    if (data.length > MAX_QUEUED_FRAME) {
+                        // up to HIGH_WATER imports may be queued, don't hold the big ones in memory
+                        File dataFile = SecureFile.createTempFile("bundle", "dat", _manager.getClient().getTempDir());
+                        OutputStream out = null;
+                        try {
+                            out = new SecureFileOutputStream(dataFile);
+                            out.write(data);
+                            out.close();
+                            out = null;
+                        } catch (IOException ioe) {
+                            dataFile.delete();
+                            throw ioe;
+                        } finally {
+                            if (out != null) try { out.close(); } catch (IOException ioe) {}
+                        }
+                        _importer.enqueueData(action, dataFile, true);
+                    } else {
+                        _importer.enqueueData(action, data);
+                    }
+                } catch (IOException ioe) {
+                    action.importFailed(IMPORT_IOE, ioe);
+                } catch (InterruptedException ie) {
+                    action.importFailed(IMPORT_INTERRUPTED, ie);
+                }
+            } else if (status == BundleFetcher.FRAME_NOT_FOUND) {
+                action.importFailed(IMPORT_FETCH_FAIL, null);
+            } else {
+                requeue(action);
+            }
+        }
+
+        private void requeue(SyncArchive.IncomingAction action) {
+            if (action != null)
+                _actions.offer(action);
+        }
+    }
+    
     private void fetchHTTPMeta(SyncArchive archive, LinkedBlockingQueue<SyncArchive.IncomingAction> actions,
                                String archiveURL, String query, DataImporter importer, Set<Hash> whitelistScopes) {
         int cnt = Math.min(actions.size(), CONCURRENT_FETCHES);
@@ -462,96 +658,179 @@ class SyncInboundFetcher {
         }
     }
     
-    private static class ImportItem {
-        public final SyncArchive.IncomingAction action;
-        public final File file;
-        public final boolean delete;
-        public ImportItem(SyncArchive.IncomingAction action, File file, boolean delete) {
-            this.action = action; this.file = file; this.delete = delete;
-        }
-    }
-
-    private static final ImportItem POISON = new ImportItem(null, null, false);
-
-    private class DataImporter implements Runnable {
-        private final LinkedBlockingQueue<ImportItem> _items;
-        private volatile boolean _complete;
-        private Set<Hash> _whitelistScopes;
-        
+    /**
+     *  Since 1.107b-1, the imports are queued on the DB writer, which group commits
+     *  the ones queued together, and blocks the fetchers when it gets too far behind.
+     */
+    private class DataImporter {
+        private final List<Future<Object>> _pending;
+        private final Set<Hash> _whitelistScopes;
 
         public DataImporter(Set<Hash> whitelistScopes) { 
-            _items = new LinkedBlockingQueue<ImportItem>(MAX_IMPORT_QUEUE);
+            _pending = new ArrayList<Future<Object>>();
             _whitelistScopes = whitelistScopes;
         }
 
         public Set<Hash> getWhitelistScopes() { return _whitelistScopes; }
         
-        /** BLOCKING if the queue is full */
+        /** BLOCKING if the DB writer queue is full */
         public void enqueueData(SyncArchive.IncomingAction action, File datafile, boolean delete) throws InterruptedException {
             _manager.getUI().debugMessage(Thread.currentThread().getName() + ": enqueueing import from " + datafile.toString());
-            _items.put(new ImportItem(action, datafile, delete));
+            enqueue(new ImportCommand(this, action, datafile, null, delete, 1));
+        }
+        
+        /**
+         *  A file from a bundle, already in memory.
+         *  BLOCKING if the DB writer queue is full
+         *  @since 1.107b-1
+         */
+        public void enqueueData(SyncArchive.IncomingAction action, byte data[]) throws InterruptedException {
+            _manager.getUI().debugMessage(Thread.currentThread().getName() + ": enqueueing import of " + action.getURI());
+            enqueue(new ImportCommand(this, action, null, data, false, 1));
+        }
+        
+        private void enqueue(ImportCommand cmd) throws InterruptedException {
+            _manager.getClient().writer().awaitCapacity();
+            resubmit(cmd);
+        }
+
+        /**
+         *  Queue it without waiting for capacity, for a retry from the DB writer itself
+         *  @since 1.107b-1
+         */
+        void resubmit(ImportCommand cmd) {
+            Future<Object> f = _manager.getClient().writer().submit(cmd);
+            synchronized (_pending) {
+                _pending.add(f);
+            }
         }
         
         public void complete() {
             _manager.getUI().debugMessage(Thread.currentThread().getName() + ": No more imports");
-            _complete = true;
-            _items.offer(POISON);
+            finishQueue();
         }
         
+        /** wait for the queued imports to finish */
         public void finishQueue() { 
             while (true) {
-                int remaining = _items.size();
-                if (remaining <= 0)
-                    return;
+                Future<Object> f;
+                int remaining;
+                synchronized (_pending) {
+                    remaining = _pending.size();
+                    if (remaining <= 0)
+                        return;
+                    f = _pending.get(0);
+                }
                 try {
-                    synchronized (DataImporter.this) {
-                        DataImporter.this.wait(1000);
+                    f.get(1000, TimeUnit.MILLISECONDS);
+                    synchronized (_pending) {
+                        _pending.remove(0);
                     }
+                    continue;
+                } catch (TimeoutException te) {
+                } catch (ExecutionException ee) {
+                    synchronized (_pending) {
+                        _pending.remove(0);
+                    }
+                    continue;
                 } catch (InterruptedException ie) {}
                 _manager.getUI().debugMessage(Thread.currentThread().getName() + ": Waiting for the pending " + remaining + " import action queue to clear...");
             }
         }
-        
-        public void run() {
-            while (!_complete) {
-                ImportItem item;
-                try {
-                    item = _items.take();
-                } catch (InterruptedException ie) {
-                    break;
-                }
-                if (item == POISON)
-                    break;
-                SyncArchive.IncomingAction action = item.action;
-                File datafile = item.file;
-                boolean delete = item.delete;
-                
-                _manager.getUI().debugMessage(Thread.currentThread().getName() + ": executing import from " + datafile.toString());
-                action.setIsProcessing();
-                importData(action, datafile, delete, _whitelistScopes);
+    }
+
+    /**
+     *  One fetched file to import, batchable so the writer can group commit them
+     *
+     *  @since 1.107b-1
+     */
+    private class ImportCommand extends DBWriter.Command<Object> {
+        private final DataImporter _importer;
+        private final SyncArchive.IncomingAction _action;
+        private final File _datafile;
+        private final byte[] _data;
+        private final boolean _delete;
+        private final int _attempt;
+
+        /**
+         *  One of datafile or data non-null, kept until the import is committed,
+         *  so it can be tried again if its group commit is rolled back
+         *
+         *  @param attempt starting at 1
+         */
+        public ImportCommand(DataImporter importer, SyncArchive.IncomingAction action, File datafile, byte data[],
+                             boolean delete, int attempt) {
+            super("import", true);
+            _importer = importer;
+            _action = action;
+            _datafile = datafile;
+            _data = data;
+            _delete = delete;
+            _attempt = attempt;
+        }
+
+        public Object call() {
+            _manager.getUI().debugMessage(Thread.currentThread().getName() + ": executing import from " +
+                                          (_datafile != null ? _datafile.toString() : _action.getURI().toString()));
+            _action.setIsProcessing();
+            Runnable retry = null;
+            if (_attempt < MAX_IMPORT_ATTEMPTS) {
+                retry = new Runnable() {
+                    public void run() {
+                        _action.setIsQueuedForProcessing();
+                        _importer.resubmit(new ImportCommand(_importer, _action, _datafile, _data, _delete, _attempt + 1));
+                    }
+                };
             }
-            _items.clear();
-            _complete = true;
+            x_importData(_action, _datafile, _data, _delete, _importer.getWhitelistScopes(), retry);
+            return null;
         }
     }
     
-    private void importData(SyncArchive.IncomingAction action, File datafile, boolean delete, Set<Hash> whitelistScopes) {
+    /**
+     *  Import now, on the DB writer
+     */
+    private void importData(final SyncArchive.IncomingAction action, final File datafile, final boolean delete,
+                            final Set<Hash> whitelistScopes) {
+        _manager.getClient().writer().call(new DBWriter.Command<Object>("import") {
+            public Object call() {
+                x_importData(action, datafile, null, delete, whitelistScopes, null);
+                return null;
+            }
+        });
+    }
+
+    /**
+     *  The result is reported, and the file deleted, once the import is committed,
+     *  which in a group commit is after this returns, see DBClient.afterImportCommit().
+     *
+     *  @param datafile the file to import, or null to import the data
+     *  @param data ignored unless datafile is null
+     *  @param retry if non-null, run instead of failing if the import is rolled back
+     *               with its group commit, and the file is kept for it
+     */
+    private void x_importData(final SyncArchive.IncomingAction action, final File datafile, byte data[], boolean delete,
+                              Set<Hash> whitelistScopes, final Runnable retry) {
         Importer imp = new Importer(_manager.getClient());
         InputStream src = null;
+        boolean deleteNow = delete;
+        // keep the whitelist checks on the writer, so they see the import before it is group committed
+        _manager.getClient().beginWrite();
         try {
-            src = new FileInputStream(datafile);
-            ImportResult.Result result = imp.processMessage(_manager.getUI(), _manager.getClient(), src, null, false, null, null);
+            if (datafile != null)
+                src = new FileInputStream(datafile);
+            else
+                src = new ByteArrayInputStream(data);
+            long token = _manager.getClient().getGroupCommitToken();
+            final ImportResult.Result result = imp.processMessage(_manager.getUI(), _manager.getClient(), src, null, false, null, null);
             if (!result.ok()) {
                 action.importFailed(result);
             } else {
-                if (result == IMPORT_PASS_REQD) {
-                    String prompt = imp.getPBEPrompt();
-                    action.importPBE(prompt);
-                } else if (result == IMPORT_NO_READ_KEY || result == IMPORT_NO_REPLY_KEY) {
-                    action.importSuccessful(result);
-                } else {
+                final String prompt = result == IMPORT_PASS_REQD ? imp.getPBEPrompt() : null;
+                boolean matchesWhitelist = true;
+                if (result != IMPORT_PASS_REQD && result != IMPORT_NO_READ_KEY && result != IMPORT_NO_REPLY_KEY) {
                     SyndieURI uri = imp.getURI();
-                    boolean matchesWhitelist = false;
+                    matchesWhitelist = false;
                     if ( (whitelistScopes.size() == 0) || (uri.getMessageId() == null) ) {
                         matchesWhitelist = true;
                     } else if (whitelistScopes.contains(uri.getScope())) {
@@ -564,13 +843,37 @@ class SyncInboundFetcher {
                         }
                     }
                     if (!matchesWhitelist) {
-                        action.importFailed("Message valid, but does not match the whitelist", null);
                         _manager.getUI().debugMessage("Message imported on fetch, but does not match the whitelist: " + uri);
                         delete = true;
                         _manager.getClient().deleteFromDB(uri, _manager.getUI());
                     }
-                    action.importSuccessful(result);
                 }
+                final boolean whitelisted = matchesWhitelist;
+                final boolean deleteAfter = delete;
+                deleteNow = false;
+                _manager.getClient().afterImportCommit(token, new DBClient.CommitListener() {
+                    public void committed() {
+                        if (prompt != null)
+                            action.importPBE(prompt);
+                        else if (!whitelisted)
+                            action.importFailed("Message valid, but does not match the whitelist", null);
+                        else
+                            action.importSuccessful(result);
+                        if (deleteAfter && datafile != null)
+                            datafile.delete();
+                    }
+
+                    public void rolledBack() {
+                        if (retry != null) {
+                            _manager.getUI().debugMessage("Import of " + action.getURI() + " rolled back with its group commit, trying again");
+                            retry.run();
+                            return;
+                        }
+                        action.importFailed("Import rolled back with its group commit", null);
+                        if (deleteAfter && datafile != null)
+                            datafile.delete();
+                    }
+                });
             }
         } catch (IOException ioe) {
             action.importFailed("Error reading", ioe);
@@ -580,7 +883,9 @@ class SyncInboundFetcher {
             t.printStackTrace();
             action.importFailed("Internal error importing: " + t.getMessage(), new Exception(t));
         } finally {
-            if (delete)
+            _manager.getClient().endWrite();
+            if (src != null) try { src.close(); } catch (IOException ioe) {}
+            if (deleteNow && datafile != null)
                 datafile.delete();
         }
     }
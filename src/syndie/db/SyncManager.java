@@ -27,7 +27,10 @@ public class SyncManager {
         synchronized (SyncManager.class) {
             if (_instance == null) _instance = new SyncManager();
         }
-        _instance.loadArchives();
+        if (client.isStartupDeferred())
+            _instance.loadSettings();
+        else
+            _instance.loadArchives();
         return _instance; 
     }
     private final List<SyncArchive> _archives;
@@ -257,6 +260,19 @@ public class SyncManager {
         _client.setNymPrefs(prefs);
     }
     
+    /**
+     *  For a fast start, the online status and default strategies only.
+     *  The archives are loaded and the fetchers started later, see DBClient.PROP_FAST_START.
+     *
+     *  @since 1.107b-1
+     */
+    private synchronized void loadSettings() {
+        if (_archivesLoaded || _defaultPullStrategy != null) return;
+        if (!_client.isLoggedIn()) return;
+        loadOnlineStatus();
+        loadDefaultStrategies();
+    }
+
     public synchronized void loadArchives() {
         if (_archivesLoaded) return;
         if (!_client.isLoggedIn()) return;
@@ -57,7 +57,7 @@ class SyndicateMenu implements TextEngine.Menu {
     public void listCommands(UI ui) {
         // alphabetical please
         ui.statusMessage(" buildindex         : create or update the current archive's index");
-        ui.statusMessage(" bulkimport --dir $directory --delete $boolean --rmdir $boolean");
+        ui.statusMessage(" bulkimport --dir $directory --delete $boolean --rmdir $boolean [--batch $num --batchDelay $ms]");
         ui.statusMessage("                    : import all of the " + Constants.FILENAME_SUFFIX + " files in the given directory, deleting them on completion");
         ui.statusMessage(" diff [--maxSize $numBytes]");
         ui.statusMessage("                    : summarize the differences between the fetched index and the local db");
@@ -537,59 +537,81 @@ class SyndicateMenu implements TextEngine.Menu {
          */
     }
     
-    /** bulkimport --dir $directory --delete $boolean --rmdir $boolean*/
+    /**
+     * bulkimport --dir $directory --delete $boolean --rmdir $boolean [--batch $num --batchDelay $ms]
+     *
+     * Since 1.107b-1, the imports are group committed, every $num imports or $ms milliseconds,
+     * and the files are only deleted after the last commit.
+     */
     private void processBulkImport(DBClient client, UI ui, Opts opts) {
         String dir = opts.getOptValue("dir");
         boolean del = opts.getOptBoolean("delete", true);
         boolean rmdir = opts.getOptBoolean("rmdir", false);
         
         if (dir == null) {
-            ui.errorMessage("Usage: bulkimport --dir $directory --delete $boolean --rmdir $boolean");
+            ui.errorMessage("Usage: bulkimport --dir $directory --delete $boolean --rmdir $boolean [--batch $num --batchDelay $ms]");
             ui.commandComplete(-1, null);
             return;
         }
         
         int metaImported = 0;
         int postImported = 0;
+        int batch = (int)opts.getOptLong("batch", DBClient.DEFAULT_GROUP_COMMIT_SIZE);
+        long batchDelay = opts.getOptLong("batchDelay", DBClient.DEFAULT_GROUP_COMMIT_DELAY);
         
         File f = new File(dir);
-        File files[] = f.listFiles(_metafilter);
-        if (files != null) {
-            SharedArchiveBuilder.sortFiles(files);
-            for (int i = 0; i < files.length; i++) {
-                importMsg(client, ui, files[i], opts.getOptBoolean("reimport", false));
-                if (del) {
-                    boolean deleted = files[i].delete();
-                    if (!deleted)
-                        ui.statusMessage("Unable to delete " + files[i].getPath());
-                    else
-                        ui.statusMessage("Metadata deleted from " + files[i].getPath());
+        File metaFiles[] = f.listFiles(_metafilter);
+        File postFiles[] = f.listFiles(_postfilter);
+        boolean committed = false;
+        client.beginGroupCommit(batch, batchDelay);
+        try {
+            if (metaFiles != null) {
+                SharedArchiveBuilder.sortFiles(metaFiles);
+                for (int i = 0; i < metaFiles.length; i++) {
+                    importMsg(client, ui, metaFiles[i], opts.getOptBoolean("reimport", false));
+                    metaImported++;
                 }
-                metaImported++;
             }
-        }
-        
-        files = f.listFiles(_postfilter);
-        if (files != null) {
-            SharedArchiveBuilder.sortFiles(files);
-            for (int i = 0; i < files.length; i++) {
-                importMsg(client, ui, files[i], opts.getOptBoolean("reimport", false));
-                if (del) {
-                    boolean deleted = files[i].delete();
-                    if (!deleted)
-                        ui.statusMessage("Unable to delete " + files[i].getPath());
-                    else
-                        ui.statusMessage("Post deleted from " + files[i].getPath());
+            if (postFiles != null) {
+                SharedArchiveBuilder.sortFiles(postFiles);
+                for (int i = 0; i < postFiles.length; i++) {
+                    importMsg(client, ui, postFiles[i], opts.getOptBoolean("reimport", false));
+                    postImported++;
                 }
-                postImported++;
             }
+        } finally {
+            committed = client.endGroupCommit();
+        }
+        if (!committed) {
+            ui.errorMessage("Error committing the imports, some were rolled back, not deleting the files");
+            del = false;
         }
         
-        if (del && rmdir)
-            f.delete();
+        if (del) {
+            deleteFiles(ui, metaFiles, "Metadata");
+            deleteFiles(ui, postFiles, "Post");
+            if (rmdir)
+                f.delete();
+        }
         ui.statusMessage("Imported " + metaImported + " metadata and " + postImported + " posts");
         ui.commandComplete(0, null);
     }
+
+    /**
+     * @param files may be null
+     * @since 1.107b-1 pulled out of processBulkImport()
+     */
+    private static void deleteFiles(UI ui, File files[], String type) {
+        if (files == null)
+            return;
+        for (int i = 0; i < files.length; i++) {
+            boolean deleted = files[i].delete();
+            if (!deleted)
+                ui.statusMessage("Unable to delete " + files[i].getPath());
+            else
+                ui.statusMessage(type + " deleted from " + files[i].getPath());
+        }
+    }
     
     private void importMsg(DBClient client, UI ui, File f, boolean forceReimport) {
         Importer imp = new Importer(client, client.getPass());
@@ -7,32 +7,113 @@ import java.util.*;
 import syndie.data.SyndieURI;
 import syndie.util.StringUtil;
 
+import net.i2p.util.LHMCache;
 import net.i2p.util.Log;
 
 /**
  *  Data Access Object
+ *
+ *  As of schema version 29, the URI's encoded form (SyndieURI.toString())
+ *  is also stored in the encoded column of its __TYPE row, so a fetch
+ *  is one primary key lookup and one parse, instead of rebuilding it from
+ *  one row per attribute. The attribute rows are still written, and
+ *  are read if there's no encoded form.
+ *  Recently fetched URIs are cached by uriId. uriIds are never reused,
+ *  so the cache doesn't need to know about the many deletes by subquery.
  */
 class SyndieURIDAO {
     private final Log _log;
     private final DBClient _client;
+    /** uriId to the parsed URI, never handed out, callers get a copy; protected by itself */
+    private final Map<Long, SyndieURI> _cache;
+
+    private static final int CACHE_SIZE = 2048;
+    /** the schema version with the encoded column, see connect() */
+    static final int ENCODED_VERSION = 29;
+    /** as in ddl_update28 */
+    private static final int MAX_ENCODED_LENGTH = 16384;
 
     public SyndieURIDAO(DBClient client) {
         _client = client;
         _log = client.ctx().logManager().getLog(SyndieURIDAO.class);
+        _cache = new LHMCache<Long, SyndieURI>(CACHE_SIZE);
     }
     
     private static final String KEY_TYPE = "__TYPE";
     
     private static final String SQL_FETCH = "SELECT attribKey, attribValString, attribValLong, attribValBool, attribValStrings FROM uriAttribute WHERE uriId = ?";
+    private static final String SQL_FETCH_ENCODED = "SELECT encoded FROM uriAttribute WHERE uriId = ? AND attribKey = '" + KEY_TYPE + "'";
 
+    /**
+     *  @return a new SyndieURI, or null if not found
+     */
     public SyndieURI fetch(long uriId) {
+        if (uriId < 0) return null;
+        Long key = Long.valueOf(uriId);
+        SyndieURI rv;
+        synchronized (_cache) {
+            rv = _cache.get(key);
+        }
+        if (rv == null) {
+            rv = fetchEncoded(uriId);
+            if (rv == null)
+                return null;
+            synchronized (_cache) {
+                _cache.put(key, rv);
+            }
+        }
+        // the attributes are mutable, don't share them
+        return new SyndieURI(rv.getType(), (Map<String, Object>) rv.getAttributes());
+    }
+
+    /**
+     *  Parse the encoded form, falling back to the attribute rows
+     *  if there isn't one (or it's corrupt)
+     *
+     *  @return null if not found
+     */
+    private SyndieURI fetchEncoded(long uriId) {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        String encoded;
+        try {
+            stmt = _client.prepare(SQL_FETCH_ENCODED);
+            stmt.setLong(1, uriId);
+            rs = stmt.executeQuery();
+            if (!rs.next())
+                return null;
+            encoded = rs.getString(1);
+        } catch (SQLException se) {
+            _log.error("error fetching the uri [" + uriId + "]", se);
+            return null;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        if (encoded != null) {
+            try {
+                return new SyndieURI(encoded);
+            } catch (URISyntaxException use) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("bad encoded uri [" + uriId + "], reading the attributes", use);
+            }
+        }
+        return fetchAttributes(uriId);
+    }
+
+    /**
+     *  Rebuild the URI from its attribute rows, as before schema version 29
+     *
+     *  @return null if not found
+     */
+    SyndieURI fetchAttributes(long uriId) {
         if (uriId < 0) return null;
         PreparedStatement stmt = null;
         ResultSet rs = null;
         Map attribs = new TreeMap();
         String type = null;
         try {
-            stmt = _client.con().prepareStatement(SQL_FETCH);
+            stmt = _client.prepare(SQL_FETCH);
             stmt.setLong(1, uriId);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -85,7 +166,7 @@ class SyndieURIDAO {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _client.con().prepareStatement(SQL_NEXTID);
+            stmt = _client.prepare(SQL_NEXTID);
             rs = stmt.executeQuery();
             if (rs.next()) {
                 long rv = rs.getLong(1);
@@ -108,6 +189,7 @@ class SyndieURIDAO {
     
     
     private static final String SQL_INSERT = "INSERT INTO uriAttribute (attribKey, attribValString, attribValLong, attribValBool, attribValStrings, uriId, isDescriptive) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_SET_ENCODED = "UPDATE uriAttribute SET encoded = ? WHERE uriId = ? AND attribKey = '" + KEY_TYPE + "'";
 
     public long add(SyndieURI uri) {
         long id = nextId();
@@ -115,10 +197,11 @@ class SyndieURIDAO {
             return id;
         PreparedStatement stmt = null;
         try {
-            stmt = _client.con().prepareStatement(SQL_INSERT);
+            stmt = _client.prepare(SQL_INSERT);
             
             String type = uri.getType();
             insertAttrib(stmt, KEY_TYPE, type, null, null, null, id, false);
+            setEncoded(id, uri);
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("URI " + id + " added with type " + type);
             Map attributes = uri.getAttributes();
@@ -182,4 +265,69 @@ class SyndieURIDAO {
         if (rows != 1)
             throw new SQLException("Insert added "+rows+" rows");
     }
+
+    /**
+     *  @return false if too long to store, the attribute rows will be used
+     */
+    private boolean setEncoded(long uriId, SyndieURI uri) throws SQLException {
+        String encoded = uri.toString();
+        if (encoded.length() > MAX_ENCODED_LENGTH)
+            return false;
+        PreparedStatement stmt = null;
+        try {
+            stmt = _client.prepare(SQL_SET_ENCODED);
+            stmt.setString(1, encoded);
+            stmt.setLong(2, uriId);
+            stmt.executeUpdate();
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return true;
+    }
+
+    private static final String SQL_GET_UNENCODED = "SELECT uriId FROM uriAttribute WHERE attribKey = '" + KEY_TYPE + "' AND encoded IS NULL";
+    private static final int MIGRATE_BATCH = 500;
+
+    /**
+     *  Store the encoded form of the URIs added before schema version 29.
+     *  Called once by connect(), right after the update.
+     *
+     *  @return the number of URIs encoded
+     */
+    public int migrate() throws SQLException {
+        long start = System.currentTimeMillis();
+        List<Long> ids = new ArrayList<Long>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.con().prepareStatement(SQL_GET_UNENCODED);
+            rs = stmt.executeQuery();
+            while (rs.next())
+                ids.add(Long.valueOf(rs.getLong(1)));
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        int done = 0;
+        for (int i = 0; i < ids.size(); i += MIGRATE_BATCH) {
+            Object tx = _client.beginImportTransaction();
+            try {
+                int end = Math.min(ids.size(), i + MIGRATE_BATCH);
+                for (int j = i; j < end; j++) {
+                    long uriId = ids.get(j).longValue();
+                    SyndieURI uri = fetchAttributes(uriId);
+                    if (uri != null && setEncoded(uriId, uri))
+                        done++;
+                }
+            } catch (SQLException se) {
+                _client.rollbackImportTransaction(tx);
+                throw se;
+            }
+            if (!_client.commitImportTransaction(tx))
+                throw new SQLException("Error committing the encoded uris");
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Encoded " + done + " of " + ids.size() + " uris in " + (System.currentTimeMillis() - start) + "ms");
+        return done;
+    }
 }
@@ -428,14 +428,19 @@ public class TextEngine {
                 _ui.statusMessage("Login successful (nymId " + nymId + ")");
                 rebuildMenus();
                 _currentMenu = LoggedInMenu.NAME;
+                _client.startupPhase("menus");
                 
                 Properties prefs = _client.getNymPrefs(nymId);
                 doSetPrefs(prefs);
+                _client.startupPhase("set prefs");
                 if (_newNymCreated && !_newDatabaseScriptRan) {
                     _client.runScript(_ui, "newdatabase");
                     _newDatabaseScriptRan = true;
+                    _client.startupPhase("newdatabase script");
                 }
                 _client.runScript(_ui, "login");
+                _client.startupPhase("login script");
+                _client.startupComplete();
             } else {
                 _ui.statusMessage("Login failed");
                 if (nymId == DBClient.NYM_ID_LOGIN_UNKNOWN) {
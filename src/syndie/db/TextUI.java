@@ -249,6 +249,8 @@ public class TextUI implements UI {
                 script = args[i].substring(1);
             else if (args[i].equals("--nostdin"))
                 readStdin = false;
+            else if (args[i].equals("--faststart"))
+                System.setProperty(DBClient.PROP_FAST_START, "true");
             else if (!args[i].startsWith("-"))
                 rootDir = args[i];
         }
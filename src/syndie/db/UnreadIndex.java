@@ -0,0 +1,233 @@
+package syndie.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.i2p.util.Log;
+
+/**
+ *  The unread msgIds of the logged in nym, as a bitmap,
+ *  so getUnread() and getMessageStatus() need no query,
+ *  no matter how many candidate messages there are.
+ *
+ *  Loaded at login, and kept up to date by each change to nymUnreadMessage
+ *  (writeMessageStatus(), markChannelRead(), deleteMessageFromDB(),
+ *  ImportPost.setUnread()). The changes made in a transaction are logged,
+ *  and undone if it, or the savepoint they came after, is rolled back.
+ *  Other nyms aren't kept here, DBClient queries for them.
+ *
+ *  msgIds come from a sequence starting at 0, so they fit in a BitSet.
+ *  If one ever doesn't, the bitmap is dropped and DBClient queries instead.
+ *
+ *  @since 1.107b-1
+ */
+class UnreadIndex {
+    private final DBClient _client;
+    private final Log _log;
+    /** the nym whose unread msgIds are in _unread, or -1 if none; protected by this */
+    private long _nymId;
+    /** protected by this */
+    private final BitSet _unread;
+    /**
+     *  the changes since the transaction began, as msgId &lt;&lt; 1 | 1 if it was unread,
+     *  null outside a transaction; protected by this
+     */
+    private List<Long> _undo;
+
+    private static final String SQL_GET_UNREAD = "SELECT msgId FROM nymUnreadMessage WHERE nymId = ?";
+    private static final String SQL_GET_CHANNEL_MSGS = "SELECT msgId FROM channelMessage WHERE targetChannelId = ?";
+
+    public UnreadIndex(DBClient client) {
+        _client = client;
+        _log = client.ctx().logManager().getLog(UnreadIndex.class);
+        _nymId = -1;
+        _unread = new BitSet();
+    }
+
+    /**
+     *  Load the unread msgIds of the nym, replacing any other nym's.
+     *  Call in a write scope, so that no change is made while loading.
+     */
+    public void load(long nymId) {
+        long start = System.currentTimeMillis();
+        BitSet unread = new BitSet();
+        int count = 0;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.prepare(SQL_GET_UNREAD);
+            stmt.setLong(1, nymId);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                long msgId = rs.getLong(1);
+                if (rs.wasNull())
+                    continue;
+                if (msgId < 0 || msgId > Integer.MAX_VALUE) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("msgId " + msgId + " out of range, not keeping the unread messages in memory");
+                    clear();
+                    return;
+                }
+                unread.set((int) msgId);
+                count++;
+            }
+        } catch (SQLException se) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Error loading the unread messages", se);
+            clear();
+            return;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        synchronized (this) {
+            _nymId = nymId;
+            _unread.clear();
+            _unread.or(unread);
+            if (_undo != null)
+                _undo.clear();
+        }
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Loaded " + count + " unread messages for nym " + nymId + " in " +
+                       (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     *  A transaction or savepoint begins, log the changes from here on
+     *
+     *  @return the mark for undo()
+     */
+    public synchronized int beginUndo() {
+        if (_undo == null)
+            _undo = new ArrayList<Long>();
+        return _undo.size();
+    }
+
+    /**
+     *  Undo the changes since the mark, which were rolled back
+     *
+     *  @param mark from beginUndo(), 0 for the whole transaction
+     */
+    public synchronized void undo(int mark) {
+        if (_undo == null)
+            return;
+        for (int i = _undo.size() - 1; i >= mark; i--) {
+            long change = _undo.remove(i).longValue();
+            _unread.set((int) (change >>> 1), (change & 1) != 0);
+        }
+    }
+
+    /** the transaction is over, stop logging the changes */
+    public synchronized void endUndo() {
+        _undo = null;
+    }
+
+    /** forget everything, until the next load() */
+    public synchronized void clear() {
+        _nymId = -1;
+        _unread.clear();
+        if (_undo != null)
+            _undo.clear();
+    }
+
+    public synchronized boolean isLoaded(long nymId) {
+        return _nymId >= 0 && _nymId == nymId;
+    }
+
+    /**
+     *  @return the unread ones of msgIds, or null if the nym isn't loaded
+     */
+    public synchronized Set<Long> getUnread(long nymId, long msgIds[]) {
+        if (!isLoaded(nymId))
+            return null;
+        Set<Long> rv = new HashSet<Long>();
+        for (int i = 0; i < msgIds.length; i++) {
+            long msgId = msgIds[i];
+            if (msgId >= 0 && msgId <= Integer.MAX_VALUE && _unread.get((int) msgId))
+                rv.add(Long.valueOf(msgId));
+        }
+        return rv;
+    }
+
+    /**
+     *  @return all the unread msgIds, or null if the nym isn't loaded
+     */
+    public synchronized List<Long> getAll(long nymId) {
+        if (!isLoaded(nymId))
+            return null;
+        List<Long> rv = new ArrayList<Long>(_unread.cardinality());
+        for (int i = _unread.nextSetBit(0); i >= 0; i = _unread.nextSetBit(i + 1)) {
+            rv.add(Long.valueOf(i));
+        }
+        return rv;
+    }
+
+    /**
+     *  @return true if unread, false if read, null if the nym isn't loaded
+     */
+    public synchronized Boolean isUnread(long nymId, long msgId) {
+        if (!isLoaded(nymId))
+            return null;
+        return Boolean.valueOf(msgId >= 0 && msgId <= Integer.MAX_VALUE && _unread.get((int) msgId));
+    }
+
+    /** a row was inserted into or deleted from nymUnreadMessage */
+    public synchronized void set(long nymId, long msgId, boolean unread) {
+        if (!isLoaded(nymId))
+            return;
+        if (msgId < 0 || msgId > Integer.MAX_VALUE) {
+            if (unread)
+                clear();
+            return;
+        }
+        boolean old = _unread.get((int) msgId);
+        if (old == unread)
+            return;
+        if (_undo != null)
+            _undo.add(Long.valueOf((msgId << 1) | (old ? 1 : 0)));
+        _unread.set((int) msgId, unread);
+    }
+
+    /** the message is now unread for these nyms and no others (ImportPost.setUnread()) */
+    public synchronized void setUnreadBy(long msgId, List<Long> nymIds) {
+        if (_nymId < 0)
+            return;
+        set(_nymId, msgId, nymIds.contains(Long.valueOf(_nymId)));
+    }
+
+    /** the message was deleted */
+    public synchronized void remove(long msgId) {
+        if (_nymId < 0)
+            return;
+        set(_nymId, msgId, false);
+    }
+
+    /**
+     *  All the messages in the forum were marked read.
+     *  Call in the same write scope as the delete.
+     */
+    public void channelRead(long nymId, long chanId) throws SQLException {
+        if (!isLoaded(nymId))
+            return;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.prepare(SQL_GET_CHANNEL_MSGS);
+            stmt.setLong(1, chanId);
+            rs = stmt.executeQuery();
+            synchronized (this) {
+                while (rs.next())
+                    set(nymId, rs.getLong(1), false);
+            }
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+}
@@ -2242,10 +2242,66 @@ public class MessageTree extends BaseComponent implements Translatable, Themeabl
                 if (_listener != null)
                     _listener.messageSelected(this, uri, toView, nodelay);
             }
+            if (selected.length == 1)
+                prefetchAfter(selected[0]);
         }
         updateECButtons();
     }
 
+    /** how many messages after the selected one to load into the page cache */
+    private static final int PREFETCH_COUNT = 3;
+
+    /**
+     *  Warm the page cache with the next few messages in display order,
+     *  the ones most likely to be viewed next.
+     *
+     *  @since 1.107b-1
+     */
+    private void prefetchAfter(TreeItem item) {
+        final List<SyndieURI> uris = new ArrayList(PREFETCH_COUNT);
+        TreeItem cur = item;
+        while (uris.size() < PREFETCH_COUNT) {
+            cur = getNextVisible(cur);
+            if (cur == null)
+                break;
+            SyndieURI uri = _itemToURI.get(cur);
+            if ( (uri != null) && (uri.getMessageId() != null) )
+                uris.add(uri);
+        }
+        if (uris.isEmpty())
+            return;
+        JobRunner.instance().enqueue(new Runnable() {
+            public void run() { _client.prefetchMessagePages(uris); }
+        });
+    }
+
+    /**
+     *  Depth first: the first child if expanded, else the next sibling,
+     *  else the next sibling of the nearest ancestor that has one.
+     *
+     *  @return null if item is the last one shown
+     *  @since 1.107b-1
+     */
+    private TreeItem getNextVisible(TreeItem item) {
+        if (item.getExpanded() && (item.getItemCount() > 0))
+            return item.getItem(0);
+        TreeItem cur = item;
+        while (cur != null) {
+            TreeItem parent = cur.getParentItem();
+            if (parent != null) {
+                int idx = parent.indexOf(cur);
+                if (idx + 1 < parent.getItemCount())
+                    return parent.getItem(idx + 1);
+            } else {
+                int idx = _tree.indexOf(cur);
+                if (idx + 1 < _tree.getItemCount())
+                    return _tree.getItem(idx + 1);
+            }
+            cur = parent;
+        }
+        return null;
+    }
+
     private void viewSelected() {
         TreeItem selected[] = _tree.getSelection();
         if (selected != null) {
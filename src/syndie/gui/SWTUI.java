@@ -51,6 +51,8 @@ public class SWTUI {
                 TextUI.main(args);
                 return;
             }
+            if ("--faststart".equals(args[i]))
+                System.setProperty(DBClient.PROP_FAST_START, "true");
         }
         System.setProperty("jbigi.dontLog", "true");
         System.setProperty("jcpuid.dontLog", "true");
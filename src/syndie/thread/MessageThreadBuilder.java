@@ -132,7 +132,7 @@ public class MessageThreadBuilder {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _client.con().prepareStatement(SQL_GET_PARENT_URIS);
+            stmt = _client.prepare(SQL_GET_PARENT_URIS);
             stmt.setLong(1, msgId);
             rs = stmt.executeQuery();
             List<SyndieURI> rv = new ArrayList<SyndieURI>();
@@ -174,7 +174,7 @@ public class MessageThreadBuilder {
         _client.getMessageIdsAuthenticated(channel);
         ResultSet rs = null;
         try {
-            stmt = _client.con().prepareStatement(SQL_GET_CHILD_URIS);
+            stmt = _client.prepare(SQL_GET_CHILD_URIS);
             stmt.setBytes(1, channel.getData());
             stmt.setLong(2, messageId);
             rs = stmt.executeQuery();
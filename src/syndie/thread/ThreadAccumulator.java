@@ -277,7 +277,7 @@ AND
         try {
             if (_channelHashes == null) {
                 _ui.debugMessage("gather across all channels");
-                stmt = _client.con().prepareStatement(SQL_LIST_THREADS_ALL);
+                stmt = _client.prepare(SQL_LIST_THREADS_ALL);
                 rs = stmt.executeQuery();
                 while (rs.next()) {
                     // msgId, scopeChannelId, authorChannelId, targetChannelId
@@ -306,7 +306,7 @@ AND
                     Hash chan = (Hash)iter.next();
                     _ui.debugMessage("gather threads across " + chan.toBase64());
                     long chanId = _client.getChannelId(chan);
-                    stmt = _client.con().prepareStatement(SQL_LIST_THREADS_CHAN);
+                    stmt = _client.prepare(SQL_LIST_THREADS_CHAN);
                     stmt.setLong(1, chanId);
                     stmt.setLong(2, chanId);
                     rs = stmt.executeQuery();
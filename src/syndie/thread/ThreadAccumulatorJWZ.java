@@ -166,6 +166,19 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
      */
     @Override
     public void gatherThreads() {
+        // keep all of the queries on one pooled read connection
+        _client.beginRead();
+        try {
+            x_gatherThreads();
+        } finally {
+            _client.endRead();
+        }
+    }
+
+    /**
+     * @since 1.107b-1 split out of gatherThreads()
+     */
+    private void x_gatherThreads() {
         init();
         if (VERBOSE_DEBUG) _ui.debugMessage("beginning gather threads w/ state: \n" + toString());
         
@@ -285,10 +298,13 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
         
         // filter the messages in the threads by keyword (we do this so late in the game in the
         // hopes that the above will minimize how much we have to filter w/ fulltext searches..)
-        if ( (_keyword != null) && (_keyword.length() > 0) ) {
+        Set<Long> keywordMatches = null;
+        if ( (_keyword != null) && (_keyword.length() > 0) )
+            keywordMatches = _client.searchMessages(_keyword);
+        if (keywordMatches != null) {
             for (int i = 0; i < threads.length; i++) {    
                 if (threads[i] != null) {
-                    boolean empty = filterKeyword(threads[i]);
+                    boolean empty = filterKeyword(threads[i], keywordMatches);
                     if (empty) {
                         if (VERBOSE_DEBUG) _ui.debugMessage("reject because keyword search failed: " + threads[i]);
                         threads[i] = null;
@@ -364,7 +380,7 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
                 String query = SQL_GET_BASE_MSGS_BY_TARGET;
                 if (pbePending)
                     query = SQL_GET_BASE_MSGS_BY_TARGET_PBE;
-                stmt = _client.con().prepareStatement(query);
+                stmt = _client.prepareUncached(query);
                 if (VERBOSE_DEBUG) _ui.debugMessage("threading query: [minImport=" + minImportDate + " minMsgId=" + _earliestPostDate + "]: " + query);
                 
                 for (Iterator iter = _channelHashes.iterator(); iter.hasNext(); ) {
@@ -404,7 +420,7 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
                 String query = SQL_GET_BASE_MSGS_ALLCHANS;
                 if (pbePending)
                     query = SQL_GET_BASE_MSGS_ALLCHANS_PBE;
-                stmt = _client.con().prepareStatement(query);
+                stmt = _client.prepareUncached(query);
                 if (VERBOSE_DEBUG) _ui.debugMessage("threading query: [minImport=" + minImportDate + " minMsgId=" + _earliestPostDate + "]: " + query);
                 stmt.setDate(1, new java.sql.Date(minImportDate));
                 stmt.setLong(2, minMsgId);
@@ -528,7 +544,7 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
         long queryTime = 0;
         int queryMatches = 0;
         try {
-            stmt = client.con().prepareStatement(SQL_BUILD_ANCESTORS);
+            stmt = client.prepare(SQL_BUILD_ANCESTORS);
             while (pendingThreadMsgIds.size() > 0) {
                 tmi = pendingThreadMsgIds.remove(0);
                 List<ThreadMsgId> rv = existingAncestors.get(tmi);
@@ -648,7 +664,7 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
         long queryTime = 0;
         int queryMatches = 0;
         try {
-            stmt = client.con().prepareStatement(query);
+            stmt = client.prepareUncached(query);
             timer.addEvent("buildChildren query prepared");
             long before = System.currentTimeMillis();
             rs = stmt.executeQuery();
@@ -819,13 +835,15 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
     /**
      * null out any messages in the thread who do not have the keyword,
      * returning true if the entire thread was nulled out
+     *
+     * @param matches the msgIds matching the keyword
      */
-    private boolean filterKeyword(ThreadReferenceNode node) {
+    private boolean filterKeyword(ThreadReferenceNode node, Set<Long> matches) {
         boolean rv = true;
         if (!node.isDummy()) {
             ThreadMsgId id = node.getMsgId();
             if (id != null) {
-                boolean match = _client.messageKeywordMatch(id.msgId, _keyword);
+                boolean match = matches.contains(Long.valueOf(id.msgId));
                 if (!match) {
                     if (VERBOSE_DEBUG) _ui.debugMessage("reject " + id + " because it didn't match the keyword");
                     node.setIsDummy(true);
@@ -837,7 +855,7 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
         if (!node.isDummy())
             rv = false;
         for (int i = 0; i < node.getChildCount(); i++) {
-            boolean childIsEmpty = filterKeyword((ThreadReferenceNode)node.getChild(i));
+            boolean childIsEmpty = filterKeyword((ThreadReferenceNode)node.getChild(i), matches);
             rv = rv && childIsEmpty;
         }
         if (VERBOSE_DEBUG) _ui.debugMessage("filter keyword rv for " + node.getAuthorId() + ": " + rv + " - " + node.getURI());
@@ -204,7 +204,7 @@ public class ThreadBuilder {
             PreparedStatement stmt = null;
             ResultSet rs = null;
             try {
-                stmt = client.con().prepareStatement(SQL_POPULATE_NODE);
+                stmt = client.prepare(SQL_POPULATE_NODE);
                 stmt.setLong(1, tmi.msgId);
                 rs = stmt.executeQuery();
                 if (rs.next()) {
@@ -383,7 +383,7 @@ public class ThreadBuilder {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = _client.con().prepareStatement(SQL_GET_CHILDREN);
+            stmt = _client.prepare(SQL_GET_CHILDREN);
             while (toQuery.size() > 0) {
                 ThreadMsgId id = toQuery.remove(0);
                 stmt.setLong(1, id.messageId);